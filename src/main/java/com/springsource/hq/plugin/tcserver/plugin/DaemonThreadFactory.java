@@ -0,0 +1,53 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} that creates named daemon threads, so that the plugin's background work never prevents the
+ * agent from shutting down
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String namePrefix;
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * @param name the name of the threads, to which each thread's number is appended
+     */
+    public DaemonThreadFactory(String name) {
+        this.namePrefix = name + "-";
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.ConfigTrackPlugin;
+import org.hyperic.hq.product.LogTrackPlugin;
+import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.ProductPlugin;
+import org.hyperic.hq.product.TrackEvent;
+import org.hyperic.util.config.ConfigResponse;
+
+import com.springsource.hq.plugin.tcserver.plugin.configtrack.ConfigDirectoryWatcher;
+import com.springsource.hq.plugin.tcserver.plugin.configtrack.ConfigDirectoryWatcher.Change;
+import com.springsource.hq.plugin.tcserver.plugin.configtrack.ConfigDirectoryWatcher.Registration;
+import com.springsource.hq.plugin.tcserver.plugin.configtrack.MonitoredFolder;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxConnectionManager;
+
+/**
+ * Config track plugin that reports changes to the files of an instance's monitored folders as they happen, rather than
+ * by walking the folders on every cycle. The folders are those declared by the plugin's <code>&lt;monitored&gt;</code>
+ * element in the plugin descriptor. A change to the instance's <code>server.xml</code> or
+ * <code>catalina.properties</code> is reported as a warning, and its JMX connection is discarded so that the next
+ * collection connects afresh.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public class TomcatConfigTrackPlugin extends ConfigTrackPlugin {
+
+    private static final String PLUGIN_DESCRIPTOR = "/etc/hq-plugin.xml";
+
+    private static final String CONF = "conf";
+
+    private static final String SERVER_XML = "server.xml";
+
+    private static final String CATALINA_PROPERTIES = "catalina.properties";
+
+    private static final Object FOLDERS_MONITOR = new Object();
+
+    private static List<MonitoredFolder> folders;
+
+    private final Log logger = LogFactory.getLog(TomcatConfigTrackPlugin.class);
+
+    private volatile ConfigResponse instanceConfig;
+
+    private Registration registration;
+
+    @Override
+    public void configure(ConfigResponse config) throws PluginException {
+        super.configure(config);
+        this.instanceConfig = config;
+        String installPath = config.getValue(ProductPlugin.PROP_INSTALLPATH);
+        synchronized (this) {
+            cancel();
+            if (installPath != null) {
+                final File root = new File(installPath);
+                this.registration = ConfigDirectoryWatcher.getInstance().watch(root, getFolders(), new ConfigDirectoryWatcher.Listener() {
+
+                    public void changed(File file, Change change) {
+                        reportChange(root, file, change);
+                    }
+                });
+                logger.debug((this.registration.isPolled() ? "Polling " : "Watching ") + root + " for configuration changes");
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() throws PluginException {
+        synchronized (this) {
+            cancel();
+        }
+        super.shutdown();
+    }
+
+    private void cancel() {
+        if (this.registration != null) {
+            this.registration.cancel();
+            this.registration = null;
+        }
+    }
+
+    private void reportChange(File root, File file, Change change) {
+        String message = "File " + file.getPath() + " " + change.name().toLowerCase();
+        int level = LogTrackPlugin.LOGLEVEL_INFO;
+        if (isInstanceConfiguration(root, file)) {
+            JmxConnectionManager.getInstance().invalidate(this.instanceConfig.toProperties());
+            message += "; the instance's JMX connection has been reset, and the instance should be rediscovered";
+            level = LogTrackPlugin.LOGLEVEL_WARN;
+        }
+        getManager().reportEvent(new TrackEvent(getName(), System.currentTimeMillis(), level, file.getPath(), message));
+    }
+
+    private static boolean isInstanceConfiguration(File root, File file) {
+        return new File(root, CONF).equals(file.getParentFile())
+            && (SERVER_XML.equals(file.getName()) || CATALINA_PROPERTIES.equals(file.getName()));
+    }
+
+    private List<MonitoredFolder> getFolders() {
+        synchronized (FOLDERS_MONITOR) {
+            if (folders == null) {
+                InputStream descriptor = TomcatConfigTrackPlugin.class.getResourceAsStream(PLUGIN_DESCRIPTOR);
+                if (descriptor == null) {
+                    logger.warn("Plugin descriptor " + PLUGIN_DESCRIPTOR + " not found, no folders will be tracked");
+                    folders = Collections.emptyList();
+                } else {
+                    try {
+                        folders = MonitoredFolder.parse(descriptor, TomcatConfigTrackPlugin.class.getName());
+                    } catch (IOException e) {
+                        logger.warn("Unable to read the monitored folders, no folders will be tracked: " + e.getMessage());
+                        folders = Collections.emptyList();
+                    } finally {
+                        try {
+                            descriptor.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+            return folders;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin;
+
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.List;
+import java.util.Properties;
+
+import javax.management.MBeanServerConnection;
+
+import org.hyperic.hq.product.LiveDataPlugin;
+import org.hyperic.hq.product.PluginException;
+import org.hyperic.util.config.ConfigResponse;
+
+import com.springsource.hq.plugin.tcserver.plugin.measurement.HotThreadSampler;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.PlatformMXBeanCache;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.ThreadCpuInterval;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.ThreadCpuSample;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.DeadlineJmxUtils;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxUtils;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.MxUtilJmxUtils;
+
+/**
+ * Live data plugin that identifies a tc Runtime instance's hottest threads. The <code>hotThreads</code> command samples
+ * the CPU time of every thread twice, a second apart, and returns the threads that used the most CPU time in between,
+ * hottest first, with their stack traces.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public class TomcatLiveDataPlugin extends LiveDataPlugin {
+
+    static final String HOT_THREADS = "hotThreads";
+
+    private static final String[] COMMANDS = { HOT_THREADS };
+
+    private static final long SAMPLING_TIME = 1000;
+
+    private static final int STACK_DEPTH = 64;
+
+    private static final PlatformMXBeanCache PLATFORM_MXBEAN_CACHE = new PlatformMXBeanCache();
+
+    private final JmxUtils jmxUtils;
+
+    public TomcatLiveDataPlugin() {
+        this(new DeadlineJmxUtils(new MxUtilJmxUtils()));
+    }
+
+    TomcatLiveDataPlugin(JmxUtils jmxUtils) {
+        this.jmxUtils = jmxUtils;
+    }
+
+    public String[] getCommands() {
+        return COMMANDS.clone();
+    }
+
+    public Object getData(String command, ConfigResponse config) throws PluginException {
+        if (!HOT_THREADS.equals(command)) {
+            throw new PluginException("Unknown command '" + command + "'");
+        }
+
+        Properties properties = config.toProperties();
+        String instanceKey = properties.getProperty(jmxUtils.getJmxUrlProperty());
+        try {
+            MBeanServerConnection connection = jmxUtils.getMBeanServer(properties);
+            ThreadMXBean threadBean = PLATFORM_MXBEAN_CACHE.getThreadMXBean(connection, instanceKey);
+            HotThreadSampler sampler = HotThreadSampler.forInstance(instanceKey);
+
+            ThreadCpuSample first = sampler.sample(connection, threadBean, 0);
+            Thread.sleep(SAMPLING_TIME);
+            ThreadCpuSample second = sampler.sample(connection, threadBean, 0);
+
+            ThreadCpuInterval interval = second.since(first, TomcatMeasurementPlugin.compileRequestThreads(
+                getPluginProperty(TomcatMeasurementPlugin.PROP_HOT_THREADS_REQUEST_THREADS)), getLimit());
+            if (interval == null) {
+                return new ThreadCpuInterval.HotThread[0];
+            }
+            return withStackTraces(threadBean, interval.getHotThreads());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PluginException("Interrupted while sampling thread CPU times");
+        } catch (IOException e) {
+            throw new PluginException("Error querying for thread CPU times of [" + instanceKey + "]: " + e.getMessage(), e);
+        } catch (UndeclaredThrowableException e) {
+            throw new PluginException("Error querying for thread stack traces of [" + instanceKey + "]: " + e.getCause(), e);
+        } catch (IllegalArgumentException e) {
+            throw new PluginException("Unable to reach thread mbean of [" + instanceKey + "]: " + e.getMessage(), e);
+        }
+    }
+
+    private int getLimit() {
+        String limit = getPluginProperty(TomcatMeasurementPlugin.PROP_HOT_THREADS_LIMIT);
+        if (limit != null) {
+            try {
+                return Integer.parseInt(limit.trim());
+            } catch (NumberFormatException e) {
+                // Fall back to the default
+            }
+        }
+        return TomcatMeasurementPlugin.DEFAULT_HOT_THREADS_LIMIT;
+    }
+
+    /**
+     * Reads the stack traces of the hot threads in one call. A thread that has ended since it was sampled is returned
+     * without a stack trace.
+     */
+    private ThreadCpuInterval.HotThread[] withStackTraces(ThreadMXBean threadBean, List<ThreadCpuInterval.HotThread> hotThreads) {
+        long[] threadIds = new long[hotThreads.size()];
+        for (int i = 0; i < threadIds.length; i++) {
+            threadIds[i] = hotThreads.get(i).getThreadId();
+        }
+
+        ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds, STACK_DEPTH);
+        ThreadCpuInterval.HotThread[] result = new ThreadCpuInterval.HotThread[threadIds.length];
+        for (int i = 0; i < threadIds.length; i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            result[i] = threadInfo == null ? hotThreads.get(i) : hotThreads.get(i).withStackTrace(threadInfo.getStackTrace());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hyperic.hq.product.Log4JLogTrackPlugin;
+import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.jmx.MxUtil;
+import org.hyperic.util.config.ConfigResponse;
+
+import com.springsource.hq.plugin.tcserver.plugin.measurement.DeadlockReport;
+
+/**
+ * Extension of {@link Log4JLogTrackPlugin} that, in addition to tracking the instance's log, reports the deadlocks
+ * found by {@link TomcatMeasurementPlugin} as events. Each configured plugin registers itself under its instance's
+ * jmx.url so that the measurement plugin can find it.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public class TomcatLogTrackPlugin extends Log4JLogTrackPlugin {
+
+    private static final String DEADLOCK_EVENT_SOURCE = "java.lang:type=Threading";
+
+    private static final ConcurrentMap<String, TomcatLogTrackPlugin> PLUGINS = new ConcurrentHashMap<String, TomcatLogTrackPlugin>();
+
+    private volatile String jmxUrl;
+
+    @Override
+    public void configure(ConfigResponse config) throws PluginException {
+        super.configure(config);
+        unregister();
+        this.jmxUrl = config.getValue(MxUtil.PROP_JMX_URL);
+        if (this.jmxUrl != null) {
+            PLUGINS.put(this.jmxUrl, this);
+        }
+    }
+
+    @Override
+    public void shutdown() throws PluginException {
+        unregister();
+        super.shutdown();
+    }
+
+    private void unregister() {
+        if (this.jmxUrl != null) {
+            PLUGINS.remove(this.jmxUrl, this);
+        }
+    }
+
+    /**
+     * Reports a deadlock as an event of the instance with the given jmx.url
+     *
+     * @param jmxUrl the instance's jmx.url
+     * @param report the deadlock
+     * @return <code>true</code> if the event was reported, <code>false</code> if log tracking is not enabled for the
+     *         instance
+     */
+    static boolean reportDeadlock(String jmxUrl, DeadlockReport report) {
+        TomcatLogTrackPlugin plugin = jmxUrl == null ? null : PLUGINS.get(jmxUrl);
+        if (plugin == null) {
+            return false;
+        }
+        plugin.reportEvent(System.currentTimeMillis(), LOGLEVEL_ERROR, DEADLOCK_EVENT_SOURCE, report.format());
+        return true;
+    }
+}
@@ -20,22 +20,32 @@ package com.springsource.hq.plugin.tcserver.plugin;
  */
 
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
 import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
-import javax.management.JMException;
-import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
-import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,6 +58,32 @@ import org.hyperic.hq.product.PluginException;
 import org.hyperic.hq.product.jmx.MxMeasurementPlugin;
 import org.hyperic.hq.product.jmx.MxUtil;
 
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.CollectorStatistics;
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.OperationStatistics;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.AttributeSample;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.AttributeSnapshot;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.AttributeSnapshotCache;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.BulkheadExecutor;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.CircuitBreaker;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.DeadlockDetector;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.DeadlockReport;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.DerivedMetric;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.DerivedMetricContext;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.DerivedMetrics;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.GarbageCollectionInterval;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.GarbageCollectionSample;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.GarbageCollectionTracker;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.HotThreadSampler;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.MBeanServerConnectionProvider;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.MemoryPoolTracker;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.PlatformMXBeanCache;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.SampleStatistics;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.SaturationSampler;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.ThreadCpuInterval;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.ThreadCpuSample;
+import com.springsource.hq.plugin.tcserver.plugin.measurement.YoungGenerationSample;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.DeadlineJmxUtils;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.InstrumentedJmxUtils;
 import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxUtils;
 import com.springsource.hq.plugin.tcserver.plugin.wrapper.MxUtilJmxUtils;
 
@@ -60,28 +96,201 @@ import com.springsource.hq.plugin.tcserver.plugin.wrapper.MxUtilJmxUtils;
  */
 public class TomcatMeasurementPlugin extends MxMeasurementPlugin {
 
+    /**
+     * The name of the property that configures, in milliseconds, how long an MBean's attribute snapshot is used before
+     * being re-read. May be provided as a metric property or as a plugin property.
+     */
+    public static final String PROP_SNAPSHOT_STALENESS = "snapshot.staleness";
+
+    /**
+     * The name of the plugin property that configures the number of sampling intervals over which the interval
+     * garbage collection metrics are reported
+     */
+    public static final String PROP_GC_WINDOW = "gc.window";
+
+    /**
+     * The name of the property that configures, in milliseconds, how often an instance's saturation attributes are
+     * sampled between collections. Sampling is disabled when the period is zero. May be provided as a metric property or
+     * as a plugin property.
+     */
+    public static final String PROP_SATURATION_SAMPLING_PERIOD = "saturation.sampling.period";
+
+    /**
+     * The name of the plugin property that limits the number of attributes that are sampled per instance
+     */
+    public static final String PROP_SATURATION_SAMPLING_MAX_SERIES = "saturation.sampling.maxSeries";
+
+    /**
+     * The name of the plugin property that configures the number of samples of each attribute that are retained
+     */
+    public static final String PROP_SATURATION_SAMPLING_CAPACITY = "saturation.sampling.capacity";
+
+    /**
+     * The name of the plugin property that configures the number of hottest threads that are identified
+     */
+    public static final String PROP_HOT_THREADS_LIMIT = "hotThreads.limit";
+
+    /**
+     * The name of the plugin property that holds the regular expression matching the names of the threads that process
+     * requests
+     */
+    public static final String PROP_HOT_THREADS_REQUEST_THREADS = "hotThreads.requestThreads";
+
+    /**
+     * The name of the property that configures the number of consecutive collections that fail because an instance is
+     * unreachable after which its metrics fail immediately. May be provided as a metric property or as a plugin property.
+     */
+    public static final String PROP_CIRCUIT_BREAKER_THRESHOLD = "circuitBreaker.threshold";
+
+    /**
+     * The name of the property that configures, in milliseconds, how often an unreachable instance is probed. May be
+     * provided as a metric property or as a plugin property.
+     */
+    public static final String PROP_CIRCUIT_BREAKER_PROBE_PERIOD = "circuitBreaker.probePeriod";
+
+    /**
+     * The name of the plugin property that configures the number of threads that prefetch the instances' MBeans ahead
+     * of their collection. Prefetching is disabled when it is zero.
+     */
+    public static final String PROP_COLLECTION_THREADS = "collection.threads";
+
+    static final int DEFAULT_HOT_THREADS_LIMIT = 5;
+
+    static final String DEFAULT_HOT_THREADS_REQUEST_THREADS = "(http|https|ajp)-.+|catalina-exec-\\d+";
+
     private static final String DEADLOCKED_DETECTION_COUNT = "deadlockedThreadCount";
 
     private static final String PERCENT_UP_TIME_IN_GARBAGE_COLLECTION_METRIC_NAME = "percentUpTimeSpent";
 
-    private static final String PERCENT_ACTIVE_CONNECTIONS = "percentActiveConnections";
+    private static final String PERCENT_INTERVAL_TIME_IN_GARBAGE_COLLECTION = "percentIntervalTimeSpent";
+
+    private static final String GARBAGE_COLLECTIONS_PER_MINUTE = "collectionsPerMinute";
+
+    private static final String MEAN_GARBAGE_COLLECTION_PAUSE_TIME = "meanPauseTime";
+
+    private static final Set<String> GARBAGE_COLLECTION_INTERVAL_METRICS = new HashSet<String>(Arrays.asList(
+        PERCENT_INTERVAL_TIME_IN_GARBAGE_COLLECTION, GARBAGE_COLLECTIONS_PER_MINUTE, MEAN_GARBAGE_COLLECTION_PAUSE_TIME));
+
+    private static final int DEFAULT_GC_WINDOW = 1;
+
+    private static final String ALLOCATION_RATE = "allocationRate";
+
+    private static final String PROMOTION_RATE = "promotionRate";
+
+    private static final String REQUEST_THREAD_CPU_USAGE = "requestThreadCpuUsage";
+
+    private static final String JVM_THREAD_CPU_USAGE = "jvmThreadCpuUsage";
+
+    private static final String OTHER_THREAD_CPU_USAGE = "otherThreadCpuUsage";
+
+    private static final String HOTTEST_THREAD_CPU_USAGE = "hottestThreadCpuUsage";
 
-    private static final String PERCENT_ALLOCATED_THREADS = "percentAllocatedThreads";
+    private static final Set<String> HOT_THREAD_METRICS = new HashSet<String>(Arrays.asList(REQUEST_THREAD_CPU_USAGE, JVM_THREAD_CPU_USAGE,
+        OTHER_THREAD_CPU_USAGE, HOTTEST_THREAD_CPU_USAGE));
 
-    private static final String PERCENT_ACTIVE_THREADS = "percentActiveThreads";
+    private static final String SAMPLED_MAX_SUFFIX = ".sampledMax";
 
-    private static final String HEAP_FREE_MEMORY = "HeapMemoryUsage.free";
+    private static final String SAMPLED_MEAN_SUFFIX = ".sampledMean";
+
+    private static final String SAMPLED_P95_SUFFIX = ".sampledP95";
+
+    private static final long MIN_SATURATION_SAMPLING_PERIOD = 250;
+
+    private static final int DEFAULT_SATURATION_SAMPLING_MAX_SERIES = 16;
+
+    private static final int DEFAULT_SATURATION_SAMPLING_CAPACITY = 900;
+
+    private static final String COLLECTOR_HEALTH_OBJECT_NAME = "tcServer:type=CollectorHealth";
+
+    private static final int MOST_EXPENSIVE_LIMIT = 5;
+
+    private static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 3;
+
+    private static final long DEFAULT_CIRCUIT_BREAKER_PROBE_PERIOD = 30000;
+
+    private static final long MIN_CIRCUIT_BREAKER_PROBE_PERIOD = 1000;
+
+    /**
+     * The number of probe periods without an attempted collection after which an instance is no longer probed
+     */
+    private static final int CIRCUIT_BREAKER_MAX_IDLE_PERIODS = 10;
+
+    private static final int DEFAULT_COLLECTION_THREADS = 4;
+
+    private static final int MAX_QUEUED_PREFETCHES = 1024;
+
+    /**
+     * The length of time, in milliseconds, after which an instance whose metrics are no longer collected is no longer
+     * prefetched
+     */
+    private static final long PREFETCH_TARGET_TIME_TO_IDLE = 30 * 60 * 1000;
+
+    /**
+     * The period, in milliseconds, at which the instances are checked for stale snapshots to prefetch
+     */
+    private static final long PREFETCH_SCHEDULING_PERIOD = 1000;
+
+    private static final String COLLECTION_POOL_PREFIX = "collectionPool";
+
+    private static final String SIGAR_DOMAIN = "sigar:";
+
+    private static final String AVAILABILITY = "Availability";
+
+    private static final String COMPOSITE_PREFIX = "Composite.";
 
     private static final Log LOGGER = LogFactory.getLog(TomcatMeasurementPlugin.class);
 
+    private static final AttributeSnapshotCache SNAPSHOT_CACHE = new AttributeSnapshotCache();
+
+    private static final PlatformMXBeanCache PLATFORM_MXBEAN_CACHE = new PlatformMXBeanCache();
+
+    private static final DeadlockDetector DEADLOCK_DETECTOR = new DeadlockDetector();
+
+    private static final ConcurrentMap<String, GarbageCollectionTracker> GARBAGE_COLLECTION_TRACKERS =
+        new ConcurrentHashMap<String, GarbageCollectionTracker>();
+
+    private static final ConcurrentMap<String, MemoryPoolTracker> MEMORY_POOL_TRACKERS = new ConcurrentHashMap<String, MemoryPoolTracker>();
+
+    private static final ScheduledExecutorService SATURATION_SAMPLING_EXECUTOR = Executors.newScheduledThreadPool(2,
+        new DaemonThreadFactory("tc Runtime saturation sampler"));
+
+    private static final ConcurrentMap<String, SaturationSampler> SATURATION_SAMPLERS = new ConcurrentHashMap<String, SaturationSampler>();
+
+    private static final ScheduledExecutorService PROBE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+        "tc Runtime probe"));
+
+    private static final ConcurrentMap<String, CircuitBreaker> CIRCUIT_BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private static final ConcurrentMap<String, PrefetchTarget> PREFETCH_TARGETS = new ConcurrentHashMap<String, PrefetchTarget>();
+
+    private static final ScheduledExecutorService PREFETCH_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+        "tc Runtime prefetch scheduler"));
+
+    private static final Object COLLECTION_EXECUTOR_MONITOR = new Object();
+
+    private static BulkheadExecutor collectionExecutor;
+
+    private static boolean collectionExecutorCreated;
+
     private final JmxUtils mxUtil;
 
+    private final AttributeSnapshotCache snapshotCache;
+
+    private volatile DerivedMetrics derivedMetrics;
+
+    private volatile Pattern requestThreads;
+
     public TomcatMeasurementPlugin() {
-        this(new MxUtilJmxUtils());
+        this(new InstrumentedJmxUtils(new DeadlineJmxUtils(new MxUtilJmxUtils()), CollectorStatistics.JMX));
     }
 
     TomcatMeasurementPlugin(JmxUtils jmxUtils) {
+        this(jmxUtils, SNAPSHOT_CACHE);
+    }
+
+    TomcatMeasurementPlugin(JmxUtils jmxUtils, AttributeSnapshotCache snapshotCache) {
         this.mxUtil = jmxUtils;
+        this.snapshotCache = snapshotCache;
     }
 
     private MBeanServerConnection getConnection(Properties config) throws PluginException, MetricUnreachableException {
@@ -97,12 +306,172 @@ public class TomcatMeasurementPlugin extends MxMeasurementPlugin {
         }
     }
 
-    private MetricValue percentUptimeInGarbageCollection(final MBeanServerConnection connection) throws MetricUnreachableException,
-        MetricNotFoundException, PluginException {
+    private long getStalenessWindow(Properties config) {
+        return getLongProperty(config, PROP_SNAPSHOT_STALENESS, AttributeSnapshotCache.DEFAULT_STALENESS_WINDOW);
+    }
+
+    /**
+     * Returns the value of a numeric property, taken from the metric's properties, which include the instance's
+     * configuration, or else from the plugin's properties
+     */
+    private long getLongProperty(Properties config, String name, long defaultValue) {
+        String value = config == null ? null : config.getProperty(name);
+        if (value == null) {
+            value = getPluginProperty(name);
+        }
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Ignoring invalid " + name + " value [" + value + "]");
+            }
+        }
+        return defaultValue;
+    }
+
+    private AttributeSnapshot getSnapshot(MBeanServerConnection connection, Properties config, String objectName, String description,
+        String... attributeNames) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        try {
+            return getSnapshot(connection, config, new ObjectName(objectName), description, attributeNames);
+        } catch (MalformedObjectNameException e) {
+            throw new MetricInvalidException("Error querying for " + description + ": " + e.getMessage(), e);
+        }
+    }
+
+    private AttributeSnapshot getSnapshot(MBeanServerConnection connection, Properties config, ObjectName objectName, String description,
+        String... attributeNames) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        String instanceKey = getInstanceKey(config);
+        awaitPrefetch(instanceKey, config);
+        try {
+            long start = System.currentTimeMillis();
+            AttributeSnapshot snapshot = snapshotCache.getSnapshot(connection, instanceKey, objectName, Arrays.asList(attributeNames),
+                getStalenessWindow(config));
+            if (snapshot.getTimestamp() >= start) {
+                // The MBean had to be read, so the instance's metrics are being collected
+                registerPrefetchTarget(instanceKey, config, start);
+            }
+            return snapshot;
+        } catch (IOException e) {
+            throw new MetricUnreachableException("Error querying for " + description + ":" + e.getMessage(), e);
+        } catch (InstanceNotFoundException e) {
+            throw new MetricNotFoundException("Error querying for " + description + ":" + e.getMessage(), e);
+        } catch (ReflectionException e) {
+            throw new PluginException("Error querying for " + description + ":" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Waits for a prefetch of the instance's MBeans that is under way, so that the instance is read by one thread at a
+     * time and its metrics are served by the prefetched snapshots
+     */
+    private void awaitPrefetch(String instanceKey, Properties config) {
+        PrefetchTarget target = instanceKey == null ? null : PREFETCH_TARGETS.get(instanceKey);
+        if (target == null) {
+            return;
+        }
+        target.lastUsed = System.currentTimeMillis();
+        BulkheadExecutor executor = getCollectionExecutor();
+        try {
+            if (executor != null
+                && !executor.await(instanceKey, getLongProperty(config, DeadlineJmxUtils.PROP_METRIC_TIMEOUT,
+                    DeadlineJmxUtils.DEFAULT_METRIC_TIMEOUT))) {
+                LOGGER.debug("Prefetch of tc Runtime instance [" + instanceKey + "] is taking too long. Reading its MBeans directly");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records that the instance's metrics are being collected, so that its snapshots are prefetched whenever they go
+     * stale. Prefetches are submitted by one periodic task rather than by the collecting threads, so that a snapshot that
+     * has to be read costs its thread no more than this update.
+     */
+    private void registerPrefetchTarget(String instanceKey, Properties config, long now) {
+        if (instanceKey == null || getCollectionExecutor() == null) {
+            return;
+        }
+
+        PrefetchTarget current = PREFETCH_TARGETS.get(instanceKey);
+        if (current == null || !current.isFor(config)) {
+            Properties targetConfig = new Properties();
+            targetConfig.putAll(config);
+            current = new PrefetchTarget(targetConfig, getStalenessWindow(targetConfig), new Prefetch(instanceKey, targetConfig));
+            PREFETCH_TARGETS.put(instanceKey, current);
+        }
+        current.lastUsed = now;
+        current.lastPrefetch = now;
+    }
+
+    /**
+     * Submits a prefetch of each instance whose snapshots have gone stale, so that slow instances are read concurrently,
+     * one thread per instance, rather than one after another by the agent's collector, and forgets the instances whose
+     * metrics are no longer collected
+     */
+    private static void schedulePrefetches(BulkheadExecutor executor) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PrefetchTarget> entry : PREFETCH_TARGETS.entrySet()) {
+            String key = entry.getKey();
+            PrefetchTarget target = entry.getValue();
+            if (now - target.lastUsed > PREFETCH_TARGET_TIME_TO_IDLE) {
+                PREFETCH_TARGETS.remove(key, target);
+                continue;
+            }
+            CircuitBreaker circuitBreaker = CIRCUIT_BREAKERS.get(key);
+            if (now - target.lastPrefetch < target.stalenessWindow || (circuitBreaker != null && circuitBreaker.isOpen())) {
+                continue;
+            }
+            if (executor.submit(key, target.prefetch)) {
+                target.lastPrefetch = now;
+            }
+        }
+    }
+
+    /**
+     * @return the pool on which instances are prefetched, or <code>null</code> if prefetching is disabled
+     */
+    private BulkheadExecutor getCollectionExecutor() {
+        synchronized (COLLECTION_EXECUTOR_MONITOR) {
+            if (!collectionExecutorCreated) {
+                int threads = (int) getLongProperty(null, PROP_COLLECTION_THREADS, DEFAULT_COLLECTION_THREADS);
+                if (threads > 0) {
+                    final BulkheadExecutor executor = new BulkheadExecutor(threads, MAX_QUEUED_PREFETCHES, new DaemonThreadFactory(
+                        "tc Runtime collector"));
+                    PREFETCH_SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+
+                        public void run() {
+                            try {
+                                schedulePrefetches(executor);
+                            } catch (RuntimeException e) {
+                                // Thrown out of a periodic task, it would end the prefetching
+                                LOGGER.warn("Scheduling prefetches of tc Runtime instances failed", e);
+                            }
+                        }
+                    }, PREFETCH_SCHEDULING_PERIOD, PREFETCH_SCHEDULING_PERIOD, TimeUnit.MILLISECONDS);
+                    collectionExecutor = executor;
+                    LOGGER.debug("Prefetching tc Runtime instances with up to " + threads + " threads");
+                }
+                collectionExecutorCreated = true;
+            }
+            return collectionExecutor;
+        }
+    }
+
+    private Number getNumber(AttributeSnapshot snapshot, String attributePath, String description) throws MetricNotFoundException {
+        try {
+            return snapshot.getNumber(attributePath);
+        } catch (AttributeNotFoundException e) {
+            throw new MetricNotFoundException("Error querying for " + description + ":" + e.getMessage(), e);
+        }
+    }
+
+    private MetricValue percentUptimeInGarbageCollection(final MBeanServerConnection connection, Properties config)
+        throws MetricUnreachableException, MetricNotFoundException, PluginException {
         double percentCollectionTime = 0;
         try {
-            long totalGcTime = getTotalGarbageCollectionTime(connection);
-            long upTime = getJvmUptime(connection);
+            GarbageCollectionSample sample = sampleGarbageCollection(connection, config);
+            long totalGcTime = sample.getTotalCollectionTime();
+            long upTime = sample.getUptime();
 
             if (upTime > 0) {
                 percentCollectionTime = (double) totalGcTime / (double) upTime;
@@ -117,223 +486,830 @@ public class TomcatMeasurementPlugin extends MxMeasurementPlugin {
         return new MetricValue(percentCollectionTime * 100);
     }
 
-    private int getDeadlockedThreadCount(MBeanServerConnection connection) throws MetricInvalidException, MetricUnreachableException {
-        int deadlockCount = 0;
+    private int getDeadlockedThreadCount(MBeanServerConnection connection, Properties config) throws MetricUnreachableException {
         try {
-            // in version 1.6+ there is a findDeadlockedThreads method
-            long[] deadlocks;
-            try {
-                deadlocks = (long[]) connection.invoke(new ObjectName("java.lang:type=Threading"), "findDeadlockedThreads", null, null);
-            } catch (MalformedObjectNameException e) {
-                throw new MetricInvalidException("Error querying for deadlock thread mbean: " + e.getMessage(), e);
-            } catch (JMException e) {
-                LOGGER.debug("Method 'findDeadlockedThreads' for objectname 'java.lang:type=Threading'"
-                    + "was not found. Trying method findMonitorDeadlockedThreads...", e);
-                // If this occurs then the issue is most likely related to the
-                // Java version.
-                // Now check for the method on java 1.5
-                try {
-                    deadlocks = (long[]) connection.invoke(new ObjectName("java.lang:type=Threading"), "findMonitorDeadlockedThreads", null, null);
-                } catch (MalformedObjectNameException me) {
-                    throw new MetricInvalidException("Error querying for deadlock thread mbean: " + me.getMessage(), me);
-                } catch (JMException ex) {
-                    LOGGER.debug("Unable to retrieve DeadlockedThreads count: ", ex);
-                    throw new MetricUnreachableException("Unable to reach deadlock thread mbean: " + ex.getMessage(), ex);
-                }
+            String instanceKey = getInstanceKey(config);
+            ThreadMXBean threadBean = PLATFORM_MXBEAN_CACHE.getThreadMXBean(connection, instanceKey);
+            DeadlockReport report = DEADLOCK_DETECTOR.detect(threadBean, connection, instanceKey);
+            if (report.isNewDeadlock()) {
+                reportDeadlock(instanceKey, report);
             }
-
-            if (deadlocks != null) {
-                deadlockCount = deadlocks.length;
-            }
-            return deadlockCount;
+            return report.getDeadlockedThreadCount();
         } catch (IOException e) {
             throw new MetricUnreachableException("Error querying for deadlock thread mbean: " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Unable to retrieve DeadlockedThreads count: ", e);
+            throw new MetricUnreachableException("Unable to reach deadlock thread mbean: " + e.getMessage(), e);
+        }
+    }
+
+    private void reportDeadlock(String instanceKey, DeadlockReport report) {
+        if (!TomcatLogTrackPlugin.reportDeadlock(instanceKey, report)) {
+            LOGGER.warn("tc Runtime instance [" + instanceKey + "]: " + report.format());
         }
     }
 
-    // Commented out for TCS-71
-    // private GarbageCollectorMXBean getGarbageCollectorMXBean(
-    // MBeanServerConnection connection, ObjectName garbageCollector)
-    // throws IOException {
-    // return ManagementFactory.newPlatformMXBeanProxy(connection,
-    // garbageCollector.toString(), GarbageCollectorMXBean.class);
-    //
-    // }
+    private String getInstanceKey(Properties config) {
+        return config.getProperty(mxUtil.getJmxUrlProperty());
+    }
+
+    private long getJvmUptime(MBeanServerConnection connection, Properties config) throws MetricUnreachableException,
+        MetricNotFoundException, PluginException {
+        AttributeSnapshot runtime = getSnapshot(connection, config, "java.lang:type=Runtime", "process UpTime", "Uptime");
+        return getNumber(runtime, "Uptime", "process UpTime").longValue();
+    }
+
+    private GarbageCollectionTracker getGarbageCollectionTracker(Properties config) {
+        String jmxUrl = getInstanceKey(config);
+        GarbageCollectionTracker tracker = GARBAGE_COLLECTION_TRACKERS.get(jmxUrl);
+        if (tracker == null) {
+            tracker = new GarbageCollectionTracker(getGarbageCollectionWindow());
+            GarbageCollectionTracker existing = GARBAGE_COLLECTION_TRACKERS.putIfAbsent(jmxUrl, tracker);
+            if (existing != null) {
+                tracker = existing;
+            }
+        }
+        return tracker;
+    }
+
+    private int getGarbageCollectionWindow() {
+        return (int) Math.max(1, getLongProperty(null, PROP_GC_WINDOW, DEFAULT_GC_WINDOW));
+    }
 
-    private long getJvmUptime(MBeanServerConnection connection) throws MetricUnreachableException {
-        String upTimeQuery = "java.lang:type=Runtime";
-        RuntimeMXBean bean;
+    /**
+     * Samples the collection time and count of every garbage collector, together with the JVM's uptime, and records
+     * the sample with the instance's {@link GarbageCollectionTracker}
+     */
+    private GarbageCollectionSample sampleGarbageCollection(MBeanServerConnection connection, Properties config)
+        throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        GarbageCollectionTracker tracker = getGarbageCollectionTracker(config);
+
+        Set<ObjectName> garbageCollectors;
         try {
-            bean = getRuntimeMXBean(connection, upTimeQuery);
+            garbageCollectors = tracker.getCollectorNames(connection);
         } catch (IOException e) {
-            throw new MetricUnreachableException("Error obtaining process UpTime:" + e.getMessage(), e);
+            throw new MetricUnreachableException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
         }
-        return bean.getUptime();
-    }
 
-    private RuntimeMXBean getRuntimeMXBean(MBeanServerConnection connection, String upTimeQuery) throws IOException {
-        return ManagementFactory.newPlatformMXBeanProxy(connection, upTimeQuery, RuntimeMXBean.class);
+        GarbageCollectionSample sample = new GarbageCollectionSample(getJvmUptime(connection, config));
+        for (ObjectName garbageCollector : garbageCollectors) {
+            try {
+                AttributeSnapshot snapshot = getSnapshot(connection, config, garbageCollector, "GarbageCollector MBeans", "CollectionTime",
+                    "CollectionCount");
+                long collectionTime = getNumber(snapshot, "CollectionTime", "GarbageCollector MBeans").longValue();
+                long collectionCount = getNumber(snapshot, "CollectionCount", "GarbageCollector MBeans").longValue();
+                LOGGER.debug(garbageCollector + "::CollectionTime=" + collectionTime + ", CollectionCount=" + collectionCount);
+
+                sample = sample.withCollector(garbageCollector, collectionTime, collectionCount);
+            } catch (MetricNotFoundException e) {
+                tracker.invalidateCollectorNames();
+                throw e;
+            }
+        }
+
+        tracker.record(sample);
+        return sample;
     }
 
-    private long getTotalGarbageCollectionTime(MBeanServerConnection connection) throws MetricUnreachableException, MetricNotFoundException,
+    private MetricValue getGarbageCollectionIntervalMetric(Metric metric) throws MetricUnreachableException, MetricNotFoundException,
         PluginException {
+        Properties config = metric.getProperties();
+        sampleGarbageCollection(getConnection(config), config);
 
-        long totalGcTimeMillis = 0;
+        GarbageCollectionInterval interval = getGarbageCollectionTracker(config).getInterval();
+        if (interval == null || interval.getDuration() <= 0) {
+            return MetricValue.NONE;
+        }
 
-        try {
+        ObjectName garbageCollector = getGarbageCollectorName(metric);
+        if (PERCENT_INTERVAL_TIME_IN_GARBAGE_COLLECTION.equals(metric.getAttributeName())) {
+            return new MetricValue(interval.getPercentTimeSpent(garbageCollector));
+        } else if (GARBAGE_COLLECTIONS_PER_MINUTE.equals(metric.getAttributeName())) {
+            return new MetricValue(interval.getCollectionsPerMinute(garbageCollector));
+        }
+        return new MetricValue(interval.getMeanPauseTime(garbageCollector));
+    }
 
-            // Use of the MXBean replaced by plain old JMX query for TCS-71
-            //
-            // Set<ObjectName> garbageCollectors = connection.queryNames(
-            // new ObjectName("java.lang:type=GarbageCollector,*"), null);
-            // for (ObjectName garbageCollectorName : garbageCollectors) {
-            // GarbageCollectorMXBean garbageCollector = getGarbageCollectorMXBean(
-            // connection, garbageCollectorName);
-            // long collectionTime = garbageCollector.getCollectionTime();
-
-            ObjectName gcObjName = new ObjectName("java.lang:type=GarbageCollector,*");
-            Set<ObjectInstance> garbageCollectors = connection.queryMBeans(gcObjName, null);
-
-            for (ObjectInstance instance : garbageCollectors) {
-                ObjectName instanceName = instance.getObjectName();
-                Long l = (Long) connection.getAttribute(instance.getObjectName(), "CollectionTime");
-                long collectionTime = l.longValue();
-                LOGGER.debug(instanceName + "::CollectionTime=" + collectionTime);
-
-                if (collectionTime > -1) {
-                    totalGcTimeMillis += collectionTime;
-                }
+    private MemoryPoolTracker getMemoryPoolTracker(Properties config) {
+        String jmxUrl = getInstanceKey(config);
+        MemoryPoolTracker tracker = MEMORY_POOL_TRACKERS.get(jmxUrl);
+        if (tracker == null) {
+            tracker = new MemoryPoolTracker();
+            MemoryPoolTracker existing = MEMORY_POOL_TRACKERS.putIfAbsent(jmxUrl, tracker);
+            if (existing != null) {
+                tracker = existing;
             }
-        } catch (MalformedObjectNameException e) {
-            throw new MetricInvalidException("Error querying for GarbageCollector MBeans: " + e.getMessage(), e);
-        } catch (IOException e) {
-            throw new MetricUnreachableException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
-        } catch (AttributeNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
-        } catch (InstanceNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
-        } catch (MBeanException e) {
-            throw new PluginException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
-        } catch (ReflectionException e) {
-            throw new PluginException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
-        } catch (NullPointerException e) {
-            throw new PluginException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
         }
-
-        return totalGcTimeMillis;
+        return tracker;
     }
 
-    private long getFreeHeapMemory(MBeanServerConnection connection) throws MetricUnreachableException {
+    /**
+     * Reads all of the memory pools together, so that the metrics of every pool collected in the same cycle are served
+     * from the snapshots taken by the first of them
+     *
+     * @return the snapshots, keyed by pool name
+     */
+    private Map<String, AttributeSnapshot> readMemoryPools(MBeanServerConnection connection, Properties config)
+        throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        MemoryPoolTracker tracker = getMemoryPoolTracker(config);
+
+        Set<ObjectName> poolNames;
         try {
-            MemoryMXBean memoryBean = ManagementFactory.newPlatformMXBeanProxy(connection, "java.lang:type=Memory", MemoryMXBean.class);
-            long max = memoryBean.getHeapMemoryUsage().getMax();
-            long used = memoryBean.getHeapMemoryUsage().getUsed();
-            return max - used;
+            poolNames = tracker.getPoolNames(connection);
         } catch (IOException e) {
-            throw new MetricUnreachableException("Error retrieving Memory MBean" + e.getMessage(), e);
+            throw new MetricUnreachableException("Error querying for MemoryPool MBeans:" + e.getMessage(), e);
         }
+
+        String[] attributeNames = MemoryPoolTracker.POOL_ATTRIBUTES.toArray(new String[MemoryPoolTracker.POOL_ATTRIBUTES.size()]);
+        Map<String, AttributeSnapshot> pools = new LinkedHashMap<String, AttributeSnapshot>();
+        for (ObjectName poolName : poolNames) {
+            try {
+                pools.put(poolName.getKeyProperty("name"), getSnapshot(connection, config, poolName, "MemoryPool MBeans", attributeNames));
+            } catch (MetricNotFoundException e) {
+                tracker.invalidatePoolNames();
+                throw e;
+            }
+        }
+        return pools;
     }
 
-    private MetricValue getPercentActiveConnections(MBeanServerConnection connection, Metric metric) throws MetricUnreachableException,
-        MetricNotFoundException, PluginException {
-        int numActiveConnections = 0;
-        int maxActiveConnections = 0;
+    private YoungGenerationSample sampleYoungGeneration(MBeanServerConnection connection, Properties config)
+        throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        Map<String, AttributeSnapshot> pools = readMemoryPools(connection, config);
+        String edenPool = null;
+        String oldPool = null;
+        for (String poolName : pools.keySet()) {
+            if (MemoryPoolTracker.isEden(poolName)) {
+                edenPool = poolName;
+            } else if (MemoryPoolTracker.isOld(poolName)) {
+                oldPool = poolName;
+            }
+        }
+        if (edenPool == null) {
+            throw new MetricNotFoundException("No eden space MemoryPool MBean found");
+        }
 
+        Set<ObjectName> garbageCollectors;
         try {
-            ObjectName dataSourceObjectName = new ObjectName(metric.getObjectName());
-            numActiveConnections = ((Integer) connection.getAttribute(dataSourceObjectName, "numActive")).intValue();
-            maxActiveConnections = ((Integer) connection.getAttribute(dataSourceObjectName, "maxActive")).intValue();
-        } catch (MalformedObjectNameException e) {
-            throw new MetricInvalidException("Error querying for DataSource MBeans: " + e.getMessage(), e);
+            garbageCollectors = getGarbageCollectionTracker(config).getCollectorNames(connection);
         } catch (IOException e) {
-            throw new MetricUnreachableException("Error querying for DataSource MBeans:" + e.getMessage(), e);
-        } catch (AttributeNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for DataSource MBeans:" + e.getMessage(), e);
-        } catch (InstanceNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for DataSource MBeans:" + e.getMessage(), e);
-        } catch (MBeanException e) {
-            throw new PluginException("Error querying for DataSource MBeans:" + e.getMessage(), e);
-        } catch (ReflectionException e) {
-            throw new PluginException("Error querying for DataSource MBeans:" + e.getMessage(), e);
-        } catch (NullPointerException e) {
-            throw new PluginException("Error querying for DataSource MBeans:" + e.getMessage(), e);
+            throw new MetricUnreachableException("Error querying for GarbageCollector MBeans:" + e.getMessage(), e);
+        }
+
+        Map<ObjectName, AttributeSnapshot> collectors = new LinkedHashMap<ObjectName, AttributeSnapshot>();
+        Map<ObjectName, String[]> managedPools = new LinkedHashMap<ObjectName, String[]>();
+        for (ObjectName garbageCollector : garbageCollectors) {
+            AttributeSnapshot snapshot = getSnapshot(connection, config, garbageCollector, "GarbageCollector MBeans", "CollectionTime",
+                "CollectionCount", "MemoryPoolNames", "LastGcInfo");
+            collectors.put(garbageCollector, snapshot);
+            Object poolNames = snapshot.contains("MemoryPoolNames") ? getAttribute(snapshot, "MemoryPoolNames") : null;
+            managedPools.put(garbageCollector, poolNames instanceof String[] ? (String[]) poolNames : new String[0]);
+        }
+
+        ObjectName youngCollector = MemoryPoolTracker.getYoungCollector(managedPools, oldPool);
+        if (youngCollector == null) {
+            throw new MetricNotFoundException("Unable to identify the young generation GarbageCollector MBean");
         }
 
-        return new MetricValue(100d * (double) numActiveConnections / (double) maxActiveConnections);
+        AttributeSnapshot collector = collectors.get(youngCollector);
+        Object lastGcInfo = collector.contains("LastGcInfo") ? getAttribute(collector, "LastGcInfo") : null;
+        AttributeSnapshot eden = pools.get(edenPool);
+        long edenUsed = getNumber(eden, "Usage.used", "MemoryPool MBeans").longValue();
+        long collectionCount = getNumber(collector, "CollectionCount", "GarbageCollector MBeans").longValue();
+        return new YoungGenerationSample(eden.getTimestamp(), edenUsed, collectionCount,
+            lastGcInfo instanceof CompositeData ? (CompositeData) lastGcInfo : null, edenPool, oldPool);
     }
 
-    private MetricValue getPercentAllocatedThreads(MBeanServerConnection connection, Metric metric) throws MetricUnreachableException,
-        MetricNotFoundException, PluginException {
-        int currentThreadCount = 0;
-        int maxThreads = 0;
+    private MetricValue getMemoryRateMetric(Metric metric) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        Properties config = metric.getProperties();
+        YoungGenerationSample sample = sampleYoungGeneration(getConnection(config), config);
 
+        MemoryPoolTracker tracker = getMemoryPoolTracker(config);
+        double rate = ALLOCATION_RATE.equals(metric.getAttributeName()) ? tracker.getAllocationRate(ALLOCATION_RATE, sample)
+            : tracker.getPromotionRate(PROMOTION_RATE, sample);
+        return rate < 0 ? MetricValue.NONE : new MetricValue(rate);
+    }
+
+    /**
+     * @return the name of the garbage collector that the metric is for, or <code>null</code> if the metric is for all
+     *         of the collectors
+     */
+    private ObjectName getGarbageCollectorName(Metric metric) {
         try {
-            ObjectName threadPoolObjectName = new ObjectName(metric.getObjectName());
-            currentThreadCount = ((Integer) connection.getAttribute(threadPoolObjectName, "currentThreadCount")).intValue();
-            maxThreads = ((Integer) connection.getAttribute(threadPoolObjectName, "maxThreads")).intValue();
+            ObjectName objectName = new ObjectName(metric.getObjectName());
+            if (!objectName.isPattern() && "GarbageCollector".equals(objectName.getKeyProperty("type"))) {
+                return objectName;
+            }
         } catch (MalformedObjectNameException e) {
-            throw new MetricInvalidException("Error querying for Thread Pool MBeans: " + e.getMessage(), e);
+            // Not an MBean metric, e.g. tcServer:GC
+        }
+        return null;
+    }
+
+    /**
+     * Reports the CPU usage of the instance's threads over the interval since the metric was last collected. The
+     * hottest threads are logged at debug level.
+     */
+    private MetricValue getHotThreadMetric(Metric metric) throws MetricUnreachableException, PluginException {
+        Properties config = metric.getProperties();
+        MBeanServerConnection connection = getConnection(config);
+        String instanceKey = getInstanceKey(config);
+        String alias = metric.getAttributeName();
+
+        ThreadCpuInterval interval;
+        try {
+            ThreadMXBean threadBean = PLATFORM_MXBEAN_CACHE.getThreadMXBean(connection, instanceKey);
+            HotThreadSampler sampler = HotThreadSampler.forInstance(instanceKey);
+            ThreadCpuSample sample = sampler.sample(connection, threadBean, getStalenessWindow(config));
+            interval = sampler.readInterval(alias, sample, getRequestThreads(), (int) getLongProperty(null, PROP_HOT_THREADS_LIMIT,
+                DEFAULT_HOT_THREADS_LIMIT));
         } catch (IOException e) {
-            throw new MetricUnreachableException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (AttributeNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (InstanceNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (MBeanException e) {
-            throw new PluginException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (ReflectionException e) {
-            throw new PluginException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (NullPointerException e) {
-            throw new PluginException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
+            throw new MetricUnreachableException("Error querying for thread CPU times: " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Unable to retrieve thread CPU times: ", e);
+            throw new MetricUnreachableException("Unable to reach thread mbean: " + e.getMessage(), e);
+        }
+        if (interval == null) {
+            return MetricValue.NONE;
+        }
+
+        if (REQUEST_THREAD_CPU_USAGE.equals(alias)) {
+            return new MetricValue(interval.getRequestThreadUsage());
+        } else if (JVM_THREAD_CPU_USAGE.equals(alias)) {
+            return interval.getJvmThreadUsage() < 0 ? MetricValue.NONE : new MetricValue(interval.getJvmThreadUsage());
+        } else if (OTHER_THREAD_CPU_USAGE.equals(alias)) {
+            return new MetricValue(interval.getOtherThreadUsage());
         }
 
-        return new MetricValue(100d * (double) currentThreadCount / (double) maxThreads);
+        List<ThreadCpuInterval.HotThread> hotThreads = interval.getHotThreads();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Hottest threads of tc Runtime instance [" + instanceKey + "]: " + hotThreads);
+        }
+        return new MetricValue(hotThreads.isEmpty() ? 0 : hotThreads.get(0).getUsage());
     }
 
-    private MetricValue getPercentActiveThreads(MBeanServerConnection connection, Metric metric) throws MetricUnreachableException,
-        MetricNotFoundException, PluginException {
-        int currentThreadsBusy = 0;
-        int maxThreads = 0;
+    Pattern getRequestThreads() {
+        Pattern pattern = this.requestThreads;
+        if (pattern == null) {
+            pattern = compileRequestThreads(getPluginProperty(PROP_HOT_THREADS_REQUEST_THREADS));
+            this.requestThreads = pattern;
+        }
+        return pattern;
+    }
 
+    static Pattern compileRequestThreads(String regex) {
+        if (regex != null) {
+            try {
+                return Pattern.compile(regex.trim());
+            } catch (PatternSyntaxException e) {
+                LOGGER.warn("Ignoring invalid " + PROP_HOT_THREADS_REQUEST_THREADS + " value [" + regex + "]");
+            }
+        }
+        return Pattern.compile(DEFAULT_HOT_THREADS_REQUEST_THREADS);
+    }
+
+    /**
+     * Serves a plain attribute, or an item of a composite attribute, from the MBean's snapshot, stamped with the time at
+     * which it is collected rather than that of the snapshot's read. Returns <code>null</code> if the metric should be
+     * collected in the standard manner: if it isn't an attribute of a single MBean, or if the snapshot cannot serve it
+     * as a number, e.g. because the read did not return the attribute, in which case the standard manner reports it.
+     */
+    private MetricValue getSnapshotValue(Metric metric) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        String attributeName = metric.getAttributeName();
+        if (attributeName == null || AVAILABILITY.equals(attributeName)) {
+            return null;
+        }
+
+        ObjectName objectName;
         try {
-            ObjectName threadPoolObjectName = new ObjectName(metric.getObjectName());
-            currentThreadsBusy = ((Integer) connection.getAttribute(threadPoolObjectName, "currentThreadsBusy")).intValue();
-            maxThreads = ((Integer) connection.getAttribute(threadPoolObjectName, "maxThreads")).intValue();
+            objectName = new ObjectName(metric.getObjectName());
         } catch (MalformedObjectNameException e) {
-            throw new MetricInvalidException("Error querying for Thread Pool MBeans: " + e.getMessage(), e);
-        } catch (IOException e) {
-            throw new MetricUnreachableException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
+            return null;
+        }
+        if (objectName.isPattern()) {
+            return null;
+        }
+
+        boolean memoryPool = MemoryPoolTracker.isMemoryPool(objectName);
+        if (memoryPool) {
+            readMemoryPools(getConnection(metric.getProperties()), metric.getProperties());
+        }
+
+        boolean composite = attributeName.startsWith(COMPOSITE_PREFIX);
+        String attributePath = composite ? attributeName.substring(COMPOSITE_PREFIX.length()) : attributeName;
+        String snapshotAttributeName = composite ? AttributeSnapshot.getAttributeName(attributePath) : attributeName;
+        AttributeSnapshot snapshot = getSnapshot(getConnection(metric.getProperties()), metric.getProperties(), objectName,
+            objectName.toString(), snapshotAttributeName);
+        try {
+            Object value;
+            if (composite) {
+                if (memoryPool && snapshot.contains(snapshotAttributeName) && getAttribute(snapshot, snapshotAttributeName) == null) {
+                    // Pools that aren't collected, such as the code cache, have no CollectionUsage
+                    return MetricValue.NONE;
+                }
+                value = getCompositeItem(snapshot, attributePath);
+            } else {
+                value = getAttribute(snapshot, attributeName);
+            }
+            return new MetricValue(toDouble(value, attributeName, objectName), System.currentTimeMillis());
+        } catch (MetricNotFoundException e) {
+            LOGGER.debug("Collecting " + attributeName + " of " + objectName + " in the standard manner: " + e.getMessage());
+            return null;
+        } catch (MetricInvalidException e) {
+            LOGGER.debug("Collecting " + attributeName + " of " + objectName + " in the standard manner: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Object getAttribute(AttributeSnapshot snapshot, String attributeName) throws MetricNotFoundException {
+        try {
+            return snapshot.getValue(attributeName);
         } catch (AttributeNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (InstanceNotFoundException e) {
-            throw new MetricNotFoundException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (MBeanException e) {
-            throw new PluginException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (ReflectionException e) {
-            throw new PluginException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
-        } catch (NullPointerException e) {
-            throw new PluginException("Error querying for Thread Pool MBeans:" + e.getMessage(), e);
+            throw new MetricNotFoundException(e.getMessage(), e);
+        }
+    }
+
+    private Object getCompositeItem(AttributeSnapshot snapshot, String attributePath) throws MetricNotFoundException {
+        String attributeName = AttributeSnapshot.getAttributeName(attributePath);
+        Object composite = getAttribute(snapshot, attributeName);
+        if (attributeName.length() == attributePath.length()) {
+            return composite;
+        }
+        String key = attributePath.substring(attributeName.length() + 1);
+        if (!(composite instanceof CompositeData) || !((CompositeData) composite).containsKey(key)) {
+            throw new MetricNotFoundException("Attribute " + attributePath + " not found in " + snapshot.getObjectName());
+        }
+        return ((CompositeData) composite).get(key);
+    }
+
+    private static double toDouble(Object value, String attributeName, ObjectName objectName) throws MetricInvalidException {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue() ? 1 : 0;
+        }
+        try {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            throw new MetricInvalidException("Attribute " + attributeName + " of " + objectName + " is not numeric: " + value, e);
+        }
+    }
+
+    /**
+     * Reports the statistics of the plugin's own work for the metric's instance, over the interval since the metric was
+     * last collected
+     */
+    private MetricValue getCollectorHealthMetric(Metric metric) throws MetricNotFoundException {
+        String alias = metric.getAttributeName();
+        if (AVAILABILITY.equals(alias)) {
+            return new MetricValue(Metric.AVAIL_UP);
+        } else if ("circuitBreakerOpen".equals(alias)) {
+            return new MetricValue(getCircuitBreaker(getInstanceKey(metric.getProperties())).isOpen() ? 1 : 0);
+        } else if (alias.startsWith(COLLECTION_POOL_PREFIX)) {
+            return getCollectionPoolMetric(getInstanceKey(metric.getProperties()), alias);
+        }
+
+        CollectorStatistics statistics = CollectorStatistics.forInstance(getInstanceKey(metric.getProperties()));
+        String operation = getCollectorHealthOperation(alias);
+        OperationStatistics.IntervalStatistics interval = statistics.getOperation(operation).readInterval(alias);
+        if (interval == null) {
+            return MetricValue.NONE;
+        }
+
+        if ("jmxRequestsPerMinute".equals(alias) || "prefetchesPerMinute".equals(alias)) {
+            return new MetricValue(interval.getCountPerMinute());
+        } else if ("jmxMeanLatency".equals(alias) || "jmxConnectTime".equals(alias) || "prefetchTime".equals(alias)) {
+            return new MetricValue(interval.getMeanTime());
+        } else if ("jmxP95Latency".equals(alias)) {
+            return new MetricValue(interval.getPercentile95Time());
+        } else if ("jmxFailures".equals(alias)) {
+            return new MetricValue(interval.getFailures());
+        } else if ("percentCollectionTime".equals(alias)) {
+            logMostExpensive(statistics);
+            return new MetricValue(interval.getPercentTime());
+        } else if ("collectionTime".equals(alias) || "serverConfigTime".equals(alias) || "applicationManagementTime".equals(alias)) {
+            return new MetricValue(interval.getTotalTime());
         }
+        return new MetricValue(interval.getCount());
+    }
+
+    private String getCollectorHealthOperation(String alias) throws MetricNotFoundException {
+        if (alias.startsWith("jmxConnect")) {
+            return CollectorStatistics.JMX_CONNECT;
+        } else if (alias.startsWith("jmxTimeouts")) {
+            return CollectorStatistics.JMX_TIMEOUT;
+        } else if (alias.startsWith("jmx")) {
+            return CollectorStatistics.JMX;
+        } else if (alias.startsWith("prefetch")) {
+            return CollectorStatistics.PREFETCH;
+        } else if ("unreachableMetrics".equals(alias)) {
+            return CollectorStatistics.COLLECT_UNREACHABLE;
+        } else if ("rejectedMetrics".equals(alias)) {
+            return CollectorStatistics.COLLECT_REJECTED;
+        } else if ("metricsCollected".equals(alias) || "collectionTime".equals(alias) || "percentCollectionTime".equals(alias)) {
+            return CollectorStatistics.COLLECT;
+        } else if ("serverConfigTime".equals(alias)) {
+            return CollectorStatistics.SERVER_CONFIG;
+        } else if ("applicationManagementTime".equals(alias)) {
+            return CollectorStatistics.APPLICATION_MANAGEMENT;
+        }
+        throw new MetricNotFoundException("Unknown collector health metric " + alias);
+    }
 
-        return new MetricValue(100d * (double) currentThreadsBusy / (double) maxThreads);
+    /**
+     * Reports the load on the pool that prefetches all of the instances. The values are agent-wide, and are labelled as
+     * such, rather than the instance's share: every instance's health service reports the same queue depth and active
+     * threads, and the throughput of the whole pool over the interval since the metric was last collected for the given
+     * instance.
+     */
+    private MetricValue getCollectionPoolMetric(String instanceKey, String alias) throws MetricNotFoundException {
+        BulkheadExecutor executor = getCollectionExecutor();
+        if (executor == null) {
+            return MetricValue.NONE;
+        } else if ("collectionPoolQueueDepth".equals(alias)) {
+            return new MetricValue(executor.getQueueDepth());
+        } else if ("collectionPoolActiveThreads".equals(alias)) {
+            return new MetricValue(executor.getActiveCount());
+        } else if ("collectionPoolTasksPerMinute".equals(alias)) {
+            OperationStatistics.IntervalStatistics interval = executor.getStatistics().readInterval(instanceKey + "|" + alias);
+            return interval == null ? MetricValue.NONE : new MetricValue(interval.getCountPerMinute());
+        }
+        throw new MetricNotFoundException("Unknown collector health metric " + alias);
+    }
+
+    private void logMostExpensive(CollectorStatistics statistics) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Most expensive MBeans: " + format(statistics.getMostExpensiveObjectNames(MOST_EXPENSIVE_LIMIT)));
+            LOGGER.debug("Most expensive metrics: " + format(statistics.getMostExpensiveMetrics(MOST_EXPENSIVE_LIMIT)));
+        }
+    }
+
+    private static String format(List<Map.Entry<String, OperationStatistics.Totals>> entries) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, OperationStatistics.Totals> entry : entries) {
+            OperationStatistics.Totals totals = entry.getValue();
+            builder.append(builder.length() == 0 ? "" : ", ").append(entry.getKey()).append(" [").append(totals.getCount()).append(
+                " in ").append(Math.round(totals.getTotalTime())).append("ms, ").append(totals.getFailures()).append(" failed]");
+        }
+        return builder.toString();
     }
 
     @Override
     public MetricValue getValue(Metric metric) throws PluginException, MetricNotFoundException, MetricUnreachableException {
-        if (PERCENT_UP_TIME_IN_GARBAGE_COLLECTION_METRIC_NAME.equals(metric.getAttributeName())) {
-            return new MetricValue(percentUptimeInGarbageCollection(getConnection(metric.getProperties())));
+        if (COLLECTOR_HEALTH_OBJECT_NAME.equals(metric.getObjectName())) {
+            return getCollectorHealthMetric(metric);
+        }
+
+        String instanceKey = getInstanceKey(metric.getProperties());
+        CollectorStatistics statistics = CollectorStatistics.forInstance(instanceKey);
+        CircuitBreaker circuitBreaker = isJmxMetric(metric) ? getCircuitBreaker(instanceKey) : null;
+        if (circuitBreaker != null && !circuitBreaker.allowRequest(System.currentTimeMillis())) {
+            if (circuitBreaker.startProbe()) {
+                scheduleProbe(circuitBreaker, metric.getProperties());
+            }
+            statistics.record(CollectorStatistics.COLLECT_REJECTED, 0, true);
+            throw new MetricUnreachableException("tc Runtime instance [" + instanceKey + "] is unreachable. Metric "
+                + metric.getAttributeName() + " will not be collected until it can be reached");
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            MetricValue value = collect(metric);
+            failed = false;
+            if (circuitBreaker != null) {
+                circuitBreaker.recordSuccess();
+            }
+            return value;
+        } catch (MetricUnreachableException e) {
+            statistics.record(CollectorStatistics.COLLECT_UNREACHABLE, System.nanoTime() - start, true);
+            if (circuitBreaker != null
+                && circuitBreaker.recordFailure((int) getLongProperty(metric.getProperties(), PROP_CIRCUIT_BREAKER_THRESHOLD,
+                    DEFAULT_CIRCUIT_BREAKER_THRESHOLD))) {
+                LOGGER.warn("tc Runtime instance [" + instanceKey + "] is unreachable. Its metrics will fail without being collected "
+                    + "until it can be reached: " + e.getMessage());
+                if (circuitBreaker.startProbe()) {
+                    scheduleProbe(circuitBreaker, metric.getProperties());
+                }
+            }
+            throw e;
+        } finally {
+            long duration = System.nanoTime() - start;
+            statistics.record(CollectorStatistics.COLLECT, duration, failed);
+            statistics.recordMetric(metric.getAttributeName(), duration, failed);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the metric is not collected through JMX, e.g. the server's process availability
+     */
+    private static boolean isJmxMetric(Metric metric) {
+        String objectName = metric.getObjectName();
+        return objectName == null || !objectName.startsWith(SIGAR_DOMAIN);
+    }
+
+    private CircuitBreaker getCircuitBreaker(String instanceKey) {
+        String key = String.valueOf(instanceKey);
+        CircuitBreaker circuitBreaker = CIRCUIT_BREAKERS.get(key);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker();
+            CircuitBreaker existing = CIRCUIT_BREAKERS.putIfAbsent(key, circuitBreaker);
+            if (existing != null) {
+                circuitBreaker = existing;
+            }
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * Schedules a probe of an unreachable instance, which closes its circuit breaker once it can be reached, and
+     * reschedules itself until then
+     */
+    private void scheduleProbe(final CircuitBreaker circuitBreaker, Properties config) {
+        final Properties probeConfig = new Properties();
+        probeConfig.putAll(config);
+        final String instanceKey = getInstanceKey(probeConfig);
+        final long period = Math.max(MIN_CIRCUIT_BREAKER_PROBE_PERIOD, getLongProperty(probeConfig, PROP_CIRCUIT_BREAKER_PROBE_PERIOD,
+            DEFAULT_CIRCUIT_BREAKER_PROBE_PERIOD));
+
+        PROBE_EXECUTOR.schedule(new Runnable() {
+
+            public void run() {
+                try {
+                    mxUtil.getMBeanServer(probeConfig).getMBeanCount();
+                    circuitBreaker.probeSucceeded();
+                    LOGGER.info("tc Runtime instance [" + instanceKey + "] can be reached. Resuming collection of its metrics");
+                } catch (Exception e) {
+                    LOGGER.debug("tc Runtime instance [" + instanceKey + "] is still unreachable: " + e.getMessage());
+                    if (circuitBreaker.probeFailed(System.currentTimeMillis(), period * CIRCUIT_BREAKER_MAX_IDLE_PERIODS)) {
+                        PROBE_EXECUTOR.schedule(this, period, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }, period, TimeUnit.MILLISECONDS);
+    }
+
+    private MetricValue collect(Metric metric) throws PluginException, MetricNotFoundException, MetricUnreachableException {
+        if (!isJmxMetric(metric)) {
+            return super.getValue(metric);
+        } else if (PERCENT_UP_TIME_IN_GARBAGE_COLLECTION_METRIC_NAME.equals(metric.getAttributeName())) {
+            return new MetricValue(percentUptimeInGarbageCollection(getConnection(metric.getProperties()), metric.getProperties()));
         } else if (DEADLOCKED_DETECTION_COUNT.equals(metric.getAttributeName())) {
-            return new MetricValue(getDeadlockedThreadCount(getConnection(metric.getProperties())));
-        } else if (HEAP_FREE_MEMORY.equals(metric.getAttributeName())) {
-            return new MetricValue(getFreeHeapMemory(getConnection(metric.getProperties())));
-        } else if (PERCENT_ACTIVE_CONNECTIONS.equals(metric.getAttributeName())) {
-            return new MetricValue(getPercentActiveConnections(getConnection(metric.getProperties()), metric));
-        } else if (PERCENT_ALLOCATED_THREADS.equals(metric.getAttributeName())) {
-            return new MetricValue(getPercentAllocatedThreads(getConnection(metric.getProperties()), metric));
-        } else if (PERCENT_ACTIVE_THREADS.equals(metric.getAttributeName())) {
-            return new MetricValue(getPercentActiveThreads(getConnection(metric.getProperties()), metric));
+            return new MetricValue(getDeadlockedThreadCount(getConnection(metric.getProperties()), metric.getProperties()));
+        } else if (GARBAGE_COLLECTION_INTERVAL_METRICS.contains(metric.getAttributeName())) {
+            return getGarbageCollectionIntervalMetric(metric);
+        } else if (isSampledMetric(metric.getAttributeName())) {
+            return getSampledMetric(metric);
+        } else if (ALLOCATION_RATE.equals(metric.getAttributeName()) || PROMOTION_RATE.equals(metric.getAttributeName())) {
+            return getMemoryRateMetric(metric);
+        } else if (HOT_THREAD_METRICS.contains(metric.getAttributeName())) {
+            return getHotThreadMetric(metric);
+        }
+
+        DerivedMetric derivedMetric = getDerivedMetrics().get(metric.getAttributeName());
+        if (derivedMetric != null) {
+            return derivedMetric.getValue(new SnapshotDerivedMetricContext(metric));
+        }
+
+        MetricValue value = getSnapshotValue(metric);
+        if (value != null) {
+            return value;
+        }
+        return getStandardValue(metric);
+    }
+
+    /**
+     * Collects the metric in the PDK's standard manner, as is done for Availability, ObjectName patterns and the
+     * attributes that a snapshot cannot serve. MxMeasurementPlugin reads them through MxUtil's own cached connection to
+     * the instance, which cannot be replaced by the plugin's shared connection, so the read is instead made on the
+     * instance's collection threads and bounded by the same deadline as the plugin's own round-trips.
+     */
+    private MetricValue getStandardValue(final Metric metric) throws PluginException, MetricNotFoundException,
+        MetricUnreachableException {
+        try {
+            return DeadlineJmxUtils.executeCollection(metric.getProperties(), "getValue " + metric.getAttributeName() + " of "
+                + metric.getObjectName(), new Callable<MetricValue>() {
+
+                public MetricValue call() throws Exception {
+                    return TomcatMeasurementPlugin.super.getValue(metric);
+                }
+            });
+        } catch (MetricNotFoundException e) {
+            throw e;
+        } catch (MetricUnreachableException e) {
+            throw e;
+        } catch (PluginException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new MetricUnreachableException("Error querying for " + metric.getAttributeName() + ": " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PluginException("Error querying for " + metric.getAttributeName() + ": " + e.getMessage(), e);
         }
-        return super.getValue(metric);
     }
 
+    private static boolean isSampledMetric(String attributeName) {
+        return attributeName != null
+            && (attributeName.endsWith(SAMPLED_MAX_SUFFIX) || attributeName.endsWith(SAMPLED_MEAN_SUFFIX)
+                || attributeName.endsWith(SAMPLED_P95_SUFFIX));
+    }
+
+    /**
+     * Reports the max, mean or 95th percentile of the samples of an attribute taken since the metric was last collected.
+     * The attribute is named by the metric's alias, less its suffix, e.g. <code>currentThreadsBusy.sampledMax</code>.
+     */
+    private MetricValue getSampledMetric(Metric metric) throws MetricInvalidException {
+        String alias = metric.getAttributeName();
+        String attributeName = alias.substring(0, alias.lastIndexOf('.'));
+
+        SaturationSampler sampler = getSaturationSampler(metric.getProperties());
+        if (sampler == null) {
+            return MetricValue.NONE;
+        }
+
+        ObjectName objectName;
+        try {
+            objectName = new ObjectName(metric.getObjectName());
+        } catch (MalformedObjectNameException e) {
+            throw new MetricInvalidException("Invalid ObjectName " + metric.getObjectName() + ": " + e.getMessage(), e);
+        }
+
+        SampleStatistics statistics = sampler.read(objectName, attributeName, alias);
+        if (statistics == null) {
+            return MetricValue.NONE;
+        }
+        if (alias.endsWith(SAMPLED_MAX_SUFFIX)) {
+            return new MetricValue(statistics.getMax());
+        } else if (alias.endsWith(SAMPLED_MEAN_SUFFIX)) {
+            return new MetricValue(statistics.getMean());
+        }
+        return new MetricValue(statistics.getPercentile95());
+    }
+
+    /**
+     * Returns the instance's sampler, creating it if sampling has been enabled and replacing it if its period has been
+     * changed, or <code>null</code> if sampling is disabled
+     */
+    private SaturationSampler getSaturationSampler(Properties config) {
+        String instanceKey = getInstanceKey(config);
+        long period = getLongProperty(config, PROP_SATURATION_SAMPLING_PERIOD, 0);
+        if (period > 0) {
+            period = Math.max(period, MIN_SATURATION_SAMPLING_PERIOD);
+        }
+
+        SaturationSampler sampler = SATURATION_SAMPLERS.get(instanceKey);
+        if (sampler != null && sampler.getPeriod() != period) {
+            if (SATURATION_SAMPLERS.remove(instanceKey, sampler)) {
+                sampler.stop();
+            }
+            sampler = null;
+        }
+        if (sampler != null || period <= 0) {
+            return sampler;
+        }
+
+        final Properties connectionConfig = new Properties();
+        connectionConfig.putAll(config);
+        SaturationSampler created = new SaturationSampler(instanceKey, new MBeanServerConnectionProvider() {
+
+            public MBeanServerConnection getConnection() throws IOException {
+                return mxUtil.getMBeanServer(connectionConfig);
+            }
+        }, SATURATION_SAMPLING_EXECUTOR, period, (int) getLongProperty(null, PROP_SATURATION_SAMPLING_MAX_SERIES,
+            DEFAULT_SATURATION_SAMPLING_MAX_SERIES), (int) getLongProperty(null, PROP_SATURATION_SAMPLING_CAPACITY,
+            DEFAULT_SATURATION_SAMPLING_CAPACITY));
+        SaturationSampler existing = SATURATION_SAMPLERS.putIfAbsent(instanceKey, created);
+        if (existing != null) {
+            created.stop();
+            return existing;
+        }
+        LOGGER.debug("Sampling the saturation of tc Runtime instance [" + instanceKey + "] every " + period + "ms");
+        return created;
+    }
+
+    private DerivedMetrics getDerivedMetrics() {
+        DerivedMetrics metrics = this.derivedMetrics;
+        if (metrics == null) {
+            metrics = DerivedMetrics.fromProperties(getPluginProperties());
+            this.derivedMetrics = metrics;
+        }
+        return metrics;
+    }
+
+    /**
+     * Computes derived metrics from the snapshots of the metric's MBean, or of the MBeans matching its ObjectName pattern
+     */
+    private final class SnapshotDerivedMetricContext implements DerivedMetricContext {
+
+        private final Metric metric;
+
+        SnapshotDerivedMetricContext(Metric metric) {
+            this.metric = metric;
+        }
+
+        public String getKey() {
+            return getInstanceKey(metric.getProperties()) + "|" + metric.getObjectName() + "|"
+                + metric.getAttributeName();
+        }
+
+        public AttributeSample sample(String... attributePaths) throws MetricUnreachableException, MetricNotFoundException,
+            PluginException {
+            Properties config = metric.getProperties();
+            MBeanServerConnection connection = getConnection(config);
+
+            String[] attributeNames = new String[attributePaths.length];
+            for (int i = 0; i < attributePaths.length; i++) {
+                attributeNames[i] = AttributeSnapshot.getAttributeName(attributePaths[i]);
+            }
+
+            double[] values = new double[attributePaths.length];
+            long timestamp = 0;
+            for (ObjectName objectName : getObjectNames(connection)) {
+                AttributeSnapshot snapshot = getSnapshot(connection, config, objectName, objectName.toString(), attributeNames);
+                for (int i = 0; i < attributePaths.length; i++) {
+                    values[i] += getNumber(snapshot, attributePaths[i], objectName.toString()).doubleValue();
+                }
+                timestamp = Math.max(timestamp, snapshot.getTimestamp());
+            }
+            return new AttributeSample(values, timestamp == 0 ? System.currentTimeMillis() : timestamp);
+        }
+
+        private Set<ObjectName> getObjectNames(MBeanServerConnection connection) throws MetricUnreachableException, MetricInvalidException {
+            try {
+                ObjectName objectName = new ObjectName(metric.getObjectName());
+                if (!objectName.isPattern()) {
+                    return Collections.singleton(objectName);
+                }
+                return connection.queryNames(objectName, null);
+            } catch (MalformedObjectNameException e) {
+                throw new MetricInvalidException("Error querying for " + metric.getObjectName() + ": " + e.getMessage(), e);
+            } catch (IOException e) {
+                throw new MetricUnreachableException("Error querying for " + metric.getObjectName() + ":" + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * The configuration with which an instance is prefetched, taken from its most recently collected metric
+     */
+    private static final class PrefetchTarget {
+
+        private final Properties config;
+
+        private final long stalenessWindow;
+
+        private final Runnable prefetch;
+
+        private volatile long lastUsed;
+
+        private volatile long lastPrefetch;
+
+        private PrefetchTarget(Properties config, long stalenessWindow, Runnable prefetch) {
+            this.config = config;
+            this.stalenessWindow = stalenessWindow;
+            this.prefetch = prefetch;
+        }
+
+        /**
+         * @return <code>true</code> if the given configuration connects to the instance with the same credentials
+         */
+        private boolean isFor(Properties config) {
+            return equal(this.config, config, MxUtil.PROP_JMX_USERNAME) && equal(this.config, config, MxUtil.PROP_JMX_PASSWORD);
+        }
+
+        private static boolean equal(Properties a, Properties b, String name) {
+            String value = a.getProperty(name);
+            return value == null ? b.getProperty(name) == null : value.equals(b.getProperty(name));
+        }
+    }
+
+    private final class Prefetch implements Runnable {
+
+        private final String instanceKey;
+
+        private final Properties config;
+
+        private Prefetch(String instanceKey, Properties config) {
+            this.instanceKey = instanceKey;
+            this.config = config;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                int read = snapshotCache.prefetch(mxUtil.getMBeanServer(config), instanceKey, getStalenessWindow(config));
+                failed = false;
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Prefetched " + read + " MBeans of tc Runtime instance [" + instanceKey + "]");
+                }
+            } catch (Exception e) {
+                // The failure is reported when the instance's metrics are collected
+                LOGGER.debug("Prefetch of tc Runtime instance [" + instanceKey + "] failed: " + e.getMessage());
+            } finally {
+                CollectorStatistics.forInstance(instanceKey).record(CollectorStatistics.PREFETCH, System.nanoTime() - start, failed);
+            }
+        }
+    }
 }
@@ -33,6 +33,7 @@ import org.hyperic.sigar.ptql.ProcessFinder;
 import org.hyperic.util.config.ConfigResponse;
 
 import com.springsource.hq.plugin.tcserver.plugin.discovery.TcRuntimeDetector;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxConnectionManager;
 
 /**
  * Extension of {@link MxServerControlPlugin} that will kill a process if not killed by stop, and will check that a
@@ -76,9 +77,11 @@ public class TomcatServerControlPlugin extends MxServerControlPlugin {
             setResult(status);
         } else if ("restart".equals(action)) {
             final int status = restartWithArgs(args);
+            JmxConnectionManager.getInstance().invalidate(config.toProperties());
             setResult(status);
         } else if ("stop".equals(action)) {
             final int status = stopWithArgs(args);
+            JmxConnectionManager.getInstance().invalidate(config.toProperties());
             setResult(status);
         } else {
             super.doAction(action, args);
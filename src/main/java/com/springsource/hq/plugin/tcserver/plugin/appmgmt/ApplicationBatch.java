@@ -0,0 +1,337 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.hyperic.hq.product.PluginException;
+
+import com.springsource.hq.plugin.tcserver.plugin.DaemonThreadFactory;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.DeadlineJmxUtils;
+
+/**
+ * Performs an operation, such as stopping, on a batch of applications concurrently. No more than a limited number of
+ * applications are operated on at once, no more than an instance's application management JMX operations can be in
+ * flight, and an application is only operated on once the applications that it must follow are done. Each result is
+ * passed to a {@link Listener} as soon as the application is done. The application managers' listeners only log it: the
+ * results of a control action are returned to the server together, once the whole batch is done.
+ * <p />
+ *
+ * An application that is not done within the timeout is reported as timed out rather than as having failed, as its
+ * operation may still be in progress on the instance, and the applications that must follow it are not operated on.
+ * <p />
+ *
+ * If the operation fails with a {@link PluginException}, e.g. because the instance cannot be reached, no further
+ * applications are operated on and, once those in progress are done, the exception is thrown.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ * @param <T> the type that identifies an application
+ * @param <R> the type of an operation's result
+ */
+final class ApplicationBatch<T, R> {
+
+    static final int DEFAULT_CONCURRENCY = 1;
+
+    // Allowed on top of an operation's JMX round trips for waiting for a thread and for the work done on the agent
+    static final long TIMEOUT_MARGIN = 10000;
+
+    static final int MAX_THREADS = 32;
+
+    private static final long THREAD_KEEP_ALIVE = 60000;
+
+    // Shared by the batches of every instance. An operation that is submitted while every thread is busy, e.g. with
+    // applications that have timed out but are still holding their threads, waits for a thread rather than failing; the
+    // time that it waits counts against its timeout.
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, THREAD_KEEP_ALIVE,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("tc Runtime application operation"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final int concurrency;
+
+    private final long timeout;
+
+    /**
+     * Creates a new batch
+     *
+     * @param concurrency the maximum number of applications operated on at once. It is limited to
+     *        {@link DeadlineJmxUtils#MAX_APPLICATION_MANAGEMENT_IN_FLIGHT_PER_INSTANCE}, as more applications could only
+     *        wait for the instance's JMX operations.
+     * @param timeout milliseconds within which the operation on each application must be done
+     * @see #getTimeout(long, long...)
+     */
+    ApplicationBatch(int concurrency, long timeout) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be at least one");
+        }
+        this.concurrency = Math.min(concurrency, DeadlineJmxUtils.MAX_APPLICATION_MANAGEMENT_IN_FLIGHT_PER_INSTANCE);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns a timeout that an operation only reaches if one of its JMX round trips hangs, i.e. the sum of the
+     * round trips' own timeouts, the pauses between them and a margin
+     *
+     * @param pauses the milliseconds for which the operation sleeps, e.g. between attempts
+     * @param roundTripTimeouts the timeout of each JMX round trip that the operation makes
+     * @return the timeout in milliseconds
+     */
+    static long getTimeout(long pauses, long... roundTripTimeouts) {
+        long timeout = pauses + TIMEOUT_MARGIN;
+        for (long roundTripTimeout : roundTripTimeouts) {
+            timeout += roundTripTimeout;
+        }
+        return timeout;
+    }
+
+    /**
+     * Operates on the applications
+     *
+     * @param batch the applications, in the order in which independent applications are operated on; duplicates are ignored
+     * @param predecessors the applications that each application must follow; applications that are not in the batch
+     *        are ignored
+     * @param operation the operation
+     * @param listener notified of each result, on the calling thread, as each application is done
+     * @return the results, in the order of the applications
+     * @throws PluginException if the operation fails with a <code>PluginException</code>
+     */
+    Map<T, R> execute(List<T> batch, Map<T, ? extends Collection<T>> predecessors, final Operation<T, R> operation,
+        Listener<T, R> listener) throws PluginException {
+        List<T> applications = new ArrayList<T>(new LinkedHashSet<T>(batch));
+        Map<T, Set<T>> waitingFor = new HashMap<T, Set<T>>();
+        Map<T, List<T>> successors = new HashMap<T, List<T>>();
+        LinkedList<T> ready = new LinkedList<T>();
+        for (T application : applications) {
+            Set<T> applicationPredecessors = new HashSet<T>();
+            Collection<T> declared = predecessors.get(application);
+            if (declared != null) {
+                applicationPredecessors.addAll(declared);
+                applicationPredecessors.retainAll(applications);
+                applicationPredecessors.remove(application);
+            }
+            for (T predecessor : applicationPredecessors) {
+                List<T> predecessorSuccessors = successors.get(predecessor);
+                if (predecessorSuccessors == null) {
+                    predecessorSuccessors = new ArrayList<T>();
+                    successors.put(predecessor, predecessorSuccessors);
+                }
+                predecessorSuccessors.add(application);
+            }
+            waitingFor.put(application, applicationPredecessors);
+            if (applicationPredecessors.isEmpty()) {
+                ready.add(application);
+            }
+        }
+
+        Map<T, R> results = new HashMap<T, R>();
+        Set<T> timedOut = new HashSet<T>();
+        CompletionService<R> completionService = new ExecutorCompletionService<R>(EXECUTOR);
+        Map<Future<R>, T> running = new HashMap<Future<R>, T>();
+        Map<Future<R>, Long> deadlines = new LinkedHashMap<Future<R>, Long>();
+        PluginException failure = null;
+
+        try {
+            while (!running.isEmpty() || (failure == null && !ready.isEmpty())) {
+                while (failure == null && running.size() < concurrency && !ready.isEmpty()) {
+                    final T application = ready.removeFirst();
+                    Future<R> future = completionService.submit(new Callable<R>() {
+
+                        public R call() throws PluginException {
+                            return operation.perform(application);
+                        }
+                    });
+                    running.put(future, application);
+                    deadlines.put(future, System.currentTimeMillis() + timeout);
+                }
+
+                Future<R> done = completionService.poll(Math.max(Collections.min(deadlines.values()) - System.currentTimeMillis(), 0),
+                    TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    T application = running.remove(done);
+                    if (application == null) {
+                        // Timed out and already reported
+                        continue;
+                    }
+                    deadlines.remove(done);
+                    try {
+                        complete(application, done.get(), results, waitingFor, successors, ready, listener);
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (failure == null) {
+                            failure = cause instanceof PluginException ? (PluginException) cause : new PluginException(cause.getMessage(), cause);
+                        }
+                    }
+                } else {
+                    long now = System.currentTimeMillis();
+                    for (Future<R> future : new ArrayList<Future<R>>(deadlines.keySet())) {
+                        if (deadlines.get(future) <= now) {
+                            future.cancel(true);
+                            deadlines.remove(future);
+                            T application = running.remove(future);
+                            R result = operation.timedOut(application, "it was not done within " + timeout + "ms");
+                            timedOut.add(application);
+                            results.put(application, result);
+                            listener.completed(application, result);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<R> future : running.keySet()) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new PluginException("Interrupted while operating on applications " + applications, e);
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        Set<T> followingTimedOut = getFollowing(timedOut, applications, results, waitingFor);
+        Map<T, R> orderedResults = new LinkedHashMap<T, R>();
+        for (T application : applications) {
+            R result = results.get(application);
+            if (result == null) {
+                result = operation.failed(application, "the applications that it must follow, " + waitingFor.get(application)
+                    + (followingTimedOut.contains(application) ? ", were not done" : ", form a cycle"));
+                listener.completed(application, result);
+            }
+            orderedResults.put(application, result);
+        }
+        return orderedResults;
+    }
+
+    /**
+     * @return the applications without a result that must follow, directly or not, one of the timed out applications
+     */
+    private Set<T> getFollowing(Set<T> timedOut, List<T> applications, Map<T, R> results, Map<T, Set<T>> waitingFor) {
+        Set<T> notDone = new HashSet<T>(timedOut);
+        Set<T> following = new HashSet<T>();
+        boolean found = !timedOut.isEmpty();
+        while (found) {
+            found = false;
+            for (T application : applications) {
+                if (!results.containsKey(application) && !following.contains(application)
+                    && !Collections.disjoint(waitingFor.get(application), notDone)) {
+                    notDone.add(application);
+                    following.add(application);
+                    found = true;
+                }
+            }
+        }
+        return following;
+    }
+
+    private void complete(T application, R result, Map<T, R> results, Map<T, Set<T>> waitingFor, Map<T, List<T>> successors,
+        LinkedList<T> ready, Listener<T, R> listener) {
+        results.put(application, result);
+        listener.completed(application, result);
+        List<T> applicationSuccessors = successors.get(application);
+        if (applicationSuccessors != null) {
+            for (T successor : applicationSuccessors) {
+                Set<T> successorWaitingFor = waitingFor.get(successor);
+                successorWaitingFor.remove(application);
+                if (successorWaitingFor.isEmpty()) {
+                    ready.add(successor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reverses dependencies, e.g. so that applications are stopped before the applications that they depend upon
+     *
+     * @param dependencies the applications that each application depends upon
+     * @return the applications that depend upon each application
+     */
+    static <T> Map<T, Set<T>> reverse(Map<T, ? extends Collection<T>> dependencies) {
+        Map<T, Set<T>> reversed = new HashMap<T, Set<T>>();
+        for (Map.Entry<T, ? extends Collection<T>> entry : dependencies.entrySet()) {
+            for (T dependency : entry.getValue()) {
+                Set<T> dependents = reversed.get(dependency);
+                if (dependents == null) {
+                    dependents = new HashSet<T>();
+                    reversed.put(dependency, dependents);
+                }
+                dependents.add(entry.getKey());
+            }
+        }
+        return reversed;
+    }
+
+    /**
+     * An operation on one application
+     */
+    interface Operation<T, R> {
+
+        /**
+         * @param application the application
+         * @return the result
+         * @throws PluginException if the operation cannot be performed on any of the applications
+         */
+        R perform(T application) throws PluginException;
+
+        /**
+         * @param application the application
+         * @param reason the reason that the operation was not performed
+         * @return the result that reports the failure
+         */
+        R failed(T application, String reason);
+
+        /**
+         * @param application the application
+         * @param reason the reason that the operation is not known to be done
+         * @return the result that reports that the operation may still be in progress
+         */
+        R timedOut(T application, String reason);
+    }
+
+    /**
+     * Notified of each application's result as soon as it is known, e.g. to log the progress of a long batch
+     */
+    interface Listener<T, R> {
+
+        void completed(T application, R result);
+    }
+}
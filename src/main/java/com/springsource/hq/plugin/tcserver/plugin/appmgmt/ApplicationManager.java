@@ -51,5 +51,11 @@ public interface ApplicationManager {
 
     void removeTemporaryWarFile(ConfigResponse config);
 
+    long getWarUploadOffset(ConfigResponse config) throws PluginException;
+
+    long uploadWarChunk(ConfigResponse config) throws PluginException;
+
+    String completeWarUpload(ConfigResponse config) throws PluginException;
+
     String getAppBase(ConfigResponse config) throws PluginException;
 }
@@ -0,0 +1,147 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.jmx.MxUtil;
+
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxConnectionManager;
+
+/**
+ * A listener for the notifications of one tc Runtime instance's MBeanServerDelegate that is registered with the
+ * instance's current connection only. The connections that callers are given are short-lived wrappers, created per
+ * application manager, so they do not identify the connector that the listener is registered with; the
+ * {@link JmxConnectionManager}'s current connection does, falling back to the caller's connection for instances that it
+ * does not manage.
+ * <p />
+ *
+ * Each filter is registered once per connection. When the instance's connection is replaced the listener is removed
+ * from the previous connection, if it is still reachable, and {@link #connectionReplaced()} is called so that what was
+ * cached on the strength of the previous connection's notifications is discarded.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+abstract class ConnectionScopedListener implements NotificationListener {
+
+    private final Log logger = LogFactory.getLog(ConnectionScopedListener.class);
+
+    private final Set<Object> registrations = new HashSet<Object>();
+
+    private WeakReference<MBeanServerConnection> current = new WeakReference<MBeanServerConnection>(null);
+
+    /**
+     * @param config an instance's configuration
+     * @return the key that identifies the instance, its JMX URL and user name
+     */
+    static String getInstanceKey(Properties config) {
+        return config.getProperty(MxUtil.PROP_JMX_URL) + "|" + config.getProperty(MxUtil.PROP_JMX_USERNAME, "");
+    }
+
+    /**
+     * Switches to the instance's current connection, removing the listener from the previous one if it has been
+     * replaced
+     *
+     * @param config the instance's configuration
+     * @param connection the connection that the caller has been given
+     * @return the current connection, which identifies it to {@link #listen} and {@link #isCurrent}
+     */
+    final MBeanServerConnection useCurrentConnection(Properties config, MBeanServerConnection connection) {
+        MBeanServerConnection underlying = getUnderlyingConnection(config, connection);
+        MBeanServerConnection previous;
+        synchronized (this) {
+            previous = current.get();
+            if (previous == underlying) {
+                return underlying;
+            }
+            current = new WeakReference<MBeanServerConnection>(underlying);
+            registrations.clear();
+            connectionReplaced();
+        }
+        if (previous != null) {
+            try {
+                previous.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (Exception e) {
+                // Not registered, or the connection has been closed taking the listener with it
+            }
+        }
+        return underlying;
+    }
+
+    /**
+     * Registers the listener with the MBeanServerDelegate, through the caller's connection, unless it has already been
+     * registered with the given key on the current connection
+     *
+     * @param connection the connection that the caller has been given
+     * @param underlying the current connection, as returned by {@link #useCurrentConnection}
+     * @param key identifies the filter among those that this listener registers
+     * @param filter the filter
+     * @return <code>true</code> if the listener is registered with the current connection
+     */
+    final synchronized boolean listen(MBeanServerConnection connection, MBeanServerConnection underlying, Object key,
+        NotificationFilter filter) {
+        if (current.get() != underlying) {
+            return false;
+        }
+        if (registrations.contains(key)) {
+            return true;
+        }
+        try {
+            connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+            registrations.add(key);
+            return true;
+        } catch (Exception e) {
+            logger.debug("Unable to listen for " + key + " notifications from the MBeanServerDelegate: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * @param underlying a connection returned by {@link #useCurrentConnection}
+     * @return <code>true</code> if it is still the current connection. Callers that cache should synchronize on this
+     *         listener so that the connection is not replaced before they have done so.
+     */
+    final synchronized boolean isCurrent(MBeanServerConnection underlying) {
+        return current.get() == underlying;
+    }
+
+    /**
+     * Called, holding this listener's monitor, when the instance's connection has been replaced
+     */
+    protected abstract void connectionReplaced();
+
+    private static MBeanServerConnection getUnderlyingConnection(Properties config, MBeanServerConnection connection) {
+        MBeanServerConnection underlying = JmxConnectionManager.getInstance().getCurrentConnection(config);
+        return underlying == null ? connection : underlying;
+    }
+}
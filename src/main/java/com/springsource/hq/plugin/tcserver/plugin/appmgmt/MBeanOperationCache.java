@@ -0,0 +1,164 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+/**
+ * Caches the operations of MBeans, such as tc Runtime's Deployer, whose operation signatures identify the version of
+ * tc Runtime, so that an MBean's <code>MBeanInfo</code> is read once per connection rather than before every
+ * operation.
+ * <p />
+ *
+ * The operations are cached per instance, identified by its JMX URL and user name, and are read afresh when the
+ * instance's connection is replaced, e.g. because the instance has been restarted. They are discarded when the
+ * MBeanServerDelegate reports that the MBean has been unregistered. The listener for that notification is registered
+ * once per MBean and connection, and is removed from a connection when it is replaced. If the listener cannot be added
+ * the operations are not cached.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class MBeanOperationCache {
+
+    private static final MBeanOperationCache INSTANCE = new MBeanOperationCache();
+
+    private final ConcurrentMap<String, InstanceOperations> instances = new ConcurrentHashMap<String, InstanceOperations>();
+
+    /**
+     * @return the cache shared by the application managers
+     */
+    static MBeanOperationCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns <code>true</code> if the MBean has an operation with the given name and number of arguments
+     *
+     * @param config the instance's configuration
+     * @param connection the connection to the MBean server
+     * @param objectName the name of the MBean
+     * @param operationName the name of the operation
+     * @param argumentCount the number of arguments
+     * @return <code>true</code> if the MBean has the operation
+     * @throws IOException if communication with the MBean server fails
+     * @throws InstanceNotFoundException if the MBean is not registered
+     * @throws IntrospectionException if the MBean's info cannot be obtained
+     * @throws ReflectionException if the MBean's info cannot be obtained
+     */
+    boolean hasOperation(Properties config, MBeanServerConnection connection, ObjectName objectName, String operationName,
+        int argumentCount) throws IOException, InstanceNotFoundException, IntrospectionException, ReflectionException {
+        for (MBeanOperationInfo operationInfo : getOperations(config, connection, objectName)) {
+            if (operationName.equals(operationInfo.getName()) && argumentCount == operationInfo.getSignature().length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param config the instance's configuration
+     * @param connection the connection to the MBean server
+     * @param objectName the name of the MBean
+     * @return the MBean's operations
+     * @throws IOException if communication with the MBean server fails
+     * @throws InstanceNotFoundException if the MBean is not registered
+     * @throws IntrospectionException if the MBean's info cannot be obtained
+     * @throws ReflectionException if the MBean's info cannot be obtained
+     */
+    MBeanOperationInfo[] getOperations(Properties config, MBeanServerConnection connection, ObjectName objectName) throws IOException,
+        InstanceNotFoundException, IntrospectionException, ReflectionException {
+        InstanceOperations instanceOperations = getInstanceOperations(config);
+        MBeanServerConnection underlying = instanceOperations.useCurrentConnection(config, connection);
+        MBeanOperationInfo[] operations = instanceOperations.operations.get(objectName);
+        if (operations != null) {
+            return operations;
+        }
+
+        // Listen before reading, so that an unregistration between the two cannot leave stale operations cached
+        boolean listening = instanceOperations.listen(connection, underlying, objectName, createUnregistrationFilter(objectName));
+        operations = connection.getMBeanInfo(objectName).getOperations();
+        if (listening) {
+            synchronized (instanceOperations) {
+                if (instanceOperations.isCurrent(underlying)) {
+                    instanceOperations.operations.put(objectName, operations);
+                }
+            }
+        }
+        return operations;
+    }
+
+    private InstanceOperations getInstanceOperations(Properties config) {
+        String key = ConnectionScopedListener.getInstanceKey(config);
+        InstanceOperations instanceOperations = instances.get(key);
+        if (instanceOperations == null) {
+            instanceOperations = new InstanceOperations();
+            InstanceOperations existing = instances.putIfAbsent(key, instanceOperations);
+            if (existing != null) {
+                instanceOperations = existing;
+            }
+        }
+        return instanceOperations;
+    }
+
+    private static MBeanServerNotificationFilter createUnregistrationFilter(ObjectName objectName) {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.disableAllObjectNames();
+        filter.enableObjectName(objectName);
+        filter.disableAllTypes();
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        return filter;
+    }
+
+    /**
+     * The cached operations of the MBeans of one instance
+     */
+    private static final class InstanceOperations extends ConnectionScopedListener {
+
+        private final ConcurrentMap<ObjectName, MBeanOperationInfo[]> operations = new ConcurrentHashMap<ObjectName, MBeanOperationInfo[]>();
+
+        @Override
+        protected void connectionReplaced() {
+            operations.clear();
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            if (notification instanceof MBeanServerNotification
+                && MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                operations.remove(((MBeanServerNotification) notification).getMBeanName());
+            }
+        }
+    }
+}
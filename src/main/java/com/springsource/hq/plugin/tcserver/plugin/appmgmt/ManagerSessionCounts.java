@@ -0,0 +1,128 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+
+import com.springsource.hq.plugin.tcserver.plugin.appmgmt.domain.Application;
+
+/**
+ * The active session counts of the applications deployed on a host.
+ * <p />
+ *
+ * JMX cannot read the attributes of several MBeans in one call, and a Manager only describes its own context's
+ * sessions, so the counts are read with one query that lists the host's Managers that have sessions, evaluated by the
+ * MBean server, and one read of each of those Managers. An application without sessions, typically most of them, costs
+ * nothing beyond the query. The Managers are queried in the domain of the service's engine, which need not be
+ * <code>Catalina</code>.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+final class ManagerSessionCounts {
+
+    private static final String ACTIVE_SESSIONS = "activeSessions";
+
+    private static final QueryExp HAS_ACTIVE_SESSIONS = Query.gt(Query.attr(ACTIVE_SESSIONS), Query.value(0));
+
+    private final String domain;
+
+    private final String hostName;
+
+    private final Map<ObjectName, Integer> sessionCounts;
+
+    private ManagerSessionCounts(String domain, String hostName, Map<ObjectName, Integer> sessionCounts) {
+        this.domain = domain;
+        this.hostName = hostName;
+        this.sessionCounts = sessionCounts;
+    }
+
+    /**
+     * Reads the session counts of the applications deployed on a host
+     *
+     * @param connection the connection to the instance's MBean server
+     * @param serviceName the name of the service
+     * @param hostName the name of the host
+     * @return the session counts
+     * @throws IOException if communication with the MBean server fails
+     * @throws JMException if the host's Manager MBeans cannot be queried or read
+     */
+    static ManagerSessionCounts read(MBeanServerConnection connection, String serviceName, String hostName) throws IOException,
+        JMException {
+        String domain = getDomain(connection, serviceName);
+        Map<ObjectName, Integer> sessionCounts = new HashMap<ObjectName, Integer>();
+        Set<ObjectName> managers = connection.queryNames(new ObjectName(domain + ":type=Manager,host=" + hostName + ",*"),
+            HAS_ACTIVE_SESSIONS);
+        for (ObjectName manager : managers) {
+            AttributeList attributes;
+            try {
+                attributes = connection.getAttributes(manager, new String[] { ACTIVE_SESSIONS });
+            } catch (InstanceNotFoundException e) {
+                // The application has been undeployed since the query
+                continue;
+            }
+            for (Object attribute : attributes) {
+                Object value = ((Attribute) attribute).getValue();
+                if (value instanceof Number) {
+                    sessionCounts.put(manager, ((Number) value).intValue());
+                }
+            }
+        }
+        return new ManagerSessionCounts(domain, hostName, sessionCounts);
+    }
+
+    /**
+     * Returns the domain of the service's MBeans, which is the name of its engine. Falls back to the service's name if
+     * the service's MBean cannot be found, as the two are usually the same.
+     */
+    private static String getDomain(MBeanServerConnection connection, String serviceName) throws IOException,
+        MalformedObjectNameException {
+        Set<ObjectName> services = connection.queryNames(new ObjectName("*:type=Service,*"),
+            Query.eq(Query.attr("name"), Query.value(serviceName)));
+        return services.isEmpty() ? serviceName : services.iterator().next().getDomain();
+    }
+
+    /**
+     * @param application an application deployed on the host
+     * @param tomcat7 <code>true</code> if the instance names its Manager MBeans as Tomcat 7 does
+     * @return the application's active session count, or zero if it has none or its Manager is not registered
+     * @throws MalformedObjectNameException if the application's Manager cannot be named
+     */
+    int get(Application application, boolean tomcat7) throws MalformedObjectNameException {
+        Integer sessionCount = sessionCounts.get(new ObjectName(ObjectNameUtils.getManagerMBeanObjectNameForApplication(domain, hostName,
+            application, tomcat7)));
+        return sessionCount == null ? 0 : sessionCount;
+    }
+}
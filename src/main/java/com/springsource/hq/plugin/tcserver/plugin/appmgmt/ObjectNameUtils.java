@@ -28,7 +28,7 @@ final class ObjectNameUtils {
 
     }
 
-    static String getManagerMBeanObjectNameForApplication(String host, Application application, boolean tomcat7) {
+    static String getManagerMBeanObjectNameForApplication(String domain, String host, Application application, boolean tomcat7) {
         String applicationIdentifier = TomcatNameUtils.convertNameToPath(application.getName());
 
         if (applicationIdentifier.equals("")) {
@@ -49,6 +49,6 @@ final class ObjectNameUtils {
             pathOrContext = "path";
         }
 
-        return "Catalina:type=Manager," + pathOrContext + "=" + applicationIdentifier + ",host=" + host;
+        return domain + ":type=Manager," + pathOrContext + "=" + applicationIdentifier + ",host=" + host;
     }
 }
@@ -42,4 +42,10 @@ public interface ScriptingApplicationManager {
     List<ApplicationStatus> stop(ConfigResponse config) throws PluginException;
 
     List<ApplicationStatus> undeploy(ConfigResponse config) throws PluginException;
+
+    long getWarUploadOffset(ConfigResponse config) throws PluginException;
+
+    long uploadWarChunk(ConfigResponse config) throws PluginException;
+
+    String completeWarUpload(ConfigResponse config) throws PluginException;
 }
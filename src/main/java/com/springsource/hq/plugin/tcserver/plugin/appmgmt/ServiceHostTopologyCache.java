@@ -0,0 +1,201 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * Caches the services of a tc Runtime instance and the hosts of each service, as reported by its Deployer, so that an
+ * application management operation does not have to ask for them before it can check the service and host that it
+ * has been given.
+ * <p />
+ *
+ * The topology is cached per instance, identified by its JMX URL and user name, and is read afresh when the instance's
+ * connection is replaced, e.g. because the instance has been restarted. It is discarded when the MBeanServerDelegate
+ * reports that the Deployer has been registered or unregistered, and after {@link #TIME_TO_LIVE} so that hosts added
+ * at runtime are seen. The listener for those notifications is registered once per connection, and is removed from a
+ * connection when it is replaced. If the listener cannot be added the topology is not cached.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class ServiceHostTopologyCache {
+
+    /**
+     * Milliseconds for which a topology is used before it is read again
+     */
+    static final long TIME_TO_LIVE = 5 * 60 * 1000;
+
+    private static final ServiceHostTopologyCache INSTANCE = new ServiceHostTopologyCache(TIME_TO_LIVE);
+
+    private final ConcurrentMap<String, InstanceTopology> instances = new ConcurrentHashMap<String, InstanceTopology>();
+
+    private final long timeToLive;
+
+    ServiceHostTopologyCache(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the cache shared by the application managers
+     */
+    static ServiceHostTopologyCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the instance's services, each mapped to its hosts, loading them if they are not cached or have expired
+     *
+     * @param config the instance's configuration
+     * @param connection the connection to the instance's MBean server
+     * @param deployer the name of the instance's Deployer MBean
+     * @param loader loads the topology from the Deployer
+     * @return the unmodifiable topology, in the order that it was loaded
+     * @throws PluginException if the topology cannot be loaded
+     */
+    Map<String, List<String>> get(Properties config, MBeanServerConnection connection, ObjectName deployer, Loader loader)
+        throws PluginException {
+        InstanceTopology instanceTopology = getInstanceTopology(config);
+        MBeanServerConnection underlying = instanceTopology.useCurrentConnection(config, connection);
+        Topology topology = instanceTopology.topology;
+        if (topology != null && System.currentTimeMillis() - topology.loaded < timeToLive) {
+            return topology.serviceHosts;
+        }
+
+        // Listen before loading, so that a change between the two cannot leave a stale topology cached
+        boolean listening = instanceTopology.listen(connection, underlying, deployer, createDeployerFilter(deployer));
+        topology = new Topology(loader.load());
+        if (listening) {
+            synchronized (instanceTopology) {
+                if (instanceTopology.isCurrent(underlying)) {
+                    instanceTopology.topology = topology;
+                }
+            }
+        }
+        return topology.serviceHosts;
+    }
+
+    /**
+     * Discards the topology cached for an instance, e.g. because it did not contain a service or host that an operation
+     * was asked to use
+     *
+     * @param config the instance's configuration
+     */
+    void invalidate(Properties config) {
+        getInstanceTopology(config).topology = null;
+    }
+
+    /**
+     * @param topology services, each mapped to its hosts
+     * @param serviceName the name of a service
+     * @param hostName the name of a host
+     * @return <code>true</code> if the topology contains the host in the service
+     */
+    static boolean contains(Map<String, List<String>> topology, String serviceName, String hostName) {
+        List<String> hosts = topology.get(serviceName);
+        return hosts != null && hosts.contains(hostName);
+    }
+
+    private InstanceTopology getInstanceTopology(Properties config) {
+        String key = ConnectionScopedListener.getInstanceKey(config);
+        InstanceTopology instanceTopology = instances.get(key);
+        if (instanceTopology == null) {
+            instanceTopology = new InstanceTopology();
+            InstanceTopology existing = instances.putIfAbsent(key, instanceTopology);
+            if (existing != null) {
+                instanceTopology = existing;
+            }
+        }
+        return instanceTopology;
+    }
+
+    private static MBeanServerNotificationFilter createDeployerFilter(ObjectName deployer) {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.disableAllObjectNames();
+        filter.enableObjectName(deployer);
+        filter.disableAllTypes();
+        filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        return filter;
+    }
+
+    /**
+     * Loads an instance's topology
+     */
+    interface Loader {
+
+        /**
+         * @return the instance's services, each mapped to its hosts
+         * @throws PluginException if the topology cannot be loaded
+         */
+        Map<String, List<String>> load() throws PluginException;
+    }
+
+    private static final class Topology {
+
+        private final Map<String, List<String>> serviceHosts;
+
+        private final long loaded = System.currentTimeMillis();
+
+        private Topology(Map<String, List<String>> serviceHosts) {
+            Map<String, List<String>> copy = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<String, List<String>> entry : serviceHosts.entrySet()) {
+                copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<String>(entry.getValue())));
+            }
+            this.serviceHosts = Collections.unmodifiableMap(copy);
+        }
+    }
+
+    /**
+     * The cached topology of one instance
+     */
+    private static final class InstanceTopology extends ConnectionScopedListener {
+
+        private volatile Topology topology;
+
+        @Override
+        protected void connectionReplaced() {
+            topology = null;
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                topology = null;
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -39,20 +40,24 @@ import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.JMRuntimeException;
 import javax.management.MBeanException;
-import javax.management.MBeanInfo;
-import javax.management.MBeanOperationInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.common.ApplicationException;
 import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.jmx.MxUtil;
 import org.hyperic.util.config.ConfigResponse;
 
 import com.springsource.hq.plugin.tcserver.plugin.appmgmt.domain.Application;
+import com.springsource.hq.plugin.tcserver.plugin.discovery.TcRuntimeDetector;
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.CollectorStatistics;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.DeadlineJmxUtils;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.InstrumentedJmxUtils;
 import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxUtils;
 import com.springsource.hq.plugin.tcserver.util.application.ApplicationIdentifier;
 import com.springsource.hq.plugin.tcserver.util.application.ApplicationUtils;
@@ -86,6 +91,28 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
 
     private static final String INSTANCE_GROUP = "process.group";
 
+    private static final String DEPENDS_ON = "DEPENDS_ON";
+
+    private static final String CONCURRENCY = "CONCURRENCY";
+
+    private static final String APPLICATION_TIMEOUT = "APPLICATION_TIMEOUT";
+
+    private static final String UPLOAD_ID = "UPLOAD_ID";
+
+    private static final String CHUNK_OFFSET = "CHUNK_OFFSET";
+
+    private static final String CHUNK_DATA = "CHUNK_DATA";
+
+    private static final String CHUNK_SHA256 = "CHUNK_SHA256";
+
+    private static final String FILE_SHA256 = "FILE_SHA256";
+
+    // Number of times to retry the undeploy
+    private static final int UNDEPLOY_RETRIES = 3;
+
+    // Amount of time to sleep b/t undeploy attempts
+    private static final int UNDEPLOY_SLEEP_TIME = 3000;
+
     private final Log LOGGER = LogFactory.getLog(TomcatJmxApplicationManager.class);
 
     private final JmxUtils mxUtil;
@@ -95,7 +122,7 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
     private final FileOwnershipChanger fileOwnershipChanger;
 
     public TomcatJmxApplicationManager(JmxUtils jmxUtils, FilePermissionsChanger filePermissionsChanger, FileOwnershipChanger fileOwnershipChanger) {
-        this.mxUtil = jmxUtils;
+        this.mxUtil = new InstrumentedJmxUtils(DeadlineJmxUtils.forApplicationManagement(jmxUtils), CollectorStatistics.APPLICATION_MANAGEMENT);
         this.filePermissionsChanger = filePermissionsChanger;
         this.fileOwnershipChanger = fileOwnershipChanger;
     }
@@ -115,13 +142,18 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
 
         SortedSet<Application> applications = fetchApplications(configProperties, serviceName, hostName);
 
+        ManagerSessionCounts sessionCounts = fetchSessionCounts(configProperties, serviceName, hostName);
+
+        // Each application's status still costs a getApplicationState call, as the Deployer has no bulk state operation.
+        // Listing is requested on demand rather than on every collection, and application operations do not list, so
+        // the round trips grow with the number of applications only when the applications are displayed.
         Iterator<Application> applicationsIterator = applications.iterator();
 
         while (applicationsIterator.hasNext()) {
             Application application = applicationsIterator.next();
             try {
                 fetchAndApplyApplicationStatus(configProperties, serviceName, hostName, application);
-                fetchAndApplySessionCount(configProperties, hostName, application, tomcat7);
+                applySessionCount(sessionCounts, application, tomcat7);
             } catch (PluginException pe) {
                 LOGGER.warn(String.format("Failed to collect details for application '%s' deployed on service '%s' and host '%s'",
                     application.getName(), serviceName, hostName), pe);
@@ -132,28 +164,22 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
         return applications;
     }
 
-    private void fetchAndApplySessionCount(Properties configProperties, String hostName, Application application, boolean tomcat7)
-        throws PluginException {
-        Integer sessionCount = 0;
-
-        String appObjectName = ObjectNameUtils.getManagerMBeanObjectNameForApplication(hostName, application, tomcat7);
-
+    private ManagerSessionCounts fetchSessionCounts(Properties configProperties, String serviceName, String hostName) throws PluginException {
         try {
-            MBeanServerConnection mbsc = mxUtil.getMBeanServer(configProperties);
-            boolean mbeanIsRegistered = mbsc.isRegistered(new ObjectName(appObjectName));
-
-            if (mbeanIsRegistered) {
-                sessionCount = (Integer) mxUtil.getValue(configProperties, appObjectName, "activeSessions");
-            }
-
-            application.setSessionCount(sessionCount);
-        } catch (PluginException pe) {
-            throw pe;
+            return ManagerSessionCounts.read(mxUtil.getMBeanServer(configProperties), serviceName, hostName);
         } catch (Exception e) {
             throw createPluginException(e);
         }
     }
 
+    private void applySessionCount(ManagerSessionCounts sessionCounts, Application application, boolean tomcat7) throws PluginException {
+        try {
+            application.setSessionCount(sessionCounts.get(application, tomcat7));
+        } catch (MalformedObjectNameException e) {
+            throw createPluginException(e);
+        }
+    }
+
     private void fetchAndApplyApplicationStatus(Properties configProperties, String serviceName, String hostName, Application application)
         throws PluginException {
 
@@ -250,18 +276,52 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
 
     public void removeTemporaryWarFile(final ConfigResponse config) {
         try {
-            File file = new File(config.getValue("fileName"));
-            file.delete();
+            if (config.getValue(UPLOAD_ID) != null) {
+                WarUploadStaging.getInstance().discard(getDeploymentInstance(config), config.getValue(UPLOAD_ID));
+            } else {
+                File file = new File(config.getValue("fileName"));
+                file.delete();
+            }
         } catch (Exception e) {
             LOGGER.debug("Deleting temporary file failed: " + e.getMessage());
         }
     }
 
+    public long getWarUploadOffset(ConfigResponse config) throws PluginException {
+        return WarUploadStaging.getInstance().getOffset(getDeploymentInstance(config), config.getValue(UPLOAD_ID));
+    }
+
+    public long uploadWarChunk(ConfigResponse config) throws PluginException {
+        String offset = config.getValue(CHUNK_OFFSET);
+        String chunkData = config.getValue(CHUNK_DATA);
+        if (offset == null || chunkData == null) {
+            throw new PluginException("Both " + CHUNK_OFFSET + " and " + CHUNK_DATA + " are required");
+        }
+        try {
+            return WarUploadStaging.getInstance().writeChunk(getDeploymentInstance(config), config.getValue(UPLOAD_ID), Long.parseLong(offset),
+                Base64.decodeBase64(chunkData.getBytes()), config.getValue(CHUNK_SHA256));
+        } catch (NumberFormatException e) {
+            throw new PluginException("The value of " + CHUNK_OFFSET + ", '" + offset + "', is not an offset");
+        }
+    }
+
+    public String completeWarUpload(ConfigResponse config) throws PluginException {
+        return WarUploadStaging.getInstance().complete(getDeploymentInstance(config), config.getValue(UPLOAD_ID),
+            config.getValue(FILE_SHA256)).getPath();
+    }
+
+    /**
+     * Deploys the WAR file at <code>WAR_FILE_LOCATION</code> or, if there is no location, the WAR file staged by the
+     * completed upload <code>UPLOAD_ID</code>
+     */
     public Object deploy(ConfigResponse config) throws PluginException {
 
         final Map<String, String> connectionInformation = getConnectionInformation(config);
         final String deployPathString = config.getValue(DEPLOY_PATH);
-        final String warFileLocation = config.getValue(WAR_FILE_LOCATION);
+        final boolean uploaded = config.getValue(WAR_FILE_LOCATION) == null && config.getValue(UPLOAD_ID) != null;
+        final String warFileLocation = uploaded ? WarUploadStaging.getInstance().getStagedFile(getDeploymentInstance(config),
+            config.getValue(UPLOAD_ID)).getPath()
+            : config.getValue(WAR_FILE_LOCATION);
 
         LOGGER.debug("deploypath - " + deployPathString + "  war -  " + warFileLocation);
 
@@ -271,23 +331,55 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
         boolean fileExists = checkFileExists(warFileLocation);
 
         if (fileExists) {
-            File warFile = new File(warFileLocation);
-            this.filePermissionsChanger.changeFilePermissions(warFile);
-            this.fileOwnershipChanger.changeFileOwnership(warFile, config.getValue(INSTANCE_USERNAME), config.getValue(INSTANCE_GROUP));
-            resultMessage = doDeploy(config, connectionInformation, warFileLocation, resultMessage, deployPath);
+            // The WAR file is stored, and its permissions and ownership changed, once for all of the host's instances
+            WarArtifactStore artifactStore = WarArtifactStore.getInstance();
+            File artifact = artifactStore.getArtifact(new File(warFileLocation), config.getValue(FILE_SHA256),
+                config.getValue(INSTANCE_USERNAME), config.getValue(INSTANCE_GROUP), this.filePermissionsChanger, this.fileOwnershipChanger);
+
+            String instance = getDeploymentInstance(config);
+            String tempDeployPath = removeRevision(deployPath);
+            SortedSet<Application> applications = fetchApplications(config.toProperties(), connectionInformation.get(SERVICE_NAME),
+                connectionInformation.get(HOST_NAME));
+            // The revision that the request names or, if it names none, the latest revision
+            ApplicationIdentifier current = getDeployedRevision(applications, tempDeployPath, getRequestedRevision(deployPath));
+            if (current != null
+                && artifactStore.isStaged(artifact, instance,
+                    getDeploymentName(connectionInformation, tempDeployPath, current.getVersion()))) {
+                resultMessage = "Ok - Application " + current + " is already deployed at this revision.";
+            } else {
+                String newRevision = Boolean.valueOf(config.getValue(MULTI_REVISION_CAPABLE))
+                    ? ApplicationUtils.getNewRevisionForApplication(applications, tempDeployPath) : null;
+                WarArtifactStore.Staging staging = artifactStore.stage(artifact, instance, getDeploymentName(connectionInformation,
+                    tempDeployPath, newRevision == null ? 0 : Integer.parseInt(newRevision)));
+                boolean deployed = false;
+                try {
+                    resultMessage = doDeploy(config, connectionInformation, staging.getFile().getPath(), resultMessage, deployPath,
+                        newRevision);
+                    deployed = resultMessage.startsWith("Ok");
+                } finally {
+                    if (deployed) {
+                        staging.commit();
+                    } else {
+                        staging.rollback();
+                    }
+                }
+            }
         } else {
             resultMessage = "Failure - Application " + deployPathString + " failed to deploy - No file exists at location: " + warFileLocation;
         }
 
+        if (uploaded && resultMessage.startsWith("Ok")) {
+            // The WAR file is in the artifact store, so the upload is no longer needed. A failed deployment keeps it to be
+            // retried.
+            removeTemporaryWarFile(config);
+        }
+
         return resultMessage;
     }
 
     private String doDeploy(ConfigResponse config, Map<String, String> connectionInformation, String warFileLocation, String resultMessage,
-        String deployPath) throws PluginException {
-        String tempDeployPath = deployPath;
-        if (deployPath.indexOf("##") > 0) {
-            tempDeployPath = deployPath.substring(0, deployPath.indexOf("##"));
-        }
+        String deployPath, String newRevision) throws PluginException {
+        String tempDeployPath = removeRevision(deployPath);
 
         LOGGER.debug("About to deploy " + config);
 
@@ -296,8 +388,6 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
         String serviceName = (String) connectionInformation.get(SERVICE_NAME);
         String hostName = (String) connectionInformation.get(HOST_NAME);
 
-        String newRevision = getNewRevisionForApplication(config, tempDeployPath, serviceName, hostName);
-
         String[] types;
         Object[] arguments;
 
@@ -327,18 +417,60 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
         return resultMessage;
     }
 
-    private String getNewRevisionForApplication(ConfigResponse config, String deployPath, String serviceName, String hostName) throws PluginException {
-        String newRevision = null;
+    private String removeRevision(String deployPath) {
+        if (deployPath.indexOf("##") > 0) {
+            return deployPath.substring(0, deployPath.indexOf("##"));
+        }
+        return deployPath;
+    }
 
-        if (Boolean.valueOf(config.getValue(MULTI_REVISION_CAPABLE))) {
-            try {
-                SortedSet<Application> applications = fetchApplications(config.toProperties(), serviceName, hostName);
-                newRevision = ApplicationUtils.getNewRevisionForApplication(applications, deployPath);
-            } catch (Exception e) {
-                throw createPluginException(e);
+    private String getDeploymentInstance(ConfigResponse config) {
+        String catalinaBase = config.getValue(TcRuntimeDetector.SERVER_RESOURCE_CONFIG_CATALINA_BASE);
+        return catalinaBase == null ? config.getValue(MxUtil.PROP_JMX_URL) : catalinaBase;
+    }
+
+    /**
+     * @return the revision that a deploy path names, e.g. <code>/petclinic##000005</code>, or <code>-1</code> if it names
+     *         none
+     */
+    private int getRequestedRevision(String deployPath) throws PluginException {
+        int separator = deployPath.indexOf("##");
+        if (separator <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(deployPath.substring(separator + 2));
+        } catch (NumberFormatException e) {
+            throw new PluginException("The revision of " + deployPath + " is not a number");
+        }
+    }
+
+    /**
+     * @param revision the revision, or <code>-1</code> for the latest revision
+     * @return the deployed revision of the application at the path, or <code>null</code> if it is not deployed
+     */
+    private ApplicationIdentifier getDeployedRevision(Set<Application> applications, String deployPath, int revision) {
+        String applicationName = TomcatNameUtils.convertPathToName(deployPath);
+        ApplicationIdentifier deployed = null;
+        for (Application application : applications) {
+            if (applicationName.equals(application.getName())) {
+                if (application.getVersion() == revision) {
+                    return new ApplicationIdentifier(application.getName(), application.getVersion());
+                }
+                if (revision < 0 && (deployed == null || application.getVersion() > deployed.getVersion())) {
+                    deployed = new ApplicationIdentifier(application.getName(), application.getVersion());
+                }
             }
         }
-        return newRevision;
+        return deployed;
+    }
+
+    /**
+     * @return the name of a revision's deployment in the {@link WarArtifactStore}
+     */
+    private static String getDeploymentName(Map<String, String> connectionInformation, String deployPath, int revision) {
+        return connectionInformation.get(SERVICE_NAME) + "|" + connectionInformation.get(HOST_NAME) + "|" + deployPath
+            + (revision > 0 ? "##" + revision : "");
     }
 
     private List<ApplicationIdentifier> getApplicationIdentifiers(ConfigResponse config) {
@@ -363,20 +495,9 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
             String hostName = config.getValue(HOST_NAME, "localhost");
             connectionInformation.put(HOST_NAME, hostName);
             LOGGER.debug("ConnectionInfo: SERVICE_NAME = " + serviceName + ", HOST_NAME = " + hostName);
-            boolean canExecute = false;
-            String[] services;
-            try {
-                services = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getServices", new Object[0], new String[0]);
-                if (Arrays.asList(services).contains(serviceName)) {
-                    if (Arrays.asList(
-                        (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getHosts", new Object[] { serviceName },
-                            new String[] { String.class.getName() })).contains(hostName)) {
-                        canExecute = true;
-                    }
-                }
-            } catch (final ApplicationException e) {
-                throw createPluginException(e);
-            }
+            // A cached topology may predate the service or host, so it is read again before they are rejected
+            boolean canExecute = ServiceHostTopologyCache.contains(getServiceHostTopology(config, false), serviceName, hostName)
+                || ServiceHostTopologyCache.contains(getServiceHostTopology(config, true), serviceName, hostName);
             if (!canExecute) {
                 throw new PluginException("The service name (" + serviceName + ") and host name (" + hostName
                     + ") does not match any services on this resource. "
@@ -389,6 +510,49 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
         return connectionInformation;
     }
 
+    /**
+     * Returns the instance's services, each mapped to its hosts, from the topology cached for the instance
+     *
+     * @param config the instance's configuration
+     * @param refresh <code>true</code> if the cached topology is to be discarded and read again, e.g. because it may
+     *        predate a service or host that an operation has been asked to use
+     */
+    private Map<String, List<String>> getServiceHostTopology(final ConfigResponse config, boolean refresh) throws PluginException {
+        try {
+            Properties properties = config.toProperties();
+            MBeanServerConnection connection = mxUtil.getMBeanServer(properties);
+            if (refresh) {
+                ServiceHostTopologyCache.getInstance().invalidate(properties);
+            }
+            return ServiceHostTopologyCache.getInstance().get(properties, connection, new ObjectName(getObjectName()),
+                new ServiceHostTopologyCache.Loader() {
+
+                    public Map<String, List<String>> load() throws PluginException {
+                        return loadServiceHostTopology(config);
+                    }
+                });
+        } catch (PluginException pe) {
+            throw pe;
+        } catch (Exception e) {
+            throw createPluginException(e);
+        }
+    }
+
+    private Map<String, List<String>> loadServiceHostTopology(ConfigResponse config) throws PluginException {
+        Map<String, List<String>> serviceHostMapping = new LinkedHashMap<String, List<String>>();
+        try {
+            String[] services = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getServices", new Object[0], new String[0]);
+            for (String service : services) {
+                String[] hosts = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getHosts", new Object[] { service },
+                    new String[] { String.class.getName() });
+                serviceHostMapping.put(service, Arrays.asList(hosts));
+            }
+        } catch (final ApplicationException e) {
+            throw createPluginException(e);
+        }
+        return serviceHostMapping;
+    }
+
     protected String getObjectName() {
         return "tcServer:type=Serviceability,name=Deployer";
     }
@@ -417,17 +581,7 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
     public Map<String, List<String>> getServiceHostMappings(ConfigResponse config) throws PluginException {
         Map<String, List<String>> serviceHostMapping = new LinkedHashMap<String, List<String>>();
         if (this.mxUtil.checkConnection(config)) {
-            String[] services;
-            try {
-                services = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getServices", new Object[0], new String[0]);
-                for (String service : services) {
-                    String[] hosts = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getHosts", new Object[] { service },
-                        new String[] { String.class.getName() });
-                    serviceHostMapping.put(service, Arrays.asList(hosts));
-                }
-            } catch (final ApplicationException e) {
-                throw createPluginException(e);
-            }
+            serviceHostMapping.putAll(getServiceHostTopology(config, false));
         } else {
             throw new PluginException(
                 "Unable to connect to the instance. Please verify the instance is running and whether the JMX configuration is correct.");
@@ -490,188 +644,275 @@ public final class TomcatJmxApplicationManager implements ApplicationManager {
         throws PluginException {
 
         try {
-            MBeanServerConnection mBeanServer = mxUtil.getMBeanServer(config);
-            MBeanInfo mBeanInfo = mBeanServer.getMBeanInfo(new ObjectName(objectName));
-            for (MBeanOperationInfo operationInfo : mBeanInfo.getOperations()) {
-                if (operationName.equals(operationInfo.getName()) && expected25OrLaterArgumentCount == operationInfo.getSignature().length) {
-                    return true;
-                }
-            }
-            return false;
+            return MBeanOperationCache.getInstance().hasOperation(config, mxUtil.getMBeanServer(config), new ObjectName(objectName),
+                operationName, expected25OrLaterArgumentCount);
         } catch (Exception e) {
             throw createPluginException(e);
         }
     }
 
     public Map<String, Object> reload(ConfigResponse config) throws PluginException {
-        Map<String, String> connectionInformation = getConnectionInformation(config);
-        Map<String, Object> resultMap = new HashMap<String, Object>();
-
-        String service = connectionInformation.get(SERVICE_NAME);
-        String host = connectionInformation.get(HOST_NAME);
+        final Map<String, String> connectionInformation = getConnectionInformation(config);
+        final Properties configProperties = config.toProperties();
 
-        Properties configProperties = config.toProperties();
+        return executeBatch(config, true, getOperationTimeout(configProperties, "reloadApplication"), new BatchOperation() {
 
-        for (ApplicationIdentifier applicationIdentifier : getApplicationIdentifiers(config)) {
-            String resultMessage;
-            if (isApplicationRunning(applicationIdentifier, service, host, configProperties)) {
-                resultMessage = performJmxOperation("reloadApplication", applicationIdentifier, configProperties, connectionInformation,
-                    "Ok - Application %s has reloaded.");
-            } else {
-                resultMessage = String.format("Failure - Application %s is not running.", applicationIdentifier);
+            public String perform(ApplicationIdentifier applicationIdentifier) throws PluginException {
+                if (isApplicationRunning(applicationIdentifier, connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME),
+                    configProperties)) {
+                    return performJmxOperation("reloadApplication", applicationIdentifier, configProperties, connectionInformation,
+                        "Ok - Application %s has reloaded.");
+                }
+                return String.format("Failure - Application %s is not running.", applicationIdentifier);
             }
-            resultMap.put(applicationIdentifier.toString(), resultMessage);
-        }
-
-        return resultMap;
+        });
     }
 
     public Map<String, Object> start(ConfigResponse config) throws PluginException {
-        Map<String, String> connectionInformation = getConnectionInformation(config);
-        Map<String, Object> resultMap = new HashMap<String, Object>();
+        final Map<String, String> connectionInformation = getConnectionInformation(config);
+        final Properties configProperties = config.toProperties();
 
-        Properties configProperties = config.toProperties();
+        return executeBatch(config, true, getOperationTimeout(configProperties, "startApplication"), new BatchOperation() {
 
-        for (ApplicationIdentifier applicationIdentifier : getApplicationIdentifiers(config)) {
+            public String perform(ApplicationIdentifier applicationIdentifier) throws PluginException {
+                if (isApplicationStopped(applicationIdentifier, connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME),
+                    configProperties)) {
+                    return performJmxOperation("startApplication", applicationIdentifier, configProperties, connectionInformation,
+                        "Ok - Application %s has started.");
+                }
+                return "Ok - Application " + applicationIdentifier + " is already running.";
+            }
+        });
+    }
 
-            String service = connectionInformation.get(SERVICE_NAME);
-            String host = connectionInformation.get(HOST_NAME);
+    public Map<String, Object> stop(ConfigResponse config) throws PluginException {
+        final Map<String, String> connectionInformation = getConnectionInformation(config);
+        final Properties configProperties = config.toProperties();
 
-            String resultMessage;
+        return executeBatch(config, false, getOperationTimeout(configProperties, "stopApplication"), new BatchOperation() {
 
-            if (isApplicationStopped(applicationIdentifier, service, host, configProperties)) {
-                resultMessage = performJmxOperation("startApplication", applicationIdentifier, configProperties, connectionInformation,
-                    "Ok - Application %s has started.");
-            } else {
-                resultMessage = "Ok - Application " + applicationIdentifier + " is already running.";
+            public String perform(ApplicationIdentifier applicationIdentifier) throws PluginException {
+                if (isApplicationRunning(applicationIdentifier, connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME),
+                    configProperties)) {
+                    return performJmxOperation("stopApplication", applicationIdentifier, configProperties, connectionInformation,
+                        "Ok - Application %s has stopped.");
+                }
+                return "Ok - Application " + applicationIdentifier + " is already stopped.";
             }
+        });
+    }
 
-            resultMap.put(applicationIdentifier.toString(), resultMessage);
-        }
+    public Map<String, Object> undeploy(final ConfigResponse config) throws PluginException {
+        final Map<String, String> connectionInformation = getConnectionInformation(config);
 
-        return resultMap;
-    }
+        return executeBatch(config, false, getUndeployTimeout(config.toProperties()), new BatchOperation() {
 
-    public Map<String, Object> stop(ConfigResponse config) throws PluginException {
-        Map<String, String> connectionInformation = getConnectionInformation(config);
-        Map<String, Object> resultMap = new HashMap<String, Object>();
+            public String perform(ApplicationIdentifier applicationIdentifier) throws PluginException {
+                return undeployApplication(config, connectionInformation, applicationIdentifier);
+            }
+        });
+    }
 
-        Properties configProperties = config.toProperties();
+    private String undeployApplication(ConfigResponse config, Map<String, String> connectionInformation,
+        ApplicationIdentifier applicationIdentifier) throws PluginException {
+        String resultMessage = "Failure - Application " + applicationIdentifier + " is still deployed.";
+        try {
+            // Ensure that the app has truly been undeployed as Windoze
+            // aggressive file locking strategy can prevent app undeployment.
+            // (https://issuetracker.springsource.com/browse/TCS-61)
+            //
+            // The real solution here is to configure the antiJARLocking and
+            // antiResourceLocking features in tc Runtime's conf/context.xml file.
+            // More info is available here:
+            // http://tomcat.apache.org/tomcat-6.0-doc/config/context.html
+
+            int numRetries = UNDEPLOY_RETRIES;
+            int sleepTime = UNDEPLOY_SLEEP_TIME;
 
-        for (ApplicationIdentifier applicationIdentifier : getApplicationIdentifiers(config)) {
-            String service = connectionInformation.get(SERVICE_NAME);
-            String host = connectionInformation.get(HOST_NAME);
+            String applicationPath = TomcatNameUtils.convertNameToPath(applicationIdentifier.getName());
 
-            String resultMessage;
+            String objectName = getObjectName();
+            String[] types;
+            Object[] arguments;
 
-            if (isApplicationRunning(applicationIdentifier, service, host, configProperties)) {
-                resultMessage = performJmxOperation("stopApplication", applicationIdentifier, configProperties, connectionInformation,
-                    "Ok - Application %s has stopped.");
-            } else {
-                resultMessage = "Ok - Application " + applicationIdentifier + " is already stopped.";
+            try {
+                if (isTcRuntime250OrLater(objectName, "undeployApplication", 4, config.toProperties())) {
+                    types = new String[] { String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() };
+                    arguments = new Object[] { connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME), applicationPath,
+                        convertVersionToPaddedString(applicationIdentifier.getVersion()) };
+                } else {
+                    types = new String[] { String.class.getName(), String.class.getName(), String.class.getName() };
+                    arguments = new Object[] { connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME), applicationPath };
+                }
+            } catch (Exception e) {
+                throw new PluginException(e);
             }
 
-            resultMap.put(applicationIdentifier.toString(), resultMessage);
-        }
-
-        return resultMap;
-    }
+            for (int i = 0; i < numRetries; ++i) {
 
-    public Map<String, Object> undeploy(ConfigResponse config) throws PluginException {
+                LOGGER.debug("Undeploying app: " + applicationIdentifier);
 
-        final Map<String, String> connectionInformation = getConnectionInformation(config);
-        final Map<String, Object> resultMap = new HashMap<String, Object>();
-        String resultMessage = null;
+                // Attempt to undeploy the app
 
-        List<ApplicationIdentifier> applicationIdentifiers = getApplicationIdentifiers(config);
+                mxUtil.invoke(config.toProperties(), objectName, "undeployApplication", arguments, types);
+                LOGGER.debug("The undeployApplication command has been executed");
 
-        for (ApplicationIdentifier applicationIdentifier : applicationIdentifiers) {
+                // Grab a list of the deployed apps from tc Server on the host. Their states and session counts are
+                // not needed, so one listApplications call is enough.
+                Set<Application> applicationList = fetchApplications(config.toProperties(), connectionInformation.get(SERVICE_NAME),
+                    connectionInformation.get(HOST_NAME));
 
-            try {
-                // Ensure that the app has truly been undeployed as Windoze
-                // aggressive file locking strategy can prevent app undeployment.
-                // (https://issuetracker.springsource.com/browse/TCS-61)
-                //
-                // The real solution here is to configure the antiJARLocking and
-                // antiResourceLocking features in tc Runtime's conf/context.xml file.
-                // More info is available here:
-                // http://tomcat.apache.org/tomcat-6.0-doc/config/context.html
-
-                // Number of times to retry the undeploy
-                int numRetries = 3;
-                // Amount of time to sleep b/t undeploy attempts
-                int sleepTime = 3000;
-
-                String applicationPath = TomcatNameUtils.convertNameToPath(applicationIdentifier.getName());
-
-                String objectName = getObjectName();
-                String[] types;
-                Object[] arguments;
+                LOGGER.debug("Checking if the app actually was undeployed");
 
-                try {
-                    if (isTcRuntime250OrLater(objectName, "undeployApplication", 4, config.toProperties())) {
-                        types = new String[] { String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() };
-                        arguments = new Object[] { connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME), applicationPath,
-                            convertVersionToPaddedString(applicationIdentifier.getVersion()) };
-                    } else {
-                        types = new String[] { String.class.getName(), String.class.getName(), String.class.getName() };
-                        arguments = new Object[] { connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME), applicationPath };
-                    }
-                } catch (Exception e) {
-                    throw new PluginException(e);
+                // Create a list of apps that are still deployed
+                List<ApplicationIdentifier> deployedAppsList = new ArrayList<ApplicationIdentifier>();
+                for (Application application : applicationList) {
+                    deployedAppsList.add(new ApplicationIdentifier(application.getName(), application.getVersion()));
                 }
 
-                for (int i = 0; i < numRetries; ++i) {
+                // Is the target app name still listed as still being deployed?
+                if (!deployedAppsList.contains(applicationIdentifier)) {
+                    // Target app is not listed so it has been successfully undeployed
+                    resultMessage = "Ok - Application " + applicationIdentifier + " has undeployed.";
+                    removeUndeployedArtifact(config, connectionInformation, applicationIdentifier);
 
-                    LOGGER.debug("Undeploying app: " + applicationIdentifier);
+                    // Do not retry; break the loop
+                    numRetries = 0;
+                } else {
+                    LOGGER.debug("The app named [" + applicationIdentifier + "] is still deployed");
+                    // Target app is still listed so it has not been undeployed
+                    // Retry again/loop again
+                    --numRetries;
+
+                    LOGGER.debug("Sleeping for " + sleepTime);
+                    // Sleep for a bit to allow the Windoze file locking to settle
+                    Thread.currentThread();
+                    Thread.sleep(sleepTime);
+                }
+            }
+        } catch (ApplicationException e) {
+            throw createPluginException(e);
+        } catch (RuntimeException e) {
+            resultMessage = "Failure - " + createPluginException(e).getMessage();
+        } catch (InterruptedException e) {
+            throw createPluginException(e);
+        }
 
-                    // Attempt to undeploy the app
+        return resultMessage;
+    }
 
-                    mxUtil.invoke(config.toProperties(), objectName, "undeployApplication", arguments, types);
-                    LOGGER.debug("The undeployApplication command has been executed");
+    /**
+     * Removes the WAR file staged for an undeployed revision from the artifact store
+     */
+    private void removeUndeployedArtifact(ConfigResponse config, Map<String, String> connectionInformation,
+        ApplicationIdentifier applicationIdentifier) {
+        String deployPath = removeRevision(TomcatNameUtils.convertNameToPath(applicationIdentifier.getName()));
+        WarArtifactStore.getInstance().remove(getDeploymentInstance(config),
+            getDeploymentName(connectionInformation, deployPath, applicationIdentifier.getVersion()));
+    }
 
-                    // Grab a list of the deployed apps from tc Server on the host
-                    Set<Application> applicationList = list(config);
+    /**
+     * Performs an operation on the applications in the configuration as a batch. The applications that each application
+     * depends upon are given by <code>DEPENDS_ON</code><i>n</i>, a comma-separated list of applications that
+     * accompanies <code>APPLICATION</code><i>n</i>. <code>CONCURRENCY</code> limits the number of applications that are
+     * operated on at once, to no more than the instance's application management JMX operations, and defaults to one
+     * at a time. <code>APPLICATION_TIMEOUT</code> is the number of milliseconds within which each must be done.
+     *
+     * @param dependenciesFirst <code>true</code> if applications are operated on after the applications that they depend
+     *        upon, e.g. when starting, <code>false</code> if before, e.g. when stopping
+     * @param defaultTimeout the timeout used if <code>APPLICATION_TIMEOUT</code> is not set
+     */
+    private Map<String, Object> executeBatch(ConfigResponse config, boolean dependenciesFirst, long defaultTimeout,
+        BatchOperation operation) throws PluginException {
+        Map<ApplicationIdentifier, Set<ApplicationIdentifier>> dependencies = getApplicationDependencies(config);
+        ApplicationBatch<ApplicationIdentifier, String> batch = new ApplicationBatch<ApplicationIdentifier, String>(getIntValue(config,
+            CONCURRENCY, ApplicationBatch.DEFAULT_CONCURRENCY), getIntValue(config, APPLICATION_TIMEOUT, (int) defaultTimeout));
+
+        Map<ApplicationIdentifier, String> results = batch.execute(getApplicationIdentifiers(config),
+            dependenciesFirst ? dependencies : ApplicationBatch.reverse(dependencies), operation,
+            new ApplicationBatch.Listener<ApplicationIdentifier, String>() {
+
+                public void completed(ApplicationIdentifier applicationIdentifier, String resultMessage) {
+                    LOGGER.info(resultMessage);
+                }
+            });
 
-                    LOGGER.debug("Checking if the app actually was undeployed");
+        Map<String, Object> resultMap = new LinkedHashMap<String, Object>();
+        for (Map.Entry<ApplicationIdentifier, String> result : results.entrySet()) {
+            resultMap.put(result.getKey().toString(), result.getValue());
+        }
+        return resultMap;
+    }
 
-                    // Create a list of apps that are still deployed
-                    List<ApplicationIdentifier> deployedAppsList = new ArrayList<ApplicationIdentifier>();
-                    for (Application application : applicationList) {
-                        deployedAppsList.add(new ApplicationIdentifier(application.getName(), application.getVersion()));
-                    }
+    /**
+     * @return the time by which starting, stopping or reloading an application has either completed or failed: reading
+     *         its state, checking the operation's signature and invoking the operation
+     */
+    private long getOperationTimeout(Properties configProperties, String operationName) {
+        return ApplicationBatch.getTimeout(0, DeadlineJmxUtils.getOperationTimeout(configProperties, "getApplicationState"),
+            DeadlineJmxUtils.getOperationTimeout(configProperties, "getMBeanServer"),
+            DeadlineJmxUtils.getOperationTimeout(configProperties, "getMBeanInfo"),
+            DeadlineJmxUtils.getOperationTimeout(configProperties, operationName));
+    }
 
-                    // Is the target app name still listed as still being deployed?
-                    if (!deployedAppsList.contains(applicationIdentifier)) {
-                        // Target app is not listed so it has been successfully undeployed
-                        resultMessage = "Ok - Application " + applicationIdentifier + " has undeployed.";
+    /**
+     * @return the time by which undeploying an application has either completed or failed, including its retries and
+     *         the pauses between them
+     */
+    private long getUndeployTimeout(Properties configProperties) {
+        long attempt = DeadlineJmxUtils.getOperationTimeout(configProperties, "undeployApplication")
+            + DeadlineJmxUtils.getOperationTimeout(configProperties, "listApplications");
+        return ApplicationBatch.getTimeout(UNDEPLOY_RETRIES * UNDEPLOY_SLEEP_TIME, UNDEPLOY_RETRIES * attempt,
+            DeadlineJmxUtils.getOperationTimeout(configProperties, "getMBeanServer"),
+            DeadlineJmxUtils.getOperationTimeout(configProperties, "getMBeanInfo"));
+    }
 
-                        // Do not retry; break the loop
-                        numRetries = 0;
-                    } else {
-                        LOGGER.debug("The app named [" + applicationIdentifier + "] is still deployed");
-                        // Target app is still listed so it has not been undeployed
-                        // Retry again/loop again
-                        --numRetries;
-
-                        LOGGER.debug("Sleeping for " + sleepTime);
-                        // Sleep for a bit to allow the Windoze file locking to settle
-                        Thread.currentThread();
-                        Thread.sleep(sleepTime);
+    private Map<ApplicationIdentifier, Set<ApplicationIdentifier>> getApplicationDependencies(ConfigResponse config) {
+        final Set<String> keys = config.getKeys();
+        final Map<ApplicationIdentifier, Set<ApplicationIdentifier>> dependencies = new HashMap<ApplicationIdentifier, Set<ApplicationIdentifier>>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.contains(APPLICATION + i) && keys.contains(DEPENDS_ON + i)) {
+                Set<ApplicationIdentifier> applicationDependencies = new HashSet<ApplicationIdentifier>();
+                for (String dependency : config.getValue(DEPENDS_ON + i).split(",")) {
+                    if (dependency.trim().length() > 0) {
+                        applicationDependencies.add(new ApplicationIdentifier(dependency.trim()));
                     }
                 }
-            } catch (ApplicationException e) {
-                throw createPluginException(e);
-            } catch (RuntimeException e) {
-                resultMessage = "Failure - " + createPluginException(e).getMessage();
-            } catch (InterruptedException e) {
-                throw createPluginException(e);
+                dependencies.put(new ApplicationIdentifier(config.getValue(APPLICATION + i)), applicationDependencies);
+            }
+        }
+        return dependencies;
+    }
+
+    private int getIntValue(ConfigResponse config, String key, int defaultValue) throws PluginException {
+        String value = config.getValue(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue > 0) {
+                return intValue;
             }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new PluginException("The value of " + key + ", '" + value + "', is not a positive integer");
+    }
+
+    /**
+     * An operation on one application of a batch, whose result is a message
+     */
+    private abstract static class BatchOperation implements ApplicationBatch.Operation<ApplicationIdentifier, String> {
 
-            resultMap.put(applicationIdentifier.toString(), resultMessage);
+        public String failed(ApplicationIdentifier applicationIdentifier, String reason) {
+            return String.format("Failure - Application %s was not operated on as %s.", applicationIdentifier, reason);
         }
 
-        return resultMap;
+        public String timedOut(ApplicationIdentifier applicationIdentifier, String reason) {
+            return String.format("Unknown - The operation on application %s may still be in progress as %s.", applicationIdentifier,
+                reason);
+        }
     }
 
     /**
@@ -22,24 +22,27 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import javax.management.JMException;
 import javax.management.JMRuntimeException;
-import javax.management.MBeanInfo;
-import javax.management.MBeanOperationInfo;
 import javax.management.MBeanServerConnection;
-import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.common.ApplicationException;
 import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.jmx.MxUtil;
 import org.hyperic.util.config.ConfigResponse;
 
 import com.springsource.hq.plugin.tcserver.plugin.Utils;
@@ -47,6 +50,10 @@ import com.springsource.hq.plugin.tcserver.plugin.appmgmt.domain.Application;
 import com.springsource.hq.plugin.tcserver.plugin.appmgmt.domain.ApplicationStatus;
 import com.springsource.hq.plugin.tcserver.plugin.appmgmt.domain.Host;
 import com.springsource.hq.plugin.tcserver.plugin.appmgmt.domain.Service;
+import com.springsource.hq.plugin.tcserver.plugin.discovery.TcRuntimeDetector;
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.CollectorStatistics;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.DeadlineJmxUtils;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.InstrumentedJmxUtils;
 import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxUtils;
 import com.springsource.hq.plugin.tcserver.util.application.ApplicationUtils;
 import com.springsource.hq.plugin.tcserver.util.tomcat.TomcatNameUtils;
@@ -73,6 +80,22 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
 
     private static final String APPLICATION_VERSION = "version";
 
+    private static final String DEPENDS_ON = "dependson";
+
+    private static final String CONCURRENCY = "concurrency";
+
+    private static final String APPLICATION_TIMEOUT = "apptimeout";
+
+    private static final String UPLOAD_ID = "uploadid";
+
+    private static final String CHUNK_OFFSET = "chunkoffset";
+
+    private static final String CHUNK_DATA = "chunkdata";
+
+    private static final String CHUNK_SHA256 = "chunksha256";
+
+    private static final String FILE_SHA256 = "sha256";
+
     private final FilePermissionsChanger filePermissionsChanger;
 
     private final FileOwnershipChanger fileOwnershipChanger;
@@ -93,7 +116,7 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
 
     public TomcatJmxScriptingApplicationManager(JmxUtils jmxUtils, FilePermissionsChanger filePermissionsChanger,
         FileOwnershipChanger fileOwnershipChanger) {
-        this.mxUtil = jmxUtils;
+        this.mxUtil = new InstrumentedJmxUtils(DeadlineJmxUtils.forApplicationManagement(jmxUtils), CollectorStatistics.APPLICATION_MANAGEMENT);
         this.filePermissionsChanger = filePermissionsChanger;
         this.fileOwnershipChanger = fileOwnershipChanger;
     }
@@ -166,37 +189,52 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
         return tempDeployPath;
     }
 
+    /**
+     * Deploys the WAR file at <code>remotepath</code> or, if there is no path, the WAR file staged by the completed upload
+     * <code>uploadid</code>
+     */
     public List<ApplicationStatus> deploy(ConfigResponse config) throws PluginException {
+        final boolean uploaded = config.getValue(REMOTE_PATH) == null && config.getValue(UPLOAD_ID) != null;
         Set<String> requiredValues = new HashSet<String>();
         requiredValues.add(CONTEXT_PATH);
-        requiredValues.add(REMOTE_PATH);
+        requiredValues.add(uploaded ? UPLOAD_ID : REMOTE_PATH);
         checkRequiredValues(config, requiredValues);
         final Map<String, String> connectionInformation = getConnectionInformation(config.getValue(SERVICE_NAME), config.getValue(HOST_NAME), config);
         final List<ApplicationStatus> statusListing = new ArrayList<ApplicationStatus>();
         final String contextPath = resolveContextPath(config.getValue(CONTEXT_PATH));
-        final String applicationLocation = config.getValue(REMOTE_PATH);
+        final String applicationLocation = uploaded ? WarUploadStaging.getInstance().getStagedFile(getDeploymentInstance(config),
+            config.getValue(UPLOAD_ID)).getPath()
+            : config.getValue(REMOTE_PATH);
         LOGGER.debug("contextpath - " + contextPath + "  application -  " + applicationLocation);
         String resultMessage;
         boolean hasError = false;
         if (checkFileExists(applicationLocation)) {
-            File warFile = new File(applicationLocation);
-            this.filePermissionsChanger.changeFilePermissions(warFile);
-            this.fileOwnershipChanger.changeFileOwnership(warFile, config.getValue(Utils.SERVER_RESOURCE_CONFIG_PROCESS_USERNAME),
-                config.getValue(Utils.SERVER_RESOURCE_CONFIG_PROCESS_GROUP));
+            // The WAR file is stored, and its permissions and ownership changed, once for all of the host's instances
+            WarArtifactStore artifactStore = WarArtifactStore.getInstance();
+            File artifact = artifactStore.getArtifact(new File(applicationLocation), config.getValue(FILE_SHA256),
+                config.getValue(Utils.SERVER_RESOURCE_CONFIG_PROCESS_USERNAME), config.getValue(Utils.SERVER_RESOURCE_CONFIG_PROCESS_GROUP),
+                this.filePermissionsChanger, this.fileOwnershipChanger);
+            String instance = getDeploymentInstance(config);
+            WarArtifactStore.Staging staging = null;
+            boolean deployed = false;
             try {
-                String objectName = getObjectName();
-                if (isTcRuntime250OrLater(objectName, "deployApplication", 5, config) && (Boolean.valueOf(config.getValue("MULTI_REVISION_CAPABLE")))) {
-                    String version = getNextApplicationVersion(contextPath, connectionInformation, config);
-                    mxUtil.invoke(config.toProperties(), objectName, "deployApplication", new Object[] { connectionInformation.get(SERVICE_NAME),
-                        connectionInformation.get(HOST_NAME), contextPath, version, applicationLocation }, new String[] { String.class.getName(),
-                        String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() });
-                    resultMessage = String.format("Ok - Application '%s', revision '%s has deployed", contextPath, version);
+                SortedSet<Integer> versions = getDeployedVersions(contextPath, connectionInformation, config);
+                // The revision that the request names or, if it names none, the latest revision
+                int requestedVersion = getRequestedVersion(config.getValue(CONTEXT_PATH));
+                Integer currentVersion = requestedVersion < 0 ? (versions.isEmpty() ? null : versions.last())
+                    : (versions.contains(requestedVersion) ? requestedVersion : null);
+                if (currentVersion != null
+                    && artifactStore.isStaged(artifact, instance, getDeploymentName(connectionInformation, contextPath, currentVersion))) {
+                    resultMessage = String.format("Ok - Application %s is already deployed at this revision.", contextPath);
                 } else {
-                    mxUtil.invoke(config.toProperties(), objectName, "deployApplication", new Object[] { connectionInformation.get(SERVICE_NAME),
-                        connectionInformation.get(HOST_NAME), contextPath, applicationLocation },
-                        new String[] { String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() });
-                    resultMessage = String.format("Ok - Application %s has deployed.", contextPath);
+                    boolean multiRevision = isTcRuntime250OrLater(getObjectName(), "deployApplication", 5, config)
+                        && Boolean.valueOf(config.getValue("MULTI_REVISION_CAPABLE"));
+                    int version = multiRevision && !versions.isEmpty() ? versions.last() + 1 : 0;
+                    staging = artifactStore.stage(artifact, instance, getDeploymentName(connectionInformation, contextPath, version));
+                    resultMessage = deployApplication(config, connectionInformation, contextPath, multiRevision, version,
+                        staging.getFile().getPath());
                 }
+                deployed = true;
             } catch (final ApplicationException e) {
                 throw createPluginException(e);
             } catch (JMException e) {
@@ -206,12 +244,25 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
             } catch (final RuntimeException e) {
                 resultMessage = String.format("Failure - %s", createPluginException(e).getMessage());
                 hasError = true;
+            } finally {
+                if (staging != null) {
+                    if (deployed) {
+                        staging.commit();
+                    } else {
+                        staging.rollback();
+                    }
+                }
             }
         } else {
             resultMessage = String.format("Failure - Application %s failed to deploy - No file exists at location: %s", contextPath,
                 applicationLocation);
             hasError = true;
         }
+        if (uploaded && !hasError) {
+            // The WAR file is in the artifact store, so the upload is no longer needed. A failed deployment keeps it to be
+            // retried.
+            discardUpload(config);
+        }
         ApplicationStatus applicationStatus = new ApplicationStatus();
         applicationStatus.setResultMessage(resultMessage);
         applicationStatus.setApplicationName(contextPath);
@@ -220,105 +271,264 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
         return statusListing;
     }
 
-    @SuppressWarnings("unchecked")
-    private String getNextApplicationVersion(String path, Map<String, String> connectionInformation, ConfigResponse config) throws JMException,
-        IOException, PluginException, ApplicationException {
-        int latestVersion = -1;
-
-        Set<Map<String, String>> applicationMetadatas = (Set<Map<String, String>>) mxUtil.invoke(config.toProperties(), getObjectName(),
-            "listApplications", new Object[] { connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME) }, new String[] {
-                String.class.getName(), String.class.getName() });
-        for (Map<String, String> applicationMetadata : applicationMetadatas) {
-            String applicationPath = applicationMetadata.get(APPLICATION_PATH);
-            if (path.equals(applicationPath)) {
-                String applicationVersion = applicationMetadata.get(APPLICATION_VERSION);
-                int version;
-                if ("".equals(applicationVersion)) {
-                    version = 0;
-                } else {
-                    version = Integer.parseInt(applicationVersion);
+    private String deployApplication(ConfigResponse config, Map<String, String> connectionInformation, String contextPath,
+        boolean multiRevision, int version, String applicationLocation) throws JMException, IOException, PluginException,
+        ApplicationException {
+        String objectName = getObjectName();
+        if (multiRevision) {
+            String paddedVersion = ApplicationUtils.convertVersionToPaddedString(version);
+            mxUtil.invoke(config.toProperties(), objectName, "deployApplication", new Object[] { connectionInformation.get(SERVICE_NAME),
+                connectionInformation.get(HOST_NAME), contextPath, paddedVersion, applicationLocation }, new String[] {
+                String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() });
+            return String.format("Ok - Application '%s', revision '%s has deployed", contextPath, paddedVersion);
+        }
+        mxUtil.invoke(config.toProperties(), objectName, "deployApplication", new Object[] { connectionInformation.get(SERVICE_NAME),
+            connectionInformation.get(HOST_NAME), contextPath, applicationLocation },
+            new String[] { String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() });
+        return String.format("Ok - Application %s has deployed.", contextPath);
+    }
+
+    private String getDeploymentInstance(ConfigResponse config) {
+        String catalinaBase = config.getValue(TcRuntimeDetector.SERVER_RESOURCE_CONFIG_CATALINA_BASE);
+        return catalinaBase == null ? config.getValue(MxUtil.PROP_JMX_URL) : catalinaBase;
+    }
+
+    /**
+     * @return the revisions of the application at the path that are deployed, with <code>0</code> for an application
+     *         that has no revision
+     */
+    private SortedSet<Integer> getDeployedVersions(String path, Map<String, String> connectionInformation, ConfigResponse config)
+        throws JMException, IOException, PluginException, ApplicationException {
+        Object applicationsObject = mxUtil.invoke(config.toProperties(), getObjectName(), "listApplications", new Object[] {
+            connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME) }, new String[] { String.class.getName(),
+            String.class.getName() });
+        String applicationName = TomcatNameUtils.convertPathToName(path);
+        SortedSet<Integer> versions = new TreeSet<Integer>();
+        if (isTcRuntime25OrLater(applicationsObject)) {
+            @SuppressWarnings("unchecked")
+            Set<Map<String, String>> applicationMetadatas = (Set<Map<String, String>>) applicationsObject;
+            for (Map<String, String> applicationMetadata : applicationMetadatas) {
+                if (applicationName.equals(TomcatNameUtils.convertPathToName(applicationMetadata.get(APPLICATION_PATH)))) {
+                    String version = applicationMetadata.get(APPLICATION_VERSION);
+                    versions.add(version == null || "".equals(version) ? 0 : Integer.parseInt(version));
                 }
-
-                if (version > latestVersion) {
-                    latestVersion = version;
+            }
+        } else {
+            for (String applicationPath : (String[]) applicationsObject) {
+                if (applicationName.equals(TomcatNameUtils.convertPathToName(applicationPath))) {
+                    versions.add(0);
                 }
             }
         }
+        return versions;
+    }
 
-        if (latestVersion == -1) {
-            return "";
+    /**
+     * @return the revision that a context path names, e.g. <code>/petclinic##000005</code>, or <code>-1</code> if it
+     *         names none
+     */
+    private int getRequestedVersion(String originalContextPath) throws PluginException {
+        int separator = originalContextPath.indexOf("##");
+        if (separator <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(originalContextPath.substring(separator + 2));
+        } catch (NumberFormatException e) {
+            throw new PluginException("The revision of " + originalContextPath + " is not a number");
         }
-        return String.format("%06d", latestVersion + 1);
     }
 
-    private List<ApplicationStatus> executeCommand(ConfigResponse config, String command, String messageSuffix, Set<String> requiredValues)
-        throws PluginException {
+    /**
+     * @return the name of a revision's deployment in the {@link WarArtifactStore}
+     */
+    private static String getDeploymentName(Map<String, String> connectionInformation, String contextPath, int version) {
+        return connectionInformation.get(SERVICE_NAME) + "|" + connectionInformation.get(HOST_NAME) + "|" + contextPath
+            + (version > 0 ? "##" + version : "");
+    }
+
+    /**
+     * Executes a command on the applications in the configuration as a batch. The applications that each application
+     * depends upon are given by <code>dependson</code><i>n</i>, a comma-separated list of applications that accompanies
+     * <code>application</code><i>n</i>. <code>concurrency</code> limits the number of applications that are operated
+     * on at once, to no more than the instance's application management JMX operations, and defaults to one at a time.
+     * <code>apptimeout</code> is the number of milliseconds within which each must be done.
+     *
+     * @param dependenciesFirst <code>true</code> if applications are operated on after the applications that they depend
+     *        upon, e.g. when starting, <code>false</code> if before, e.g. when stopping
+     */
+    private List<ApplicationStatus> executeCommand(final ConfigResponse config, final String command, final String messageSuffix,
+        Set<String> requiredValues, boolean dependenciesFirst) throws PluginException {
         checkRequiredValues(config, requiredValues);
         final Map<String, String> connectionInformation = getConnectionInformation(config.getValue(SERVICE_NAME), config.getValue(HOST_NAME), config);
-        final List<ApplicationStatus> statusListing = new ArrayList<ApplicationStatus>();
+
+        Map<String, Set<String>> dependencies = getApplicationDependencies(config);
+        ApplicationBatch<String, ApplicationStatus> batch = new ApplicationBatch<String, ApplicationStatus>(getIntValue(config,
+            CONCURRENCY, ApplicationBatch.DEFAULT_CONCURRENCY), getIntValue(config, APPLICATION_TIMEOUT, (int) getCommandTimeout(
+            config.toProperties(), command)));
+
+        Map<String, ApplicationStatus> results = batch.execute(getApplicationNames(config), dependenciesFirst ? dependencies
+            : ApplicationBatch.reverse(dependencies), new ApplicationBatch.Operation<String, ApplicationStatus>() {
+
+            public ApplicationStatus perform(String appName) throws PluginException {
+                return executeCommand(config, connectionInformation, command, messageSuffix, appName);
+            }
+
+            public ApplicationStatus failed(String appName, String reason) {
+                return createApplicationStatus(getCommandApplicationName(appName), "Failure - Application '" + appName
+                    + "' was not " + messageSuffix + " as " + reason, true);
+            }
+
+            public ApplicationStatus timedOut(String appName, String reason) {
+                return createApplicationStatus(getCommandApplicationName(appName), "Unknown - Application '" + appName
+                    + "' may still be in progress as " + reason, true);
+            }
+        }, new ApplicationBatch.Listener<String, ApplicationStatus>() {
+
+            public void completed(String appName, ApplicationStatus applicationStatus) {
+                LOGGER.info(applicationStatus.getResultMessage());
+            }
+        });
+
+        return new ArrayList<ApplicationStatus>(results.values());
+    }
+
+    /**
+     * @return the time by which a command on an application has either completed or failed: checking the command's
+     *         signature, listing the application's revisions and invoking the command, and for an undeploy listing the
+     *         revisions before and after it
+     */
+    private long getCommandTimeout(Properties configProperties, String command) {
+        long listApplicationsTimeout = DeadlineJmxUtils.getOperationTimeout(configProperties, "listApplications");
+        long timeout = ApplicationBatch.getTimeout(0, DeadlineJmxUtils.getOperationTimeout(configProperties, "getMBeanServer"),
+            DeadlineJmxUtils.getOperationTimeout(configProperties, "getMBeanInfo"), listApplicationsTimeout,
+            DeadlineJmxUtils.getOperationTimeout(configProperties, command));
+        if ("undeployApplication".equals(command)) {
+            timeout += 2 * listApplicationsTimeout;
+        }
+        return timeout;
+    }
+
+    private ApplicationStatus executeCommand(ConfigResponse config, Map<String, String> connectionInformation, String command,
+        String messageSuffix, String appName) throws PluginException {
+        String applicationName = getCommandApplicationName(appName);
         String resultMessage;
         boolean hasError = false;
-        for (final String appName : getApplicationNames(config)) {
-            String applicationName = appName;
-            if (appName.equals("/ROOT") || appName.equals("/")) {
-                applicationName = "";
+        SortedSet<Integer> undeployedVersions = null;
+
+        try {
+            if ("undeployApplication".equals(command)) {
+                undeployedVersions = getDeployedVersions(resolveContextPath(appName), connectionInformation, config);
             }
+            String service = connectionInformation.get(SERVICE_NAME);
+            String host = connectionInformation.get(HOST_NAME);
 
-            try {
-                String service = connectionInformation.get(SERVICE_NAME);
-                String host = connectionInformation.get(HOST_NAME);
-
-                LOGGER.debug(command + " = " + service + " " + host + " " + applicationName);
-
-                String objectName = getObjectName();
-                if (isTcRuntime250OrLater(objectName, command, 4, config)) {
-                    String version = config.getValue(VERSION);
-
-                    if (isApplicationRevisionAdequatelySpecified(applicationName, version, service, host, config)) {
-                        if (version != null && (!"".equals(version))) {
-                            version = ApplicationUtils.convertVersionToPaddedString(version);
-                        }
-                        mxUtil.invoke(config.toProperties(), objectName, command, new Object[] { service, host, applicationName, version },
-                            new String[] { String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() });
-                        resultMessage = String.format("Ok - Application '%s', revision '%s has %s", applicationName, version, messageSuffix);
-                    } else {
-                        resultMessage = "Failure - multiple revisions of '" + appName + "' are present but no revision was specified";
-                        hasError = true;
+            LOGGER.debug(command + " = " + service + " " + host + " " + applicationName);
+
+            String objectName = getObjectName();
+            if (isTcRuntime250OrLater(objectName, command, 4, config)) {
+                String version = config.getValue(VERSION);
+
+                if (isApplicationRevisionAdequatelySpecified(appName, version, connectionInformation, config)) {
+                    if (version != null && (!"".equals(version))) {
+                        version = ApplicationUtils.convertVersionToPaddedString(version);
                     }
+                    mxUtil.invoke(config.toProperties(), objectName, command, new Object[] { service, host, applicationName, version },
+                        new String[] { String.class.getName(), String.class.getName(), String.class.getName(), String.class.getName() });
+                    resultMessage = String.format("Ok - Application '%s', revision '%s has %s", applicationName, version, messageSuffix);
                 } else {
-                    mxUtil.invoke(config.toProperties(), objectName, command, new Object[] { service, host, applicationName }, new String[] {
-                        String.class.getName(), String.class.getName(), String.class.getName() });
-                    resultMessage = String.format("Ok - Application '%s' has %s", applicationName, messageSuffix);
+                    resultMessage = "Failure - multiple revisions of '" + appName + "' are present but no revision was specified";
+                    hasError = true;
                 }
-
-            } catch (ApplicationException e) {
-                throw createPluginException(e);
-            } catch (IOException e) {
-                throw createPluginException(e);
-            } catch (JMException e) {
-                throw createPluginException(e);
-            } catch (RuntimeException e) {
-                resultMessage = "Failure - " + createPluginException(e).getMessage();
-                hasError = true;
+            } else {
+                mxUtil.invoke(config.toProperties(), objectName, command, new Object[] { service, host, applicationName }, new String[] {
+                    String.class.getName(), String.class.getName(), String.class.getName() });
+                resultMessage = String.format("Ok - Application '%s' has %s", applicationName, messageSuffix);
             }
 
-            statusListing.add(createApplicationStatus(applicationName, resultMessage, hasError));
+        } catch (ApplicationException e) {
+            throw createPluginException(e);
+        } catch (IOException e) {
+            throw createPluginException(e);
+        } catch (JMException e) {
+            throw createPluginException(e);
+        } catch (RuntimeException e) {
+            resultMessage = "Failure - " + createPluginException(e).getMessage();
+            hasError = true;
         }
-        return statusListing;
+
+        if (!hasError && undeployedVersions != null) {
+            removeUndeployedArtifacts(config, connectionInformation, appName, undeployedVersions);
+        }
+
+        return createApplicationStatus(applicationName, resultMessage, hasError);
     }
 
-    private boolean isApplicationRevisionAdequatelySpecified(String applicationName, String version, String service, String host,
-        ConfigResponse config) throws PluginException {
-        if (version == null || "".equals(version)) {
-            int revisionCount = 0;
+    /**
+     * Removes the WAR files staged for the revisions of an application that have been undeployed from the artifact store
+     *
+     * @param deployedVersions the revisions that were deployed before the application was undeployed
+     */
+    private void removeUndeployedArtifacts(ConfigResponse config, Map<String, String> connectionInformation, String appName,
+        Set<Integer> deployedVersions) {
+        String contextPath = resolveContextPath(appName);
+        try {
+            Set<Integer> undeployedVersions = new HashSet<Integer>(deployedVersions);
+            undeployedVersions.removeAll(getDeployedVersions(contextPath, connectionInformation, config));
+            for (int version : undeployedVersions) {
+                WarArtifactStore.getInstance().remove(getDeploymentInstance(config),
+                    getDeploymentName(connectionInformation, contextPath, version));
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Removing the stored WAR file of " + contextPath + " failed: " + e.getMessage());
+        }
+    }
 
-            for (Application application : getApplications(service, host, config)) {
-                if (applicationName.equals(application.getName())) {
-                    revisionCount++;
+    private String getCommandApplicationName(String appName) {
+        if (appName.equals("/ROOT") || appName.equals("/")) {
+            return "";
+        }
+        return appName;
+    }
+
+    private Map<String, Set<String>> getApplicationDependencies(ConfigResponse config) {
+        final Set<String> keys = config.getKeys();
+        final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+        for (int i = 1; i < keys.size(); i++) {
+            if (keys.contains(APPLICATION + i) && keys.contains(DEPENDS_ON + i)) {
+                Set<String> applicationDependencies = new HashSet<String>();
+                for (String dependency : config.getValue(DEPENDS_ON + i).split(",")) {
+                    if (dependency.trim().length() > 0) {
+                        applicationDependencies.add(validateApplicationName(dependency.trim()));
+                    }
                 }
+                dependencies.put(validateApplicationName(config.getValue(APPLICATION + i)), applicationDependencies);
+            }
+        }
+        return dependencies;
+    }
+
+    private int getIntValue(ConfigResponse config, String key, int defaultValue) throws PluginException {
+        String value = config.getValue(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue > 0) {
+                return intValue;
             }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new PluginException("The value of " + key + ", '" + value + "', is not a positive integer");
+    }
 
-            return revisionCount <= 1;
+    private boolean isApplicationRevisionAdequatelySpecified(String appName, String version, Map<String, String> connectionInformation,
+        ConfigResponse config) throws JMException, IOException, PluginException, ApplicationException {
+        if (version == null || "".equals(version)) {
+            // Only the revisions are needed, not each application's state and session count
+            return getDeployedVersions(resolveContextPath(appName), connectionInformation, config).size() <= 1;
         }
 
         return true;
@@ -365,11 +575,17 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
                 connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME) },
                 new String[] { String.class.getName(), String.class.getName() });
 
+            ManagerSessionCounts sessionCounts = ManagerSessionCounts.read(mxUtil.getMBeanServer(config.toProperties()),
+                connectionInformation.get(SERVICE_NAME), connectionInformation.get(HOST_NAME));
+
+            // Each application's status still costs a getApplicationState call, as the Deployer has no bulk state
+            // operation. Listing is requested on demand rather than on every collection.
             if (isTcRuntime25OrLater(applicationsObject)) {
                 applications.addAll(getApplications((Set<Map<String, String>>) applicationsObject, applicationNameFilter, connectionInformation,
-                    config));
+                    sessionCounts, config));
             } else {
-                applications.addAll(getApplications((String[]) applicationsObject, applicationNameFilter, connectionInformation, config));
+                applications.addAll(getApplications((String[]) applicationsObject, applicationNameFilter, connectionInformation, sessionCounts,
+                    config));
             }
         } catch (final ApplicationException e) {
             createPluginException(e);
@@ -384,7 +600,8 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
     }
 
     private List<Application> getApplications(Set<Map<String, String>> applicationMetadatas, String applicationNameFilter,
-        Map<String, String> connectionInformation, ConfigResponse config) throws ApplicationException, PluginException, IOException, JMException {
+        Map<String, String> connectionInformation, ManagerSessionCounts sessionCounts, ConfigResponse config) throws ApplicationException,
+        PluginException, IOException, JMException {
         List<Application> applications = new ArrayList<Application>();
 
         boolean tomcat7 = Boolean.valueOf(config.getValue("MULTI_REVISION_CAPABLE"));
@@ -409,9 +626,7 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
                         application.setVersion(0);
                     }
 
-                    String objectName = ObjectNameUtils.getManagerMBeanObjectNameForApplication(hostName, application, tomcat7);
-
-                    application.setSessionCount(getSessionCount(objectName, config));
+                    application.setSessionCount(sessionCounts.get(application, tomcat7));
 
                     applications.add(application);
                 } catch (Exception e) {
@@ -425,7 +640,7 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
     }
 
     private List<Application> getApplications(String[] applicationNames, String applicationNameFilter, Map<String, String> connectionInformation,
-        ConfigResponse config) throws ApplicationException, PluginException, JMException, IOException {
+        ManagerSessionCounts sessionCounts, ConfigResponse config) throws ApplicationException, PluginException, JMException, IOException {
         List<Application> applications = new ArrayList<Application>();
         for (final String applicationName : applicationNames) {
             if (applicationNameFilter == null || applicationNameFilter.equals(applicationName)) {
@@ -434,25 +649,13 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
                 application.setName(applicationName.equals("") ? "ROOT" : applicationName.substring(1));
                 application.setStatus(getApplicationStatus(connectionInformation, config, applicationName));
 
-                String objectName = ObjectNameUtils.getManagerMBeanObjectNameForApplication(connectionInformation.get(HOST_NAME), application, false);
-                application.setSessionCount(getSessionCount(objectName, config));
+                application.setSessionCount(sessionCounts.get(application, false));
                 applications.add(application);
             }
         }
         return applications;
     }
 
-    private int getSessionCount(String objectName, ConfigResponse config) throws JMException, PluginException, IOException {
-        if (isMBeanRegistered(objectName, config)) {
-            return (Integer) mxUtil.getValue(config.toProperties(), objectName, "activeSessions");
-        }
-        return 0;
-    }
-
-    private boolean isMBeanRegistered(String objectName, ConfigResponse config) throws IOException, MalformedObjectNameException {
-        return mxUtil.getMBeanServer(config.toProperties()).isRegistered(new ObjectName(objectName));
-    }
-
     private String getApplicationStatus(Map<String, String> connectionInformation, ConfigResponse config, final String applicationName)
         throws ApplicationException, PluginException {
         return getOverallStatus((String) mxUtil.invoke(config.toProperties(), getObjectName(), "getApplicationState", new Object[] {
@@ -473,20 +676,9 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
             connectionInformation.put(SERVICE_NAME, serviceName);
             connectionInformation.put(HOST_NAME, hostName);
             LOGGER.debug("ConnectionInfo: SERVICE_NAME = " + serviceName + ", HOST_NAME = " + hostName);
-            boolean canExecute = false;
-            String[] services;
-            try {
-                services = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getServices", new Object[0], new String[0]);
-                if (Arrays.asList(services).contains(serviceName)) {
-                    if (Arrays.asList(
-                        (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getHosts", new Object[] { serviceName },
-                            new String[] { String.class.getName() })).contains(hostName)) {
-                        canExecute = true;
-                    }
-                }
-            } catch (final ApplicationException e) {
-                throw createPluginException(e);
-            }
+            // A cached topology may predate the service or host, so it is read again before they are rejected
+            boolean canExecute = ServiceHostTopologyCache.contains(getServiceHostTopology(config, false), serviceName, hostName)
+                || ServiceHostTopologyCache.contains(getServiceHostTopology(config, true), serviceName, hostName);
             if (!canExecute) {
                 throw new PluginException("The service name (" + serviceName + ") and host name (" + hostName
                     + ") does not match any services on this resource. "
@@ -499,12 +691,6 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
         return connectionInformation;
     }
 
-    private List<String> getHosts(String service, ConfigResponse config) throws ApplicationException, PluginException {
-        String[] hosts = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getHosts", new Object[] { service },
-            new String[] { String.class.getName() });
-        return Arrays.asList(hosts);
-    }
-
     protected String getObjectName() {
         return "tcServer:type=Serviceability,name=Deployer";
     }
@@ -520,34 +706,30 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
 
     public Map<String, List<String>> getServiceHostMappings(ConfigResponse config) throws PluginException {
         if (this.mxUtil.checkConnection(config)) {
-            try {
-                List<String> allServices = getServices(config);
-                List<String> queryServices = new ArrayList<String>();
+            Map<String, List<String>> topology = getServiceHostTopology(config, false);
+            List<String> queryServices = new ArrayList<String>();
 
-                if (config.getValue(SERVICE_NAME) == null) {
-                    queryServices.addAll(allServices);
-                } else if (allServices.contains(config.getValue(SERVICE_NAME))) {
-                    queryServices.add(config.getValue(SERVICE_NAME));
-                } else {
-                    throw new PluginException("Service name specified was not found: " + config.getValue(SERVICE_NAME));
-                }
-
-                return getServiceHostMappings(queryServices, config);
-            } catch (final ApplicationException e) {
-                throw createPluginException(e);
+            if (config.getValue(SERVICE_NAME) == null) {
+                queryServices.addAll(topology.keySet());
+            } else if (topology.containsKey(config.getValue(SERVICE_NAME))) {
+                queryServices.add(config.getValue(SERVICE_NAME));
+            } else {
+                throw new PluginException("Service name specified was not found: " + config.getValue(SERVICE_NAME));
             }
+
+            return getServiceHostMappings(queryServices, topology, config);
         }
 
         throw new PluginException(
             "Unable to connect to the instance. Please verify the instance is running and whether the JMX configuration is correct.");
     }
 
-    private Map<String, List<String>> getServiceHostMappings(List<String> services, ConfigResponse config) throws PluginException,
-        ApplicationException {
+    private Map<String, List<String>> getServiceHostMappings(List<String> services, Map<String, List<String>> topology, ConfigResponse config)
+        throws PluginException {
         Map<String, List<String>> serviceHostMapping = new LinkedHashMap<String, List<String>>();
         boolean hostFound = false;
         for (String service : services) {
-            List<String> allHosts = getHosts(service, config);
+            List<String> allHosts = topology.get(service);
             List<String> hosts = new ArrayList<String>();
             if (config.getValue(HOST_NAME) == null) {
                 hosts = allHosts;
@@ -568,9 +750,49 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
         return serviceHostMapping;
     }
 
-    private List<String> getServices(ConfigResponse config) throws ApplicationException, PluginException {
-        String[] services = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getServices", new Object[0], new String[0]);
-        return Arrays.asList(services);
+    /**
+     * Returns the instance's services, each mapped to its hosts, from the topology cached for the instance
+     *
+     * @param config the instance's configuration
+     * @param refresh <code>true</code> if the cached topology is to be discarded and read again, e.g. because it may
+     *        predate a service or host that an operation has been asked to use
+     */
+    private Map<String, List<String>> getServiceHostTopology(final ConfigResponse config, boolean refresh) throws PluginException {
+        try {
+            Properties properties = config.toProperties();
+            MBeanServerConnection connection = mxUtil.getMBeanServer(properties);
+            if (refresh) {
+                ServiceHostTopologyCache.getInstance().invalidate(properties);
+            }
+            return ServiceHostTopologyCache.getInstance().get(properties, connection, new ObjectName(getObjectName()),
+                new ServiceHostTopologyCache.Loader() {
+
+                    public Map<String, List<String>> load() throws PluginException {
+                        return loadServiceHostTopology(config);
+                    }
+                });
+        } catch (PluginException e) {
+            throw e;
+        } catch (IOException e) {
+            throw createPluginException(e);
+        } catch (JMException e) {
+            throw createPluginException(e);
+        }
+    }
+
+    private Map<String, List<String>> loadServiceHostTopology(ConfigResponse config) throws PluginException {
+        Map<String, List<String>> serviceHostMapping = new LinkedHashMap<String, List<String>>();
+        try {
+            String[] services = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getServices", new Object[0], new String[0]);
+            for (String service : services) {
+                String[] hosts = (String[]) mxUtil.invoke(config.toProperties(), getObjectName(), "getHosts", new Object[] { service },
+                    new String[] { String.class.getName() });
+                serviceHostMapping.put(service, Arrays.asList(hosts));
+            }
+        } catch (final ApplicationException e) {
+            throw createPluginException(e);
+        }
+        return serviceHostMapping;
     }
 
     public List<Service> list(ConfigResponse config) throws PluginException {
@@ -584,28 +806,59 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
         return serviceListing;
     }
 
+    public long getWarUploadOffset(ConfigResponse config) throws PluginException {
+        return WarUploadStaging.getInstance().getOffset(getDeploymentInstance(config), config.getValue(UPLOAD_ID));
+    }
+
+    public long uploadWarChunk(ConfigResponse config) throws PluginException {
+        String offset = config.getValue(CHUNK_OFFSET);
+        String chunkData = config.getValue(CHUNK_DATA);
+        if (offset == null || chunkData == null) {
+            throw new PluginException("Both " + CHUNK_OFFSET + " and " + CHUNK_DATA + " are required");
+        }
+        try {
+            return WarUploadStaging.getInstance().writeChunk(getDeploymentInstance(config), config.getValue(UPLOAD_ID), Long.parseLong(offset),
+                Base64.decodeBase64(chunkData.getBytes()), config.getValue(CHUNK_SHA256));
+        } catch (NumberFormatException e) {
+            throw new PluginException("The value of " + CHUNK_OFFSET + ", '" + offset + "', is not an offset");
+        }
+    }
+
+    public String completeWarUpload(ConfigResponse config) throws PluginException {
+        return WarUploadStaging.getInstance().complete(getDeploymentInstance(config), config.getValue(UPLOAD_ID),
+            config.getValue(FILE_SHA256)).getPath();
+    }
+
+    private void discardUpload(ConfigResponse config) {
+        try {
+            WarUploadStaging.getInstance().discard(getDeploymentInstance(config), config.getValue(UPLOAD_ID));
+        } catch (PluginException e) {
+            LOGGER.debug("Discarding upload failed: " + e.getMessage());
+        }
+    }
+
     public List<ApplicationStatus> reload(ConfigResponse config) throws PluginException {
         Set<String> requiredValues = new HashSet<String>();
         requiredValues.add(APPLICATION + 1);
-        return executeCommand(config, "reloadApplication", "reloaded", requiredValues);
+        return executeCommand(config, "reloadApplication", "reloaded", requiredValues, true);
     }
 
     public List<ApplicationStatus> start(ConfigResponse config) throws PluginException {
         Set<String> requiredValues = new HashSet<String>();
         requiredValues.add(APPLICATION + 1);
-        return executeCommand(config, "startApplication", "started", requiredValues);
+        return executeCommand(config, "startApplication", "started", requiredValues, true);
     }
 
     public List<ApplicationStatus> stop(ConfigResponse config) throws PluginException {
         Set<String> requiredValues = new HashSet<String>();
         requiredValues.add(APPLICATION + 1);
-        return executeCommand(config, "stopApplication", "stopped", requiredValues);
+        return executeCommand(config, "stopApplication", "stopped", requiredValues, false);
     }
 
     public List<ApplicationStatus> undeploy(ConfigResponse config) throws PluginException {
         Set<String> requiredValues = new HashSet<String>();
         requiredValues.add(APPLICATION + 1);
-        return executeCommand(config, "undeployApplication", "undeployed", requiredValues);
+        return executeCommand(config, "undeployApplication", "undeployed", requiredValues, false);
     }
 
     private String validateApplicationName(String applicationName) {
@@ -626,13 +879,8 @@ public final class TomcatJmxScriptingApplicationManager implements ScriptingAppl
 
     private boolean isTcRuntime250OrLater(String objectName, String operationName, int expected25OrLaterArgumentCount, ConfigResponse config)
         throws JMException, IOException {
-        MBeanServerConnection mBeanServer = mxUtil.getMBeanServer(config.toProperties());
-        MBeanInfo mBeanInfo = mBeanServer.getMBeanInfo(new ObjectName(objectName));
-        for (MBeanOperationInfo operationInfo : mBeanInfo.getOperations()) {
-            if (operationInfo.getName().equals(operationName) && (expected25OrLaterArgumentCount == operationInfo.getSignature().length)) {
-                return true;
-            }
-        }
-        return false;
+        Properties properties = config.toProperties();
+        return MBeanOperationCache.getInstance().hasOperation(properties, mxUtil.getMBeanServer(properties), new ObjectName(objectName),
+            operationName, expected25OrLaterArgumentCount);
     }
 }
@@ -0,0 +1,528 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A store of WAR files, shared by all of the tc Runtime instances on a host, in which each WAR file is held once per
+ * owner and addressed by the SHA-256 digest of its content. A WAR file is copied into the store, and its permissions and
+ * ownership are changed, once, when it is first deployed. Each deployment to an instance is
+ * given a hard link to the stored WAR file, so deploying the same release to many instances neither copies nor changes
+ * the ownership of the WAR file again. The link also records what was last deployed at each of an instance's context
+ * paths and revisions, which allows a redeployment of the same content to be recognised.
+ * <p />
+ *
+ * The store is kept in the agent's data directory, so that it survives restarts of the agent and of the host. When a
+ * deployment is {@link #remove(String, String) removed}, e.g. because its application has been undeployed, each stored
+ * copy of its WAR file is deleted once no other deployment is staged with it.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class WarArtifactStore {
+
+    private static final Log LOGGER = LogFactory.getLog(WarArtifactStore.class);
+
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    private static final Pattern UNSAFE_CHARACTERS = Pattern.compile("[^A-Za-z0-9._-]");
+
+    private static final String WAR_SUFFIX = ".war";
+
+    private static final String PREVIOUS_SUFFIX = ".previous";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int DIGEST_CACHE_SIZE = 64;
+
+    private static final int MONITOR_COUNT = 16;
+
+    private static final String AGENT_DATA_DIRECTORY = "agent.dataDir";
+
+    private static final String AGENT_INSTALL_HOME = "agent.install.home";
+
+    // A stored WAR file that has just been returned is about to be staged, so it is not removed for this long even if
+    // no deployment is staged with it
+    private static final long DEFAULT_REMOVAL_GRACE_PERIOD = 10 * 60 * 1000;
+
+    private static final WarArtifactStore INSTANCE = new WarArtifactStore(new File(getAgentDataDirectory(), "tc-runtime-war-store"));
+
+    private final File artifactsDirectory;
+
+    private final File stagingDirectory;
+
+    private final long removalGracePeriod;
+
+    private final Object[] monitors = new Object[MONITOR_COUNT];
+
+    private final Map<String, Long> lastReturned = new ConcurrentHashMap<String, Long>();
+
+    private final Map<String, String> digests = new LinkedHashMap<String, String>(DIGEST_CACHE_SIZE, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > DIGEST_CACHE_SIZE;
+        }
+    };
+
+    WarArtifactStore(File directory) {
+        this(directory, DEFAULT_REMOVAL_GRACE_PERIOD);
+    }
+
+    WarArtifactStore(File directory, long removalGracePeriod) {
+        this.removalGracePeriod = removalGracePeriod;
+        this.artifactsDirectory = new File(directory, "artifacts");
+        this.stagingDirectory = new File(directory, "staging");
+        for (int i = 0; i < MONITOR_COUNT; i++) {
+            this.monitors[i] = new Object();
+        }
+    }
+
+    public static WarArtifactStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the agent's data directory or, outside of an agent, the temporary directory
+     */
+    static File getAgentDataDirectory() {
+        String dataDirectory = System.getProperty(AGENT_DATA_DIRECTORY);
+        if (dataDirectory != null) {
+            return new File(dataDirectory);
+        }
+        String installHome = System.getProperty(AGENT_INSTALL_HOME);
+        if (installHome != null) {
+            return new File(installHome, "data");
+        }
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Returns the stored copy of a WAR file, adding it to the store if it is not already there
+     *
+     * @param war the WAR file
+     * @param sha256 the hex encoded SHA-256 digest of the WAR file, or <code>null</code> if it is to be computed
+     * @param owningUser the user that is to own the stored WAR file, or <code>null</code> if its ownership is unchanged
+     * @param owningGroup the group that is to own the stored WAR file, or <code>null</code>
+     * @param filePermissionsChanger changes the permissions of a newly stored WAR file
+     * @param fileOwnershipChanger changes the ownership of a newly stored WAR file
+     * @return the stored WAR file
+     * @throws PluginException if the WAR file cannot be stored
+     */
+    public File getArtifact(File war, String sha256, String owningUser, String owningGroup, FilePermissionsChanger filePermissionsChanger,
+        FileOwnershipChanger fileOwnershipChanger) throws PluginException {
+        String digest = sha256 == null ? getSha256(war) : sha256.toLowerCase();
+        if (!SHA256.matcher(digest).matches()) {
+            throw new PluginException("'" + sha256 + "' is not a SHA-256 digest");
+        }
+
+        File ownerDirectory = new File(artifactsDirectory, owningUser == null ? "_" : sanitize(owningUser + "." + owningGroup));
+        File artifact = new File(ownerDirectory, digest + WAR_SUFFIX);
+        synchronized (getMonitor(digest)) {
+            lastReturned.put(digest, System.currentTimeMillis());
+            if (artifact.isFile()) {
+                if (getSha256(artifact).equals(digest)) {
+                    LOGGER.debug("Using stored WAR file " + artifact + " for " + war);
+                    return artifact;
+                }
+                LOGGER.warn("Replacing stored WAR file " + artifact + " that does not match its SHA-256 digest");
+                if (!artifact.delete()) {
+                    throw new PluginException("Unable to replace stored WAR file " + artifact + " that does not match its SHA-256 digest");
+                }
+            }
+
+            createDirectory(ownerDirectory);
+            File added = new File(ownerDirectory, digest + WAR_SUFFIX + ".tmp");
+            try {
+                // Copied rather than linked so that the stored WAR file is unaffected if the original is rewritten
+                String copiedDigest = copy(war, added);
+                if (!copiedDigest.equals(digest)) {
+                    throw new PluginException("WAR file " + war + " does not match its SHA-256 digest, " + digest);
+                }
+                filePermissionsChanger.changeFilePermissions(added);
+                fileOwnershipChanger.changeFileOwnership(added, owningUser, owningGroup);
+                Files.move(added.toPath(), artifact.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new PluginException("Unable to store WAR file " + war + ". Cause: " + e.getMessage(), e);
+            } finally {
+                added.delete();
+            }
+            LOGGER.info("Stored WAR file " + war + " as " + artifact);
+            return artifact;
+        }
+    }
+
+    /**
+     * @param artifact a stored WAR file
+     * @param instance identifies the instance, e.g. by its <code>catalina.base</code>
+     * @param name identifies the deployment within the instance, e.g. by its service, host and context path
+     * @return <code>true</code> if the WAR file last staged for the deployment has the stored WAR file's SHA-256 digest
+     * @throws PluginException if the staged WAR file cannot be read
+     */
+    public boolean isStaged(File artifact, String instance, String name) throws PluginException {
+        File staged = getStagedFile(instance, name);
+        if (!staged.isFile()) {
+            return false;
+        }
+        try {
+            // A link to the stored WAR file has its digest, as the stored WAR file is verified when it is returned
+            return Files.isSameFile(staged.toPath(), artifact.toPath()) || getSha256(staged).equals(getDigest(artifact));
+        } catch (IOException e) {
+            throw new PluginException("Unable to compare " + staged + " with " + artifact + ". Cause: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stages a stored WAR file for deployment to an instance, replacing the WAR file last staged for the deployment. The
+     * replaced WAR file is kept until the staging is {@link Staging#commit() committed}, so that it can be
+     * {@link Staging#rollback() restored} if the deployment fails.
+     *
+     * @param artifact a stored WAR file
+     * @param instance identifies the instance, e.g. by its <code>catalina.base</code>
+     * @param name identifies the deployment within the instance, e.g. by its service, host, context path and revision
+     * @return the staging, whose WAR file is a hard link to the stored WAR file where possible
+     * @throws PluginException if the WAR file cannot be staged
+     */
+    public Staging stage(File artifact, String instance, String name) throws PluginException {
+        File staged = getStagedFile(instance, name);
+        File previous = new File(staged.getPath() + PREVIOUS_SUFFIX);
+        synchronized (getMonitor(staged.getPath())) {
+            createDirectory(staged.getParentFile());
+            File linked = new File(staged.getPath() + ".tmp");
+            boolean replacing = staged.isFile();
+            try {
+                previous.delete();
+                if (replacing) {
+                    linkOrCopy(staged, previous);
+                }
+                linked.delete();
+                linkOrCopy(artifact, linked);
+                Files.move(linked.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                previous.delete();
+                throw new PluginException("Unable to stage WAR file " + artifact + " as " + staged + ". Cause: " + e.getMessage(), e);
+            } finally {
+                linked.delete();
+            }
+            return new Staging(staged, replacing ? previous : null);
+        }
+    }
+
+    /**
+     * Forgets the WAR file last staged for a deployment
+     *
+     * @param instance identifies the instance
+     * @param name identifies the deployment within the instance
+     */
+    public void unstage(String instance, String name) {
+        File staged = getStagedFile(instance, name);
+        synchronized (getMonitor(staged.getPath())) {
+            if (staged.exists() && !staged.delete()) {
+                LOGGER.warn("Unable to delete staged WAR file " + staged);
+            }
+        }
+    }
+
+    /**
+     * Removes a deployment, e.g. because its application has been undeployed, deleting the stored copies of its WAR file
+     * once no other deployment is staged with it
+     *
+     * @param instance identifies the instance
+     * @param name identifies the deployment within the instance
+     */
+    public void remove(String instance, String name) {
+        File staged = getStagedFile(instance, name);
+        String digest = null;
+        long length = 0;
+        synchronized (getMonitor(staged.getPath())) {
+            if (staged.isFile()) {
+                length = staged.length();
+                try {
+                    digest = getSha256(staged);
+                } catch (PluginException e) {
+                    LOGGER.warn("Unable to read staged WAR file " + staged + ": " + e.getMessage());
+                }
+            }
+            unstage(instance, name);
+        }
+        if (digest != null) {
+            removeUnstagedArtifacts(digest, length);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 digest of a WAR file. Digests are cached by the file's path, size and modification time, so a
+     * WAR file deployed to several instances is only read once.
+     *
+     * @param war the WAR file
+     * @return the hex encoded SHA-256 digest
+     * @throws PluginException if the WAR file cannot be read
+     */
+    public String getSha256(File war) throws PluginException {
+        String key = war.getAbsolutePath() + "|" + war.length() + "|" + war.lastModified();
+        synchronized (digests) {
+            String digest = digests.get(key);
+            if (digest != null) {
+                return digest;
+            }
+        }
+
+        String digest = copy(war, null);
+        synchronized (digests) {
+            digests.put(key, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Reads a file, computing its digest, and optionally copies it
+     *
+     * @return the hex encoded SHA-256 digest of the file
+     */
+    private static String copy(File source, File target) throws PluginException {
+        MessageDigest messageDigest = createDigest();
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            if (target != null) {
+                out = new FileOutputStream(target);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        } catch (IOException e) {
+            throw new PluginException("Unable to read WAR file " + source + ". Cause: " + e.getMessage(), e);
+        } finally {
+            close(in, source);
+            close(out, target);
+        }
+        return WarUploadStaging.toHex(messageDigest.digest());
+    }
+
+    private static void close(Closeable closeable, File file) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void removeUnstagedArtifacts(String digest, long length) {
+        synchronized (getMonitor(digest)) {
+            Long returned = lastReturned.get(digest);
+            if (returned != null && System.currentTimeMillis() - returned < removalGracePeriod) {
+                return;
+            }
+            File[] instanceDirectories = stagingDirectory.listFiles();
+            if (instanceDirectories != null) {
+                for (File instanceDirectory : instanceDirectories) {
+                    File[] stagedFiles = instanceDirectory.listFiles();
+                    if (stagedFiles == null) {
+                        continue;
+                    }
+                    for (File staged : stagedFiles) {
+                        if (isStagedWith(staged, digest, length)) {
+                            return;
+                        }
+                    }
+                }
+            }
+            File[] ownerDirectories = artifactsDirectory.listFiles();
+            if (ownerDirectories != null) {
+                for (File ownerDirectory : ownerDirectories) {
+                    File artifact = new File(ownerDirectory, digest + WAR_SUFFIX);
+                    if (artifact.isFile()) {
+                        if (artifact.delete()) {
+                            LOGGER.info("Removed stored WAR file " + artifact + " as no deployment is staged with it");
+                        } else {
+                            LOGGER.warn("Unable to delete stored WAR file " + artifact);
+                        }
+                    }
+                }
+            }
+            lastReturned.remove(digest);
+        }
+    }
+
+    /**
+     * Only the staged WAR files with the same length are read, so removal reads few if any WAR files
+     */
+    private boolean isStagedWith(File staged, String digest, long length) {
+        if (!staged.getName().endsWith(WAR_SUFFIX) || staged.length() != length) {
+            return false;
+        }
+        try {
+            return getSha256(staged).equals(digest);
+        } catch (PluginException e) {
+            // Kept rather than risk removing a WAR file that is staged
+            return true;
+        }
+    }
+
+    private static String getDigest(File artifact) {
+        String name = artifact.getName();
+        return name.substring(0, name.length() - WAR_SUFFIX.length());
+    }
+
+    private File getStagedFile(String instance, String name) {
+        return new File(new File(stagingDirectory, hash(instance)), hash(name) + WAR_SUFFIX);
+    }
+
+    private Object getMonitor(String key) {
+        return monitors[(key.hashCode() & Integer.MAX_VALUE) % MONITOR_COUNT];
+    }
+
+    private static void linkOrCopy(File source, File target) throws IOException {
+        Path targetPath = target.toPath();
+        try {
+            Files.createLink(targetPath, source.toPath());
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException e) {
+            // Different file systems, or hard links are not supported
+            LOGGER.debug("Unable to link " + target + " to " + source + ", copying it instead: " + e.getMessage());
+            Files.copy(source.toPath(), targetPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (UnsupportedOperationException e) {
+            Files.copy(source.toPath(), targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void createDirectory(File directory) throws PluginException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new PluginException("Unable to create the WAR store directory " + directory);
+        }
+    }
+
+    private static String sanitize(String name) {
+        return UNSAFE_CHARACTERS.matcher(name).replaceAll("_");
+    }
+
+    private static String hash(String value) {
+        try {
+            return WarUploadStaging.toHex(createDigest().digest(String.valueOf(value).getBytes("UTF-8"))).substring(0, 32);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * A WAR file that has been staged for a deployment, which is either committed once the deployment has succeeded or
+     * rolled back, restoring the WAR file that it replaced, if the deployment fails
+     * <p />
+     *
+     * <strong>Concurrent Semantics</strong><br />
+     *
+     * Thread-safe
+     *
+     */
+    public final class Staging {
+
+        private final File staged;
+
+        private final File previous;
+
+        private Staging(File staged, File previous) {
+            this.staged = staged;
+            this.previous = previous;
+        }
+
+        /**
+         * @return the staged WAR file
+         */
+        public File getFile() {
+            return staged;
+        }
+
+        /**
+         * Discards the WAR file that the staged WAR file replaced
+         */
+        public void commit() {
+            synchronized (getMonitor(staged.getPath())) {
+                if (previous != null && previous.exists() && !previous.delete()) {
+                    LOGGER.warn("Unable to delete replaced staged WAR file " + previous);
+                }
+            }
+        }
+
+        /**
+         * Restores the WAR file that the staged WAR file replaced or, if it replaced none, forgets the staged WAR file
+         */
+        public void rollback() {
+            synchronized (getMonitor(staged.getPath())) {
+                if (previous != null && previous.isFile()) {
+                    try {
+                        Files.move(previous.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) {
+                        LOGGER.warn("Unable to restore staged WAR file " + staged + " from " + previous + ": " + e.getMessage());
+                    }
+                } else if (staged.exists() && !staged.delete()) {
+                    LOGGER.warn("Unable to delete staged WAR file " + staged);
+                }
+            }
+        }
+    }
+}
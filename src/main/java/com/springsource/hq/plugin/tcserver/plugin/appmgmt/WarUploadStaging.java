@@ -0,0 +1,355 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A staging area on the agent's host into which WAR files are uploaded in chunks. Each chunk carries the SHA-256 digest
+ * of its content and is written at its offset in a partial file, so an interrupted upload can be resumed from the
+ * {@link #getOffset(String) offset} that has been reached. Once {@link #complete(String, String) completed}, and the
+ * digest of the whole file verified, the partial file is renamed to the staged WAR file that is deployed. As the rename
+ * is atomic, a partially uploaded WAR file is never deployed. Chunks and the whole file are read and written through a
+ * small buffer, so memory use does not depend on the size of the WAR file.
+ * <p />
+ *
+ * Uploads are scoped to the instance that they are deployed to, so instances that happen to use the same upload id do
+ * not share an upload. An upload is discarded once it has been deployed; an upload that is abandoned, partial or
+ * complete, is removed once it has not been written for {@link #MAX_UPLOAD_AGE} milliseconds.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class WarUploadStaging {
+
+    /**
+     * The largest chunk, in bytes, that can be uploaded
+     */
+    public static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The number of milliseconds after which an upload that has not been written is removed
+     */
+    public static final long MAX_UPLOAD_AGE = 24 * 60 * 60 * 1000;
+
+    private static final long CLEANUP_INTERVAL = 60 * 60 * 1000;
+
+    private static final Log LOGGER = LogFactory.getLog(WarUploadStaging.class);
+
+    private static final Pattern UPLOAD_ID = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]{0,127}");
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private static final String STAGED_SUFFIX = ".war";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MONITOR_COUNT = 16;
+
+    private static final WarUploadStaging INSTANCE = new WarUploadStaging(new File(System.getProperty("java.io.tmpdir"),
+        "tc-runtime-war-uploads"));
+
+    private final File directory;
+
+    private final long maxUploadAge;
+
+    private final Object[] monitors = new Object[MONITOR_COUNT];
+
+    private final AtomicLong lastCleanup = new AtomicLong();
+
+    WarUploadStaging(File directory) {
+        this(directory, MAX_UPLOAD_AGE);
+    }
+
+    WarUploadStaging(File directory, long maxUploadAge) {
+        this.directory = directory;
+        this.maxUploadAge = maxUploadAge;
+        for (int i = 0; i < MONITOR_COUNT; i++) {
+            this.monitors[i] = new Object();
+        }
+    }
+
+    public static WarUploadStaging getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the offset from which an upload is to be continued
+     *
+     * @param instance the instance that the upload is deployed to
+     * @param uploadId the id of the upload
+     * @return the number of bytes that have been uploaded, or the size of the staged file if the upload is complete
+     * @throws PluginException if the id is invalid
+     */
+    public long getOffset(String instance, String uploadId) throws PluginException {
+        File staged = getFile(instance, uploadId, STAGED_SUFFIX);
+        synchronized (getMonitor(staged)) {
+            return staged.isFile() ? staged.length() : getFile(instance, uploadId, PARTIAL_SUFFIX).length();
+        }
+    }
+
+    /**
+     * Writes a chunk of an upload. A chunk may be written again, e.g. when the response to an earlier attempt was lost,
+     * but may not start beyond the current offset.
+     *
+     * @param instance the instance that the upload is deployed to
+     * @param uploadId the id of the upload
+     * @param offset the offset in the WAR file at which the chunk starts
+     * @param chunk the content of the chunk
+     * @param chunkSha256 the hex encoded SHA-256 digest of the chunk's content
+     * @return the offset from which the upload is to be continued
+     * @throws PluginException if the chunk is too large, does not match its digest or cannot be written
+     */
+    public long writeChunk(String instance, String uploadId, long offset, byte[] chunk, String chunkSha256) throws PluginException {
+        if (chunk.length > MAX_CHUNK_SIZE) {
+            throw new PluginException("The chunk of " + chunk.length + " bytes is larger than the maximum of " + MAX_CHUNK_SIZE + " bytes");
+        }
+        if (chunkSha256 == null || !toHex(createDigest().digest(chunk)).equalsIgnoreCase(chunkSha256)) {
+            throw new PluginException("The chunk at offset " + offset + " of upload " + uploadId + " does not match its SHA-256 digest");
+        }
+
+        removeAbandonedUploadsPeriodically();
+
+        File partial = getFile(instance, uploadId, PARTIAL_SUFFIX);
+        synchronized (getMonitor(partial)) {
+            if (getFile(instance, uploadId, STAGED_SUFFIX).isFile()) {
+                throw new PluginException("Upload " + uploadId + " is already complete");
+            }
+            long length = partial.length();
+            if (offset < 0 || offset > length) {
+                throw new PluginException("The chunk at offset " + offset + " of upload " + uploadId + " does not continue from offset "
+                    + length);
+            }
+            File instanceDirectory = partial.getParentFile();
+            if (!instanceDirectory.isDirectory() && !instanceDirectory.mkdirs()) {
+                throw new PluginException("Unable to create the upload staging directory " + instanceDirectory);
+            }
+
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(partial, "rw");
+                FileChannel channel = file.getChannel();
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+                return channel.size();
+            } catch (IOException e) {
+                throw new PluginException("Unable to write the chunk at offset " + offset + " of upload " + uploadId + ". Cause: "
+                    + e.getMessage(), e);
+            } finally {
+                close(file);
+            }
+        }
+    }
+
+    /**
+     * Completes an upload, handing the WAR file off for deployment once its digest has been verified. If the digest does
+     * not match, the uploaded content is discarded and the upload has to be started again.
+     *
+     * @param instance the instance that the upload is deployed to
+     * @param uploadId the id of the upload
+     * @param sha256 the hex encoded SHA-256 digest of the whole WAR file
+     * @return the staged WAR file
+     * @throws PluginException if the WAR file does not match the digest or cannot be staged
+     */
+    public File complete(String instance, String uploadId, String sha256) throws PluginException {
+        File partial = getFile(instance, uploadId, PARTIAL_SUFFIX);
+        File staged = getFile(instance, uploadId, STAGED_SUFFIX);
+        synchronized (getMonitor(staged)) {
+            File uploaded = staged.isFile() ? staged : partial;
+            if (!uploaded.isFile()) {
+                throw new PluginException("Nothing has been uploaded for upload " + uploadId);
+            }
+
+            RandomAccessFile file = null;
+            String actualSha256;
+            try {
+                file = new RandomAccessFile(uploaded, "rw");
+                FileChannel channel = file.getChannel();
+                actualSha256 = digest(channel);
+                channel.force(true);
+            } catch (IOException e) {
+                throw new PluginException("Unable to verify upload " + uploadId + ". Cause: " + e.getMessage(), e);
+            } finally {
+                close(file);
+            }
+
+            if (!actualSha256.equalsIgnoreCase(sha256)) {
+                if (uploaded == partial && !partial.delete()) {
+                    LOGGER.warn("Unable to delete " + partial + " that does not match its SHA-256 digest");
+                }
+                throw new PluginException("Upload " + uploadId + " does not match its SHA-256 digest, " + sha256 + ", and must be started again");
+            }
+            if (uploaded == partial && !partial.renameTo(staged)) {
+                throw new PluginException("Unable to stage upload " + uploadId + " as " + staged);
+            }
+            // Restarts the upload's age, as it is now waiting to be deployed
+            staged.setLastModified(System.currentTimeMillis());
+            return staged;
+        }
+    }
+
+    /**
+     * @param instance the instance that the upload is deployed to
+     * @param uploadId the id of the upload
+     * @return the staged WAR file of the completed upload
+     * @throws PluginException if the upload is not complete
+     */
+    public File getStagedFile(String instance, String uploadId) throws PluginException {
+        File staged = getFile(instance, uploadId, STAGED_SUFFIX);
+        if (!staged.isFile()) {
+            throw new PluginException("Upload " + uploadId + " is not complete");
+        }
+        return staged;
+    }
+
+    /**
+     * Discards an upload, whether or not it is complete
+     *
+     * @param instance the instance that the upload is deployed to
+     * @param uploadId the id of the upload
+     * @throws PluginException if the id is invalid
+     */
+    public void discard(String instance, String uploadId) throws PluginException {
+        File partial = getFile(instance, uploadId, PARTIAL_SUFFIX);
+        File staged = getFile(instance, uploadId, STAGED_SUFFIX);
+        synchronized (getMonitor(staged)) {
+            for (File file : new File[] { partial, staged }) {
+                if (file.exists() && !file.delete()) {
+                    LOGGER.warn("Unable to delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the uploads, of every instance, that have not been written within the maximum upload age
+     */
+    void removeAbandonedUploads() {
+        long oldest = System.currentTimeMillis() - maxUploadAge;
+        File[] instanceDirectories = directory.listFiles();
+        if (instanceDirectories == null) {
+            return;
+        }
+        for (File instanceDirectory : instanceDirectories) {
+            File[] files = instanceDirectory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                synchronized (getMonitor(file)) {
+                    if (file.lastModified() < oldest && file.delete()) {
+                        LOGGER.info("Removed abandoned upload " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeAbandonedUploadsPeriodically() {
+        long now = System.currentTimeMillis();
+        long last = lastCleanup.get();
+        if (now - last >= CLEANUP_INTERVAL && lastCleanup.compareAndSet(last, now)) {
+            removeAbandonedUploads();
+        }
+    }
+
+    private File getFile(String instance, String uploadId, String suffix) throws PluginException {
+        if (uploadId == null || !UPLOAD_ID.matcher(uploadId).matches()) {
+            throw new PluginException("'" + uploadId + "' is not a valid upload id");
+        }
+        return new File(new File(directory, getInstanceDirectoryName(instance)), uploadId + suffix);
+    }
+
+    private static String getInstanceDirectoryName(String instance) {
+        try {
+            return toHex(createDigest().digest(String.valueOf(instance).getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * The partial and staged files of an upload differ only in their suffix, so both share the monitor of the upload
+     */
+    private Object getMonitor(File file) {
+        String name = file.getName();
+        int suffix = name.lastIndexOf('.');
+        String upload = file.getParent() + File.separator + (suffix < 0 ? name : name.substring(0, suffix));
+        return monitors[(upload.hashCode() & Integer.MAX_VALUE) % MONITOR_COUNT];
+    }
+
+    private static String digest(FileChannel channel) throws IOException {
+        MessageDigest digest = createDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) != -1) {
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
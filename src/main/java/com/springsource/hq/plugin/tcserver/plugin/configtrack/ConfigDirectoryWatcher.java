@@ -0,0 +1,432 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.configtrack;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.springsource.hq.plugin.tcserver.plugin.DaemonThreadFactory;
+
+/**
+ * Reports changes to the files of instances' {@link MonitoredFolder monitored folders} as they happen. The folders of
+ * all of the instances are watched by a single {@link WatchService} and a single daemon thread, so that a change costs
+ * an event rather than a walk of the folders' trees. Where the file system cannot be watched, e.g. because the watch
+ * limit has been reached, an instance's folders are instead polled, as they would be by HQ's file change tracking.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class ConfigDirectoryWatcher {
+
+    /**
+     * The kind of a change to a file
+     */
+    public enum Change {
+        CREATED, MODIFIED, DELETED
+    }
+
+    /**
+     * Notified of the changes to the files of a registration's folders, on the watcher's thread
+     */
+    public interface Listener {
+
+        /**
+         * @param file the file that has changed
+         * @param change the kind of change
+         */
+        void changed(File file, Change change);
+    }
+
+    static final long POLL_PERIOD = 60000;
+
+    private static final ConfigDirectoryWatcher INSTANCE = new ConfigDirectoryWatcher(true, POLL_PERIOD);
+
+    private final Log logger = LogFactory.getLog(ConfigDirectoryWatcher.class);
+
+    private final Object monitor = new Object();
+
+    private final boolean useWatchService;
+
+    private final long pollPeriod;
+
+    private final ConcurrentMap<WatchKey, List<WatchedDirectory>> watchedDirectories = new ConcurrentHashMap<WatchKey, List<WatchedDirectory>>();
+
+    private final Set<Registration> polledRegistrations = new CopyOnWriteArraySet<Registration>();
+
+    private volatile WatchService watchService;
+
+    private boolean started;
+
+    ConfigDirectoryWatcher(boolean useWatchService, long pollPeriod) {
+        this.useWatchService = useWatchService;
+        this.pollPeriod = pollPeriod;
+    }
+
+    public static ConfigDirectoryWatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts reporting the changes to the files of an instance's folders. Folders that do not exist are ignored.
+     *
+     * @param root the instance's installation
+     * @param folders the instance's monitored folders
+     * @param listener notified of the changes
+     * @return the registration, to be {@link Registration#cancel() cancelled} when the changes are no longer of interest
+     */
+    public Registration watch(File root, List<MonitoredFolder> folders, Listener listener) {
+        Registration registration = new Registration(root, folders, listener);
+        synchronized (monitor) {
+            start();
+            if (watchService != null) {
+                try {
+                    for (MonitoredFolder folder : folders) {
+                        registration.register(folder, folder.getDirectory(root));
+                    }
+                    return registration;
+                } catch (IOException e) {
+                    logger.warn("Unable to watch " + root + " for changes, its folders will be polled every " + pollPeriod + "ms: "
+                        + e.getMessage());
+                    registration.cancelWatches();
+                }
+            }
+            registration.snapshot = scan(registration);
+            polledRegistrations.add(registration);
+            return registration;
+        }
+    }
+
+    private void start() {
+        if (!started) {
+            if (useWatchService) {
+                try {
+                    watchService = FileSystems.getDefault().newWatchService();
+                } catch (IOException e) {
+                    logger.warn("Unable to create a watch service, monitored folders will be polled: " + e.getMessage());
+                } catch (UnsupportedOperationException e) {
+                    logger.warn("The file system cannot be watched, monitored folders will be polled");
+                }
+            }
+            new DaemonThreadFactory("tc Runtime config watcher").newThread(new Runnable() {
+
+                public void run() {
+                    processChanges();
+                }
+            }).start();
+            started = true;
+        }
+    }
+
+    private void processChanges() {
+        long nextPoll = System.currentTimeMillis() + pollPeriod;
+        while (true) {
+            try {
+                long wait = Math.max(nextPoll - System.currentTimeMillis(), 1);
+                if (watchService == null) {
+                    Thread.sleep(wait);
+                } else {
+                    WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        processEvents(key);
+                    }
+                }
+                if (System.currentTimeMillis() >= nextPoll) {
+                    for (Registration registration : polledRegistrations) {
+                        registration.poll();
+                    }
+                    nextPoll = System.currentTimeMillis() + pollPeriod;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Failed to process changes to monitored folders: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        List<WatchEvent<?>> events = key.pollEvents();
+        List<WatchedDirectory> directories = watchedDirectories.get(key);
+        if (directories != null) {
+            for (WatchedDirectory directory : directories) {
+                directory.process(events);
+            }
+        }
+        if (!key.reset()) {
+            synchronized (monitor) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private static Map<File, FileState> scan(Registration registration) {
+        Map<File, FileState> states = new HashMap<File, FileState>();
+        for (MonitoredFolder folder : registration.folders) {
+            scan(folder, folder.getDirectory(registration.root), states);
+        }
+        return states;
+    }
+
+    private static void scan(MonitoredFolder folder, File directory, Map<File, FileState> states) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    if (folder.isRecursive()) {
+                        scan(folder, file, states);
+                    }
+                } else if (folder.matches(file.getName())) {
+                    states.put(file, new FileState(file));
+                }
+            }
+        }
+    }
+
+    private void report(Listener listener, Map<File, Change> changes) {
+        for (Map.Entry<File, Change> change : changes.entrySet()) {
+            try {
+                listener.changed(change.getKey(), change.getValue());
+            } catch (RuntimeException e) {
+                logger.warn("Failed to report the change to " + change.getKey() + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * The folders of an instance whose changes are being reported
+     */
+    public final class Registration {
+
+        private final File root;
+
+        private final List<MonitoredFolder> folders;
+
+        private final Listener listener;
+
+        private final List<WatchKey> keys = new ArrayList<WatchKey>();
+
+        private volatile boolean cancelled;
+
+        private Map<File, FileState> snapshot;
+
+        private Registration(File root, List<MonitoredFolder> folders, Listener listener) {
+            this.root = root;
+            this.folders = folders;
+            this.listener = listener;
+        }
+
+        /**
+         * @return <code>true</code> if the folders are polled because they cannot be watched
+         */
+        public boolean isPolled() {
+            return polledRegistrations.contains(this);
+        }
+
+        /**
+         * Stops reporting changes
+         */
+        public void cancel() {
+            synchronized (monitor) {
+                cancelled = true;
+                cancelWatches();
+                polledRegistrations.remove(this);
+            }
+        }
+
+        private void register(MonitoredFolder folder, File directory) throws IOException {
+            if (cancelled || !directory.isDirectory()) {
+                return;
+            }
+            WatchKey key = directory.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            List<WatchedDirectory> directories = watchedDirectories.get(key);
+            if (directories == null) {
+                directories = new CopyOnWriteArrayList<WatchedDirectory>();
+                watchedDirectories.put(key, directories);
+            }
+            directories.add(new WatchedDirectory(this, folder, directory));
+            keys.add(key);
+
+            if (folder.isRecursive()) {
+                File[] children = directory.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        if (child.isDirectory()) {
+                            register(folder, child);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void cancelWatches() {
+            for (WatchKey key : keys) {
+                List<WatchedDirectory> directories = watchedDirectories.get(key);
+                if (directories != null) {
+                    for (WatchedDirectory directory : directories) {
+                        if (directory.registration == this) {
+                            directories.remove(directory);
+                        }
+                    }
+                    if (directories.isEmpty()) {
+                        watchedDirectories.remove(key);
+                        key.cancel();
+                    }
+                }
+            }
+            keys.clear();
+        }
+
+        private void poll() {
+            Map<File, FileState> current = scan(this);
+            Map<File, Change> changes = new LinkedHashMap<File, Change>();
+            for (Map.Entry<File, FileState> state : current.entrySet()) {
+                FileState previous = snapshot.get(state.getKey());
+                if (previous == null) {
+                    changes.put(state.getKey(), Change.CREATED);
+                } else if (!previous.equals(state.getValue())) {
+                    changes.put(state.getKey(), Change.MODIFIED);
+                }
+            }
+            for (File file : snapshot.keySet()) {
+                if (!current.containsKey(file)) {
+                    changes.put(file, Change.DELETED);
+                }
+            }
+            snapshot = current;
+            if (!cancelled) {
+                report(listener, changes);
+            }
+        }
+    }
+
+    private final class WatchedDirectory {
+
+        private final Registration registration;
+
+        private final MonitoredFolder folder;
+
+        private final File directory;
+
+        private WatchedDirectory(Registration registration, MonitoredFolder folder, File directory) {
+            this.registration = registration;
+            this.folder = folder;
+            this.directory = directory;
+        }
+
+        private void process(List<WatchEvent<?>> events) {
+            Map<File, Change> changes = new LinkedHashMap<File, Change>();
+            for (WatchEvent<?> event : events) {
+                if (event.kind() == OVERFLOW) {
+                    logger.debug("Changes to " + directory + " have been lost");
+                    continue;
+                }
+                File file = new File(directory, ((Path) event.context()).toString());
+                if (file.isDirectory()) {
+                    if (event.kind() == ENTRY_CREATE && folder.isRecursive()) {
+                        watchCreatedDirectory(file, changes);
+                    }
+                } else if (folder.matches(file.getName())) {
+                    Change change = event.kind() == ENTRY_CREATE ? Change.CREATED : event.kind() == ENTRY_DELETE ? Change.DELETED
+                        : Change.MODIFIED;
+                    if (!(change == Change.MODIFIED && changes.get(file) == Change.CREATED)) {
+                        changes.put(file, change);
+                    }
+                }
+            }
+            if (!registration.cancelled) {
+                report(registration.listener, changes);
+            }
+        }
+
+        /**
+         * Watches a directory that has been created in a recursively monitored folder. Its files may have been created
+         * before it could be watched, so those that are monitored are reported as created.
+         */
+        private void watchCreatedDirectory(File createdDirectory, Map<File, Change> changes) {
+            synchronized (monitor) {
+                try {
+                    registration.register(folder, createdDirectory);
+                } catch (IOException e) {
+                    logger.warn("Unable to watch " + createdDirectory + " for changes: " + e.getMessage());
+                }
+            }
+            Map<File, FileState> states = new HashMap<File, FileState>();
+            scan(folder, createdDirectory, states);
+            for (File file : states.keySet()) {
+                changes.put(file, Change.CREATED);
+            }
+        }
+    }
+
+    private static final class FileState {
+
+        private final long lastModified;
+
+        private final long length;
+
+        private FileState(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileState)) {
+                return false;
+            }
+            FileState other = (FileState) obj;
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lastModified ^ length);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.configtrack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * A folder, relative to an instance's installation, whose files are tracked for changes, as declared by a
+ * <code>&lt;folder&gt;</code> element of a config track plugin's <code>&lt;monitored&gt;</code> definitions.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class MonitoredFolder {
+
+    private final String path;
+
+    private final boolean recursive;
+
+    private final Pattern filter;
+
+    public MonitoredFolder(String path, boolean recursive, Pattern filter) {
+        this.path = path;
+        this.recursive = recursive;
+        this.filter = filter;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * @param root the instance's installation
+     * @return the folder's directory
+     */
+    public File getDirectory(File root) {
+        return new File(root, path);
+    }
+
+    /**
+     * @param fileName the name of a file in the folder
+     * @return <code>true</code> if changes to the file are tracked
+     */
+    public boolean matches(String fileName) {
+        return filter == null || filter.matcher(fileName).matches();
+    }
+
+    /**
+     * Reads the folders that are monitored by the config track plugins of the given class
+     *
+     * @param pluginXml the plugin descriptor
+     * @param pluginClass the name of the config track plugin class
+     * @return the folders, in the order that they are declared
+     * @throws IOException if the descriptor cannot be read or parsed
+     */
+    public static List<MonitoredFolder> parse(InputStream pluginXml, String pluginClass) throws IOException {
+        Document document;
+        try {
+            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            // The descriptor's entities, e.g. the PDK's process metrics, are only resolvable inside the agent
+            builder.setEntityResolver(new EntityResolver() {
+
+                public InputSource resolveEntity(String publicId, String systemId) {
+                    return new InputSource(new StringReader(""));
+                }
+            });
+            document = builder.parse(pluginXml);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to create a parser for the plugin descriptor: " + e.getMessage());
+        } catch (SAXException e) {
+            throw new IOException("Unable to parse the plugin descriptor: " + e.getMessage());
+        }
+
+        List<MonitoredFolder> folders = new ArrayList<MonitoredFolder>();
+        NodeList plugins = document.getElementsByTagName("plugin");
+        for (int i = 0; i < plugins.getLength(); i++) {
+            Element plugin = (Element) plugins.item(i);
+            if (pluginClass.equals(plugin.getAttribute("class"))) {
+                NodeList folderElements = plugin.getElementsByTagName("folder");
+                for (int j = 0; j < folderElements.getLength(); j++) {
+                    Element folder = (Element) folderElements.item(j);
+                    String filter = folder.getAttribute("filter").trim();
+                    folders.add(new MonitoredFolder(folder.getAttribute("path"), Boolean.valueOf(folder.getAttribute("recursive")),
+                        filter.length() == 0 ? null : Pattern.compile(filter)));
+                }
+            }
+        }
+        return Collections.unmodifiableList(folders);
+    }
+
+    @Override
+    public String toString() {
+        return path + (recursive ? "/**" : "") + (filter == null ? "" : " " + filter);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.discovery;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * Caches the facts that discovery derives from an instance's files, such as its JMX URL from <code>server.xml</code>,
+ * so that an unchanged instance costs a few <code>stat</code> calls per scan rather than the parsing of its files.
+ * <p />
+ *
+ * Each fact is cached with the modification times and sizes of the files from which it was derived, and is derived
+ * again when any of them has changed, or has been created or deleted. As a fact may also depend on files that are not
+ * checked, such as those found by a recursive search, every fact is derived again at least once every
+ * {@link #MAX_AGE}. A fact whose derivation fails is not cached.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class DiscoveryCache {
+
+    /**
+     * The maximum length of time, in milliseconds, for which a fact is cached
+     */
+    static final long MAX_AGE = 60 * 60 * 1000;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Returns the cached fact if the files from which it was derived are unchanged, otherwise derives it
+     *
+     * @param key identifies the instance and the fact, e.g. <code>/opt/tcserver/instance-1|jmx.url</code>
+     * @param files the files from which the fact is derived
+     * @param loader derives the fact
+     * @return the fact, which may be <code>null</code>
+     * @throws PluginException if the fact cannot be derived
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String key, File[] files, Loader<T> loader) throws PluginException {
+        long[] fingerprint = fingerprint(files);
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.created < MAX_AGE && Arrays.equals(entry.fingerprint, fingerprint)) {
+            return (T) entry.value;
+        }
+
+        T value = loader.load();
+        entries.put(key, new Entry(fingerprint, value, now));
+        return value;
+    }
+
+    private static long[] fingerprint(File[] files) {
+        long[] fingerprint = new long[files.length * 2];
+        for (int i = 0; i < files.length; i++) {
+            // lastModified and length are 0 for a file that does not exist
+            fingerprint[i * 2] = files[i].lastModified();
+            fingerprint[i * 2 + 1] = files[i].isDirectory() ? -1 : files[i].length();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Derives a fact from an instance's files
+     */
+    interface Loader<T> {
+
+        T load() throws PluginException;
+    }
+
+    private static final class Entry {
+
+        private final long[] fingerprint;
+
+        private final Object value;
+
+        private final long created;
+
+        private Entry(long[] fingerprint, Object value, long created) {
+            this.fingerprint = fingerprint;
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.discovery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The time spent in each phase of a discovery scan, summed across the processes that are examined concurrently, so
+ * that it can be seen where a scan's time goes.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class DiscoveryTimings {
+
+    /**
+     * The phases of a scan
+     */
+    enum Phase {
+
+        /**
+         * Listing the candidate processes
+         */
+        PROCESS_LIST("process list"),
+
+        /**
+         * Deciding whether a process is a tc Runtime instance of the detector's version
+         */
+        FILTER("filter"),
+
+        /**
+         * Reading the instance's JMX configuration from its files
+         */
+        JMX_CONFIG("jmx config"),
+
+        /**
+         * Waiting for another detector to finish with the calls that cannot be made concurrently
+         */
+        PLATFORM_WAIT("platform wait"),
+
+        /**
+         * Looking up the user and group that run the instance
+         */
+        CREDENTIALS("credentials"),
+
+        /**
+         * Finding the ports on which the instance listens
+         */
+        LISTENING_PORTS("listening ports"),
+
+        /**
+         * HQ's discovery of the server's configuration
+         */
+        SERVER_CONFIG("server config"),
+
+        /**
+         * Finding the instance's control program
+         */
+        CONTROL_PROGRAM("control program");
+
+        private final String description;
+
+        private Phase(String description) {
+            this.description = description;
+        }
+    }
+
+    private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * Records the time spent in a phase
+     *
+     * @param phase the phase
+     * @param startNanos the value of {@link System#nanoTime()} when the phase started
+     * @return the value of {@link System#nanoTime()} when the phase ended, i.e. when the next phase starts
+     */
+    long record(Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        nanos.addAndGet(phase.ordinal(), now - startNanos);
+        return now;
+    }
+
+    /**
+     * @param phase the phase
+     * @return the total time spent in the phase, in milliseconds
+     */
+    long getMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos.get(phase.ordinal()));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            builder.append(builder.length() == 0 ? "" : ", ").append(phase.description).append(" ").append(getMillis(phase)).append("ms");
+        }
+        return builder.toString();
+    }
+}
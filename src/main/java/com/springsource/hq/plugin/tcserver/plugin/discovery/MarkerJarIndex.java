@@ -0,0 +1,151 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.discovery;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * An index of the marker jars, such as <code>lib/tomcat-util.jar</code> or HQ's own <code>hq-common</code> jar, that
+ * identify the type and version of a tc Runtime installation or instance. The index of a directory is built by a single,
+ * depth-bounded probe, shared by all of the detectors, and is {@link DiscoveryCache cached} until the directory, or its
+ * <code>lib</code> or <code>webapps</code> directories, change.
+ * <p />
+ *
+ * The probe does not descend into the <code>logs</code>, <code>work</code> and <code>temp</code> directories, which
+ * can be very large, nor beyond the depth at which the marker jars are found. Of <code>webapps</code>, only each
+ * application's <code>WEB-INF/lib</code> is probed, as that is where HQ's server keeps <code>hq-common</code>.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class MarkerJarIndex {
+
+    static final int MAX_DEPTH = 3;
+
+    private static final Pattern MARKER_JAR = Pattern.compile("tomcat-util\\.jar|tomcat-websocket\\.jar|jaspic-api\\.jar|tcServer3\\.jar"
+        + "|hq-common.*\\.jar");
+
+    private static final Set<String> PRUNED_DIRECTORIES = new HashSet<String>(Arrays.asList("logs", "work", "temp"));
+
+    private static final String WEBAPPS = "webapps";
+
+    private static final String WEB_INF_LIB = "WEB-INF" + File.separator + "lib";
+
+    private static final MarkerJarIndex INSTANCE = new MarkerJarIndex();
+
+    private final DiscoveryCache cache = new DiscoveryCache();
+
+    /**
+     * @return the index shared by the detectors
+     */
+    static MarkerJarIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param directory the installation or instance directory, i.e. catalina.home or catalina.base
+     * @param relativePath the path of a marker jar, relative to the directory, using <code>/</code> as the separator,
+     *        e.g. <code>lib/tomcat-util.jar</code>
+     * @return <code>true</code> if the directory contains the marker jar
+     * @throws PluginException if the directory cannot be probed
+     */
+    boolean contains(String directory, String relativePath) throws PluginException {
+        return getMarkers(directory).contains(relativePath);
+    }
+
+    /**
+     * @param directory the installation or instance directory
+     * @param fileName matches the name of a marker jar
+     * @return <code>true</code> if the directory contains a marker jar whose name matches
+     * @throws PluginException if the directory cannot be probed
+     */
+    boolean containsMatching(String directory, Pattern fileName) throws PluginException {
+        for (String marker : getMarkers(directory)) {
+            if (fileName.matcher(marker.substring(marker.lastIndexOf('/') + 1)).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the paths of the directory's marker jars, relative to the directory
+     */
+    Set<String> getMarkers(String directory) throws PluginException {
+        if (directory == null) {
+            return Collections.emptySet();
+        }
+        final File root = new File(directory);
+        File[] watched = new File[] { root, new File(root, "lib"), new File(root, WEBAPPS) };
+        return cache.get(directory, watched, new DiscoveryCache.Loader<Set<String>>() {
+
+            public Set<String> load() {
+                Set<String> markers = new HashSet<String>();
+                probe(root, "", 0, markers);
+                return Collections.unmodifiableSet(markers);
+            }
+        });
+    }
+
+    private static void probe(File directory, String relativePath, int depth, Set<String> markers) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String path = relativePath + file.getName();
+            if (file.isDirectory()) {
+                if (WEBAPPS.equals(file.getName())) {
+                    probeWebapps(file, path + "/", markers);
+                } else if (depth < MAX_DEPTH && !PRUNED_DIRECTORIES.contains(file.getName())) {
+                    probe(file, path + "/", depth + 1, markers);
+                }
+            } else if (MARKER_JAR.matcher(file.getName()).matches()) {
+                markers.add(path);
+            }
+        }
+    }
+
+    private static void probeWebapps(File webapps, String relativePath, Set<String> markers) {
+        File[] applications = webapps.listFiles();
+        if (applications == null) {
+            return;
+        }
+        for (File application : applications) {
+            String[] jars = new File(application, WEB_INF_LIB).list();
+            if (jars != null) {
+                for (String jar : jars) {
+                    if (MARKER_JAR.matcher(jar).matches()) {
+                        markers.add(relativePath + application.getName() + "/WEB-INF/lib/" + jar);
+                    }
+                }
+            }
+        }
+    }
+}
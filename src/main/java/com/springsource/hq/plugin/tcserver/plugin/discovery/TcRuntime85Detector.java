@@ -18,17 +18,16 @@
 
 package com.springsource.hq.plugin.tcserver.plugin.discovery;
 
-import java.io.File;
+import org.hyperic.hq.product.PluginException;
 
 public final class TcRuntime85Detector extends TcRuntimeDetector {
 
     @Override
-    protected boolean isTcRuntimeInstance(String catalinaHome, String catalinaBase) {
+    protected boolean isTcRuntimeInstance(String catalinaHome, String catalinaBase) throws PluginException {
         return super.isTcRuntimeInstance(catalinaHome, catalinaBase) && (isMyTomcatVersion(catalinaHome, catalinaBase));
     }
 
-    protected boolean isMyTomcatVersion(String catalinaHome, String catalinaBase) {
-        boolean tomcat85 = new File(catalinaHome, TOMCAT_85_SPECIFIC_JAR).exists();
-        return tomcat85;
+    protected boolean isMyTomcatVersion(String catalinaHome, String catalinaBase) throws PluginException {
+        return containsMarkerJar(catalinaHome, TOMCAT_85_SPECIFIC_JAR);
     }
 }
@@ -29,6 +29,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.management.MBeanServerConnection;
@@ -43,6 +49,7 @@ import org.hyperic.hq.product.ServerControlPlugin;
 import org.hyperic.hq.product.ServerResource;
 import org.hyperic.hq.product.ServiceResource;
 import org.hyperic.hq.product.jmx.MxServerDetector;
+import org.hyperic.hq.product.jmx.MxUtil;
 import org.hyperic.sigar.ProcCred;
 import org.hyperic.sigar.ProcCredName;
 import org.hyperic.sigar.SigarException;
@@ -52,10 +59,12 @@ import org.hyperic.util.config.ConfigSchema;
 import org.hyperic.util.config.InvalidOptionException;
 import org.hyperic.util.config.InvalidOptionValueException;
 
+import com.springsource.hq.plugin.tcserver.plugin.DaemonThreadFactory;
 import com.springsource.hq.plugin.tcserver.plugin.Utils;
 import com.springsource.hq.plugin.tcserver.plugin.serverconfig.ServerXmlPropertiesRetriever;
 import com.springsource.hq.plugin.tcserver.plugin.serverconfig.XmlPropertiesFileRetriever;
 import com.springsource.hq.plugin.tcserver.plugin.wrapper.JmxUtils;
+import com.springsource.hq.plugin.tcserver.plugin.wrapper.LocalAttachConnectorFactory;
 import com.springsource.hq.plugin.tcserver.plugin.wrapper.MxUtilJmxUtils;
 
 public abstract class TcRuntimeDetector extends MxServerDetector {
@@ -66,6 +75,10 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
 
     private static final String RELATIVE_PATH_CONF_CATALINA_PROPERTIES = "/conf/catalina.properties";
 
+    private static final String RELATIVE_PATH_CONF_SERVER_XML = "/conf/server.xml";
+
+    private static final String RELATIVE_PATH_CONF_JMX_PASSWORD = "/conf/jmxremote.password";
+
     private static final String CATALINA_BASE_PROP = "-Dcatalina.base=";
 
     private static final String CATALINA_HOME_PROP = "-Dcatalina.home=";
@@ -94,6 +107,24 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
 
     protected static final String TOMCAT_85_SPECIFIC_JAR = "lib/jaspic-api.jar";
 
+    private static final String COLLECTOR_HEALTH_SERVICE = "Plugin Collector Health";
+
+    private static final Pattern HQ_COMMON_JAR = Pattern.compile("hq-common.*\\.jar");
+
+    private static final int DISCOVERY_THREADS = 4;
+
+    private static final long DISCOVERY_THREAD_KEEP_ALIVE = 60000;
+
+    private static final ThreadPoolExecutor DISCOVERY_EXECUTOR = createDiscoveryExecutor();
+
+    /**
+     * Sigar, and the agent's handling of plugin class paths, are not thread-safe, so the calls that use them are serialized
+     * across all of the detectors. HQ's discovery of the server's configuration is among them as the PDK does not say what
+     * it uses. The rest of discovery runs concurrently, which limits the speed-up of a concurrent scan to that part: the
+     * time spent waiting for this monitor is recorded as {@link DiscoveryTimings.Phase#PLATFORM_WAIT}.
+     */
+    private static final Object PLATFORM_MONITOR = new Object();
+
     private static final String DEFAULT_JMX_URL = "service:jmx:rmi:///jndi/rmi://127.0.0.1:6969/jmxrmi";
 
     private final Log logger = LogFactory.getLog(TcRuntimeDetector.class);
@@ -102,8 +133,10 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
 
     private final ControlScriptParser controlScriptParser = new ControlScriptParser();
 
+    private final DiscoveryCache discoveryCache = new DiscoveryCache();
+
     protected void setProductConfig(ServerResource server, ConfigResponse config, long pid) {
-        DetectionUtil.populateListeningPorts(pid, config, true);
+        config.setValue(LocalAttachConnectorFactory.PROP_PROCESS_PID, String.valueOf(pid));
         super.setProductConfig(server, config);
     }
 
@@ -115,20 +148,19 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
      * @return Whether the configuration was found and set on the config response object.
      * @throws PluginException
      */
-    private boolean configureListenerMxURL(ConfigResponse config, String basePath) throws PluginException {
+    private boolean configureListenerMxURL(ConfigResponse config, final String basePath) throws PluginException {
         boolean found = false;
-        XmlPropertiesFileRetriever propertiesRetriever = new ServerXmlPropertiesRetriever();
         try {
-            Map<String, String> listenerProperties = propertiesRetriever.getPropertiesFromFile(basePath + "/conf/server.xml", "Listener",
-                "className", "com.springsource.tcserver.serviceability.rmi.JmxSocketListener");
-            if (!listenerProperties.isEmpty()) {
-                String addressProperty = listenerProperties.get("address");
-                if (addressProperty == null) {
-                    addressProperty = listenerProperties.get("bind");
-                }
-                String bindAddressValue = getValueFromPropertiesFile(basePath, addressProperty);
-                String portValue = getValueFromPropertiesFile(basePath, listenerProperties.get("port"));
-                config.setValue(mxUtil.getJmxUrlProperty(), "service:jmx:rmi:///jndi/rmi://" + bindAddressValue + ":" + portValue + "/jmxrmi");
+            String listenerMxURL = discoveryCache.get(basePath + "|" + mxUtil.getJmxUrlProperty(), new File[] {
+                new File(basePath, RELATIVE_PATH_CONF_SERVER_XML), new File(basePath, RELATIVE_PATH_CONF_CATALINA_PROPERTIES) },
+                new DiscoveryCache.Loader<String>() {
+
+                    public String load() throws PluginException {
+                        return readListenerMxURL(basePath);
+                    }
+                });
+            if (listenerMxURL != null) {
+                config.setValue(mxUtil.getJmxUrlProperty(), listenerMxURL);
                 found = true;
             }
         } catch (PluginException e) {
@@ -142,6 +174,25 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         return found;
     }
 
+    /**
+     * @return the JMX URL of the instance's JmxSocketListener, or <code>null</code> if it has none
+     */
+    private String readListenerMxURL(String basePath) throws PluginException {
+        XmlPropertiesFileRetriever propertiesRetriever = new ServerXmlPropertiesRetriever();
+        Map<String, String> listenerProperties = propertiesRetriever.getPropertiesFromFile(basePath + RELATIVE_PATH_CONF_SERVER_XML,
+            "Listener", "className", "com.springsource.tcserver.serviceability.rmi.JmxSocketListener");
+        if (listenerProperties.isEmpty()) {
+            return null;
+        }
+        String addressProperty = listenerProperties.get("address");
+        if (addressProperty == null) {
+            addressProperty = listenerProperties.get("bind");
+        }
+        String bindAddressValue = getValueFromPropertiesFile(basePath, addressProperty);
+        String portValue = getValueFromPropertiesFile(basePath, listenerProperties.get("port"));
+        return "service:jmx:rmi:///jndi/rmi://" + bindAddressValue + ":" + portValue + "/jmxrmi";
+    }
+
     @Override
     protected final List<ServiceResource> discoverMxServices(MBeanServerConnection server, ConfigResponse serverConfig) throws PluginException {
         @SuppressWarnings("unchecked")
@@ -149,10 +200,23 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         for (ServiceResource service : services) {
             enableLogAndConfigTrackPlugins(service);
         }
+        services.add(createCollectorHealthService());
 
         return services;
     }
 
+    /**
+     * Creates the service that reports the cost of the plugin's own work for the instance. It has no MBean; its metrics
+     * are served from the plugin's statistics using the server's configuration.
+     */
+    private ServiceResource createCollectorHealthService() {
+        ServiceResource service = createServiceResource(COLLECTOR_HEALTH_SERVICE);
+        service.setServiceName(COLLECTOR_HEALTH_SERVICE);
+        service.setProductConfig();
+        service.setMeasurementConfig();
+        return service;
+    }
+
     /**
      * Automatically enables log or config track plugins for services if DEFAULT_LOG_TRACK_ENABLE or
      * DEFAULT_CONFIG_TRACK_ENABLE properties are found
@@ -208,34 +272,104 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
      * which is specified by catalina.base. This is necessary for tc Server, where there may be multiple tc Runtime
      * instances with different catalina.base values sharing the libraries that are used to determine version. The
      * location of those VERSION_FILES needs to be resolved relative to catalina.home. Also overridden to set the
-     * control config automatically, so control ops can be executed with default config values
+     * control config automatically, so control ops can be executed with default config values. The processes are
+     * examined concurrently on a small, shared pool, and the time spent in each phase of the scan is logged at debug
+     * level.
      */
     public final List<ServerResource> getServerResources(ConfigResponse platformConfig) throws PluginException {
         setPlatformConfig(platformConfig);
 
-        List<ServerResource> servers = new ArrayList<ServerResource>();
+        final DiscoveryTimings timings = new DiscoveryTimings();
+        long scanStart = System.nanoTime();
+
         @SuppressWarnings("rawtypes")
         List procs = getServerProcessList();
+        timings.record(DiscoveryTimings.Phase.PROCESS_LIST, scanStart);
 
+        // Each process is examined on the discovery pool, but the resources are collected in process list order so that
+        // the result does not depend on which examination finishes first
+        List<FutureTask<ServerResource>> discoveries = new ArrayList<FutureTask<ServerResource>>(procs.size());
         for (int i = 0; i < procs.size(); i++) {
-            MxProcess process = (MxProcess) procs.get(i);
+            final MxProcess process = (MxProcess) procs.get(i);
+            FutureTask<ServerResource> discovery = new FutureTask<ServerResource>(new Callable<ServerResource>() {
 
-            String[] processArgs = process.getArgs();
-
-            String catalinaBase = getCatalinaBase(processArgs);
-            String catalinaHome = getCatalinaHome(processArgs);
+                public ServerResource call() throws PluginException {
+                    return discoverServerResource(process, timings);
+                }
+            });
+            discoveries.add(discovery);
+            if (procs.size() == 1) {
+                discovery.run();
+            } else {
+                DISCOVERY_EXECUTOR.execute(discovery);
+            }
+        }
 
-            if (!isHqTcRuntime(catalinaBase) && isTcRuntimeInstance(catalinaHome, catalinaBase)) {
-                ServerResource serverResource = createTcRuntimeServerResource(catalinaHome, catalinaBase, processArgs, process);
+        List<ServerResource> servers = new ArrayList<ServerResource>();
+        try {
+            for (FutureTask<ServerResource> discovery : discoveries) {
+                ServerResource serverResource = getDiscoveredServerResource(discovery);
                 if (serverResource != null) {
                     servers.add(serverResource);
                 }
             }
+        } finally {
+            for (FutureTask<ServerResource> discovery : discoveries) {
+                discovery.cancel(true);
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Discovered " + servers.size() + " tc Runtime instances from " + procs.size() + " processes in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scanStart) + "ms (" + timings + ")");
         }
 
         return servers;
     }
 
+    private ServerResource discoverServerResource(MxProcess process, DiscoveryTimings timings) throws PluginException {
+        long start = System.nanoTime();
+
+        String[] processArgs = process.getArgs();
+
+        String catalinaBase = getCatalinaBase(processArgs);
+        String catalinaHome = getCatalinaHome(processArgs);
+
+        boolean tcRuntimeInstance = !isHqTcRuntime(catalinaBase) && isTcRuntimeInstance(catalinaHome, catalinaBase);
+        start = timings.record(DiscoveryTimings.Phase.FILTER, start);
+
+        if (tcRuntimeInstance) {
+            return createTcRuntimeServerResource(catalinaHome, catalinaBase, processArgs, process, timings, start);
+        }
+        return null;
+    }
+
+    private ServerResource getDiscoveredServerResource(FutureTask<ServerResource> discovery) throws PluginException {
+        try {
+            return discovery.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PluginException("Interrupted while discovering tc Runtime instances", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PluginException) {
+                throw (PluginException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PluginException("Error discovering tc Runtime instances: " + cause, cause);
+        }
+    }
+
+    private static ThreadPoolExecutor createDiscoveryExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DISCOVERY_THREADS, DISCOVERY_THREADS, DISCOVERY_THREAD_KEEP_ALIVE,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("tc Runtime discovery"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Get the server name for server resource found.
      * 
@@ -264,15 +398,19 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         return serverDescription;
     }
 
-    private ServerResource createTcRuntimeServerResource(String catalinaHome, String catalinaBase, String[] processArgs, MxProcess process)
-        throws PluginException {
+    private ServerResource createTcRuntimeServerResource(String catalinaHome, String catalinaBase, String[] processArgs, MxProcess process,
+        DiscoveryTimings timings, long start) throws PluginException {
 
         String query = PROC_JAVA + ",Args.*.eq=-D" + getProcHomeProperty() + "=" + catalinaBase;
 
         // Create the server resource
         ServerResource server = newServerResource(catalinaBase);
         server.setDescription(getServerDescription(server.getInstallPath()));
-        adjustClassPath(catalinaBase);
+        start = timings.record(DiscoveryTimings.Phase.JMX_CONFIG, start);
+        synchronized (PLATFORM_MONITOR) {
+            start = timings.record(DiscoveryTimings.Phase.PLATFORM_WAIT, start);
+            adjustClassPath(catalinaBase);
+        }
 
         ConfigResponse config = new ConfigResponse();
         ConfigSchema schema = getConfigSchema(getTypeInfo().getName(), ProductPlugin.CFGTYPE_IDX_PRODUCT);
@@ -301,15 +439,29 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
             }
         }
 
-        storeProcessUserAndGroup(process, config);
-
         config.setValue(SERVER_RESOURCE_CONFIG_CATALINA_BASE, catalinaBase);
         config.setValue(SERVER_RESOURCE_CONFIG_CATALINA_HOME, catalinaHome);
 
         // default anything not auto-configured
         config.setValue("jmx.password", getJMXPassword(catalinaBase));
+        start = timings.record(DiscoveryTimings.Phase.JMX_CONFIG, start);
+
+        synchronized (PLATFORM_MONITOR) {
+            start = timings.record(DiscoveryTimings.Phase.PLATFORM_WAIT, start);
+            storeProcessUserAndGroup(process, config);
+            start = timings.record(DiscoveryTimings.Phase.CREDENTIALS, start);
+
+            DetectionUtil.populateListeningPorts(process.getPid(), config, true);
+            start = timings.record(DiscoveryTimings.Phase.LISTENING_PORTS, start);
+        }
+
         setProductConfig(server, config, process.getPid());
-        discoverServerConfig(server, process.getPid());
+
+        synchronized (PLATFORM_MONITOR) {
+            start = timings.record(DiscoveryTimings.Phase.PLATFORM_WAIT, start);
+            discoverServerConfig(server, process.getPid());
+            start = timings.record(DiscoveryTimings.Phase.SERVER_CONFIG, start);
+        }
 
         server.setMeasurementConfig();
         // must set control config now so user doesn't have to enter config
@@ -322,6 +474,7 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         String controlProgram = determineControlProgram(catalinaHome, catalinaBase);
         controlConfig.setValue(ServerControlPlugin.PROP_PROGRAM, controlProgram);
         server.setControlConfig(controlConfig);
+        timings.record(DiscoveryTimings.Phase.CONTROL_PROGRAM, start);
         return server;
     }
 
@@ -355,7 +508,19 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         config.setValue(Utils.SERVER_RESOURCE_CONFIG_PROCESS_GROUP, group);
     }
 
-    private String determineControlProgram(String catalinaHome, String catalinaBase) throws PluginException {
+    private String determineControlProgram(final String catalinaHome, final String catalinaBase) throws PluginException {
+        File controlScriptDir = isCombinedLayoutInstance(catalinaHome, catalinaBase) ? new File(catalinaBase, "bin") : new File(
+            catalinaHome).getParentFile();
+        return discoveryCache.get(catalinaBase + "|" + ServerControlPlugin.PROP_PROGRAM, getControlScriptCandidates(controlScriptDir),
+            new DiscoveryCache.Loader<String>() {
+
+                public String load() throws PluginException {
+                    return readControlProgram(catalinaHome, catalinaBase);
+                }
+            });
+    }
+
+    private String readControlProgram(String catalinaHome, String catalinaBase) throws PluginException {
         File installationRoot;
         if (isCombinedLayoutInstance(catalinaHome, catalinaBase)) {
             installationRoot = getInstallationRootOfCombinedLayoutInstance(catalinaBase);
@@ -371,6 +536,18 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         return this.controlScriptParser.getInstallBase(catalinaBase, controlScript);
     }
 
+    /**
+     * @return the control scripts that {@link #getControlScript(File)} chooses between
+     */
+    private File[] getControlScriptCandidates(File controlScriptDir) {
+        if (isWin32()) {
+            return new File[] { new File(controlScriptDir, TCRUNTIME_WIN_CONTROL_PROGRAM),
+                new File(controlScriptDir, TCSERVER_WIN_CONTROL_PROGRAM) };
+        }
+        return new File[] { new File(controlScriptDir, TCRUNTIME_UNIX_CONTROL_PROGRAM),
+            new File(controlScriptDir, TCSERVER_UNIX_CONTROL_PROGRAM) };
+    }
+
     private File getControlScript(File controlScriptDir) {
         File runtimeControlScript;
 
@@ -421,10 +598,20 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         return propertyValue;
     }
 
-    private String getJMXPassword(String catalinaBase) {
+    private String getJMXPassword(final String catalinaBase) throws PluginException {
+        return discoveryCache.get(catalinaBase + "|" + MxUtil.PROP_JMX_PASSWORD, new File[] { new File(catalinaBase,
+            RELATIVE_PATH_CONF_JMX_PASSWORD) }, new DiscoveryCache.Loader<String>() {
+
+            public String load() {
+                return readJMXPassword(catalinaBase);
+            }
+        });
+    }
+
+    private String readJMXPassword(String catalinaBase) {
         String password = "";
         BufferedReader reader = null;
-        String passwordFilePath = catalinaBase + "/conf/" + "jmxremote.password";
+        String passwordFilePath = catalinaBase + RELATIVE_PATH_CONF_JMX_PASSWORD;
         try {
             File passwordFile = new File(passwordFilePath);
             reader = new BufferedReader(new FileReader(passwordFile));
@@ -457,12 +644,18 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         return password;
     }
 
-    private boolean isHqTcRuntime(String catalinaBase) {
-        File hq = findVersionFile(new File(catalinaBase), Pattern.compile("hq-common.*\\.jar"));
-        return hq != null;
+    private boolean isHqTcRuntime(String catalinaBase) throws PluginException {
+        return MarkerJarIndex.getInstance().containsMatching(catalinaBase, HQ_COMMON_JAR);
+    }
+
+    /**
+     * @return <code>true</code> if the installation or instance directory contains the given marker jar
+     */
+    protected final boolean containsMarkerJar(String directory, String relativePath) throws PluginException {
+        return MarkerJarIndex.getInstance().contains(directory, relativePath);
     }
 
-    protected boolean isTcRuntimeInstance(String catalinaHome, String catalinaBase) {
+    protected boolean isTcRuntimeInstance(String catalinaHome, String catalinaBase) throws PluginException {
         if (catalinaHome == null) {
             return false;
         }
@@ -478,5 +671,5 @@ public abstract class TcRuntimeDetector extends MxServerDetector {
         return false;
     }
 
-    abstract boolean isMyTomcatVersion(String catalinaHome, String catalinaBase);
+    abstract boolean isMyTomcatVersion(String catalinaHome, String catalinaBase) throws PluginException;
 }
@@ -0,0 +1,218 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The statistics of the work that the plugin does on behalf of a tc Runtime instance: JMX round-trips, metric
+ * collection, configuration reads and application management. The statistics of each instance are obtained with
+ * {@link #forInstance(String)} and are reported by the instance's Plugin Collector Health service.
+ * <p />
+ *
+ * In addition to the named operations, the time taken by each MBean and by each metric is recorded so that the most
+ * expensive can be identified. The number of MBeans and metrics that are tracked individually is bounded; beyond the
+ * bound they are recorded under {@link #OTHER}.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class CollectorStatistics {
+
+    /**
+     * JMX round-trips made to collect metrics
+     */
+    public static final String JMX = "jmx";
+
+    /**
+     * JMX round-trips, made to collect metrics, that timed out
+     */
+    public static final String JMX_TIMEOUT = "jmx.timeout";
+
+    /**
+     * Connections made, or obtained from the connection cache, to the instance's MBean server
+     */
+    public static final String JMX_CONNECT = "jmx.connect";
+
+    /**
+     * Collection of a metric
+     */
+    public static final String COLLECT = "collect";
+
+    /**
+     * Collection of a metric that failed because the instance was unreachable
+     */
+    public static final String COLLECT_UNREACHABLE = "collect.unreachable";
+
+    /**
+     * Collection of a metric that was refused without being attempted because the instance's circuit breaker was open
+     */
+    public static final String COLLECT_REJECTED = "collect.rejected";
+
+    /**
+     * Reading, ahead of a collection cycle, of the instance's MBeans that the cycle is expected to need
+     */
+    public static final String PREFETCH = "prefetch";
+
+    /**
+     * Reading of the instance's configuration
+     */
+    public static final String SERVER_CONFIG = "serverconfig";
+
+    /**
+     * JMX round-trips made to manage the instance's applications
+     */
+    public static final String APPLICATION_MANAGEMENT = "appmgmt";
+
+    /**
+     * The key under which MBeans and metrics beyond the bound are recorded
+     */
+    public static final String OTHER = "(other)";
+
+    private static final String UNKNOWN_INSTANCE = "(unknown)";
+
+    private static final int MAX_KEYED_STATISTICS = 256;
+
+    private static final ConcurrentMap<String, CollectorStatistics> INSTANCES = new ConcurrentHashMap<String, CollectorStatistics>();
+
+    private final ConcurrentMap<String, OperationStatistics> operations = new ConcurrentHashMap<String, OperationStatistics>();
+
+    private final ConcurrentMap<String, OperationStatistics> objectNames = new ConcurrentHashMap<String, OperationStatistics>();
+
+    private final ConcurrentMap<String, OperationStatistics> metrics = new ConcurrentHashMap<String, OperationStatistics>();
+
+    CollectorStatistics() {
+    }
+
+    /**
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     * @return the statistics of the instance
+     */
+    public static CollectorStatistics forInstance(String instanceKey) {
+        String key = instanceKey == null ? UNKNOWN_INSTANCE : instanceKey;
+        CollectorStatistics statistics = INSTANCES.get(key);
+        if (statistics == null) {
+            CollectorStatistics created = new CollectorStatistics();
+            statistics = INSTANCES.putIfAbsent(key, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @param operation the name of the operation, e.g. {@link #JMX}
+     * @return the statistics of the operation
+     */
+    public OperationStatistics getOperation(String operation) {
+        return getStatistics(operations, operation, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Records an invocation of an operation
+     *
+     * @param operation the name of the operation, e.g. {@link #JMX}
+     * @param durationNanos how long the invocation took, in nanoseconds
+     * @param failed whether the invocation failed
+     */
+    public void record(String operation, long durationNanos, boolean failed) {
+        getOperation(operation).record(durationNanos, failed);
+    }
+
+    /**
+     * Records a JMX round-trip made to an MBean
+     *
+     * @param objectName the canonical name of the MBean
+     * @param durationNanos how long the round-trip took, in nanoseconds
+     * @param failed whether the round-trip failed
+     */
+    public void recordObjectName(String objectName, long durationNanos, boolean failed) {
+        getStatistics(objectNames, objectName, MAX_KEYED_STATISTICS).record(durationNanos, failed);
+    }
+
+    /**
+     * Records the collection of a metric
+     *
+     * @param metric the metric's alias
+     * @param durationNanos how long the collection took, in nanoseconds
+     * @param failed whether the collection failed
+     */
+    public void recordMetric(String metric, long durationNanos, boolean failed) {
+        getStatistics(metrics, metric, MAX_KEYED_STATISTICS).record(durationNanos, failed);
+    }
+
+    /**
+     * @param limit the maximum number of MBeans to return
+     * @return the names of the MBeans on which the most time has been spent, most expensive first, with their statistics
+     */
+    public List<Map.Entry<String, OperationStatistics.Totals>> getMostExpensiveObjectNames(int limit) {
+        return getMostExpensive(objectNames, limit);
+    }
+
+    /**
+     * @param limit the maximum number of metrics to return
+     * @return the aliases of the metrics on which the most time has been spent, most expensive first, with their
+     *         statistics
+     */
+    public List<Map.Entry<String, OperationStatistics.Totals>> getMostExpensiveMetrics(int limit) {
+        return getMostExpensive(metrics, limit);
+    }
+
+    private static OperationStatistics getStatistics(ConcurrentMap<String, OperationStatistics> statisticsByKey, String key, int bound) {
+        OperationStatistics statistics = statisticsByKey.get(key);
+        if (statistics == null) {
+            String boundedKey = statisticsByKey.size() < bound ? key : OTHER;
+            OperationStatistics created = new OperationStatistics();
+            statistics = statisticsByKey.putIfAbsent(boundedKey, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+
+    private static List<Map.Entry<String, OperationStatistics.Totals>> getMostExpensive(Map<String, OperationStatistics> statisticsByKey,
+        int limit) {
+        Map<String, OperationStatistics.Totals> totals = new HashMap<String, OperationStatistics.Totals>();
+        for (Map.Entry<String, OperationStatistics> entry : statisticsByKey.entrySet()) {
+            totals.put(entry.getKey(), entry.getValue().getTotals());
+        }
+
+        List<Map.Entry<String, OperationStatistics.Totals>> entries = new ArrayList<Map.Entry<String, OperationStatistics.Totals>>(
+            totals.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, OperationStatistics.Totals>>() {
+
+            public int compare(Map.Entry<String, OperationStatistics.Totals> first, Map.Entry<String, OperationStatistics.Totals> second) {
+                return Double.compare(second.getValue().getTotalTime(), first.getValue().getTotalTime());
+            }
+        });
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+}
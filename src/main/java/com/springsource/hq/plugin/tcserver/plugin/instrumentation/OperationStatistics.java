@@ -0,0 +1,242 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.instrumentation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the invocations of an operation performed by the plugin, such as a JMX round-trip, and records how long they
+ * took in a histogram with fixed, roughly logarithmic, buckets. Recording is lock-free and does not allocate.
+ * <p />
+ *
+ * Each consumer of the statistics, typically a metric, reads the statistics of the invocations made since it last read
+ * them.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class OperationStatistics {
+
+    private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+    private final ConcurrentMap<String, Totals> cursors = new ConcurrentHashMap<String, Totals>();
+
+    /**
+     * Records an invocation of the operation
+     *
+     * @param durationNanos how long the invocation took, in nanoseconds
+     * @param failed whether the invocation failed
+     */
+    public void record(long durationNanos, boolean failed) {
+        count.incrementAndGet();
+        if (failed) {
+            failures.incrementAndGet();
+        }
+        totalNanos.addAndGet(durationNanos);
+        buckets.incrementAndGet(getBucket(TimeUnit.NANOSECONDS.toMillis(durationNanos)));
+    }
+
+    /**
+     * @return the statistics of all of the invocations recorded so far
+     */
+    public Totals getTotals() {
+        long[] bucketCounts = new long[buckets.length()];
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] = buckets.get(i);
+        }
+        return new Totals(count.get(), failures.get(), totalNanos.get(), bucketCounts, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the statistics of the invocations recorded since the consumer last read them
+     *
+     * @param consumer identifies the consumer
+     * @return the statistics, or <code>null</code> if this is the consumer's first read, which establishes its baseline
+     */
+    public IntervalStatistics readInterval(String consumer) {
+        Totals current = getTotals();
+        Totals previous = cursors.put(consumer, current);
+        return previous == null ? null : new IntervalStatistics(previous, current);
+    }
+
+    private static int getBucket(long durationMillis) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (durationMillis < BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS.length;
+    }
+
+    /**
+     * The cumulative statistics of an operation at a point in time
+     * <p />
+     *
+     * <strong>Concurrent Semantics</strong><br />
+     *
+     * Immutable
+     *
+     */
+    public static final class Totals {
+
+        private final long count;
+
+        private final long failures;
+
+        private final long totalNanos;
+
+        private final long[] buckets;
+
+        private final long timestamp;
+
+        Totals(long count, long failures, long totalNanos, long[] buckets, long timestamp) {
+            this.count = count;
+            this.failures = failures;
+            this.totalNanos = totalNanos;
+            this.buckets = buckets;
+            this.timestamp = timestamp;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the total time, in milliseconds, taken by the invocations
+         */
+        public double getTotalTime() {
+            return totalNanos / 1000000d;
+        }
+
+        /**
+         * @return the mean time, in milliseconds, taken by an invocation, or zero if there have been none
+         */
+        public double getMeanTime() {
+            return count == 0 ? 0 : getTotalTime() / count;
+        }
+    }
+
+    /**
+     * The statistics of the invocations of an operation made between two points in time
+     * <p />
+     *
+     * <strong>Concurrent Semantics</strong><br />
+     *
+     * Immutable
+     *
+     */
+    public static final class IntervalStatistics {
+
+        private final long count;
+
+        private final long failures;
+
+        private final long totalNanos;
+
+        private final long duration;
+
+        private final double percentile95;
+
+        IntervalStatistics(Totals previous, Totals current) {
+            this.count = current.count - previous.count;
+            this.failures = current.failures - previous.failures;
+            this.totalNanos = current.totalNanos - previous.totalNanos;
+            this.duration = Math.max(1, current.timestamp - previous.timestamp);
+            this.percentile95 = computePercentile95(previous.buckets, current.buckets, this.count);
+        }
+
+        private static double computePercentile95(long[] previous, long[] current, long count) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(0.95d * count);
+            long seen = 0;
+            for (int i = 0; i < current.length; i++) {
+                seen += current[i] - previous[i];
+                if (seen >= rank) {
+                    return i < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[i] : BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1];
+                }
+            }
+            return BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1];
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the total time, in milliseconds, taken by the invocations
+         */
+        public double getTotalTime() {
+            return totalNanos / 1000000d;
+        }
+
+        /**
+         * @return the mean time, in milliseconds, taken by an invocation, or zero if there were none
+         */
+        public double getMeanTime() {
+            return count == 0 ? 0 : getTotalTime() / count;
+        }
+
+        /**
+         * @return the upper bound, in milliseconds, of the histogram bucket that holds the 95th percentile of the time
+         *         taken by an invocation, capped at the largest bound, or zero if there were none
+         */
+        public double getPercentile95Time() {
+            return percentile95;
+        }
+
+        /**
+         * @return the number of invocations per minute
+         */
+        public double getCountPerMinute() {
+            return count * 60000d / duration;
+        }
+
+        /**
+         * @return the percentage of the interval's wall-clock time that was taken by the invocations
+         */
+        public double getPercentTime() {
+            return 100d * getTotalTime() / duration;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.Arrays;
+
+/**
+ * The values of a number of numeric attributes, sampled together
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class AttributeSample {
+
+    private final double[] values;
+
+    private final long timestamp;
+
+    public AttributeSample(double[] values, long timestamp) {
+        this.values = values.clone();
+        this.timestamp = timestamp;
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return the time, in milliseconds, at which the values were read
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values) + "@" + timestamp;
+    }
+}
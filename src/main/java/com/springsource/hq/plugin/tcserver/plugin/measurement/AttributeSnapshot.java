@@ -0,0 +1,146 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * The values of a set of attributes of a single MBean, as returned by one <code>getAttributes</code> call, and the
+ * requested attributes that the call did not return.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class AttributeSnapshot {
+
+    private final ObjectName objectName;
+
+    private final Map<String, Object> values;
+
+    private final Set<String> missing;
+
+    private final long timestamp;
+
+    AttributeSnapshot(ObjectName objectName, Map<String, Object> values, Set<String> missing, long timestamp) {
+        this.objectName = objectName;
+        this.values = Collections.unmodifiableMap(values);
+        this.missing = Collections.unmodifiableSet(missing);
+        this.timestamp = timestamp;
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @return the time, in milliseconds, at which the values were read
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean contains(String attributeName) {
+        return values.containsKey(attributeName);
+    }
+
+    public boolean containsAll(Collection<String> attributeNames) {
+        return values.keySet().containsAll(attributeNames);
+    }
+
+    /**
+     * @return <code>true</code> if the attribute was requested but not returned, i.e. the MBean does not have it or it
+     *         could not be read
+     */
+    public boolean isMissing(String attributeName) {
+        return missing.contains(attributeName);
+    }
+
+    /**
+     * @return <code>true</code> if each of the attributes was either read or is known to be missing, so that reading the
+     *         MBean again would not tell the caller anything more
+     */
+    public boolean covers(Collection<String> attributeNames) {
+        for (String attributeName : attributeNames) {
+            if (!values.containsKey(attributeName) && !missing.contains(attributeName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Object getValue(String attributeName) throws AttributeNotFoundException {
+        if (!values.containsKey(attributeName)) {
+            throw new AttributeNotFoundException("Attribute " + attributeName + (missing.contains(attributeName) ? " could not be read from "
+                : " was not requested from ") + objectName);
+        }
+        return values.get(attributeName);
+    }
+
+    /**
+     * Returns the value of a numeric attribute, or of a numeric item of a composite attribute. The item of a composite
+     * attribute is addressed as <code>attribute.item</code>, e.g. <code>HeapMemoryUsage.used</code>.
+     *
+     * @param attributePath the attribute name, optionally followed by the composite item key
+     * @return the value
+     * @throws AttributeNotFoundException if the attribute or item is not present, or is not numeric
+     */
+    public Number getNumber(String attributePath) throws AttributeNotFoundException {
+        Object value;
+        int separator = attributePath.indexOf('.');
+        if (separator > 0 && !values.containsKey(attributePath)) {
+            Object composite = getValue(attributePath.substring(0, separator));
+            String key = attributePath.substring(separator + 1);
+            if (!(composite instanceof CompositeData) || !((CompositeData) composite).containsKey(key)) {
+                throw new AttributeNotFoundException("Attribute " + attributePath + " not found in " + objectName);
+            }
+            value = ((CompositeData) composite).get(key);
+        } else {
+            value = getValue(attributePath);
+        }
+
+        if (!(value instanceof Number)) {
+            throw new AttributeNotFoundException("Attribute " + attributePath + " of " + objectName + " is not numeric: " + value);
+        }
+        return (Number) value;
+    }
+
+    /**
+     * @param attributePath an attribute name, optionally followed by a composite item key
+     * @return the name of the MBean attribute that holds the value
+     */
+    public static String getAttributeName(String attributePath) {
+        int separator = attributePath.indexOf('.');
+        return separator > 0 ? attributePath.substring(0, separator) : attributePath;
+    }
+
+    @Override
+    public String toString() {
+        return objectName + "@" + timestamp + values;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Caches {@link AttributeSnapshot AttributeSnapshots} so that every metric collected for an MBean within a collection
+ * cycle is served by a single <code>getAttributes</code> round-trip.
+ * <p />
+ *
+ * The cache learns, per MBean, the union of the attributes that have been asked for. When a snapshot is missing, stale
+ * or lacks a requested attribute, all of the known attributes are re-read together, so the first metric of a cycle
+ * fetches the values that the remaining metrics of that cycle will ask for. Attributes that a read did not return are
+ * recorded as missing in the snapshot, so asking for them again does not cause another read until the snapshot is
+ * stale.
+ * <p />
+ *
+ * A snapshot is only used with the connection that read it. The connection is referenced weakly, so the cache does not
+ * keep a replaced connector, and everything reachable from it, alive.
+ * <p />
+ *
+ * An instance's snapshots may also be {@link #prefetch prefetched} ahead of a collection cycle. A prefetched snapshot is
+ * fresh until it is first used, provided that is within {@link #PREFETCHED_TIME_TO_LIVE}, and the staleness window
+ * then runs from that first use, so that prefetching ahead of a long cycle does not cause its values to be re-read.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class AttributeSnapshotCache {
+
+    /**
+     * The default length of time, in milliseconds, for which a snapshot is used before being re-read
+     */
+    public static final long DEFAULT_STALENESS_WINDOW = 10000;
+
+    /**
+     * The length of time, in milliseconds, for which a prefetched snapshot that has not been used remains fresh. HQ
+     * collects metrics at most once a minute.
+     */
+    public static final long PREFETCHED_TIME_TO_LIVE = 60000;
+
+    private static final long PURGE_INTERVAL = 10 * 60 * 1000;
+
+    private static final long ENTRY_TIME_TO_IDLE = 30 * 60 * 1000;
+
+    private final Log logger = LogFactory.getLog(AttributeSnapshotCache.class);
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    /**
+     * Returns a snapshot of the given MBean containing at least the requested attributes, reading the MBean if the
+     * cached snapshot is missing, older than the staleness window, was read through a different connection, or has not
+     * tried to read all of the requested attributes. Attributes that the MBean does not have, or that could not be read,
+     * are {@link AttributeSnapshot#isMissing missing} from the returned snapshot.
+     *
+     * @param connection the connection to the MBean server
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     * @param objectName the name of the MBean
+     * @param attributeNames the attributes required by the caller
+     * @param stalenessWindow the maximum age, in milliseconds, of a snapshot that may be returned
+     * @return the snapshot
+     * @throws IOException if communication with the MBean server fails
+     * @throws InstanceNotFoundException if the MBean is not registered
+     * @throws ReflectionException if the attributes cannot be read
+     */
+    public AttributeSnapshot getSnapshot(MBeanServerConnection connection, String instanceKey, ObjectName objectName,
+        Collection<String> attributeNames, long stalenessWindow) throws IOException, InstanceNotFoundException, ReflectionException {
+        long now = System.currentTimeMillis();
+        purgeIdleEntries(now);
+
+        Entry entry = getEntry(instanceKey, objectName);
+        synchronized (entry) {
+            entry.lastAccess = now;
+            entry.attributeNames.addAll(attributeNames);
+
+            AttributeSnapshot snapshot = entry.snapshot;
+            if (snapshot != null && isFresh(entry, now, stalenessWindow) && snapshot.covers(attributeNames)
+                && entry.isReadThrough(connection)) {
+                entry.prefetched = false;
+                return snapshot;
+            }
+
+            snapshot = read(connection, objectName, entry.attributeNames, now);
+            entry.snapshot = snapshot;
+            entry.connection = new WeakReference<MBeanServerConnection>(connection);
+            entry.freshFrom = now;
+            entry.prefetched = false;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Re-reads those of the instance's snapshots that are stale and have been used since they were last read, i.e. the
+     * snapshots that the instance's next collection cycle is expected to need. MBeans that have been unregistered or
+     * whose attributes cannot be read are skipped; they are reported when their metrics are collected.
+     *
+     * @param connection the connection to the MBean server
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     * @param stalenessWindow the maximum age, in milliseconds, of a snapshot that is not re-read
+     * @return the number of MBeans that were read
+     * @throws IOException if communication with the MBean server fails
+     */
+    public int prefetch(MBeanServerConnection connection, String instanceKey, long stalenessWindow) throws IOException {
+        String prefix = instanceKey + "|";
+        int read = 0;
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            if (!mapEntry.getKey().startsWith(prefix)) {
+                continue;
+            }
+            Entry entry = mapEntry.getValue();
+            synchronized (entry) {
+                long now = System.currentTimeMillis();
+                AttributeSnapshot snapshot = entry.snapshot;
+                if (snapshot == null || entry.prefetched || (isFresh(entry, now, stalenessWindow) && entry.isReadThrough(connection))) {
+                    continue;
+                }
+                try {
+                    entry.snapshot = read(connection, snapshot.getObjectName(), entry.attributeNames, now);
+                    entry.connection = new WeakReference<MBeanServerConnection>(connection);
+                    entry.prefetched = true;
+                    read++;
+                } catch (InstanceNotFoundException e) {
+                    logger.debug("Not prefetching " + snapshot.getObjectName() + ": " + e.getMessage());
+                } catch (ReflectionException e) {
+                    logger.debug("Not prefetching " + snapshot.getObjectName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Discards all of the snapshots held for the given instance
+     *
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     */
+    public void invalidate(String instanceKey) {
+        String prefix = instanceKey + "|";
+        for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext();) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    private static boolean isFresh(Entry entry, long now, long stalenessWindow) {
+        if (entry.prefetched) {
+            if (now - entry.snapshot.getTimestamp() >= PREFETCHED_TIME_TO_LIVE) {
+                return false;
+            }
+            entry.freshFrom = now;
+            return true;
+        }
+        return now - entry.freshFrom < stalenessWindow;
+    }
+
+    private AttributeSnapshot read(MBeanServerConnection connection, ObjectName objectName, Set<String> attributeNames, long now)
+        throws IOException, InstanceNotFoundException, ReflectionException {
+        AttributeList attributes = connection.getAttributes(objectName, attributeNames.toArray(new String[attributeNames.size()]));
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Object attribute : attributes) {
+            values.put(((Attribute) attribute).getName(), ((Attribute) attribute).getValue());
+        }
+        Set<String> missing = new HashSet<String>(attributeNames);
+        missing.removeAll(values.keySet());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Read " + values.size() + " of " + attributeNames.size() + " attributes of " + objectName
+                + (missing.isEmpty() ? "" : ", missing " + missing));
+        }
+        return new AttributeSnapshot(objectName, values, missing, now);
+    }
+
+    private Entry getEntry(String instanceKey, ObjectName objectName) {
+        String key = instanceKey + "|" + objectName.getCanonicalName();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            Entry existing = entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        return entry;
+    }
+
+    private void purgeIdleEntries(long now) {
+        if (now - lastPurge < PURGE_INTERVAL) {
+            return;
+        }
+        lastPurge = now;
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            if (now - iterator.next().lastAccess > ENTRY_TIME_TO_IDLE) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final Set<String> attributeNames = new LinkedHashSet<String>();
+
+        private AttributeSnapshot snapshot;
+
+        private WeakReference<MBeanServerConnection> connection;
+
+        private long freshFrom;
+
+        private boolean prefetched;
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private boolean isReadThrough(MBeanServerConnection current) {
+            return connection != null && connection.get() == current;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.OperationStatistics;
+
+/**
+ * A bounded pool of worker threads that runs tasks on behalf of many tc Runtime instances concurrently, while running at
+ * most one task at a time for any single instance. A slow or hung instance therefore occupies at most one worker, and
+ * its tasks cannot queue up behind each other.
+ * <p />
+ *
+ * The time taken by every task is recorded so that the pool's throughput can be reported.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class BulkheadExecutor {
+
+    private static final long KEEP_ALIVE = 60000;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, Task> inFlight = new ConcurrentHashMap<String, Task>();
+
+    private final OperationStatistics statistics = new OperationStatistics();
+
+    /**
+     * Creates a new executor whose threads are started on demand and stop once they have been idle for a minute
+     *
+     * @param threads the maximum number of tasks that run concurrently
+     * @param queueCapacity the maximum number of tasks that wait for a thread
+     * @param threadFactory the factory for the worker threads
+     */
+    public BulkheadExecutor(int threads, int queueCapacity, ThreadFactory threadFactory) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+            queueCapacity), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits a task for an instance, unless a task for the instance is already queued or running, or the queue is full
+     *
+     * @param key identifies the instance, typically its jmx.url
+     * @param task the task
+     * @return <code>true</code> if the task was submitted
+     */
+    public boolean submit(String key, Runnable task) {
+        Task submitted = new Task(key, task);
+        if (inFlight.putIfAbsent(key, submitted) != null) {
+            return false;
+        }
+        try {
+            executor.execute(submitted);
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, submitted);
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the instance's queued or running task, if any, to complete
+     *
+     * @param key identifies the instance
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return <code>false</code> if the task did not complete within the timeout
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean await(String key, long timeout) throws InterruptedException {
+        Task task = inFlight.get(key);
+        if (task == null) {
+            return true;
+        }
+        try {
+            task.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // The task's failure is its own concern, it has completed nonetheless
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param key identifies the instance
+     * @return <code>true</code> if a task for the instance is queued or running
+     */
+    public boolean isInFlight(String key) {
+        return inFlight.containsKey(key);
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of threads that are running tasks
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the statistics of the tasks that have completed
+     */
+    public OperationStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Stops the worker threads once the queued and running tasks have completed
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private final class Task extends FutureTask<Object> {
+
+        private final String key;
+
+        private Task(String key, final Runnable task) {
+            super(new Runnable() {
+
+                public void run() {
+                    long start = System.nanoTime();
+                    boolean failed = true;
+                    try {
+                        task.run();
+                        failed = false;
+                    } finally {
+                        statistics.record(System.nanoTime() - start, failed);
+                    }
+                }
+            }, null);
+            this.key = key;
+        }
+
+        // The instance's next task may be submitted as soon as this one's outcome is available to those awaiting it
+
+        @Override
+        protected void set(Object value) {
+            inFlight.remove(key, this);
+            super.set(value);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            inFlight.remove(key, this);
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(key, this);
+        }
+    }
+}
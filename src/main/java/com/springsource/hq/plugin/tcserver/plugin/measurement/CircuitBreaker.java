@@ -0,0 +1,133 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+/**
+ * A circuit breaker that stops metrics being collected from a tc Runtime instance that cannot be reached, so that each
+ * of its metrics fails immediately rather than waiting for a connection attempt to time out. The breaker opens once the
+ * number of consecutive collections that failed because the instance was unreachable reaches a threshold. While it is
+ * open, a single probe at a time checks whether the instance can be reached again and, when it can, closes the breaker.
+ * <p />
+ *
+ * A probe is not rescheduled once no collection has been attempted for longer than the maximum idle time, e.g. because
+ * the instance has been removed from inventory; the next attempted collection starts a new probe.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class CircuitBreaker {
+
+    private final Object monitor = new Object();
+
+    private int consecutiveFailures;
+
+    private volatile boolean open;
+
+    private boolean probing;
+
+    private long lastRequest;
+
+    /**
+     * Called before a collection is attempted
+     *
+     * @param now the current time, in milliseconds
+     * @return <code>true</code> if the collection may be attempted, <code>false</code> if the breaker is open
+     */
+    public boolean allowRequest(long now) {
+        synchronized (monitor) {
+            lastRequest = now;
+            return !open;
+        }
+    }
+
+    /**
+     * Records a collection that succeeded, or failed for a reason other than the instance being unreachable
+     */
+    public void recordSuccess() {
+        synchronized (monitor) {
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * Records a collection that failed because the instance was unreachable
+     *
+     * @param threshold the number of consecutive failures at which the breaker opens
+     * @return <code>true</code> if this failure opened the breaker
+     */
+    public boolean recordFailure(int threshold) {
+        synchronized (monitor) {
+            consecutiveFailures++;
+            if (!open && consecutiveFailures >= threshold) {
+                open = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the breaker is open and has no probe, in which case the caller must start one
+     */
+    public boolean startProbe() {
+        synchronized (monitor) {
+            if (open && !probing) {
+                probing = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records that the probe reached the instance, closing the breaker
+     */
+    public void probeSucceeded() {
+        synchronized (monitor) {
+            open = false;
+            probing = false;
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * Records that the probe could not reach the instance
+     *
+     * @param now the current time, in milliseconds
+     * @param maxIdle the time, in milliseconds, since the last attempted collection after which probing stops
+     * @return <code>true</code> if the probe should be rescheduled
+     */
+    public boolean probeFailed(long now, long maxIdle) {
+        synchronized (monitor) {
+            if (now - lastRequest > maxIdle) {
+                probing = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+}
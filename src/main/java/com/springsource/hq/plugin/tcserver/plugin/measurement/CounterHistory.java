@@ -0,0 +1,130 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the most recent reading of each counter, or set of counters read together, that a delta or rate is computed
+ * from
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class CounterHistory {
+
+    private static final long PURGE_INTERVAL = 10 * 60 * 1000;
+
+    private static final long READING_TIME_TO_IDLE = 30 * 60 * 1000;
+
+    private final ConcurrentMap<String, Reading> readings = new ConcurrentHashMap<String, Reading>();
+
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    /**
+     * Records a reading of a counter, unless it is no newer than the reading already recorded
+     *
+     * @param key identifies the counter
+     * @param value the value of the counter
+     * @param timestamp the time, in milliseconds, at which the value was read
+     * @return the reading that was previously recorded, or <code>null</code> if there was none
+     */
+    Reading update(String key, double value, long timestamp) {
+        return update(key, new double[] { value }, timestamp);
+    }
+
+    /**
+     * Records a reading of a set of counters, unless it is no newer than the reading already recorded
+     *
+     * @param key identifies the set of counters
+     * @param values the values of the counters
+     * @param timestamp the time, in milliseconds, at which the values were read
+     * @return the reading that was previously recorded, or <code>null</code> if there was none
+     */
+    Reading update(String key, double[] values, long timestamp) {
+        purgeIdleReadings(System.currentTimeMillis());
+
+        Reading reading = new Reading(values, timestamp);
+        while (true) {
+            Reading previous = readings.putIfAbsent(key, reading);
+            if (previous == null) {
+                return null;
+            }
+            if (timestamp <= previous.getTimestamp() || readings.replace(key, previous, reading)) {
+                return previous;
+            }
+        }
+    }
+
+    private void purgeIdleReadings(long now) {
+        if (now - lastPurge < PURGE_INTERVAL) {
+            return;
+        }
+        lastPurge = now;
+        for (Iterator<Reading> iterator = readings.values().iterator(); iterator.hasNext();) {
+            if (now - iterator.next().getTimestamp() > READING_TIME_TO_IDLE) {
+                iterator.remove();
+            }
+        }
+    }
+
+    static final class Reading {
+
+        private final double[] values;
+
+        private final long timestamp;
+
+        Reading(double[] values, long timestamp) {
+            this.values = values.clone();
+            this.timestamp = timestamp;
+        }
+
+        double getValue() {
+            return values[0];
+        }
+
+        double getValue(int index) {
+            return values[index];
+        }
+
+        /**
+         * @param laterValues later values of the counters
+         * @return <code>true</code> if any of the later values is lower than in this reading, as happens when the
+         *         counters are reset by a restart
+         */
+        boolean isResetBy(double[] laterValues) {
+            for (int i = 0; i < values.length; i++) {
+                if (laterValues[i] < values[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServerConnection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds deadlocked threads through a JVM's {@link ThreadMXBean}. Which of <code>findDeadlockedThreads</code>, available
+ * on Java 6 and later, and <code>findMonitorDeadlockedThreads</code> the JVM supports is determined once per
+ * connection rather than on every sample. When a new deadlock is found, the deadlocked threads' details, including
+ * their lock owners, stacks and held locks, are captured in the same pass.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class DeadlockDetector {
+
+    private static final long[] NO_THREADS = new long[0];
+
+    private final Log logger = LogFactory.getLog(DeadlockDetector.class);
+
+    private final ConcurrentMap<String, Capabilities> capabilitiesByInstance = new ConcurrentHashMap<String, Capabilities>();
+
+    /**
+     * Finds the JVM's deadlocked threads
+     *
+     * @param threadBean the JVM's thread MXBean
+     * @param connection the connection through which the MXBean is accessed
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     * @return the deadlock report. Thread details are included only if the deadlock was not found by the previous call
+     *         for the instance.
+     * @throws IOException if communication with the MBean server fails
+     */
+    public DeadlockReport detect(ThreadMXBean threadBean, MBeanServerConnection connection, String instanceKey) throws IOException {
+        Capabilities capabilities = getCapabilities(connection, instanceKey);
+
+        long[] threadIds;
+        try {
+            threadIds = findDeadlockedThreads(threadBean, capabilities);
+        } catch (UndeclaredThrowableException e) {
+            throw asIOException(e);
+        }
+        if (threadIds == null) {
+            threadIds = NO_THREADS;
+        }
+        Arrays.sort(threadIds);
+
+        if (threadIds.length == 0 || Arrays.equals(threadIds, capabilities.reportedThreadIds)) {
+            capabilities.reportedThreadIds = threadIds;
+            return new DeadlockReport(threadIds, Collections.<ThreadInfo> emptyList(), false);
+        }
+
+        capabilities.reportedThreadIds = threadIds;
+        return new DeadlockReport(threadIds, getThreadInfos(threadBean, capabilities, threadIds), true);
+    }
+
+    private long[] findDeadlockedThreads(ThreadMXBean threadBean, Capabilities capabilities) {
+        if (capabilities.findDeadlockedThreads == null) {
+            try {
+                long[] threadIds = threadBean.findDeadlockedThreads();
+                capabilities.findDeadlockedThreads = Boolean.TRUE;
+                return threadIds;
+            } catch (UndeclaredThrowableException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw e;
+                }
+                logger.debug("Method 'findDeadlockedThreads' for objectname 'java.lang:type=Threading' was not found. "
+                    + "Using method findMonitorDeadlockedThreads", e);
+            } catch (UnsupportedOperationException e) {
+                logger.debug("Monitoring of ownable synchronizers is not supported. Using method findMonitorDeadlockedThreads", e);
+            }
+            capabilities.findDeadlockedThreads = Boolean.FALSE;
+        }
+
+        if (capabilities.findDeadlockedThreads.booleanValue()) {
+            return threadBean.findDeadlockedThreads();
+        }
+        return threadBean.findMonitorDeadlockedThreads();
+    }
+
+    private List<ThreadInfo> getThreadInfos(ThreadMXBean threadBean, Capabilities capabilities, long[] threadIds) throws IOException {
+        try {
+            ThreadInfo[] threadInfos;
+            if (capabilities.findDeadlockedThreads.booleanValue()) {
+                threadInfos = threadBean.getThreadInfo(threadIds, threadBean.isObjectMonitorUsageSupported(),
+                    threadBean.isSynchronizerUsageSupported());
+            } else {
+                threadInfos = threadBean.getThreadInfo(threadIds, Integer.MAX_VALUE);
+            }
+            return Arrays.asList(threadInfos);
+        } catch (UndeclaredThrowableException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            logger.warn("Unable to capture the details of deadlocked threads " + Arrays.toString(threadIds), e);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to capture the details of deadlocked threads " + Arrays.toString(threadIds), e);
+        }
+        return Collections.emptyList();
+    }
+
+    private Capabilities getCapabilities(MBeanServerConnection connection, String instanceKey) {
+        Capabilities capabilities = capabilitiesByInstance.get(instanceKey);
+        if (capabilities == null || capabilities.connection != connection) {
+            capabilities = new Capabilities(connection);
+            capabilitiesByInstance.put(instanceKey, capabilities);
+        }
+        return capabilities;
+    }
+
+    private static IOException asIOException(UndeclaredThrowableException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        return new IOException("Unable to reach deadlock thread mbean: " + e.getCause(), e);
+    }
+
+    private static final class Capabilities {
+
+        private final MBeanServerConnection connection;
+
+        private volatile Boolean findDeadlockedThreads;
+
+        private volatile long[] reportedThreadIds = NO_THREADS;
+
+        private Capabilities(MBeanServerConnection connection) {
+            this.connection = connection;
+        }
+    }
+}
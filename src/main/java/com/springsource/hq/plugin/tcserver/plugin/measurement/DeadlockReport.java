@@ -0,0 +1,132 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.lang.management.LockInfo;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The deadlocked threads found in a JVM, together with their lock owners and stacks, if they could be captured
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class DeadlockReport {
+
+    private static final int MAX_STACK_DEPTH = 32;
+
+    private final long[] threadIds;
+
+    private final List<ThreadInfo> threadInfos;
+
+    private final boolean newDeadlock;
+
+    DeadlockReport(long[] threadIds, List<ThreadInfo> threadInfos, boolean newDeadlock) {
+        this.threadIds = threadIds.clone();
+        Arrays.sort(this.threadIds);
+        this.threadInfos = Collections.unmodifiableList(threadInfos);
+        this.newDeadlock = newDeadlock;
+    }
+
+    public int getDeadlockedThreadCount() {
+        return threadIds.length;
+    }
+
+    /**
+     * @return the ids of the deadlocked threads, in ascending order
+     */
+    public long[] getThreadIds() {
+        return threadIds.clone();
+    }
+
+    /**
+     * @return <code>true</code> if the deadlocked threads differ from those found by the previous detection
+     */
+    public boolean isNewDeadlock() {
+        return newDeadlock;
+    }
+
+    /**
+     * @return details of the deadlocked threads, empty if they could not be captured
+     */
+    public List<ThreadInfo> getThreadInfos() {
+        return threadInfos;
+    }
+
+    /**
+     * Describes the deadlock, one thread at a time, in a form similar to that of a thread dump. Each thread's entry
+     * begins with its name, id, state, the lock it is waiting for and that lock's owner, followed by its stack and the
+     * locks that it holds.
+     *
+     * @return the description
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Deadlock detected: ").append(threadIds.length).append(" threads ").append(Arrays.toString(threadIds));
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo != null) {
+                builder.append('\n');
+                appendThreadInfo(builder, threadInfo);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void appendThreadInfo(StringBuilder builder, ThreadInfo threadInfo) {
+        builder.append('"').append(threadInfo.getThreadName()).append("\" Id=").append(threadInfo.getThreadId()).append(' ').append(
+            threadInfo.getThreadState());
+        if (threadInfo.getLockName() != null) {
+            builder.append(" on ").append(threadInfo.getLockName());
+        }
+        if (threadInfo.getLockOwnerName() != null) {
+            builder.append(" owned by \"").append(threadInfo.getLockOwnerName()).append("\" Id=").append(threadInfo.getLockOwnerId());
+        }
+        builder.append('\n');
+
+        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        MonitorInfo[] lockedMonitors = threadInfo.getLockedMonitors();
+        for (int depth = 0; depth < stackTrace.length && depth < MAX_STACK_DEPTH; depth++) {
+            builder.append("\tat ").append(stackTrace[depth]).append('\n');
+            for (MonitorInfo lockedMonitor : lockedMonitors) {
+                if (lockedMonitor.getLockedStackDepth() == depth) {
+                    builder.append("\t-  locked ").append(lockedMonitor).append('\n');
+                }
+            }
+        }
+        if (stackTrace.length > MAX_STACK_DEPTH) {
+            builder.append("\t...\n");
+        }
+
+        LockInfo[] lockedSynchronizers = threadInfo.getLockedSynchronizers();
+        if (lockedSynchronizers.length > 0) {
+            builder.append("\tLocked synchronizers:\n");
+            for (LockInfo lockedSynchronizer : lockedSynchronizers) {
+                builder.append("\t- ").append(lockedSynchronizer).append('\n');
+            }
+        }
+    }
+}
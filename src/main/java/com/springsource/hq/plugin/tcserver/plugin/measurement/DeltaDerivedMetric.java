@@ -0,0 +1,76 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A {@link DerivedMetric} that reports the change in a counter attribute since the previous sample, either as an
+ * absolute delta, e.g. <code>delta(errorCount)</code>, or as a per-second rate, e.g. <code>rate(requestCount)</code>.
+ * <p />
+ *
+ * No value is reported for the first sample, or when the counter has gone backwards, as happens when the application
+ * or the instance is restarted. The sample is used as the baseline for the next one.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class DeltaDerivedMetric implements DerivedMetric {
+
+    private final String attributePath;
+
+    private final boolean perSecond;
+
+    private final CounterHistory history;
+
+    DeltaDerivedMetric(String attributePath, boolean perSecond, CounterHistory history) {
+        this.attributePath = attributePath;
+        this.perSecond = perSecond;
+        this.history = history;
+    }
+
+    public MetricValue getValue(DerivedMetricContext context) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        AttributeSample sample = context.sample(attributePath);
+        double value = sample.getValue(0);
+        long timestamp = sample.getTimestamp();
+
+        CounterHistory.Reading previous = history.update(context.getKey(), value, timestamp);
+        if (previous == null || timestamp <= previous.getTimestamp() || value < previous.getValue()) {
+            return MetricValue.NONE;
+        }
+
+        double delta = value - previous.getValue();
+        if (perSecond) {
+            return new MetricValue(delta * 1000d / (timestamp - previous.getTimestamp()));
+        }
+        return new MetricValue(delta);
+    }
+
+    @Override
+    public String toString() {
+        return (perSecond ? "rate(" : "delta(") + attributePath + ")";
+    }
+}
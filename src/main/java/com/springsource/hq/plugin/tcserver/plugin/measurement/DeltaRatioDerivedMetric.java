@@ -0,0 +1,81 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A {@link DerivedMetric} that divides the change in one counter attribute since the previous sample by the change in
+ * another and multiplies the result by a scale. For example, <code>deltaratio(processingTime, requestCount)</code> is
+ * the mean time taken by the requests made during the interval, and
+ * <code>deltaratio(errorCount, requestCount, 100)</code> is the percentage of them that failed.
+ * <p />
+ *
+ * No value is reported for the first sample, when either counter has gone backwards, as happens when the application or
+ * the instance is restarted, or when the denominator has not changed. The sample is used as the baseline for the next
+ * one.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class DeltaRatioDerivedMetric implements DerivedMetric {
+
+    private final String numerator;
+
+    private final String denominator;
+
+    private final double scale;
+
+    private final CounterHistory history;
+
+    DeltaRatioDerivedMetric(String numerator, String denominator, double scale, CounterHistory history) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+        this.scale = scale;
+        this.history = history;
+    }
+
+    public MetricValue getValue(DerivedMetricContext context) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        AttributeSample sample = context.sample(numerator, denominator);
+        double[] values = new double[] { sample.getValue(0), sample.getValue(1) };
+        long timestamp = sample.getTimestamp();
+
+        CounterHistory.Reading previous = history.update(context.getKey(), values, timestamp);
+        if (previous == null || timestamp <= previous.getTimestamp() || previous.isResetBy(values)) {
+            return MetricValue.NONE;
+        }
+
+        double denominatorDelta = values[1] - previous.getValue(1);
+        if (denominatorDelta == 0) {
+            return MetricValue.NONE;
+        }
+        return new MetricValue(scale * (values[0] - previous.getValue(0)) / denominatorDelta);
+    }
+
+    @Override
+    public String toString() {
+        return "deltaratio(" + numerator + ", " + denominator + ", " + scale + ")";
+    }
+}
@@ -0,0 +1,49 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A metric whose value is computed from the values of one or more MBean attributes rather than being read directly.
+ * Derived metrics are declared in <code>hq-plugin.xml</code>, see {@link DerivedMetrics}.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Implementations must be thread-safe
+ *
+ */
+public interface DerivedMetric {
+
+    /**
+     * Computes the value of the metric
+     *
+     * @param context provides the attribute values of the metric's MBean
+     * @return the value, or {@link MetricValue#NONE} if no value can be computed from this sample
+     * @throws MetricUnreachableException if the MBean server cannot be reached
+     * @throws MetricNotFoundException if the MBean or one of its attributes does not exist
+     * @throws PluginException if the attributes cannot be read
+     */
+    MetricValue getValue(DerivedMetricContext context) throws MetricUnreachableException, MetricNotFoundException, PluginException;
+}
@@ -0,0 +1,54 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * The context in which a {@link DerivedMetric} is computed, providing the values of the attributes of the metric's
+ * MBean. If the metric's ObjectName is a pattern, the values are summed over all of the matching MBeans.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Not thread-safe
+ *
+ */
+public interface DerivedMetricContext {
+
+    /**
+     * @return a key that identifies the tc Runtime instance, ObjectName and metric being computed
+     */
+    String getKey();
+
+    /**
+     * Samples the given numeric attributes. An attribute path may address an item of a composite attribute, e.g.
+     * <code>HeapMemoryUsage.used</code>.
+     *
+     * @param attributePaths the attributes to sample
+     * @return the sampled values, in the same order as the attribute paths
+     * @throws MetricUnreachableException if the MBean server cannot be reached
+     * @throws MetricNotFoundException if the MBean or one of its attributes does not exist
+     * @throws PluginException if the attributes cannot be read
+     */
+    AttributeSample sample(String... attributePaths) throws MetricUnreachableException, MetricNotFoundException, PluginException;
+}
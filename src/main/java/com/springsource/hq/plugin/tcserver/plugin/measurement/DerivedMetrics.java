@@ -0,0 +1,155 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A registry of the {@link DerivedMetric DerivedMetrics} declared as plugin properties in <code>hq-plugin.xml</code>.
+ * A derived metric is declared by a property named <code>derived.</code> followed by the metric's alias, whose value is
+ * an expression over the attributes of the metric's MBean, for example:
+ *
+ * <pre>
+ * &lt;property name="derived.percentActiveThreads" value="ratio(currentThreadsBusy, maxThreads, 100)" /&gt;
+ * </pre>
+ *
+ * The supported expressions are:
+ * <ul>
+ * <li><code>ratio(numerator, denominator[, scale])</code></li>
+ * <li><code>difference(minuend, subtrahend)</code></li>
+ * <li><code>sum(attribute)</code>, summed over all MBeans matching the metric's ObjectName pattern</li>
+ * <li><code>delta(attribute)</code>, the change since the previous sample</li>
+ * <li><code>rate(attribute)</code>, the per-second change since the previous sample</li>
+ * <li><code>deltaratio(numerator, denominator[, scale])</code>, the ratio of the changes since the previous sample, e.g.
+ * the mean time taken by the requests made since then</li>
+ * <li><code>free(usage)</code>, the free bytes of a <code>MemoryUsage</code> attribute</li>
+ * <li><code>percentused(usage)</code>, the percentage of a <code>MemoryUsage</code> attribute that is used</li>
+ * </ul>
+ * Every attribute may address an item of a composite attribute, e.g. <code>HeapMemoryUsage.used</code>, and, when the
+ * metric's ObjectName is a pattern, is summed over the matching MBeans.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class DerivedMetrics {
+
+    /**
+     * The prefix of the names of the plugin properties that declare derived metrics
+     */
+    public static final String PROPERTY_PREFIX = "derived.";
+
+    private static final Pattern EXPRESSION_PATTERN = Pattern.compile("\\s*(\\w+)\\s*\\((.*)\\)\\s*");
+
+    private static final Log LOGGER = LogFactory.getLog(DerivedMetrics.class);
+
+    private final Map<String, DerivedMetric> derivedMetrics;
+
+    private final CounterHistory counterHistory = new CounterHistory();
+
+    private DerivedMetrics(Properties properties) {
+        Map<String, DerivedMetric> metrics = new HashMap<String, DerivedMetric>();
+        if (properties != null) {
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(PROPERTY_PREFIX)) {
+                    String expression = properties.getProperty(name);
+                    try {
+                        metrics.put(name.substring(PROPERTY_PREFIX.length()), parse(expression));
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.warn("Ignoring invalid derived metric " + name + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        this.derivedMetrics = Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Creates a registry of the derived metrics declared in the given properties. Invalid declarations are logged and
+     * ignored.
+     *
+     * @param properties the plugin properties
+     * @return the registry
+     */
+    public static DerivedMetrics fromProperties(Properties properties) {
+        return new DerivedMetrics(properties);
+    }
+
+    /**
+     * @param alias the alias of a metric
+     * @return the derived metric with the given alias, or <code>null</code> if it is not a derived metric
+     */
+    public DerivedMetric get(String alias) {
+        return derivedMetrics.get(alias);
+    }
+
+    DerivedMetric parse(String expression) {
+        Matcher matcher = EXPRESSION_PATTERN.matcher(expression == null ? "" : expression);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Malformed expression [" + expression + "]");
+        }
+        String function = matcher.group(1);
+        String[] arguments = matcher.group(2).split(",");
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = arguments[i].trim();
+            if (arguments[i].length() == 0) {
+                throw new IllegalArgumentException("Missing argument in expression [" + expression + "]");
+            }
+        }
+
+        if ("ratio".equals(function) && (arguments.length == 2 || arguments.length == 3)) {
+            return new RatioDerivedMetric(arguments[0], arguments[1], arguments.length == 3 ? parseScale(arguments[2], expression) : 1d);
+        } else if ("difference".equals(function) && arguments.length == 2) {
+            return new DifferenceDerivedMetric(arguments[0], arguments[1]);
+        } else if ("sum".equals(function) && arguments.length == 1) {
+            return new SumDerivedMetric(arguments[0]);
+        } else if ("delta".equals(function) && arguments.length == 1) {
+            return new DeltaDerivedMetric(arguments[0], false, counterHistory);
+        } else if ("rate".equals(function) && arguments.length == 1) {
+            return new DeltaDerivedMetric(arguments[0], true, counterHistory);
+        } else if ("deltaratio".equals(function) && (arguments.length == 2 || arguments.length == 3)) {
+            return new DeltaRatioDerivedMetric(arguments[0], arguments[1], arguments.length == 3 ? parseScale(arguments[2], expression)
+                : 1d, counterHistory);
+        } else if ("free".equals(function) && arguments.length == 1) {
+            return new MemoryUsageDerivedMetric(arguments[0], false);
+        } else if ("percentused".equals(function) && arguments.length == 1) {
+            return new MemoryUsageDerivedMetric(arguments[0], true);
+        }
+        throw new IllegalArgumentException("Unknown function or wrong number of arguments in expression [" + expression + "]");
+    }
+
+    private static double parseScale(String scale, String expression) {
+        try {
+            return Double.parseDouble(scale);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid scale in expression [" + expression + "]");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A {@link DerivedMetric} that subtracts one attribute from another, e.g.
+ * <code>difference(HeapMemoryUsage.max, HeapMemoryUsage.used)</code>
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+final class DifferenceDerivedMetric implements DerivedMetric {
+
+    private final String minuend;
+
+    private final String subtrahend;
+
+    DifferenceDerivedMetric(String minuend, String subtrahend) {
+        this.minuend = minuend;
+        this.subtrahend = subtrahend;
+    }
+
+    public MetricValue getValue(DerivedMetricContext context) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        AttributeSample sample = context.sample(minuend, subtrahend);
+        return new MetricValue(sample.getValue(0) - sample.getValue(1));
+    }
+
+    @Override
+    public String toString() {
+        return "difference(" + minuend + ", " + subtrahend + ")";
+    }
+}
@@ -0,0 +1,112 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import javax.management.ObjectName;
+
+/**
+ * Garbage collection activity over the interval between two {@link GarbageCollectionSample GarbageCollectionSamples}.
+ * Every statistic is available for an individual collector or, when the collector is <code>null</code>, for all of
+ * the collectors combined. Collectors that don't report their collection time or count are ignored.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class GarbageCollectionInterval {
+
+    private final GarbageCollectionSample start;
+
+    private final GarbageCollectionSample end;
+
+    GarbageCollectionInterval(GarbageCollectionSample start, GarbageCollectionSample end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the length of the interval, in milliseconds
+     */
+    public long getDuration() {
+        return end.getUptime() - start.getUptime();
+    }
+
+    /**
+     * @param collector the collector, or <code>null</code> for all collectors
+     * @return the time spent collecting during the interval, in milliseconds
+     */
+    public long getCollectionTime(ObjectName collector) {
+        long collectionTime = 0;
+        for (ObjectName name : end.getCollectors()) {
+            if (collector == null || collector.equals(name)) {
+                collectionTime += delta(start.getCollectionTime(name), end.getCollectionTime(name));
+            }
+        }
+        return collectionTime;
+    }
+
+    /**
+     * @param collector the collector, or <code>null</code> for all collectors
+     * @return the number of collections during the interval
+     */
+    public long getCollectionCount(ObjectName collector) {
+        long collectionCount = 0;
+        for (ObjectName name : end.getCollectors()) {
+            if (collector == null || collector.equals(name)) {
+                collectionCount += delta(start.getCollectionCount(name), end.getCollectionCount(name));
+            }
+        }
+        return collectionCount;
+    }
+
+    /**
+     * @param collector the collector, or <code>null</code> for all collectors
+     * @return the percentage of the interval spent collecting
+     */
+    public double getPercentTimeSpent(ObjectName collector) {
+        return 100d * getCollectionTime(collector) / getDuration();
+    }
+
+    /**
+     * @param collector the collector, or <code>null</code> for all collectors
+     * @return the number of collections per minute during the interval
+     */
+    public double getCollectionsPerMinute(ObjectName collector) {
+        return 60000d * getCollectionCount(collector) / getDuration();
+    }
+
+    /**
+     * @param collector the collector, or <code>null</code> for all collectors
+     * @return the mean time, in milliseconds, taken by the collections during the interval, or zero if there were none
+     */
+    public double getMeanPauseTime(ObjectName collector) {
+        long collectionCount = getCollectionCount(collector);
+        return collectionCount == 0 ? 0d : (double) getCollectionTime(collector) / collectionCount;
+    }
+
+    private static long delta(long startValue, long endValue) {
+        if (startValue < 0 || endValue < startValue) {
+            return 0;
+        }
+        return endValue - startValue;
+    }
+}
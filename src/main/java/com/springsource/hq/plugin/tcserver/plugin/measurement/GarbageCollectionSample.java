@@ -0,0 +1,109 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+/**
+ * The cumulative collection time and count of each of a JVM's garbage collectors, sampled together with the JVM's
+ * uptime, which is used as the clock for the intervals between samples
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class GarbageCollectionSample {
+
+    private final long uptime;
+
+    private final Map<ObjectName, long[]> collectors;
+
+    /**
+     * Creates a new sample
+     *
+     * @param uptime the JVM's uptime, in milliseconds
+     */
+    public GarbageCollectionSample(long uptime) {
+        this(uptime, new HashMap<ObjectName, long[]>());
+    }
+
+    private GarbageCollectionSample(long uptime, Map<ObjectName, long[]> collectors) {
+        this.uptime = uptime;
+        this.collectors = collectors;
+    }
+
+    /**
+     * Returns a copy of this sample that includes the given collector
+     *
+     * @param collector the name of the collector's MBean
+     * @param collectionTime the collector's <code>CollectionTime</code>, in milliseconds
+     * @param collectionCount the collector's <code>CollectionCount</code>
+     * @return the new sample
+     */
+    public GarbageCollectionSample withCollector(ObjectName collector, long collectionTime, long collectionCount) {
+        Map<ObjectName, long[]> copy = new HashMap<ObjectName, long[]>(collectors);
+        copy.put(collector, new long[] { collectionTime, collectionCount });
+        return new GarbageCollectionSample(uptime, copy);
+    }
+
+    public long getUptime() {
+        return uptime;
+    }
+
+    /**
+     * @return the total collection time of the collectors that report it, in milliseconds
+     */
+    public long getTotalCollectionTime() {
+        long totalCollectionTime = 0;
+        for (long[] counters : collectors.values()) {
+            if (counters[0] > -1) {
+                totalCollectionTime += counters[0];
+            }
+        }
+        return totalCollectionTime;
+    }
+
+    Set<ObjectName> getCollectors() {
+        return Collections.unmodifiableSet(collectors.keySet());
+    }
+
+    /**
+     * @return the collector's collection time, or -1 if the collector isn't in the sample or doesn't report it
+     */
+    long getCollectionTime(ObjectName collector) {
+        long[] counters = collectors.get(collector);
+        return counters == null ? -1 : counters[0];
+    }
+
+    /**
+     * @return the collector's collection count, or -1 if the collector isn't in the sample or doesn't report it
+     */
+    long getCollectionCount(ObjectName collector) {
+        long[] counters = collectors.get(collector);
+        return counters == null ? -1 : counters[1];
+    }
+}
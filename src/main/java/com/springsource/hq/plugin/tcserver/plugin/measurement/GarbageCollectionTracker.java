@@ -0,0 +1,143 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Tracks the garbage collection activity of a single tc Runtime instance. A small ring buffer holds the most recent
+ * {@link GarbageCollectionSample samples} so that overhead can be reported over a recent window rather than over the
+ * lifetime of the JVM. The names of the instance's garbage collector MBeans are cached for as long as the connection
+ * to the instance is unchanged.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class GarbageCollectionTracker {
+
+    private static final ObjectName GARBAGE_COLLECTORS;
+
+    static {
+        try {
+            GARBAGE_COLLECTORS = new ObjectName("java.lang:type=GarbageCollector,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Object monitor = new Object();
+
+    private final GarbageCollectionSample[] samples;
+
+    private int newest = -1;
+
+    private int size;
+
+    private MBeanServerConnection connection;
+
+    private Set<ObjectName> collectorNames;
+
+    /**
+     * Creates a new tracker
+     *
+     * @param windowIntervals the number of sampling intervals over which activity is reported
+     */
+    public GarbageCollectionTracker(int windowIntervals) {
+        if (windowIntervals < 1) {
+            throw new IllegalArgumentException("The window must be at least one interval");
+        }
+        this.samples = new GarbageCollectionSample[windowIntervals + 1];
+    }
+
+    /**
+     * Returns the names of the garbage collector MBeans, querying for them only when the connection has changed since
+     * they were last queried, or the names have been {@link #invalidateCollectorNames() invalidated}
+     *
+     * @param connection the connection to the instance's MBean server
+     * @return the names of the garbage collector MBeans
+     * @throws IOException if communication with the MBean server fails
+     */
+    public Set<ObjectName> getCollectorNames(MBeanServerConnection connection) throws IOException {
+        synchronized (monitor) {
+            if (collectorNames == null || this.connection != connection) {
+                collectorNames = Collections.unmodifiableSet(new LinkedHashSet<ObjectName>(connection.queryNames(GARBAGE_COLLECTORS,
+                    null)));
+                this.connection = connection;
+            }
+            return collectorNames;
+        }
+    }
+
+    /**
+     * Causes the garbage collector MBeans to be queried again the next time that they are required
+     */
+    public void invalidateCollectorNames() {
+        synchronized (monitor) {
+            collectorNames = null;
+        }
+    }
+
+    /**
+     * Records a sample. A sample whose uptime is the same as that of the newest sample is ignored, and a sample whose
+     * uptime is less than that of the newest sample, indicating that the JVM has restarted, discards the previous
+     * samples.
+     *
+     * @param sample the sample
+     */
+    public void record(GarbageCollectionSample sample) {
+        synchronized (monitor) {
+            if (size > 0) {
+                long newestUptime = samples[newest].getUptime();
+                if (sample.getUptime() == newestUptime) {
+                    return;
+                } else if (sample.getUptime() < newestUptime) {
+                    size = 0;
+                }
+            }
+            newest = (newest + 1) % samples.length;
+            samples[newest] = sample;
+            size = Math.min(size + 1, samples.length);
+        }
+    }
+
+    /**
+     * @return the activity between the oldest and newest samples, or <code>null</code> if fewer than two samples have
+     *         been recorded
+     */
+    public GarbageCollectionInterval getInterval() {
+        synchronized (monitor) {
+            if (size < 2) {
+                return null;
+            }
+            int oldest = (newest - size + 1 + samples.length) % samples.length;
+            return new GarbageCollectionInterval(samples[oldest], samples[newest]);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.JMRuntimeException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Samples the CPU time consumed by each of a tc Runtime instance's threads. The CPU times of all of the threads are read
+ * with a single call to the <code>getThreadCpuTime(long[])</code> operation that HotSpot's thread MXBean provides;
+ * JVMs that do not provide it are sampled one thread at a time. Whether the bulk operation is supported is determined
+ * once per connection. Thread names are read only for threads that were not in the previous sample, so the cost of a
+ * sample is bounded by the number of threads.
+ * <p />
+ *
+ * Each consumer of the samples, identified by a key, is given the {@link ThreadCpuInterval interval} since the sample
+ * it last read, so consumers that read at different frequencies do not shorten each other's intervals.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class HotThreadSampler {
+
+    private static final ConcurrentMap<String, HotThreadSampler> SAMPLERS = new ConcurrentHashMap<String, HotThreadSampler>();
+
+    private static final ObjectName THREADING;
+
+    private static final ObjectName OPERATING_SYSTEM;
+
+    private static final String[] OPERATING_SYSTEM_ATTRIBUTES = { "ProcessCpuTime", "AvailableProcessors" };
+
+    private static final String[] BULK_CPU_TIME_SIGNATURE = { long[].class.getName() };
+
+    static {
+        try {
+            THREADING = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+            OPERATING_SYSTEM = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Log logger = LogFactory.getLog(HotThreadSampler.class);
+
+    private final ConcurrentMap<String, ThreadCpuSample> baselines = new ConcurrentHashMap<String, ThreadCpuSample>();
+
+    private final Object monitor = new Object();
+
+    private MBeanServerConnection connection;
+
+    private Boolean bulkCpuTime;
+
+    private ThreadCpuSample latest;
+
+    HotThreadSampler() {
+    }
+
+    /**
+     * Returns the sampler of the given instance, creating it if necessary
+     *
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     * @return the instance's sampler
+     */
+    public static HotThreadSampler forInstance(String instanceKey) {
+        HotThreadSampler sampler = SAMPLERS.get(instanceKey);
+        if (sampler == null) {
+            sampler = new HotThreadSampler();
+            HotThreadSampler existing = SAMPLERS.putIfAbsent(instanceKey, sampler);
+            if (existing != null) {
+                sampler = existing;
+            }
+        }
+        return sampler;
+    }
+
+    /**
+     * Returns a sample of the instance's threads, reusing the most recent sample if it is younger than the given age
+     *
+     * @param connection the connection to the instance's MBean server
+     * @param threadBean the instance's thread MXBean, accessed through the connection
+     * @param maxAge the age, in milliseconds, below which the most recent sample is reused
+     * @return the sample
+     * @throws IOException if communication with the MBean server fails
+     */
+    public ThreadCpuSample sample(MBeanServerConnection connection, ThreadMXBean threadBean, long maxAge) throws IOException {
+        synchronized (monitor) {
+            if (this.connection != connection) {
+                this.connection = connection;
+                this.bulkCpuTime = null;
+            }
+            if (latest != null && System.currentTimeMillis() - latest.getTimestamp() < maxAge) {
+                return latest;
+            }
+
+            try {
+                long[] threadIds = threadBean.getAllThreadIds();
+                Arrays.sort(threadIds);
+                long[] cpuTimes = getThreadCpuTimes(connection, threadBean, threadIds);
+                String[] threadNames = getThreadNames(threadBean, threadIds);
+
+                long processCpuTime = -1;
+                int processors = 1;
+                for (Attribute attribute : getOperatingSystemAttributes(connection).asList()) {
+                    if ("ProcessCpuTime".equals(attribute.getName()) && attribute.getValue() instanceof Number) {
+                        processCpuTime = ((Number) attribute.getValue()).longValue();
+                    } else if ("AvailableProcessors".equals(attribute.getName()) && attribute.getValue() instanceof Number) {
+                        processors = ((Number) attribute.getValue()).intValue();
+                    }
+                }
+
+                latest = new ThreadCpuSample(System.currentTimeMillis(), threadIds, threadNames, cpuTimes, processCpuTime, processors);
+                return latest;
+            } catch (UndeclaredThrowableException e) {
+                throw asIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the interval between the sample that the consumer last read and the given sample, and makes the given
+     * sample the consumer's baseline
+     *
+     * @param consumer identifies the consumer
+     * @param sample the sample
+     * @param requestThreads matches the names of the threads that process requests
+     * @param limit the number of hottest threads to identify
+     * @return the interval, or <code>null</code> if this is the consumer's first read, or the interval is not valid
+     */
+    public ThreadCpuInterval readInterval(String consumer, ThreadCpuSample sample, Pattern requestThreads, int limit) {
+        ThreadCpuSample baseline = baselines.get(consumer);
+        if (baseline == sample) {
+            return null;
+        }
+        baselines.put(consumer, sample);
+        return sample.since(baseline, requestThreads, limit);
+    }
+
+    private long[] getThreadCpuTimes(MBeanServerConnection connection, ThreadMXBean threadBean, long[] threadIds) throws IOException {
+        if (bulkCpuTime == null || bulkCpuTime.booleanValue()) {
+            try {
+                Object cpuTimes = connection.invoke(THREADING, "getThreadCpuTime", new Object[] { threadIds }, BULK_CPU_TIME_SIGNATURE);
+                if (cpuTimes instanceof long[] && ((long[]) cpuTimes).length == threadIds.length) {
+                    bulkCpuTime = Boolean.TRUE;
+                    return (long[]) cpuTimes;
+                }
+                logger.debug("Operation getThreadCpuTime(long[]) of " + THREADING + " returned " + cpuTimes
+                    + ". Reading the CPU time of each thread");
+            } catch (JMException e) {
+                logger.debug("Operation getThreadCpuTime(long[]) of " + THREADING + " is not supported. Reading the CPU time of each thread",
+                    e);
+            } catch (JMRuntimeException e) {
+                logger.debug("Operation getThreadCpuTime(long[]) of " + THREADING + " is not supported. Reading the CPU time of each thread",
+                    e);
+            }
+            bulkCpuTime = Boolean.FALSE;
+        }
+
+        long[] cpuTimes = new long[threadIds.length];
+        for (int i = 0; i < threadIds.length; i++) {
+            cpuTimes[i] = threadBean.getThreadCpuTime(threadIds[i]);
+        }
+        return cpuTimes;
+    }
+
+    /**
+     * Returns the names of the threads, taking the names of the threads that are in the latest sample from it and reading
+     * the names of the others in one call
+     */
+    private String[] getThreadNames(ThreadMXBean threadBean, long[] threadIds) {
+        String[] threadNames = new String[threadIds.length];
+        long[] unnamed = new long[threadIds.length];
+        int unnamedCount = 0;
+        for (int i = 0; i < threadIds.length; i++) {
+            threadNames[i] = latest == null ? null : latest.getThreadName(threadIds[i]);
+            if (threadNames[i] == null) {
+                unnamed[unnamedCount++] = threadIds[i];
+            }
+        }
+
+        if (unnamedCount > 0) {
+            ThreadInfo[] threadInfos = threadBean.getThreadInfo(Arrays.copyOf(unnamed, unnamedCount));
+            for (ThreadInfo threadInfo : threadInfos) {
+                if (threadInfo != null) {
+                    threadNames[Arrays.binarySearch(threadIds, threadInfo.getThreadId())] = threadInfo.getThreadName();
+                }
+            }
+        }
+        return threadNames;
+    }
+
+    private AttributeList getOperatingSystemAttributes(MBeanServerConnection connection) throws IOException {
+        try {
+            return connection.getAttributes(OPERATING_SYSTEM, OPERATING_SYSTEM_ATTRIBUTES);
+        } catch (JMException e) {
+            logger.debug("Unable to read the process CPU time", e);
+        }
+        return new AttributeList();
+    }
+
+    private static IOException asIOException(UndeclaredThrowableException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        return new IOException("Unable to reach thread mbean: " + e.getCause(), e);
+    }
+}
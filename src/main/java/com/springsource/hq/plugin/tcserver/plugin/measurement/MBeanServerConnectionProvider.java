@@ -0,0 +1,43 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * Provides the connection to a tc Runtime instance's MBean server for work that is done outside of a metric
+ * collection, such as background sampling
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Implementations must be thread-safe
+ *
+ */
+public interface MBeanServerConnectionProvider {
+
+    /**
+     * @return the connection
+     * @throws IOException if the connection cannot be established
+     */
+    MBeanServerConnection getConnection() throws IOException;
+}
@@ -0,0 +1,191 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Tracks the memory pools of a single tc Runtime instance. The names of the instance's memory pool MBeans are cached
+ * for as long as the connection to the instance is unchanged so that all of the pools can be read together, and the
+ * allocation and promotion rates are computed from successive {@link YoungGenerationSample YoungGenerationSamples}.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class MemoryPoolTracker {
+
+    /**
+     * The attributes of a memory pool MBean that are read together
+     */
+    public static final List<String> POOL_ATTRIBUTES = Collections.unmodifiableList(Arrays.asList("Usage", "CollectionUsage",
+        "PeakUsage"));
+
+    private static final ObjectName MEMORY_POOLS;
+
+    private static final Pattern EDEN_POOL = Pattern.compile(".*(Eden|Nursery).*");
+
+    private static final Pattern OLD_POOL = Pattern.compile(".*(Old|Tenured).*");
+
+    private static final Pattern YOUNG_COLLECTOR = Pattern.compile(".*(Young|Scavenge|ParNew|Copy|Minor).*");
+
+    static {
+        try {
+            MEMORY_POOLS = new ObjectName("java.lang:type=MemoryPool,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Object monitor = new Object();
+
+    private final ConcurrentMap<String, YoungGenerationSample> previousSamples = new ConcurrentHashMap<String, YoungGenerationSample>();
+
+    private MBeanServerConnection connection;
+
+    private Set<ObjectName> poolNames;
+
+    /**
+     * @param objectName the name of an MBean
+     * @return <code>true</code> if the MBean is a memory pool
+     */
+    public static boolean isMemoryPool(ObjectName objectName) {
+        return MEMORY_POOLS.apply(objectName);
+    }
+
+    /**
+     * @param poolName the name of a memory pool
+     * @return <code>true</code> if the pool is the young generation's eden space
+     */
+    public static boolean isEden(String poolName) {
+        return EDEN_POOL.matcher(poolName).matches();
+    }
+
+    /**
+     * @param poolName the name of a memory pool
+     * @return <code>true</code> if the pool is the old generation
+     */
+    public static boolean isOld(String poolName) {
+        return OLD_POOL.matcher(poolName).matches();
+    }
+
+    /**
+     * Identifies the young collector: the collector that does not manage the old generation or, when every collector
+     * manages it, as G1's do, the collector whose name identifies it as a young collector
+     *
+     * @param managedPools the names of the pools managed by each collector
+     * @param oldPool the name of the old generation, or <code>null</code> if there is none
+     * @return the young collector, or <code>null</code> if it cannot be identified
+     */
+    public static ObjectName getYoungCollector(Map<ObjectName, String[]> managedPools, String oldPool) {
+        ObjectName youngCollector = null;
+        for (Map.Entry<ObjectName, String[]> entry : managedPools.entrySet()) {
+            if (oldPool != null && !Arrays.asList(entry.getValue()).contains(oldPool)) {
+                return entry.getKey();
+            }
+            String name = entry.getKey().getKeyProperty("name");
+            if (youngCollector == null && name != null && YOUNG_COLLECTOR.matcher(name).matches()) {
+                youngCollector = entry.getKey();
+            }
+        }
+        return youngCollector;
+    }
+
+    /**
+     * Returns the names of the memory pool MBeans, querying for them only when the connection has changed since they
+     * were last queried, or the names have been {@link #invalidatePoolNames() invalidated}
+     *
+     * @param connection the connection to the instance's MBean server
+     * @return the names of the memory pool MBeans
+     * @throws IOException if communication with the MBean server fails
+     */
+    public Set<ObjectName> getPoolNames(MBeanServerConnection connection) throws IOException {
+        synchronized (monitor) {
+            if (poolNames == null || this.connection != connection) {
+                poolNames = Collections.unmodifiableSet(new LinkedHashSet<ObjectName>(connection.queryNames(MEMORY_POOLS, null)));
+                this.connection = connection;
+            }
+            return poolNames;
+        }
+    }
+
+    /**
+     * Causes the memory pool MBeans to be queried again the next time that they are required
+     */
+    public void invalidatePoolNames() {
+        synchronized (monitor) {
+            poolNames = null;
+        }
+    }
+
+    /**
+     * Returns the rate of allocation since the consumer's previous sample
+     *
+     * @param consumer identifies the consumer, typically the metric
+     * @param sample the current sample
+     * @return the rate in bytes per second, or <code>-1</code> if it cannot be determined
+     */
+    public double getAllocationRate(String consumer, YoungGenerationSample sample) {
+        YoungGenerationSample previous = update(consumer, sample);
+        return previous == null ? -1 : perSecond(sample.getAllocatedSince(previous), previous, sample);
+    }
+
+    /**
+     * Returns the rate of promotion to the old generation since the consumer's previous sample
+     *
+     * @param consumer identifies the consumer, typically the metric
+     * @param sample the current sample
+     * @return the rate in bytes per second, or <code>-1</code> if it cannot be determined
+     */
+    public double getPromotionRate(String consumer, YoungGenerationSample sample) {
+        YoungGenerationSample previous = update(consumer, sample);
+        return previous == null ? -1 : perSecond(sample.getPromotedSince(previous), previous, sample);
+    }
+
+    private YoungGenerationSample update(String consumer, YoungGenerationSample sample) {
+        while (true) {
+            YoungGenerationSample previous = previousSamples.putIfAbsent(consumer, sample);
+            if (previous == null || sample.getTimestamp() <= previous.getTimestamp() || previousSamples.replace(consumer, previous, sample)) {
+                return previous;
+            }
+        }
+    }
+
+    private static double perSecond(long bytes, YoungGenerationSample previous, YoungGenerationSample sample) {
+        if (bytes < 0) {
+            return -1;
+        }
+        return bytes * 1000d / (sample.getTimestamp() - previous.getTimestamp());
+    }
+}
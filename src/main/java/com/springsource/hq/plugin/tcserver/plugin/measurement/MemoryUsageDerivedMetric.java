@@ -0,0 +1,64 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A {@link DerivedMetric} that reports the headroom of a <code>MemoryUsage</code> attribute, either as the number of
+ * free bytes, e.g. <code>free(HeapMemoryUsage)</code>, or as the percentage used, e.g. <code>percentused(Usage)</code>.
+ * The headroom is measured against the maximum size of the memory or, when the maximum is undefined (<code>-1</code>),
+ * against the committed size.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+final class MemoryUsageDerivedMetric implements DerivedMetric {
+
+    private final String usageAttribute;
+
+    private final boolean percentUsed;
+
+    MemoryUsageDerivedMetric(String usageAttribute, boolean percentUsed) {
+        this.usageAttribute = usageAttribute;
+        this.percentUsed = percentUsed;
+    }
+
+    public MetricValue getValue(DerivedMetricContext context) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        AttributeSample sample = context.sample(usageAttribute + ".used", usageAttribute + ".committed", usageAttribute + ".max");
+        double used = sample.getValue(0);
+        double limit = sample.getValue(2) < 0 ? sample.getValue(1) : sample.getValue(2);
+
+        if (percentUsed) {
+            return limit <= 0 ? MetricValue.NONE : new MetricValue(100d * used / limit);
+        }
+        return new MetricValue(Math.max(0, limit - used));
+    }
+
+    @Override
+    public String toString() {
+        return (percentUsed ? "percentused(" : "free(") + usageAttribute + ")";
+    }
+}
@@ -0,0 +1,122 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/**
+ * Caches the platform MXBean proxies of each tc Runtime instance so that a proxy, and the MBean lookup that is made
+ * when it is created, is not created on every sample. The proxies of an instance are discarded when the connection to
+ * it is re-established, as they are bound to the connection through which they were created.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class PlatformMXBeanCache {
+
+    private final ConcurrentMap<String, Proxies> proxiesByInstance = new ConcurrentHashMap<String, Proxies>();
+
+    public RuntimeMXBean getRuntimeMXBean(MBeanServerConnection connection, String instanceKey) throws IOException {
+        return getProxy(connection, instanceKey, ManagementFactory.RUNTIME_MXBEAN_NAME, RuntimeMXBean.class);
+    }
+
+    public MemoryMXBean getMemoryMXBean(MBeanServerConnection connection, String instanceKey) throws IOException {
+        return getProxy(connection, instanceKey, ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+    }
+
+    public ThreadMXBean getThreadMXBean(MBeanServerConnection connection, String instanceKey) throws IOException {
+        return getProxy(connection, instanceKey, ManagementFactory.THREAD_MXBEAN_NAME, ThreadMXBean.class);
+    }
+
+    public OperatingSystemMXBean getOperatingSystemMXBean(MBeanServerConnection connection, String instanceKey) throws IOException {
+        return getProxy(connection, instanceKey, ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME, OperatingSystemMXBean.class);
+    }
+
+    public GarbageCollectorMXBean getGarbageCollectorMXBean(MBeanServerConnection connection, String instanceKey, ObjectName collector)
+        throws IOException {
+        return getProxy(connection, instanceKey, collector.getCanonicalName(), GarbageCollectorMXBean.class);
+    }
+
+    public MemoryPoolMXBean getMemoryPoolMXBean(MBeanServerConnection connection, String instanceKey, ObjectName memoryPool)
+        throws IOException {
+        return getProxy(connection, instanceKey, memoryPool.getCanonicalName(), MemoryPoolMXBean.class);
+    }
+
+    /**
+     * Discards all of the proxies held for the given instance
+     *
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     */
+    public void invalidate(String instanceKey) {
+        proxiesByInstance.remove(instanceKey);
+    }
+
+    /**
+     * Returns the cached proxy for the given platform MXBean, creating it if the instance has no proxy for it or the
+     * instance's proxies were created through a different connection
+     *
+     * @throws IOException if communication with the MBean server fails while creating the proxy
+     * @throws IllegalArgumentException if the MBean is not a platform MXBean of the given type, as is the case for some
+     *         MXBeans of some non-Sun JVMs
+     */
+    private <T> T getProxy(MBeanServerConnection connection, String instanceKey, String objectName, Class<T> type) throws IOException {
+        Proxies proxies = proxiesByInstance.get(instanceKey);
+        if (proxies == null || proxies.connection != connection) {
+            proxies = new Proxies(connection);
+            proxiesByInstance.put(instanceKey, proxies);
+        }
+        synchronized (proxies) {
+            Object proxy = proxies.proxies.get(objectName);
+            if (!type.isInstance(proxy)) {
+                proxy = ManagementFactory.newPlatformMXBeanProxy(connection, objectName, type);
+                proxies.proxies.put(objectName, proxy);
+            }
+            return type.cast(proxy);
+        }
+    }
+
+    private static final class Proxies {
+
+        private final MBeanServerConnection connection;
+
+        private final Map<String, Object> proxies = new HashMap<String, Object>();
+
+        private Proxies(MBeanServerConnection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * A {@link DerivedMetric} that divides one attribute by another and multiplies the result by a scale, e.g.
+ * <code>ratio(currentThreadsBusy, maxThreads, 100)</code>. No value is reported while the denominator is zero.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+final class RatioDerivedMetric implements DerivedMetric {
+
+    private final String numerator;
+
+    private final String denominator;
+
+    private final double scale;
+
+    RatioDerivedMetric(String numerator, String denominator, double scale) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+        this.scale = scale;
+    }
+
+    public MetricValue getValue(DerivedMetricContext context) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        AttributeSample sample = context.sample(numerator, denominator);
+        if (sample.getValue(1) == 0) {
+            return MetricValue.NONE;
+        }
+        return new MetricValue(scale * sample.getValue(0) / sample.getValue(1));
+    }
+
+    @Override
+    public String toString() {
+        return "ratio(" + numerator + ", " + denominator + ", " + scale + ")";
+    }
+}
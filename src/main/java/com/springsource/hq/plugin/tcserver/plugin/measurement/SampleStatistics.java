@@ -0,0 +1,71 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+/**
+ * Statistics of the samples of an attribute taken during a collection interval
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class SampleStatistics {
+
+    private final int sampleCount;
+
+    private final double max;
+
+    private final double mean;
+
+    private final double percentile95;
+
+    SampleStatistics(int sampleCount, double max, double mean, double percentile95) {
+        this.sampleCount = sampleCount;
+        this.max = max;
+        this.mean = mean;
+        this.percentile95 = percentile95;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the 95th percentile, using the nearest-rank method
+     */
+    public double getPercentile95() {
+        return percentile95;
+    }
+
+    @Override
+    public String toString() {
+        return "samples=" + sampleCount + ", max=" + max + ", mean=" + mean + ", p95=" + percentile95;
+    }
+}
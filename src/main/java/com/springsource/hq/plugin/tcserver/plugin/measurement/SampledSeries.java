@@ -0,0 +1,104 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/**
+ * A ring buffer of the most recent samples of an attribute. Each consumer of the samples has its own cursor, so that
+ * each reads the statistics of the samples taken since it last read them.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class SampledSeries {
+
+    private final ObjectName objectName;
+
+    private final String attributeName;
+
+    private final double[] samples;
+
+    private final Map<String, Long> cursors = new HashMap<String, Long>();
+
+    private long sampleCount;
+
+    private volatile long lastRead = System.currentTimeMillis();
+
+    SampledSeries(ObjectName objectName, String attributeName, int capacity) {
+        this.objectName = objectName;
+        this.attributeName = attributeName;
+        this.samples = new double[capacity];
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    String getAttributeName() {
+        return attributeName;
+    }
+
+    synchronized void record(double value) {
+        samples[(int) (sampleCount % samples.length)] = value;
+        sampleCount++;
+    }
+
+    /**
+     * Returns the statistics of the samples recorded since the consumer last read them, or of all of the buffered
+     * samples if it hasn't read them before, and advances the consumer's cursor
+     *
+     * @param consumer identifies the consumer
+     * @return the statistics, or <code>null</code> if no samples have been recorded since the consumer last read them
+     */
+    synchronized SampleStatistics read(String consumer) {
+        lastRead = System.currentTimeMillis();
+
+        Long cursor = cursors.put(consumer, sampleCount);
+        long start = Math.max(cursor == null ? 0 : cursor, sampleCount - samples.length);
+        int count = (int) (sampleCount - start);
+        if (count <= 0) {
+            return null;
+        }
+
+        double[] values = new double[count];
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            values[i] = samples[(int) ((start + i) % samples.length)];
+            max = Math.max(max, values[i]);
+            sum += values[i];
+        }
+        Arrays.sort(values);
+        double percentile95 = values[(int) Math.ceil(0.95d * count) - 1];
+        return new SampleStatistics(count, max, sum / count, percentile95);
+    }
+
+    long getLastRead() {
+        return lastRead;
+    }
+}
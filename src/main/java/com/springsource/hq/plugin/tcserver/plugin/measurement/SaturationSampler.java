@@ -0,0 +1,202 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Samples attributes of a single tc Runtime instance, such as a thread pool's <code>currentThreadsBusy</code>, many
+ * times per collection interval so that short-lived saturation that falls between collections is not missed. An
+ * attribute is sampled from the first time that its statistics are read until they have not been read for a while.
+ * <p />
+ *
+ * The cost of sampling is bounded: all of an MBean's sampled attributes are read with one <code>getAttributes</code>
+ * call, the instance is sampled at a fixed period by at most one thread at a time, and the number of sampled
+ * attributes is limited.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class SaturationSampler {
+
+    private static final long SERIES_TIME_TO_IDLE = 30 * 60 * 1000;
+
+    private final Log logger = LogFactory.getLog(SaturationSampler.class);
+
+    private final String instanceKey;
+
+    private final MBeanServerConnectionProvider connectionProvider;
+
+    private final long period;
+
+    private final int maxSeries;
+
+    private final int capacity;
+
+    private final ConcurrentMap<String, SampledSeries> series = new ConcurrentHashMap<String, SampledSeries>();
+
+    private final ScheduledFuture<?> future;
+
+    /**
+     * Creates a new sampler and schedules its sampling
+     *
+     * @param instanceKey identifies the tc Runtime instance, typically its jmx.url
+     * @param connectionProvider provides the connection to the instance
+     * @param executor the executor that performs the sampling
+     * @param period the time, in milliseconds, between the end of one sample and the start of the next
+     * @param maxSeries the maximum number of attributes that are sampled
+     * @param capacity the number of samples of each attribute that are retained
+     */
+    public SaturationSampler(String instanceKey, MBeanServerConnectionProvider connectionProvider, ScheduledExecutorService executor,
+        long period, int maxSeries, int capacity) {
+        this.instanceKey = instanceKey;
+        this.connectionProvider = connectionProvider;
+        this.period = period;
+        this.maxSeries = maxSeries;
+        this.capacity = capacity;
+        this.future = executor.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                sample();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Returns the statistics of the samples of an attribute taken since the consumer last read them, starting to sample
+     * the attribute if it is not already being sampled
+     *
+     * @param objectName the MBean
+     * @param attributeName the attribute
+     * @param consumer identifies the consumer, typically the metric's alias
+     * @return the statistics, or <code>null</code> if there are no new samples
+     */
+    public SampleStatistics read(ObjectName objectName, String attributeName, String consumer) {
+        String key = getKey(objectName, attributeName);
+        SampledSeries sampledSeries = series.get(key);
+        if (sampledSeries == null) {
+            if (series.size() >= maxSeries) {
+                logger.warn("Not sampling " + attributeName + " of " + objectName + " for tc Runtime instance [" + instanceKey
+                    + "]: the limit of " + maxSeries + " sampled attributes has been reached");
+                return null;
+            }
+            SampledSeries created = new SampledSeries(objectName, attributeName, capacity);
+            SampledSeries existing = series.putIfAbsent(key, created);
+            sampledSeries = existing == null ? created : existing;
+        }
+        return sampledSeries.read(consumer);
+    }
+
+    /**
+     * Stops sampling
+     */
+    public void stop() {
+        future.cancel(false);
+        series.clear();
+    }
+
+    void sample() {
+        try {
+            removeIdleSeries(System.currentTimeMillis());
+            if (series.isEmpty()) {
+                return;
+            }
+
+            MBeanServerConnection connection = connectionProvider.getConnection();
+            for (Map.Entry<ObjectName, List<String>> entry : getAttributeNamesByObjectName().entrySet()) {
+                sample(connection, entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to sample tc Runtime instance [" + instanceKey + "]: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            // Keep the scheduled task alive
+            logger.warn("Unable to sample tc Runtime instance [" + instanceKey + "]", e);
+        }
+    }
+
+    private void sample(MBeanServerConnection connection, ObjectName objectName, List<String> attributeNames) throws IOException {
+        AttributeList attributes;
+        try {
+            attributes = connection.getAttributes(objectName, attributeNames.toArray(new String[attributeNames.size()]));
+        } catch (JMException e) {
+            logger.debug("Unable to sample " + objectName + " of tc Runtime instance [" + instanceKey + "]: " + e.getMessage(), e);
+            return;
+        }
+
+        for (Object attribute : attributes) {
+            Object value = ((Attribute) attribute).getValue();
+            SampledSeries sampledSeries = series.get(getKey(objectName, ((Attribute) attribute).getName()));
+            if (sampledSeries != null && value instanceof Number) {
+                sampledSeries.record(((Number) value).doubleValue());
+            }
+        }
+    }
+
+    private Map<ObjectName, List<String>> getAttributeNamesByObjectName() {
+        Map<ObjectName, List<String>> attributeNames = new HashMap<ObjectName, List<String>>();
+        for (SampledSeries sampledSeries : series.values()) {
+            List<String> names = attributeNames.get(sampledSeries.getObjectName());
+            if (names == null) {
+                names = new ArrayList<String>();
+                attributeNames.put(sampledSeries.getObjectName(), names);
+            }
+            names.add(sampledSeries.getAttributeName());
+        }
+        return attributeNames;
+    }
+
+    private static String getKey(ObjectName objectName, String attributeName) {
+        return objectName.getCanonicalName() + "|" + attributeName;
+    }
+
+    private void removeIdleSeries(long now) {
+        for (Iterator<SampledSeries> iterator = series.values().iterator(); iterator.hasNext();) {
+            if (now - iterator.next().getLastRead() > SERIES_TIME_TO_IDLE) {
+                iterator.remove();
+            }
+        }
+    }
+}
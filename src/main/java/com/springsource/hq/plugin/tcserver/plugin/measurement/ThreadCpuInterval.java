@@ -0,0 +1,175 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.List;
+
+/**
+ * The CPU time consumed by a JVM's threads between two {@link ThreadCpuSample samples}, divided between the threads
+ * that process requests, the JVM's own threads, such as the garbage collector's, and all other threads. Usage is
+ * reported as a percentage of the CPU capacity available to the JVM over the interval.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class ThreadCpuInterval {
+
+    private final long duration;
+
+    private final long capacity;
+
+    private final long requestCpuTime;
+
+    private final long otherCpuTime;
+
+    private final long jvmCpuTime;
+
+    private final List<HotThread> hotThreads;
+
+    ThreadCpuInterval(long duration, long capacity, long requestCpuTime, long otherCpuTime, long jvmCpuTime, List<HotThread> hotThreads) {
+        this.duration = duration;
+        this.capacity = capacity;
+        this.requestCpuTime = requestCpuTime;
+        this.otherCpuTime = otherCpuTime;
+        this.jvmCpuTime = jvmCpuTime;
+        this.hotThreads = hotThreads;
+    }
+
+    /**
+     * @return the duration of the interval, in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the percentage of the CPU capacity used by the threads that process requests
+     */
+    public double getRequestThreadUsage() {
+        return percentOfCapacity(requestCpuTime, capacity);
+    }
+
+    /**
+     * @return the percentage of the CPU capacity used by the JVM's own threads, such as the garbage collector's, or -1
+     *         if the process's CPU time is not known
+     */
+    public double getJvmThreadUsage() {
+        return jvmCpuTime < 0 ? -1 : percentOfCapacity(jvmCpuTime, capacity);
+    }
+
+    /**
+     * @return the percentage of the CPU capacity used by the Java threads that do not process requests
+     */
+    public double getOtherThreadUsage() {
+        return percentOfCapacity(otherCpuTime, capacity);
+    }
+
+    /**
+     * @return the threads that used the most CPU time, hottest first
+     */
+    public List<HotThread> getHotThreads() {
+        return hotThreads;
+    }
+
+    private static double percentOfCapacity(long cpuTime, long capacity) {
+        return capacity <= 0 ? 0 : 100d * cpuTime / capacity;
+    }
+
+    /**
+     * A thread, and the CPU time that it used during the interval, optionally with its stack trace at the end of the
+     * interval
+     * <p />
+     *
+     * <strong>Concurrent Semantics</strong><br />
+     *
+     * Immutable
+     *
+     */
+    public static final class HotThread {
+
+        private final long threadId;
+
+        private final String threadName;
+
+        private final long cpuTime;
+
+        private final double usage;
+
+        private final String[] stackTrace;
+
+        HotThread(long threadId, String threadName, long cpuTime, long capacity) {
+            this(threadId, threadName, cpuTime, percentOfCapacity(cpuTime, capacity), new String[0]);
+        }
+
+        private HotThread(long threadId, String threadName, long cpuTime, double usage, String[] stackTrace) {
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.cpuTime = cpuTime;
+            this.usage = usage;
+            this.stackTrace = stackTrace;
+        }
+
+        public long getThreadId() {
+            return threadId;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /**
+         * @return the CPU time, in nanoseconds, used during the interval
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * @return the percentage of the CPU capacity used during the interval
+         */
+        public double getUsage() {
+            return usage;
+        }
+
+        public String[] getStackTrace() {
+            return stackTrace.clone();
+        }
+
+        /**
+         * @param stackTrace the thread's stack trace
+         * @return a copy of this thread with the stack trace
+         */
+        public HotThread withStackTrace(StackTraceElement[] stackTrace) {
+            String[] frames = new String[stackTrace.length];
+            for (int i = 0; i < stackTrace.length; i++) {
+                frames[i] = stackTrace[i].toString();
+            }
+            return new HotThread(threadId, threadName, cpuTime, usage, frames);
+        }
+
+        @Override
+        public String toString() {
+            return threadName + " [id=" + threadId + ", cpu=" + cpuTime / 1000000L + "ms, " + String.format("%.1f", usage) + "%]";
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The CPU time consumed by each of a JVM's live threads at a point in time, together with the CPU time consumed by the
+ * whole process. Thread ids are held in ascending order so that two samples can be compared in a single pass.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class ThreadCpuSample {
+
+    private final long timestamp;
+
+    private final long[] threadIds;
+
+    private final String[] threadNames;
+
+    private final long[] cpuTimes;
+
+    private final long processCpuTime;
+
+    private final int processors;
+
+    /**
+     * Creates a new sample
+     *
+     * @param timestamp the time, in milliseconds, at which the sample was taken
+     * @param threadIds the ids of the live threads, in ascending order
+     * @param threadNames the names of the threads, indexed as the ids
+     * @param cpuTimes the CPU time, in nanoseconds, consumed by each thread, or -1 if it is not known
+     * @param processCpuTime the CPU time, in nanoseconds, consumed by the process, or -1 if it is not known
+     * @param processors the number of processors available to the JVM
+     */
+    ThreadCpuSample(long timestamp, long[] threadIds, String[] threadNames, long[] cpuTimes, long processCpuTime, int processors) {
+        this.timestamp = timestamp;
+        this.threadIds = threadIds;
+        this.threadNames = threadNames;
+        this.cpuTimes = cpuTimes;
+        this.processCpuTime = processCpuTime;
+        this.processors = Math.max(1, processors);
+    }
+
+    /**
+     * @return the time, in milliseconds, at which the sample was taken
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getThreadCount() {
+        return threadIds.length;
+    }
+
+    /**
+     * @param threadId the thread's id
+     * @return the thread's name, or <code>null</code> if the thread is not in the sample
+     */
+    public String getThreadName(long threadId) {
+        int index = indexOf(threadId);
+        return index < 0 ? null : threadNames[index];
+    }
+
+    int indexOf(long threadId) {
+        int low = 0;
+        int high = threadIds.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (threadIds[middle] < threadId) {
+                low = middle + 1;
+            } else if (threadIds[middle] > threadId) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Attributes the CPU time consumed since a previous sample to the threads that consumed it. A thread that is not in
+     * the previous sample started during the interval, so all of its CPU time was consumed during the interval. The CPU
+     * time of threads that ended during the interval cannot be attributed and is lost. CPU time consumed by the process
+     * but not by any of its Java threads was consumed by the JVM's own threads, predominantly the garbage collector's.
+     *
+     * @param previous the previous sample
+     * @param requestThreads matches the names of the threads that process requests
+     * @param limit the number of hottest threads to identify
+     * @return the interval, or <code>null</code> if the previous sample is not earlier than this one or the JVM has
+     *         restarted since it was taken
+     */
+    public ThreadCpuInterval since(ThreadCpuSample previous, Pattern requestThreads, int limit) {
+        if (previous == null || previous.timestamp >= timestamp) {
+            return null;
+        }
+        if (processCpuTime >= 0 && previous.processCpuTime >= 0 && processCpuTime < previous.processCpuTime) {
+            return null;
+        }
+
+        long requestCpuTime = 0;
+        long otherCpuTime = 0;
+        int[] hottestIndexes = new int[Math.max(0, limit)];
+        long[] hottestCpuTimes = new long[hottestIndexes.length];
+        int hottest = 0;
+
+        int previousIndex = 0;
+        for (int i = 0; i < threadIds.length; i++) {
+            if (cpuTimes[i] < 0) {
+                continue;
+            }
+            while (previousIndex < previous.threadIds.length && previous.threadIds[previousIndex] < threadIds[i]) {
+                previousIndex++;
+            }
+            long cpuTime = cpuTimes[i];
+            if (previousIndex < previous.threadIds.length && previous.threadIds[previousIndex] == threadIds[i]) {
+                long previousCpuTime = previous.cpuTimes[previousIndex];
+                if (previousCpuTime < 0) {
+                    continue;
+                }
+                cpuTime = Math.max(0, cpuTime - previousCpuTime);
+            }
+
+            if (threadNames[i] != null && requestThreads.matcher(threadNames[i]).matches()) {
+                requestCpuTime += cpuTime;
+            } else {
+                otherCpuTime += cpuTime;
+            }
+
+            if (cpuTime > 0 && (hottest < hottestIndexes.length || cpuTime > hottestCpuTimes[hottest - 1])) {
+                int position = hottest < hottestIndexes.length ? hottest++ : hottest - 1;
+                while (position > 0 && hottestCpuTimes[position - 1] < cpuTime) {
+                    hottestIndexes[position] = hottestIndexes[position - 1];
+                    hottestCpuTimes[position] = hottestCpuTimes[position - 1];
+                    position--;
+                }
+                hottestIndexes[position] = i;
+                hottestCpuTimes[position] = cpuTime;
+            }
+        }
+
+        long capacity = (timestamp - previous.timestamp) * 1000000L * processors;
+        List<ThreadCpuInterval.HotThread> hotThreads = new ArrayList<ThreadCpuInterval.HotThread>(hottest);
+        for (int i = 0; i < hottest; i++) {
+            int index = hottestIndexes[i];
+            hotThreads.add(new ThreadCpuInterval.HotThread(threadIds[index], threadNames[index], hottestCpuTimes[i], capacity));
+        }
+
+        long jvmCpuTime = -1;
+        if (processCpuTime >= 0 && previous.processCpuTime >= 0) {
+            jvmCpuTime = Math.max(0, processCpuTime - previous.processCpuTime - requestCpuTime - otherCpuTime);
+        }
+        return new ThreadCpuInterval(timestamp - previous.timestamp, capacity, requestCpuTime, otherCpuTime, jvmCpuTime,
+            Collections.unmodifiableList(hotThreads));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * The state of a JVM's young generation at a point in time: the occupancy of the eden space, the number of young
+ * collections, and the occupancy of the eden space and old generation before and after the most recent young
+ * collection. Values that are not known are <code>-1</code>.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Immutable
+ *
+ */
+public final class YoungGenerationSample {
+
+    private final long timestamp;
+
+    private final long edenUsed;
+
+    private final long collectionCount;
+
+    private final long edenUsedBeforeGc;
+
+    private final long edenUsedAfterGc;
+
+    private final long oldUsedBeforeGc;
+
+    private final long oldUsedAfterGc;
+
+    /**
+     * Creates a new sample
+     *
+     * @param timestamp the time, in milliseconds, at which the sample was taken
+     * @param edenUsed the occupancy of the eden space
+     * @param collectionCount the number of young collections
+     * @param lastGcInfo the young collector's <code>LastGcInfo</code>, or <code>null</code> if it is not available
+     * @param edenPool the name of the eden space memory pool
+     * @param oldPool the name of the old generation memory pool, or <code>null</code> if there is none
+     */
+    public YoungGenerationSample(long timestamp, long edenUsed, long collectionCount, CompositeData lastGcInfo, String edenPool,
+        String oldPool) {
+        this.timestamp = timestamp;
+        this.edenUsed = edenUsed;
+        this.collectionCount = collectionCount;
+        this.edenUsedBeforeGc = getUsed(lastGcInfo, "memoryUsageBeforeGc", edenPool);
+        this.edenUsedAfterGc = getUsed(lastGcInfo, "memoryUsageAfterGc", edenPool);
+        this.oldUsedBeforeGc = getUsed(lastGcInfo, "memoryUsageBeforeGc", oldPool);
+        this.oldUsedAfterGc = getUsed(lastGcInfo, "memoryUsageAfterGc", oldPool);
+    }
+
+    private static long getUsed(CompositeData gcInfo, String key, String pool) {
+        if (gcInfo == null || pool == null || !gcInfo.containsKey(key) || !(gcInfo.get(key) instanceof TabularData)) {
+            return -1;
+        }
+        CompositeData row = ((TabularData) gcInfo.get(key)).get(new Object[] { pool });
+        if (row == null || !(row.get("value") instanceof CompositeData)) {
+            return -1;
+        }
+        Object used = ((CompositeData) row.get("value")).get("used");
+        return used instanceof Number ? ((Number) used).longValue() : -1;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getCollectionCount() {
+        return collectionCount;
+    }
+
+    /**
+     * Returns the number of bytes allocated since an earlier sample. Allocation between collections is measured by the
+     * growth of the eden space. The allocation during an interval with collections is estimated from the eden space's
+     * occupancy before and after the most recent collection, on the assumption that each collection in the interval
+     * emptied a similarly full eden space.
+     *
+     * @param previous the earlier sample
+     * @return the number of bytes, or <code>-1</code> if it cannot be determined
+     */
+    public long getAllocatedSince(YoungGenerationSample previous) {
+        long collections = collectionCount - previous.collectionCount;
+        if (!isLaterThan(previous) || collections < 0) {
+            return -1;
+        }
+        if (collections == 0) {
+            return edenUsed >= previous.edenUsed ? edenUsed - previous.edenUsed : -1;
+        }
+        if (edenUsedBeforeGc < 0 || edenUsedAfterGc < 0) {
+            return -1;
+        }
+        long beforeFirstCollection = Math.max(0, edenUsedBeforeGc - previous.edenUsed);
+        long betweenCollections = (collections - 1) * Math.max(0, edenUsedBeforeGc - edenUsedAfterGc);
+        long sinceLastCollection = Math.max(0, edenUsed - edenUsedAfterGc);
+        return beforeFirstCollection + betweenCollections + sinceLastCollection;
+    }
+
+    /**
+     * Returns the number of bytes promoted to the old generation by the young collections since an earlier sample,
+     * estimated from the old generation's growth during the most recent collection
+     *
+     * @param previous the earlier sample
+     * @return the number of bytes, or <code>-1</code> if it cannot be determined
+     */
+    public long getPromotedSince(YoungGenerationSample previous) {
+        long collections = collectionCount - previous.collectionCount;
+        if (!isLaterThan(previous) || collections < 0) {
+            return -1;
+        }
+        if (collections == 0) {
+            return 0;
+        }
+        if (oldUsedBeforeGc < 0 || oldUsedAfterGc < 0) {
+            return -1;
+        }
+        return collections * Math.max(0, oldUsedAfterGc - oldUsedBeforeGc);
+    }
+
+    private boolean isLaterThan(YoungGenerationSample previous) {
+        return timestamp > previous.timestamp;
+    }
+}
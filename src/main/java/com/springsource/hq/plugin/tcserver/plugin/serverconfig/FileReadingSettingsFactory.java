@@ -31,6 +31,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.hyperic.hq.product.Metric;
 import org.hyperic.hq.product.PlatformDetector;
 import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.jmx.MxUtil;
 import org.hyperic.util.config.ConfigResponse;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
@@ -38,6 +39,7 @@ import org.springframework.core.io.support.PropertiesLoaderUtils;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.CollectorStatistics;
 import com.springsource.hq.plugin.tcserver.plugin.serverconfig.context.ContextContainerConverter;
 import com.springsource.hq.plugin.tcserver.plugin.serverconfig.environment.EnvironmentFactory;
 import com.springsource.hq.plugin.tcserver.plugin.serverconfig.environment.UnixFileReadingEnvironmentFactory;
@@ -84,6 +86,8 @@ public class FileReadingSettingsFactory implements SettingsFactory {
     private XmlParser contextXmlParser = new ContextXmlParser();
 
     public Settings create(final ConfigResponse config) throws PluginException {
+        long start = System.nanoTime();
+        boolean failed = true;
         try {
             final Settings settings = new Settings();
             Properties catalinaProperties = loadCatalinaProperties(config);
@@ -91,9 +95,13 @@ public class FileReadingSettingsFactory implements SettingsFactory {
             loadContextXml(config, settings.getConfiguration(), catalinaProperties);
             loadWebXml(config, settings.getConfiguration(), catalinaProperties);
             settings.getConfiguration().setEnvironment(environmentFactory.create(config));
+            failed = false;
             return settings;
         } catch (Exception e) {
             throw new PluginException("Unable to read existing tc Runtime configuration.  Cause: " + e.getMessage(), e);
+        } finally {
+            CollectorStatistics.forInstance(config.getValue(MxUtil.PROP_JMX_URL)).record(CollectorStatistics.SERVER_CONFIG,
+                System.nanoTime() - start, failed);
         }
     }
 
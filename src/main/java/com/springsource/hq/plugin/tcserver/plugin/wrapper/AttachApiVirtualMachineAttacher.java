@@ -0,0 +1,129 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Properties;
+
+/**
+ * A {@link VirtualMachineAttacher} that uses the JDK's Attach API. The API is used reflectively, as it is not on the
+ * agent's class path when the agent runs on a Java 6, 7 or 8 JDK, where it is loaded from the JDK's
+ * <code>lib/tools.jar</code>, and is not available at all when the agent runs on a JRE.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+final class AttachApiVirtualMachineAttacher implements VirtualMachineAttacher {
+
+    private static final String VIRTUAL_MACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+
+    private static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+    private final Object monitor = new Object();
+
+    private Class<?> virtualMachineClass;
+
+    public String getLocalConnectorAddress(String id, String catalinaBase) throws IOException {
+        Class<?> virtualMachineClass = getVirtualMachineClass();
+        Object virtualMachine = invoke(getMethod(virtualMachineClass, "attach", String.class), null, id);
+        try {
+            Properties systemProperties = (Properties) invoke(getMethod(virtualMachineClass, "getSystemProperties"), virtualMachine);
+            if (!isSameDirectory(catalinaBase, systemProperties.getProperty("catalina.base"))) {
+                return null;
+            }
+
+            return getAgentProperty(virtualMachineClass, virtualMachine, LOCAL_CONNECTOR_ADDRESS);
+        } finally {
+            invoke(getMethod(virtualMachineClass, "detach"), virtualMachine);
+        }
+    }
+
+    private static String getAgentProperty(Class<?> virtualMachineClass, Object virtualMachine, String name) throws IOException {
+        return ((Properties) invoke(getMethod(virtualMachineClass, "getAgentProperties"), virtualMachine)).getProperty(name);
+    }
+
+    private static boolean isSameDirectory(String expected, String actual) {
+        if (expected == null || actual == null) {
+            return false;
+        }
+        try {
+            return new File(expected).getCanonicalFile().equals(new File(actual).getCanonicalFile());
+        } catch (IOException e) {
+            return expected.equals(actual);
+        }
+    }
+
+    private Class<?> getVirtualMachineClass() throws IOException {
+        synchronized (monitor) {
+            if (virtualMachineClass == null) {
+                virtualMachineClass = loadVirtualMachineClass();
+            }
+            return virtualMachineClass;
+        }
+    }
+
+    private static Class<?> loadVirtualMachineClass() throws IOException {
+        try {
+            return Class.forName(VIRTUAL_MACHINE_CLASS);
+        } catch (ClassNotFoundException e) {
+            File toolsJar = new File(System.getProperty("java.home"), ".." + File.separator + "lib" + File.separator + "tools.jar");
+            if (!toolsJar.isFile()) {
+                throw new IOException("The Attach API is not available: " + toolsJar + " does not exist");
+            }
+            try {
+                return Class.forName(VIRTUAL_MACHINE_CLASS, true, new URLClassLoader(new URL[] { toolsJar.toURI().toURL() },
+                    AttachApiVirtualMachineAttacher.class.getClassLoader()));
+            } catch (ClassNotFoundException cnfe) {
+                throw new IOException("The Attach API is not available in " + toolsJar, cnfe);
+            }
+        }
+    }
+
+    private static Method getMethod(Class<?> type, String name, Class<?>... parameterTypes) throws IOException {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new IOException("The Attach API is not supported: " + e.getMessage(), e);
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Attach failed: " + cause, cause);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Attach failed: " + e, e);
+        } catch (SecurityException e) {
+            throw new IOException("Attach is not permitted: " + e, e);
+        }
+    }
+}
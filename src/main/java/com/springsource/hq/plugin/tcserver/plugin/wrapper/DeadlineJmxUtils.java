@@ -0,0 +1,548 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ReflectionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.jmx.MxUtil;
+import org.hyperic.util.config.ConfigResponse;
+
+import com.springsource.hq.plugin.tcserver.plugin.DaemonThreadFactory;
+
+/**
+ * A {@link JmxUtils} that bounds the time that its callers wait for every JMX round-trip, including the round-trips
+ * made through the connections that it returns, so that an instance that has stopped responding, e.g. during a long
+ * garbage collection pause, cannot stall the agent's collection of the other instances.
+ * <p />
+ *
+ * Round-trips are made on a small pool of daemon threads of each instance's own. A caller whose round-trip exceeds its
+ * deadline is failed with an {@link InterruptedIOException}, or a {@link MetricUnreachableException} from
+ * {@link #invoke}, and the instance's connection is discarded by the {@link JmxConnectionManager}. Interrupting a
+ * thread does not unblock an RMI read, so it is closing the discarded connection's connector that frees the threads of
+ * hung round-trips. As each instance has its own threads, a hung instance cannot delay the round-trips to any other.
+ * <p />
+ *
+ * Collection and {@link #forApplicationManagement application management} use separate pools, so that neither can
+ * take the threads that the other needs. While all of an instance's collection threads are busy, further round-trips
+ * to collect its metrics fail immediately. Application management round-trips instead wait, within their deadline, for
+ * one of the {@link #MAX_APPLICATION_MANAGEMENT_IN_FLIGHT_PER_INSTANCE} threads of their own pool. Reads that the
+ * PDK makes through its own connection can be bounded in the same way with {@link #executeCollection}.
+ * <p />
+ *
+ * The deadline, in milliseconds, of each class of operation is taken from the instance's configuration:
+ * <ul>
+ * <li>{@link #PROP_METRIC_TIMEOUT}: connections, attribute reads and any other operation</li>
+ * <li>{@link #PROP_DEPLOY_TIMEOUT}: deploying and undeploying applications</li>
+ * <li>{@link #PROP_LIST_APPLICATIONS_TIMEOUT}: listing applications</li>
+ * </ul>
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class DeadlineJmxUtils implements JmxUtils {
+
+    public static final String PROP_METRIC_TIMEOUT = "jmx.timeout.metric";
+
+    public static final String PROP_DEPLOY_TIMEOUT = "jmx.timeout.deploy";
+
+    public static final String PROP_LIST_APPLICATIONS_TIMEOUT = "jmx.timeout.listApplications";
+
+    /**
+     * The default length of time, in milliseconds, that an operation made to collect metrics may take
+     */
+    public static final long DEFAULT_METRIC_TIMEOUT = 30000;
+
+    static final long DEFAULT_DEPLOY_TIMEOUT = 300000;
+
+    static final long DEFAULT_LIST_APPLICATIONS_TIMEOUT = 60000;
+
+    static final int MAX_IN_FLIGHT_PER_INSTANCE = 4;
+
+    /**
+     * The maximum number of application management round-trips that may be in flight to an instance at once
+     */
+    public static final int MAX_APPLICATION_MANAGEMENT_IN_FLIGHT_PER_INSTANCE = 8;
+
+    private static final long THREAD_KEEP_ALIVE = 60000;
+
+    private static final InstanceThreads COLLECTION_THREADS = new InstanceThreads("tc Runtime JMX ", MAX_IN_FLIGHT_PER_INSTANCE, false);
+
+    private static final InstanceThreads APPLICATION_MANAGEMENT_THREADS = new InstanceThreads("tc Runtime application management JMX ",
+        MAX_APPLICATION_MANAGEMENT_IN_FLIGHT_PER_INSTANCE, true);
+
+    private static final Log LOGGER = LogFactory.getLog(DeadlineJmxUtils.class);
+
+    private final JmxUtils delegate;
+
+    private final JmxConnectionManager connectionManager;
+
+    private final InstanceThreads threads;
+
+    private final Map<MBeanServerConnection, WeakReference<MBeanServerConnection>> connections =
+        new WeakHashMap<MBeanServerConnection, WeakReference<MBeanServerConnection>>();
+
+    /**
+     * @param delegate the JmxUtils that makes the round-trips through the plugin's shared connections
+     */
+    public DeadlineJmxUtils(JmxUtils delegate) {
+        this(delegate, JmxConnectionManager.getInstance());
+    }
+
+    DeadlineJmxUtils(JmxUtils delegate, JmxConnectionManager connectionManager) {
+        this(delegate, connectionManager, COLLECTION_THREADS);
+    }
+
+    private DeadlineJmxUtils(JmxUtils delegate, JmxConnectionManager connectionManager, InstanceThreads threads) {
+        this.delegate = delegate;
+        this.connectionManager = connectionManager;
+        this.threads = threads;
+    }
+
+    /**
+     * Creates a DeadlineJmxUtils for application management, whose round-trips are made on threads that collection
+     * does not use, and wait for one of those threads rather than failing while they are all busy
+     *
+     * @param delegate the JmxUtils that makes the round-trips through the plugin's shared connections
+     * @return the DeadlineJmxUtils
+     */
+    public static DeadlineJmxUtils forApplicationManagement(JmxUtils delegate) {
+        return forApplicationManagement(delegate, JmxConnectionManager.getInstance());
+    }
+
+    static DeadlineJmxUtils forApplicationManagement(JmxUtils delegate, JmxConnectionManager connectionManager) {
+        return new DeadlineJmxUtils(delegate, connectionManager, APPLICATION_MANAGEMENT_THREADS);
+    }
+
+    public MBeanServerConnection getMBeanServer(final Properties configProperties) throws MalformedURLException, IOException {
+        try {
+            MBeanServerConnection connection = execute(configProperties, getTimeout(configProperties, PROP_METRIC_TIMEOUT),
+                "connect", null, new Callable<MBeanServerConnection>() {
+
+                    public MBeanServerConnection call() throws IOException {
+                        return delegate.getMBeanServer(configProperties);
+                    }
+                });
+            return withDeadlines(connection, configProperties);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw unexpected(e);
+        }
+    }
+
+    public Object getValue(final Properties configProperties, final String appObjectName, final String string)
+        throws MalformedObjectNameException, AttributeNotFoundException, InstanceNotFoundException, MalformedURLException, MBeanException,
+        ReflectionException, PluginException, IOException {
+        try {
+            Object value = execute(configProperties, getTimeout(configProperties, PROP_METRIC_TIMEOUT), "getAttribute " + string + " of "
+                + appObjectName, null, new Callable<Object>() {
+
+                public Object call() throws Exception {
+                    return delegate.getValue(configProperties, appObjectName, string);
+                }
+            });
+            connectionManager.connectionSucceeded(configProperties, null);
+            return value;
+        } catch (IOException e) {
+            throw e;
+        } catch (MalformedObjectNameException e) {
+            throw e;
+        } catch (AttributeNotFoundException e) {
+            throw e;
+        } catch (InstanceNotFoundException e) {
+            throw e;
+        } catch (MBeanException e) {
+            throw e;
+        } catch (ReflectionException e) {
+            throw e;
+        } catch (PluginException e) {
+            throw e;
+        } catch (Exception e) {
+            throw unexpected(e);
+        }
+    }
+
+    public Object invoke(final Properties configProperties, final String objectName, final String string, final Object[] objects,
+        final String[] strings) throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        try {
+            Object result = execute(configProperties, getTimeout(configProperties, getTimeoutProperty(string)), "invoke " + string + " on "
+                + objectName, null, new Callable<Object>() {
+
+                public Object call() throws Exception {
+                    return delegate.invoke(configProperties, objectName, string, objects, strings);
+                }
+            });
+            connectionManager.connectionSucceeded(configProperties, null);
+            return result;
+        } catch (IOException e) {
+            throw new MetricUnreachableException(e.getMessage(), e);
+        } catch (MetricUnreachableException e) {
+            throw e;
+        } catch (PluginException e) {
+            throw e;
+        } catch (Exception e) {
+            throw unexpected(e);
+        }
+    }
+
+    public String getJmxUrlProperty() {
+        return delegate.getJmxUrlProperty();
+    }
+
+    public boolean checkConnection(ConfigResponse config) {
+        try {
+            getMBeanServer(config.toProperties());
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Connection check failed", e);
+            return false;
+        }
+    }
+
+    static String getTimeoutProperty(String operationName) {
+        if ("deployApplication".equals(operationName) || "undeployApplication".equals(operationName)) {
+            return PROP_DEPLOY_TIMEOUT;
+        } else if ("listApplications".equals(operationName)) {
+            return PROP_LIST_APPLICATIONS_TIMEOUT;
+        }
+        return PROP_METRIC_TIMEOUT;
+    }
+
+    /**
+     * Returns the timeout of a JMX operation, so that a caller can bound a task made of several round trips
+     *
+     * @param configProperties the instance's configuration, which may override the default timeouts
+     * @param operationName the name of the MBean operation, or of the round trip, e.g. <code>getAttribute</code>
+     * @return the milliseconds within which the operation either completes or fails
+     */
+    public static long getOperationTimeout(Properties configProperties, String operationName) {
+        return getTimeout(configProperties, getTimeoutProperty(operationName));
+    }
+
+    private static long getTimeout(Properties configProperties, String name) {
+        long defaultTimeout = PROP_DEPLOY_TIMEOUT.equals(name) ? DEFAULT_DEPLOY_TIMEOUT
+            : PROP_LIST_APPLICATIONS_TIMEOUT.equals(name) ? DEFAULT_LIST_APPLICATIONS_TIMEOUT : DEFAULT_METRIC_TIMEOUT;
+        String value = configProperties.getProperty(name);
+        if (value != null && value.trim().length() > 0) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Ignoring invalid " + name + " value [" + value + "]");
+            }
+        }
+        return defaultTimeout;
+    }
+
+    /**
+     * Runs the task on the instance's pool and waits for it until the deadline
+     *
+     * @param connection the connection on which the task makes its round-trip, or <code>null</code> if it uses the
+     *        instance's shared connection
+     * @throws InterruptedIOException if the deadline passes or the caller is interrupted
+     * @throws IOException if the instance has too many round-trips in flight
+     * @throws Exception the exception thrown by the task
+     */
+    private <T> T execute(Properties configProperties, long timeout, String description, MBeanServerConnection connection,
+        Callable<T> task) throws Exception {
+        return execute(threads, configProperties, configProperties.getProperty(getJmxUrlProperty()), timeout, description,
+            connectionManager, connection, task);
+    }
+
+    /**
+     * Runs a task that collects a metric through a connection other than the plugin's, e.g. the PDK's standard
+     * collection through MxUtil's own connection, on the instance's collection threads and waits for it until the
+     * metric deadline. The other connection is left as it is if the deadline passes.
+     *
+     * @param configProperties the instance's configuration
+     * @param description describes the task in the exception thrown if its deadline passes
+     * @param task the task
+     * @return the task's result
+     * @throws InterruptedIOException if the deadline passes or the caller is interrupted
+     * @throws IOException if the instance has too many round-trips in flight
+     * @throws Exception the exception thrown by the task
+     */
+    public static <T> T executeCollection(Properties configProperties, String description, Callable<T> task) throws Exception {
+        return execute(COLLECTION_THREADS, configProperties, configProperties.getProperty(MxUtil.PROP_JMX_URL),
+            getTimeout(configProperties, PROP_METRIC_TIMEOUT), description, null, null, task);
+    }
+
+    /**
+     * @param connectionManager the manager that discards the connection if the deadline passes, or <code>null</code> if
+     *        the task does not use the plugin's connections
+     */
+    private static <T> T execute(InstanceThreads threads, Properties configProperties, String jmxUrl, long timeout,
+        String description, JmxConnectionManager connectionManager, MBeanServerConnection connection, Callable<T> task)
+        throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        Future<T> future = threads.submit(jmxUrl, description, task, timeout);
+
+        try {
+            return future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (Exception) e.getCause();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            if (connectionManager != null) {
+                connectionManager.connectionTimedOut(configProperties, connection);
+            }
+            throw new InterruptedIOException(description + " on [" + jmxUrl + "] did not complete within " + timeout + "ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + description + " on [" + jmxUrl + "]");
+        }
+    }
+
+    private static IllegalStateException unexpected(Exception e) {
+        return new IllegalStateException("Unexpected exception from JMX operation: " + e, e);
+    }
+
+    private MBeanServerConnection withDeadlines(MBeanServerConnection connection, Properties configProperties) {
+        synchronized (connections) {
+            WeakReference<MBeanServerConnection> reference = connections.get(connection);
+            MBeanServerConnection bounded = reference == null ? null : reference.get();
+            if (bounded == null) {
+                Properties connectionConfig = new Properties();
+                connectionConfig.putAll(configProperties);
+                bounded = (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+                    new Class<?>[] { MBeanServerConnection.class }, new DeadlineInvocationHandler(connection, connectionConfig));
+                connections.put(connection, new WeakReference<MBeanServerConnection>(bounded));
+            }
+            return bounded;
+        }
+    }
+
+    private final class DeadlineInvocationHandler implements InvocationHandler {
+
+        private final MBeanServerConnection connection;
+
+        private final Properties configProperties;
+
+        private DeadlineInvocationHandler(MBeanServerConnection connection, Properties configProperties) {
+            this.connection = connection;
+            this.configProperties = configProperties;
+        }
+
+        public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+
+            String timeoutProperty = "invoke".equals(method.getName()) && args != null && args.length > 1 && args[1] instanceof String
+                ? getTimeoutProperty((String) args[1]) : PROP_METRIC_TIMEOUT;
+            Object result = execute(configProperties, getTimeout(configProperties, timeoutProperty), method.getName(), connection,
+                new Callable<Object>() {
+
+                    public Object call() throws Exception {
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            if (e.getCause() instanceof Error) {
+                                throw (Error) e.getCause();
+                            }
+                            throw (Exception) e.getCause();
+                        }
+                    }
+                });
+            connectionManager.connectionSucceeded(configProperties, connection);
+            return result;
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            return "Deadline bounded " + connection;
+        }
+    }
+
+    /**
+     * The threads, for one purpose, of each instance. An executor's threads time out when idle, so the executor of an
+     * instance that is no longer used holds no threads.
+     */
+    private static final class InstanceThreads {
+
+        private final String threadNamePrefix;
+
+        private final int maxInFlight;
+
+        private final boolean waitForThread;
+
+        private final ConcurrentMap<String, Threads> instances = new ConcurrentHashMap<String, Threads>();
+
+        private InstanceThreads(String threadNamePrefix, int maxInFlight, boolean waitForThread) {
+            this.threadNamePrefix = threadNamePrefix;
+            this.maxInFlight = maxInFlight;
+            this.waitForThread = waitForThread;
+        }
+
+        /**
+         * Submits the task to one of the instance's threads, waiting for up to the timeout for a thread to be free if
+         * this pool waits rather than failing
+         *
+         * @throws IOException if no thread is free
+         * @throws InterruptedIOException if the caller is interrupted while waiting for a thread
+         */
+        <T> Future<T> submit(String jmxUrl, String description, final Callable<T> task, long timeout) throws IOException {
+            final Threads instanceThreads = getThreads(jmxUrl);
+            if (instanceThreads.permits == null) {
+                try {
+                    return instanceThreads.executor.submit(task);
+                } catch (RejectedExecutionException e) {
+                    throw new IOException("Not attempting " + description + " as " + maxInFlight + " earlier JMX operations on ["
+                        + jmxUrl + "] have not completed");
+                }
+            }
+
+            try {
+                if (!instanceThreads.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Not attempting " + description + " as " + maxInFlight + " earlier JMX operations on ["
+                        + jmxUrl + "] did not complete within " + timeout + "ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to attempt " + description + " on [" + jmxUrl + "]");
+            }
+            PermitHoldingTask<T> future = new PermitHoldingTask<T>(task, instanceThreads.permits);
+            instanceThreads.executor.execute(future);
+            return future;
+        }
+
+        private Threads getThreads(String jmxUrl) {
+            String key = String.valueOf(jmxUrl);
+            Threads instanceThreads = instances.get(key);
+            if (instanceThreads == null) {
+                instanceThreads = new Threads(threadNamePrefix + key, maxInFlight, waitForThread);
+                Threads existing = instances.putIfAbsent(key, instanceThreads);
+                if (existing != null) {
+                    instanceThreads = existing;
+                }
+            }
+            return instanceThreads;
+        }
+    }
+
+    private static final class Threads {
+
+        private final ThreadPoolExecutor executor;
+
+        private final Semaphore permits;
+
+        private Threads(String name, int maxInFlight, boolean waitForThread) {
+            if (waitForThread) {
+                // The permits bound the tasks, so the queue only holds a task until a thread that is finishing is free
+                this.executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(name));
+                this.executor.allowCoreThreadTimeOut(true);
+                this.permits = new Semaphore(maxInFlight, true);
+            } else {
+                this.executor = new ThreadPoolExecutor(0, maxInFlight, THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<Runnable>(), new DaemonThreadFactory(name));
+                this.permits = null;
+            }
+        }
+    }
+
+    /**
+     * Holds one of an instance's permits until its round-trip ends, rather than until its caller stops waiting for it, so
+     * that round-trips that have outlived their deadline still count against the instance. A task that is cancelled
+     * before it starts never runs, so it releases its permit when it is cancelled.
+     */
+    private static final class PermitHoldingTask<T> extends FutureTask<T> {
+
+        private final Semaphore permits;
+
+        private final AtomicBoolean held = new AtomicBoolean(true);
+
+        private volatile boolean started;
+
+        private PermitHoldingTask(Callable<T> task, Semaphore permits) {
+            super(task);
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            try {
+                super.run();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (!started) {
+                release();
+            }
+        }
+
+        private void release() {
+            if (held.compareAndSet(true, false)) {
+                permits.release();
+            }
+        }
+    }
+}
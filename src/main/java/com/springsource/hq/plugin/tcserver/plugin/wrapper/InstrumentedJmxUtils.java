@@ -0,0 +1,223 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.hyperic.hq.product.MetricNotFoundException;
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.hq.product.PluginException;
+import org.hyperic.util.config.ConfigResponse;
+
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.CollectorStatistics;
+
+/**
+ * A {@link JmxUtils} that records the time taken by every JMX round-trip in the {@link CollectorStatistics} of the
+ * instance that it is made to, including the round-trips made through the connections that it returns.
+ * <p />
+ *
+ * The connections that it returns wrap those returned by the delegate. The same wrapper is returned for as long as the
+ * delegate returns the same connection, so that callers that cache state per connection are unaffected.
+ * <p />
+ *
+ * Round-trips that do not complete within their deadline, whichever path they are made through, are also recorded as
+ * {@link CollectorStatistics#JMX_TIMEOUT timeouts}.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class InstrumentedJmxUtils implements JmxUtils {
+
+    private final JmxUtils delegate;
+
+    private final String operation;
+
+    private final Map<MBeanServerConnection, WeakReference<MBeanServerConnection>> connections =
+        new WeakHashMap<MBeanServerConnection, WeakReference<MBeanServerConnection>>();
+
+    /**
+     * @param delegate the JmxUtils that makes the round-trips
+     * @param operation the operation under which the round-trips are recorded, e.g. {@link CollectorStatistics#JMX}
+     */
+    public InstrumentedJmxUtils(JmxUtils delegate, String operation) {
+        this.delegate = delegate;
+        this.operation = operation;
+    }
+
+    public MBeanServerConnection getMBeanServer(Properties configProperties) throws MalformedURLException, IOException {
+        CollectorStatistics statistics = getStatistics(configProperties);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            MBeanServerConnection connection = delegate.getMBeanServer(configProperties);
+            failed = false;
+            return instrument(connection, statistics);
+        } catch (IOException e) {
+            recordTimeout(statistics, e, start);
+            throw e;
+        } finally {
+            statistics.record(CollectorStatistics.JMX_CONNECT, System.nanoTime() - start, failed);
+        }
+    }
+
+    public Object getValue(Properties configProperties, String appObjectName, String string) throws MalformedObjectNameException,
+        AttributeNotFoundException, InstanceNotFoundException, MalformedURLException, MBeanException, ReflectionException, PluginException,
+        IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object value = delegate.getValue(configProperties, appObjectName, string);
+            failed = false;
+            return value;
+        } catch (IOException e) {
+            recordTimeout(getStatistics(configProperties), e, start);
+            throw e;
+        } finally {
+            record(getStatistics(configProperties), appObjectName, System.nanoTime() - start, failed);
+        }
+    }
+
+    public Object invoke(Properties configProperties, String objectName, String string, Object[] objects, String[] strings)
+        throws MetricUnreachableException, MetricNotFoundException, PluginException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = delegate.invoke(configProperties, objectName, string, objects, strings);
+            failed = false;
+            return result;
+        } catch (MetricUnreachableException e) {
+            recordTimeout(getStatistics(configProperties), e, start);
+            throw e;
+        } finally {
+            record(getStatistics(configProperties), objectName, System.nanoTime() - start, failed);
+        }
+    }
+
+    public String getJmxUrlProperty() {
+        return delegate.getJmxUrlProperty();
+    }
+
+    public boolean checkConnection(ConfigResponse config) {
+        CollectorStatistics statistics = getStatistics(config.toProperties());
+        long start = System.nanoTime();
+        boolean connected = false;
+        try {
+            connected = delegate.checkConnection(config);
+            return connected;
+        } finally {
+            statistics.record(CollectorStatistics.JMX_CONNECT, System.nanoTime() - start, !connected);
+        }
+    }
+
+    private CollectorStatistics getStatistics(Properties configProperties) {
+        return CollectorStatistics.forInstance(configProperties.getProperty(delegate.getJmxUrlProperty()));
+    }
+
+    private void record(CollectorStatistics statistics, String objectName, long durationNanos, boolean failed) {
+        statistics.record(operation, durationNanos, failed);
+        statistics.recordObjectName(objectName, durationNanos, failed);
+    }
+
+    /**
+     * Records a timeout if the given failure is, or was caused by, a round-trip that did not complete within its deadline
+     */
+    private static void recordTimeout(CollectorStatistics statistics, Throwable failure, long start) {
+        if (failure instanceof InterruptedIOException || failure.getCause() instanceof InterruptedIOException) {
+            statistics.record(CollectorStatistics.JMX_TIMEOUT, System.nanoTime() - start, true);
+        }
+    }
+
+    private MBeanServerConnection instrument(MBeanServerConnection connection, CollectorStatistics statistics) {
+        synchronized (connections) {
+            WeakReference<MBeanServerConnection> reference = connections.get(connection);
+            MBeanServerConnection instrumented = reference == null ? null : reference.get();
+            if (instrumented == null) {
+                instrumented = (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+                    new Class<?>[] { MBeanServerConnection.class }, new InstrumentingInvocationHandler(connection, statistics));
+                connections.put(connection, new WeakReference<MBeanServerConnection>(instrumented));
+            }
+            return instrumented;
+        }
+    }
+
+    private final class InstrumentingInvocationHandler implements InvocationHandler {
+
+        private final MBeanServerConnection connection;
+
+        private final CollectorStatistics statistics;
+
+        private InstrumentingInvocationHandler(MBeanServerConnection connection, CollectorStatistics statistics) {
+            this.connection = connection;
+            this.statistics = statistics;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object result = method.invoke(connection, args);
+                failed = false;
+                return result;
+            } catch (InvocationTargetException e) {
+                recordTimeout(statistics, e.getCause(), start);
+                throw e.getCause();
+            } finally {
+                long duration = System.nanoTime() - start;
+                statistics.record(operation, duration, failed);
+                if (args != null && args.length > 0 && args[0] instanceof ObjectName) {
+                    statistics.recordObjectName(((ObjectName) args[0]).getCanonicalName(), duration, failed);
+                }
+            }
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            return "Instrumented " + connection;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.jmx.MxUtil;
+
+import com.springsource.hq.plugin.tcserver.plugin.DaemonThreadFactory;
+
+/**
+ * Holds one persistent connection to the MBean server of each tc Runtime instance, shared by everything in the plugin
+ * that talks to the instance, so that the RMI, and SSL, handshakes are made once per connection rather than once per
+ * operation.
+ * <p />
+ *
+ * A connection is discarded when its connector reports that it has failed or closed, when a caller reports that it has
+ * failed or that a round-trip on it timed out, or when a periodic health check fails. Only a connection that no caller
+ * has {@link #connectionSucceeded reported} a successful round-trip on within the health check interval is checked. A
+ * new connection is made on next use. After a failed attempt to connect, further attempts are refused, without a
+ * round-trip, for a backoff period that doubles with each consecutive failure.
+ * <p />
+ *
+ * The PDK's standard collection, used for the metrics that the plugin does not read itself, connects through MxUtil's
+ * own connector cache rather than through this manager, so an instance may have a second connection while such metrics
+ * are collected.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class JmxConnectionManager {
+
+    static final long DEFAULT_HEALTH_CHECK_INTERVAL = 30000;
+
+    static final long MIN_BACKOFF = 1000;
+
+    static final long MAX_BACKOFF = 60000;
+
+    private static final JmxConnectionManager INSTANCE = new JmxConnectionManager(new LocalAttachConnectorFactory(
+        new JmxConnectorFactory() {
+
+            public JMXConnector connect(Properties configProperties) throws MalformedURLException, IOException {
+                return MxUtil.getMBeanConnector(configProperties);
+            }
+        }), DEFAULT_HEALTH_CHECK_INTERVAL);
+
+    // Closes the connectors of hung connections. Closing one can take as long as the connector's own timeouts allow.
+    private static final ExecutorService CLOSER = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new DaemonThreadFactory("tc Runtime JMX connector close"));
+
+    private final Log logger = LogFactory.getLog(JmxConnectionManager.class);
+
+    private final ConcurrentMap<String, ManagedConnection> connections = new ConcurrentHashMap<String, ManagedConnection>();
+
+    private final JmxConnectorFactory connectorFactory;
+
+    private final long healthCheckInterval;
+
+    JmxConnectionManager(JmxConnectorFactory connectorFactory, long healthCheckInterval) {
+        this.connectorFactory = connectorFactory;
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * @return the connection manager shared by the plugin
+     */
+    public static JmxConnectionManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the connection to an instance's MBean server, connecting if there is no live connection
+     *
+     * @param configProperties the instance's configuration, including its JMX URL and credentials
+     * @return the connection
+     * @throws MalformedURLException if the instance's JMX URL is invalid
+     * @throws IOException if the instance cannot be connected to, or a previous attempt failed and the backoff period
+     *         has not elapsed
+     */
+    public MBeanServerConnection getConnection(Properties configProperties) throws MalformedURLException, IOException {
+        return getManagedConnection(configProperties).getConnection(configProperties);
+    }
+
+    /**
+     * Reports that a connection obtained from this manager has failed, causing it to be discarded
+     *
+     * @param configProperties the instance's configuration
+     * @param connection the connection that failed
+     */
+    public void connectionFailed(Properties configProperties, MBeanServerConnection connection) {
+        ManagedConnection managedConnection = connections.get(getKey(configProperties));
+        if (managedConnection != null) {
+            managedConnection.discard(connection, "it failed");
+        }
+    }
+
+    /**
+     * Reports that a round-trip on a connection obtained from this manager succeeded. The connection has been shown to
+     * be healthy, so its next health check is deferred.
+     *
+     * @param configProperties the instance's configuration
+     * @param connection the connection, or <code>null</code> for the instance's current connection
+     */
+    public void connectionSucceeded(Properties configProperties, MBeanServerConnection connection) {
+        ManagedConnection managedConnection = connections.get(getKey(configProperties));
+        if (managedConnection != null) {
+            managedConnection.succeeded(connection);
+        }
+    }
+
+    /**
+     * Reports that a round-trip on a connection obtained from this manager did not complete in time. The connection is
+     * discarded and its connector closed, on another thread as closing may itself wait for the instance, so that the
+     * threads blocked reading from the connection are released.
+     *
+     * @param configProperties the instance's configuration
+     * @param connection the connection, or <code>null</code> for the instance's current connection
+     */
+    public void connectionTimedOut(Properties configProperties, MBeanServerConnection connection) {
+        ManagedConnection managedConnection = connections.get(getKey(configProperties));
+        if (managedConnection != null) {
+            final JMXConnector connector = managedConnection.detach(connection, "a round-trip on it did not complete in time");
+            if (connector != null) {
+                try {
+                    CLOSER.execute(new Runnable() {
+
+                        public void run() {
+                            close(connector);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    close(connector);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the instance's connection, if any, e.g. because the instance has been stopped
+     *
+     * @param configProperties the instance's configuration
+     */
+    public void invalidate(Properties configProperties) {
+        ManagedConnection managedConnection = connections.get(getKey(configProperties));
+        if (managedConnection != null) {
+            managedConnection.discard(null, "it was invalidated");
+        }
+    }
+
+    /**
+     * @param configProperties the instance's configuration
+     * @return <code>true</code> if the instance currently has a live connection
+     */
+    public boolean isConnected(Properties configProperties) {
+        ManagedConnection managedConnection = connections.get(getKey(configProperties));
+        return managedConnection != null && managedConnection.isConnected();
+    }
+
+    /**
+     * Returns the instance's current connection without connecting or checking its health. The connections that
+     * callers are given are typically wrappers of this one, so it tells them whether the connector underneath has been
+     * replaced, e.g. so that a notification listener is registered once per connector.
+     *
+     * @param configProperties the instance's configuration
+     * @return the connection, or <code>null</code> if the instance is not connected
+     */
+    public MBeanServerConnection getCurrentConnection(Properties configProperties) {
+        ManagedConnection managedConnection = connections.get(getKey(configProperties));
+        return managedConnection == null ? null : managedConnection.connection;
+    }
+
+    private ManagedConnection getManagedConnection(Properties configProperties) {
+        String key = getKey(configProperties);
+        ManagedConnection managedConnection = connections.get(key);
+        if (managedConnection == null) {
+            managedConnection = new ManagedConnection(configProperties.getProperty(MxUtil.PROP_JMX_URL));
+            ManagedConnection existing = connections.putIfAbsent(key, managedConnection);
+            if (existing != null) {
+                managedConnection = existing;
+            }
+        }
+        return managedConnection;
+    }
+
+    private static String getKey(Properties configProperties) {
+        return configProperties.getProperty(MxUtil.PROP_JMX_URL) + "|" + configProperties.getProperty(MxUtil.PROP_JMX_USERNAME, "");
+    }
+
+    private static void close(JMXConnector connector) {
+        try {
+            connector.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+    }
+
+    /**
+     * The state of an instance's connection is guarded by the <code>ManagedConnection</code>'s monitor, which is only
+     * held briefly. Connecting, health checking and closing make round-trips, so they are done outside of the monitor,
+     * under the instance's own connect lock, so that a slow instance only delays the callers that need a connection to
+     * it.
+     */
+    private final class ManagedConnection implements NotificationListener {
+
+        private final String jmxUrl;
+
+        private final Lock connectLock = new ReentrantLock();
+
+        private JMXConnector connector;
+
+        private JMXConnector staleConnector;
+
+        private volatile MBeanServerConnection connection;
+
+        private String password;
+
+        private long lastChecked;
+
+        private int failures;
+
+        private long retryAt;
+
+        private ManagedConnection(String jmxUrl) {
+            this.jmxUrl = jmxUrl;
+        }
+
+        MBeanServerConnection getConnection(Properties configProperties) throws MalformedURLException, IOException {
+            String currentPassword = configProperties.getProperty(MxUtil.PROP_JMX_PASSWORD);
+            MBeanServerConnection current = getUsableConnection(currentPassword);
+            if (current != null) {
+                return current;
+            }
+
+            connectLock.lock();
+            try {
+                closeStaleConnector();
+                current = getUsableConnection(currentPassword);
+                if (current == null) {
+                    current = checkHealth(currentPassword);
+                }
+                if (current != null) {
+                    return current;
+                }
+                return connect(configProperties, currentPassword);
+            } finally {
+                connectLock.unlock();
+            }
+        }
+
+        /**
+         * @return the connection, if it can be used without a health check, otherwise <code>null</code>
+         */
+        private synchronized MBeanServerConnection getUsableConnection(String currentPassword) {
+            if (connection != null && staleConnector == null && equal(password, currentPassword)
+                && System.currentTimeMillis() - lastChecked < healthCheckInterval) {
+                return connection;
+            }
+            return null;
+        }
+
+        /**
+         * Makes a round-trip to a connection that has not been checked within the health check interval,
+         * discarding it if the check fails, or if its credentials have changed
+         *
+         * @return the connection, if it is healthy, otherwise <code>null</code>
+         */
+        private MBeanServerConnection checkHealth(String currentPassword) {
+            MBeanServerConnection current;
+            synchronized (this) {
+                if (connection != null && !equal(password, currentPassword)) {
+                    close(disconnect("its credentials have changed"));
+                }
+                current = connection;
+            }
+            if (current == null) {
+                return null;
+            }
+
+            try {
+                current.getMBeanCount();
+                synchronized (this) {
+                    lastChecked = System.currentTimeMillis();
+                }
+                return current;
+            } catch (IOException e) {
+                logger.debug("Health check of connection to [" + jmxUrl + "] failed", e);
+            } catch (RuntimeException e) {
+                logger.debug("Health check of connection to [" + jmxUrl + "] failed", e);
+            }
+            discard(current, "its health check failed");
+            return null;
+        }
+
+        private MBeanServerConnection connect(Properties configProperties, String currentPassword) throws MalformedURLException,
+            IOException {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (now < retryAt) {
+                    throw new IOException("Not reconnecting to [" + jmxUrl + "] for " + (retryAt - now) + "ms following " + failures
+                        + " failed attempt(s)");
+                }
+            }
+
+            JMXConnector newConnector = null;
+            try {
+                newConnector = connectorFactory.connect(configProperties);
+                MBeanServerConnection newConnection = newConnector.getMBeanServerConnection();
+                newConnector.addConnectionNotificationListener(this, null, newConnector);
+                synchronized (this) {
+                    connector = newConnector;
+                    connection = newConnection;
+                    password = currentPassword;
+                    lastChecked = now;
+                    failures = 0;
+                    retryAt = 0;
+                }
+                logger.debug("Connected to [" + jmxUrl + "]");
+                return newConnection;
+            } catch (IOException e) {
+                if (newConnector != null) {
+                    close(newConnector);
+                }
+                synchronized (this) {
+                    failures++;
+                    retryAt = now + Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 16));
+                }
+                throw e;
+            }
+        }
+
+        private void closeStaleConnector() {
+            JMXConnector stale;
+            synchronized (this) {
+                stale = staleConnector;
+                staleConnector = null;
+            }
+            if (stale != null) {
+                close(stale);
+            }
+        }
+
+        synchronized void succeeded(MBeanServerConnection used) {
+            if (connection != null && (used == null || used == connection)) {
+                lastChecked = System.currentTimeMillis();
+            }
+        }
+
+        synchronized boolean isConnected() {
+            return connection != null;
+        }
+
+        /**
+         * Discards the connection if it is the given connection, or if no connection is given
+         */
+        void discard(MBeanServerConnection failed, String reason) {
+            JMXConnector oldConnector = detach(failed, reason);
+            if (oldConnector != null) {
+                close(oldConnector);
+            }
+        }
+
+        /**
+         * Discards the connection, as {@link #discard} does, but leaves closing its connector to the caller
+         *
+         * @return the discarded connection's connector, or <code>null</code> if the connection was not discarded
+         */
+        synchronized JMXConnector detach(MBeanServerConnection failed, String reason) {
+            if (connection != null && (failed == null || failed == connection)) {
+                return disconnect(reason);
+            }
+            return null;
+        }
+
+        /**
+         * @return the connector of the discarded connection, which the caller closes once it no longer holds the monitor
+         */
+        private JMXConnector disconnect(String reason) {
+            logger.debug("Discarding connection to [" + jmxUrl + "] as " + reason);
+            JMXConnector oldConnector = connector;
+            connector = null;
+            connection = null;
+            try {
+                oldConnector.removeConnectionNotificationListener(this);
+            } catch (Exception e) {
+                // Not registered, or the connector is already closed
+            }
+            return oldConnector;
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+                JMXConnector previousStaleConnector = null;
+                synchronized (this) {
+                    if (handback == connector && connector != null) {
+                        // Closing the connector from its own notification thread may deadlock, so it is closed on
+                        // next use
+                        logger.debug("Discarding connection to [" + jmxUrl + "] as its connector reported " + type);
+                        previousStaleConnector = staleConnector;
+                        staleConnector = connector;
+                        connector = null;
+                        connection = null;
+                    }
+                }
+                // A connector that was already stale is not the one that is notifying, so it can be closed here
+                if (previousStaleConnector != null) {
+                    close(previousStaleConnector);
+                }
+            }
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Properties;
+
+import javax.management.remote.JMXConnector;
+
+/**
+ * Creates connectors to the MBean servers of tc Runtime instances
+ */
+public interface JmxConnectorFactory {
+
+    /**
+     * Creates a connector to an instance's MBean server and connects it
+     *
+     * @param configProperties the instance's configuration, including its JMX URL and credentials
+     * @return the connected connector
+     * @throws MalformedURLException if the instance's JMX URL is invalid
+     * @throws IOException if the connector cannot be connected
+     */
+    JMXConnector connect(Properties configProperties) throws MalformedURLException, IOException;
+}
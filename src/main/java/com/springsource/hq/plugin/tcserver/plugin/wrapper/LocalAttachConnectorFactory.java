@@ -0,0 +1,170 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.jmx.MxUtil;
+
+import com.springsource.hq.plugin.tcserver.plugin.discovery.TcRuntimeDetector;
+
+/**
+ * A {@link JmxConnectorFactory} that connects to instances running on the same host as the agent through their JVM's
+ * local JMX connector, found using the Attach API, rather than through the instance's RMI connector. This avoids the
+ * RMI registry lookup, the TCP round-trips, and SSL if it is configured, and so reduces the latency and the CPU cost of
+ * each JMX operation for both the agent and the instance.
+ * <p />
+ *
+ * The local transport is only used for instances whose configuration enables it with {@link #PROP_ATTACH}. The
+ * instance's JVM is the process whose id was recorded by discovery, and it is only used if it is running the instance's
+ * <code>catalina.base</code> and its local management agent is already running; the agent is never started, so the
+ * instance's JVM is not changed. The local connector's address is cached until a connection to it fails. If the
+ * process id is missing or stale, the Attach API is not available, attaching is not permitted, typically because the
+ * instance runs as a different user to the agent, or the JVM has no local connector, the connection is made by the
+ * delegate factory, and attaching is not attempted again for a while.
+ * <p />
+ *
+ * The local connector does not authenticate, so operations made through it are not subject to the authentication and
+ * roles configured for the instance's JMX URL. Being able to attach to the JVM already implies the operating system
+ * privileges of the user that runs it, but this is why the transport has to be enabled explicitly.
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
+public final class LocalAttachConnectorFactory implements JmxConnectorFactory {
+
+    /**
+     * The name of the configuration property that enables the local transport for an instance. Disabled by default.
+     */
+    public static final String PROP_ATTACH = "jmx.attach";
+
+    /**
+     * The name of the configuration property that holds the process id of the instance, as recorded by discovery
+     */
+    public static final String PROP_PROCESS_PID = "process.pid";
+
+    static final long ATTACH_RETRY_INTERVAL = 10 * 60 * 1000;
+
+    private final Log logger = LogFactory.getLog(LocalAttachConnectorFactory.class);
+
+    private final ConcurrentMap<String, String> localConnectorAddresses = new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, Long> attachRefusedAt = new ConcurrentHashMap<String, Long>();
+
+    private final JmxConnectorFactory delegate;
+
+    private final VirtualMachineAttacher attacher;
+
+    /**
+     * Creates a new factory
+     *
+     * @param delegate the factory that connects to instances that cannot be connected to locally
+     */
+    public LocalAttachConnectorFactory(JmxConnectorFactory delegate) {
+        this(delegate, new AttachApiVirtualMachineAttacher());
+    }
+
+    LocalAttachConnectorFactory(JmxConnectorFactory delegate, VirtualMachineAttacher attacher) {
+        this.delegate = delegate;
+        this.attacher = attacher;
+    }
+
+    public JMXConnector connect(Properties configProperties) throws MalformedURLException, IOException {
+        String catalinaBase = configProperties.getProperty(TcRuntimeDetector.SERVER_RESOURCE_CONFIG_CATALINA_BASE);
+        String pid = configProperties.getProperty(PROP_PROCESS_PID);
+        if (catalinaBase == null || pid == null || pid.trim().length() == 0
+            || !"true".equalsIgnoreCase(configProperties.getProperty(PROP_ATTACH, "false").trim())) {
+            return delegate.connect(configProperties);
+        }
+
+        String key = getKey(configProperties);
+        String address = localConnectorAddresses.get(key);
+        if (address != null) {
+            JMXConnector connector = connectLocally(key, address);
+            if (connector != null) {
+                return connector;
+            }
+        }
+
+        address = findLocalConnectorAddress(key, catalinaBase, pid.trim());
+        if (address != null) {
+            JMXConnector connector = connectLocally(key, address);
+            if (connector != null) {
+                localConnectorAddresses.put(key, address);
+                return connector;
+            }
+        }
+        return delegate.connect(configProperties);
+    }
+
+    private JMXConnector connectLocally(String key, String address) {
+        try {
+            return JMXConnectorFactory.connect(new JMXServiceURL(address));
+        } catch (IOException e) {
+            // Typically, the instance has been restarted and its JVM, and so its connector address, has changed
+            localConnectorAddresses.remove(key, address);
+            logger.debug("Unable to connect to local connector " + address + " of tc Runtime instance [" + key + "]: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the address of the instance's local connector, or <code>null</code> if the process is not running the
+     *         instance, has no local connector, or cannot be attached to
+     */
+    private String findLocalConnectorAddress(String key, String catalinaBase, String pid) {
+        Long refusedAt = attachRefusedAt.get(key);
+        if (refusedAt != null && System.currentTimeMillis() - refusedAt < ATTACH_RETRY_INTERVAL) {
+            return null;
+        }
+
+        try {
+            String address = attacher.getLocalConnectorAddress(pid, catalinaBase);
+            if (address != null) {
+                attachRefusedAt.remove(key);
+                return address;
+            }
+            logger.debug("Process " + pid + " is not running tc Runtime instance [" + key
+                + "] with a local connector. Connecting through its JMX URL");
+        } catch (IOException e) {
+            logger.info("Unable to connect to tc Runtime instance [" + key + "] locally, connecting through its JMX URL instead: "
+                + e.getMessage());
+        }
+        attachRefusedAt.put(key, System.currentTimeMillis());
+        return null;
+    }
+
+    private static String getKey(Properties configProperties) {
+        return configProperties.getProperty(MxUtil.PROP_JMX_URL) + "|"
+            + configProperties.getProperty(TcRuntimeDetector.SERVER_RESOURCE_CONFIG_CATALINA_BASE);
+    }
+}
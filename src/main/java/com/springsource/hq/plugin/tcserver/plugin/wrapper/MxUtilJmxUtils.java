@@ -27,57 +27,102 @@ import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.management.ReflectionException;
-import javax.management.remote.JMXConnector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.MetricInvalidException;
 import org.hyperic.hq.product.MetricNotFoundException;
 import org.hyperic.hq.product.MetricUnreachableException;
 import org.hyperic.hq.product.PluginException;
 import org.hyperic.hq.product.jmx.MxUtil;
 import org.hyperic.util.config.ConfigResponse;
 
+/**
+ * A {@link JmxUtils} that makes its round-trips through the connections held by a {@link JmxConnectionManager}, by
+ * default the one shared by the plugin
+ * <p />
+ *
+ * <strong>Concurrent Semantics</strong><br />
+ *
+ * Thread-safe
+ *
+ */
 public final class MxUtilJmxUtils implements JmxUtils {
 
     private final Log log = LogFactory.getLog(MxUtilJmxUtils.class);
 
+    private final JmxConnectionManager connectionManager;
+
+    public MxUtilJmxUtils() {
+        this(JmxConnectionManager.getInstance());
+    }
+
+    MxUtilJmxUtils(JmxConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
     public MBeanServerConnection getMBeanServer(Properties configProperties) throws MalformedURLException, IOException {
-        return MxUtil.getMBeanServer(configProperties);
+        return connectionManager.getConnection(configProperties);
     }
 
     public Object getValue(Properties configProperties, String appObjectName, String string) throws MalformedObjectNameException,
         AttributeNotFoundException, InstanceNotFoundException, MalformedURLException, MBeanException, ReflectionException, PluginException,
         IOException {
-        return MxUtil.getValue(configProperties, appObjectName, string);
+        MBeanServerConnection connection = connectionManager.getConnection(configProperties);
+        try {
+            return connection.getAttribute(new ObjectName(appObjectName), string);
+        } catch (IOException e) {
+            connectionManager.connectionFailed(configProperties, connection);
+            throw e;
+        }
     }
 
     public Object invoke(Properties configProperties, String objectName, String string, Object[] objects, String[] strings)
         throws MetricUnreachableException, MetricNotFoundException, PluginException {
-        return MxUtil.invoke(configProperties, objectName, string, objects, strings);
+        MBeanServerConnection connection;
+        try {
+            connection = connectionManager.getConnection(configProperties);
+        } catch (MalformedURLException e) {
+            throw new MetricInvalidException("Malformed URL: [" + configProperties.getProperty(MxUtil.PROP_JMX_URL) + "]", e);
+        } catch (IOException e) {
+            throw new MetricUnreachableException("Can't connect to MBeanServer with url [" + configProperties.getProperty(MxUtil.PROP_JMX_URL)
+                + "]: " + e, e);
+        }
+
+        try {
+            return connection.invoke(new ObjectName(objectName), string, objects, strings);
+        } catch (IOException e) {
+            connectionManager.connectionFailed(configProperties, connection);
+            throw new MetricUnreachableException("Error invoking " + string + " on " + objectName + ": " + e, e);
+        } catch (InstanceNotFoundException e) {
+            throw new MetricNotFoundException("MBean " + objectName + " not found: " + e.getMessage(), e);
+        } catch (MalformedObjectNameException e) {
+            throw new MetricInvalidException("Invalid ObjectName " + objectName + ": " + e.getMessage(), e);
+        } catch (MBeanException e) {
+            Exception target = e.getTargetException();
+            throw new PluginException("Error invoking " + string + " on " + objectName + ": " + (target == null ? e : target), e);
+        } catch (ReflectionException e) {
+            throw new PluginException("Error invoking " + string + " on " + objectName + ": " + e.getMessage(), e);
+        }
     }
 
     public String getJmxUrlProperty() {
         return MxUtil.PROP_JMX_URL;
     }
 
+    /**
+     * Checks that the instance can be reached through its shared connection, which is made if the instance has no
+     * live connection
+     */
     public boolean checkConnection(ConfigResponse config) {
-        JMXConnector jmxConnector = null;
-
         try {
-            jmxConnector = MxUtil.getMBeanConnector(config.toProperties());
+            connectionManager.getConnection(config.toProperties());
             return true;
         } catch (IOException ioe) {
             log.warn("Connection check failed", ioe);
             return false;
-        } finally {
-            if (jmxConnector != null) {
-                try {
-                    jmxConnector.close();
-                } catch (IOException ioe) {
-                    log.warn("Failed to close connection following check", ioe);
-                }
-            }
         }
     }
 }
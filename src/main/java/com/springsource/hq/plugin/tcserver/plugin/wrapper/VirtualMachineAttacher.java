@@ -0,0 +1,39 @@
+/*
+        Copyright (C) 2010-2014 Pivotal Software, Inc.
+
+
+        All rights reserved. This program and the accompanying materials
+        are made available under the terms of the under the Apache License,
+        Version 2.0 (the "License”); you may not use this file except in compliance
+        with the License. You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+        Unless required by applicable law or agreed to in writing, software
+        distributed under the License is distributed on an "AS IS" BASIS,
+        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+        See the License for the specific language governing permissions and
+        limitations under the License.
+ */
+
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import java.io.IOException;
+
+/**
+ * Attaches to JVMs running on the same host as the agent to find the address of their local JMX connector
+ */
+interface VirtualMachineAttacher {
+
+    /**
+     * Attaches to a JVM and returns the address of its local JMX connector. The JVM's local management agent is not
+     * started if it is not already running.
+     *
+     * @param id the id, i.e. the process id, of the JVM
+     * @param catalinaBase the catalina.base of the expected instance
+     * @return the address, or <code>null</code> if the JVM is not running the expected instance, or its local management
+     *         agent is not running
+     * @throws IOException if the JVM cannot be attached to, e.g. because it is running as another user
+     */
+    String getLocalConnectorAddress(String id, String catalinaBase) throws IOException;
+}
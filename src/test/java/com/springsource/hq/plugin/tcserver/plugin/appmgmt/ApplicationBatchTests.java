@@ -0,0 +1,245 @@
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hyperic.hq.product.PluginException;
+import org.junit.Test;
+
+public class ApplicationBatchTests {
+
+    private final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+
+    private final Map<String, List<String>> dependencies = new HashMap<String, List<String>>();
+
+    private final ApplicationBatch.Listener<String, String> listener = new ApplicationBatch.Listener<String, String>() {
+
+        public void completed(String application, String result) {
+            completed.add(application);
+        }
+    };
+
+    @Test
+    public void resultsAreInTheOrderOfTheApplications() throws Exception {
+        Map<String, String> results = new ApplicationBatch<String, String>(4, 10000).execute(Arrays.asList("c", "a", "b"),
+            this.dependencies, new RecordingOperation(), this.listener);
+
+        assertEquals(Arrays.asList("c", "a", "b"), new ArrayList<String>(results.keySet()));
+        assertEquals("Ok - c", results.get("c"));
+        assertEquals(3, this.completed.size());
+    }
+
+    @Test
+    public void concurrencyIsLimited() throws Exception {
+        RecordingOperation operation = new RecordingOperation(50);
+
+        new ApplicationBatch<String, String>(2, 10000).execute(Arrays.asList("a", "b", "c", "d", "e"), this.dependencies, operation,
+            this.listener);
+
+        assertEquals(2, operation.maxConcurrent.get());
+    }
+
+    @Test
+    public void applicationsFollowTheirDependencies() throws Exception {
+        this.dependencies.put("consumer", Arrays.asList("provider"));
+        this.dependencies.put("provider", Arrays.asList("database"));
+
+        new ApplicationBatch<String, String>(4, 10000).execute(Arrays.asList("consumer", "provider", "database"), this.dependencies,
+            new RecordingOperation(10), this.listener);
+
+        assertEquals(Arrays.asList("database", "provider", "consumer"), this.completed);
+    }
+
+    @Test
+    public void reversedDependenciesStopConsumersBeforeProviders() throws Exception {
+        this.dependencies.put("consumer", Arrays.asList("provider"));
+
+        Map<String, Set<String>> reversed = ApplicationBatch.reverse(this.dependencies);
+        assertEquals(Collections.singleton("consumer"), reversed.get("provider"));
+
+        new ApplicationBatch<String, String>(4, 10000).execute(Arrays.asList("provider", "consumer"), reversed, new RecordingOperation(10),
+            this.listener);
+
+        assertEquals(Arrays.asList("consumer", "provider"), this.completed);
+    }
+
+    @Test
+    public void dependenciesOutsideTheBatchAreIgnored() throws Exception {
+        this.dependencies.put("consumer", Arrays.asList("absent"));
+
+        Map<String, String> results = new ApplicationBatch<String, String>(4, 10000).execute(Arrays.asList("consumer"), this.dependencies,
+            new RecordingOperation(), this.listener);
+
+        assertEquals("Ok - consumer", results.get("consumer"));
+    }
+
+    @Test
+    public void applicationThatIsNotDoneInTimeIsReportedAsTimedOut() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Map<String, String> results = new ApplicationBatch<String, String>(4, 100).execute(Arrays.asList("slow", "fast"),
+                this.dependencies, new RecordingOperation() {
+
+                    @Override
+                    public String perform(String application) throws PluginException {
+                        if ("slow".equals(application)) {
+                            try {
+                                release.await(10, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return super.perform(application);
+                    }
+                }, this.listener);
+
+            assertEquals("Unknown - slow: it was not done within 100ms", results.get("slow"));
+            assertEquals("Ok - fast", results.get("fast"));
+            assertEquals(Arrays.asList("fast", "slow"), this.completed);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void applicationsThatFollowATimedOutApplicationAreNotOperatedOn() throws Exception {
+        this.dependencies.put("consumer", Arrays.asList("provider"));
+        this.dependencies.put("client", Arrays.asList("consumer"));
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            RecordingOperation operation = new RecordingOperation() {
+
+                @Override
+                public String perform(String application) throws PluginException {
+                    started.add(application);
+                    if ("provider".equals(application)) {
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return super.perform(application);
+                }
+            };
+            Map<String, String> results = new ApplicationBatch<String, String>(4, 100).execute(
+                Arrays.asList("client", "consumer", "provider"), this.dependencies, operation, this.listener);
+
+            assertEquals("Unknown - provider: it was not done within 100ms", results.get("provider"));
+            assertEquals("Failure - consumer: the applications that it must follow, [provider], were not done", results.get("consumer"));
+            assertEquals("Failure - client: the applications that it must follow, [consumer], were not done", results.get("client"));
+            assertEquals(Arrays.asList("provider"), started);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void timeoutCoversTheRoundTripsAndPauses() {
+        assertEquals(9000 + 300000 + 60000 + ApplicationBatch.TIMEOUT_MARGIN, ApplicationBatch.getTimeout(9000, 300000, 60000));
+    }
+
+    @Test
+    public void applicationsInACycleFail() throws Exception {
+        this.dependencies.put("a", Arrays.asList("b"));
+        this.dependencies.put("b", Arrays.asList("a"));
+
+        Map<String, String> results = new ApplicationBatch<String, String>(4, 10000).execute(Arrays.asList("a", "b", "c"),
+            this.dependencies, new RecordingOperation(), this.listener);
+
+        assertTrue(results.get("a").startsWith("Failure - a: the applications that it must follow"));
+        assertTrue(results.get("b").startsWith("Failure - b: the applications that it must follow"));
+        assertEquals("Ok - c", results.get("c"));
+    }
+
+    @Test
+    public void pluginExceptionStopsTheBatch() throws Exception {
+        this.dependencies.put("b", Arrays.asList("a"));
+        RecordingOperation operation = new RecordingOperation() {
+
+            @Override
+            public String perform(String application) throws PluginException {
+                super.perform(application);
+                throw new PluginException("unreachable");
+            }
+        };
+
+        try {
+            new ApplicationBatch<String, String>(1, 10000).execute(Arrays.asList("a", "b"), this.dependencies, operation, this.listener);
+            fail("PluginException not thrown");
+        } catch (PluginException e) {
+            assertEquals("unreachable", e.getMessage());
+        }
+        assertEquals(1, operation.performed.get());
+    }
+
+    @Test
+    public void duplicateApplicationsAreOperatedOnOnce() throws Exception {
+        RecordingOperation operation = new RecordingOperation();
+
+        Map<String, String> results = new ApplicationBatch<String, String>(4, 10000).execute(Arrays.asList("a", "a"), this.dependencies,
+            operation, this.listener);
+
+        assertEquals(1, results.size());
+        assertEquals(1, operation.performed.get());
+    }
+
+    private static class RecordingOperation implements ApplicationBatch.Operation<String, String> {
+
+        private final long duration;
+
+        private final AtomicInteger concurrent = new AtomicInteger();
+
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        private final AtomicInteger performed = new AtomicInteger();
+
+        RecordingOperation() {
+            this(0);
+        }
+
+        RecordingOperation(long duration) {
+            this.duration = duration;
+        }
+
+        public String perform(String application) throws PluginException {
+            this.performed.incrementAndGet();
+            int current = this.concurrent.incrementAndGet();
+            int max;
+            while (current > (max = this.maxConcurrent.get()) && !this.maxConcurrent.compareAndSet(max, current)) {
+                // Retry
+            }
+            try {
+                if (this.duration > 0) {
+                    Thread.sleep(this.duration);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                this.concurrent.decrementAndGet();
+            }
+            return "Ok - " + application;
+        }
+
+        public String failed(String application, String reason) {
+            return "Failure - " + application + ": " + reason;
+        }
+
+        public String timedOut(String application, String reason) {
+            return "Unknown - " + application + ": " + reason;
+        }
+    }
+}
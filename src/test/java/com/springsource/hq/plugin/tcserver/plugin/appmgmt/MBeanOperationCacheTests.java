@@ -0,0 +1,166 @@
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBeanOperationCacheTests {
+
+    private final MBeanOperationCache cache = new MBeanOperationCache();
+
+    private final Properties config = new Properties();
+
+    private MBeanServer mBeanServer;
+
+    private CountingConnection counter;
+
+    private MBeanServerConnection connection;
+
+    private ObjectName deployer;
+
+    @Before
+    public void registerDeployer() throws Exception {
+        this.config.setProperty("jmx.url", "mbean-operation-cache-tests");
+        this.mBeanServer = MBeanServerFactory.newMBeanServer();
+        this.deployer = new ObjectName("tcServer:type=Serviceability,name=Deployer");
+        this.mBeanServer.registerMBean(new Deployer(), this.deployer);
+        this.counter = new CountingConnection(this.mBeanServer);
+        this.connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { MBeanServerConnection.class }, this.counter);
+    }
+
+    @Test
+    public void operationsAreReadOncePerConnection() throws Exception {
+        assertTrue(this.cache.hasOperation(this.config, this.connection, this.deployer, "undeployApplication", 4));
+        assertFalse(this.cache.hasOperation(this.config, this.connection, this.deployer, "undeployApplication", 3));
+        assertTrue(this.cache.hasOperation(this.config, this.connection, this.deployer, "startApplication", 4));
+
+        assertEquals(1, this.counter.mBeanInfoReads);
+        assertEquals(1, this.counter.listenersAdded);
+    }
+
+    @Test
+    public void instancesAreCachedSeparately() throws Exception {
+        Properties other = new Properties();
+        other.setProperty("jmx.url", "mbean-operation-cache-tests-other");
+
+        this.cache.hasOperation(this.config, this.connection, this.deployer, "startApplication", 4);
+        this.cache.hasOperation(other, this.connection, this.deployer, "startApplication", 4);
+        this.cache.hasOperation(this.config, this.connection, this.deployer, "startApplication", 4);
+
+        assertEquals(2, this.counter.mBeanInfoReads);
+    }
+
+    @Test
+    public void replacedConnectionIsNoLongerListenedTo() throws Exception {
+        this.cache.hasOperation(this.config, this.connection, this.deployer, "startApplication", 4);
+        CountingConnection replacementCounter = new CountingConnection(this.mBeanServer);
+        MBeanServerConnection replacement = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { MBeanServerConnection.class }, replacementCounter);
+
+        assertTrue(this.cache.hasOperation(this.config, replacement, this.deployer, "startApplication", 4));
+        this.cache.hasOperation(this.config, replacement, this.deployer, "startApplication", 4);
+
+        assertEquals(1, this.counter.listenersRemoved);
+        assertEquals(1, replacementCounter.mBeanInfoReads);
+        assertEquals(1, replacementCounter.listenersAdded);
+    }
+
+    @Test
+    public void unregistrationDiscardsOperations() throws Exception {
+        assertTrue(this.cache.hasOperation(this.config, this.connection, this.deployer, "undeployApplication", 4));
+
+        this.mBeanServer.unregisterMBean(this.deployer);
+        this.mBeanServer.registerMBean(new LegacyDeployer(), this.deployer);
+
+        assertFalse(this.cache.hasOperation(this.config, this.connection, this.deployer, "undeployApplication", 4));
+        assertEquals(2, this.counter.mBeanInfoReads);
+        assertEquals(1, this.counter.listenersAdded);
+    }
+
+    @Test
+    public void operationsAreNotCachedWithoutUnregistrationNotifications() throws Exception {
+        this.counter.notificationsSupported = false;
+
+        this.cache.hasOperation(this.config, this.connection, this.deployer, "startApplication", 4);
+        this.cache.hasOperation(this.config, this.connection, this.deployer, "startApplication", 4);
+
+        assertEquals(2, this.counter.mBeanInfoReads);
+    }
+
+    public interface DeployerMBean {
+
+        void startApplication(String service, String host, String application, int revision);
+
+        void undeployApplication(String service, String host, String application, int revision);
+    }
+
+    public static final class Deployer implements DeployerMBean {
+
+        public void startApplication(String service, String host, String application, int revision) {
+        }
+
+        public void undeployApplication(String service, String host, String application, int revision) {
+        }
+    }
+
+    public interface LegacyDeployerMBean {
+
+        void undeployApplication(String service, String host, String application);
+    }
+
+    public static final class LegacyDeployer implements LegacyDeployerMBean {
+
+        public void undeployApplication(String service, String host, String application) {
+        }
+    }
+
+    private static final class CountingConnection implements InvocationHandler {
+
+        private final MBeanServer mBeanServer;
+
+        private volatile int mBeanInfoReads;
+
+        private volatile int listenersAdded;
+
+        private volatile int listenersRemoved;
+
+        private volatile boolean notificationsSupported = true;
+
+        private CountingConnection(MBeanServer mBeanServer) {
+            this.mBeanServer = mBeanServer;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("getMBeanInfo".equals(method.getName())) {
+                this.mBeanInfoReads++;
+            } else if ("addNotificationListener".equals(method.getName())) {
+                if (!this.notificationsSupported) {
+                    throw new UnsupportedOperationException("Notifications are not supported");
+                }
+                this.listenersAdded++;
+            } else if ("removeNotificationListener".equals(method.getName())) {
+                this.listenersRemoved++;
+            }
+            try {
+                return method.invoke(this.mBeanServer, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
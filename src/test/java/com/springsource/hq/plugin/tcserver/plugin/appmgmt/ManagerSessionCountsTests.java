@@ -0,0 +1,159 @@
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.springsource.hq.plugin.tcserver.plugin.appmgmt.domain.Application;
+
+public class ManagerSessionCountsTests {
+
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    private MBeanServer mBeanServer;
+
+    private MBeanServerConnection connection;
+
+    @Before
+    public void registerManagers() throws Exception {
+        this.mBeanServer = MBeanServerFactory.newMBeanServer();
+        this.mBeanServer.registerMBean(new Service("Catalina"), new ObjectName("Catalina:type=Service"));
+        this.mBeanServer.registerMBean(new Service("Other"), new ObjectName("OtherEngine:type=Service"));
+        this.mBeanServer.registerMBean(new Manager(3), new ObjectName("Catalina:type=Manager,context=/,host=localhost"));
+        this.mBeanServer.registerMBean(new Manager(7), new ObjectName("Catalina:type=Manager,context=/petclinic##000002,host=localhost"));
+        this.mBeanServer.registerMBean(new Manager(0), new ObjectName("Catalina:type=Manager,context=/idle,host=localhost"));
+        this.mBeanServer.registerMBean(new Manager(11), new ObjectName("Catalina:type=Manager,context=/petclinic,host=other"));
+        this.mBeanServer.registerMBean(new Manager(13), new ObjectName("OtherEngine:type=Manager,context=/petclinic,host=localhost"));
+        this.connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { MBeanServerConnection.class }, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    roundTrips.incrementAndGet();
+                    try {
+                        return method.invoke(mBeanServer, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+    }
+
+    @Test
+    public void onlyManagersWithSessionsAreRead() throws Exception {
+        ManagerSessionCounts sessionCounts = ManagerSessionCounts.read(this.connection, "Catalina", "localhost");
+
+        assertEquals(3, sessionCounts.get(application("ROOT", 0), true));
+        assertEquals(7, sessionCounts.get(application("petclinic", 2), true));
+        assertEquals(0, sessionCounts.get(application("idle", 0), true));
+        assertEquals(4, this.roundTrips.get());
+    }
+
+    @Test
+    public void managersAreQueriedInTheDomainOfTheService() throws Exception {
+        ManagerSessionCounts sessionCounts = ManagerSessionCounts.read(this.connection, "Other", "localhost");
+
+        assertEquals(13, sessionCounts.get(application("petclinic", 0), true));
+        assertEquals(0, sessionCounts.get(application("ROOT", 0), true));
+    }
+
+    @Test
+    public void serviceWithoutAnMBeanUsesItsNameAsTheDomain() throws Exception {
+        this.mBeanServer.unregisterMBean(new ObjectName("Catalina:type=Service"));
+
+        ManagerSessionCounts sessionCounts = ManagerSessionCounts.read(this.connection, "Catalina", "localhost");
+
+        assertEquals(3, sessionCounts.get(application("ROOT", 0), true));
+    }
+
+    @Test
+    public void unregisteredManagerHasNoSessions() throws Exception {
+        ManagerSessionCounts sessionCounts = ManagerSessionCounts.read(this.connection, "Catalina", "localhost");
+
+        assertEquals(0, sessionCounts.get(application("missing", 0), true));
+    }
+
+    private static Application application(String name, int version) {
+        Application application = new Application();
+        application.setName(name);
+        application.setVersion(version);
+        return application;
+    }
+
+    private static final class Manager extends ReadOnlyMBean {
+
+        private Manager(int activeSessions) {
+            super("activeSessions", activeSessions);
+        }
+    }
+
+    private static final class Service extends ReadOnlyMBean {
+
+        private Service(String name) {
+            super("name", name);
+        }
+    }
+
+    private abstract static class ReadOnlyMBean implements DynamicMBean {
+
+        private final String name;
+
+        private final Object value;
+
+        private ReadOnlyMBean(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (!this.name.equals(attribute)) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return this.value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList attributeList = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    attributeList.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Omitted from the list, as Tomcat's MBeans do
+                }
+            }
+            return attributeList;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(getClass().getName(), "Read-only MBean", null, null, null, null);
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
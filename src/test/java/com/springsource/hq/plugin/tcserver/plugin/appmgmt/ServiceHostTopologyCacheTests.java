@@ -0,0 +1,163 @@
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.hyperic.hq.product.PluginException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServiceHostTopologyCacheTests {
+
+    private final ServiceHostTopologyCache cache = new ServiceHostTopologyCache(60000);
+
+    private final CountingLoader loader = new CountingLoader();
+
+    private final Properties config = new Properties();
+
+    private MBeanServer mBeanServer;
+
+    private MBeanServerConnection connection;
+
+    private ObjectName deployer;
+
+    private volatile boolean notificationsSupported = true;
+
+    private volatile int listenersAdded;
+
+    @Before
+    public void registerDeployer() throws Exception {
+        this.config.setProperty("jmx.url", "service-host-topology-cache-tests");
+        this.mBeanServer = MBeanServerFactory.newMBeanServer();
+        this.deployer = new ObjectName("tcServer:type=Serviceability,name=Deployer");
+        this.mBeanServer.registerMBean(new MBeanOperationCacheTests.Deployer(), this.deployer);
+        this.connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { MBeanServerConnection.class }, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("addNotificationListener".equals(method.getName())) {
+                        if (!notificationsSupported) {
+                            throw new UnsupportedOperationException("Notifications are not supported");
+                        }
+                        listenersAdded++;
+                    }
+                    try {
+                        return method.invoke(mBeanServer, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+    }
+
+    @Test
+    public void topologyIsLoadedOncePerConnection() throws Exception {
+        Map<String, List<String>> topology = this.cache.get(this.config, this.connection, this.deployer, this.loader);
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+
+        assertEquals(1, this.loader.loads);
+        assertEquals(Arrays.asList("localhost", "www.example.com"), topology.get("Catalina"));
+        assertTrue(ServiceHostTopologyCache.contains(topology, "Catalina", "localhost"));
+        assertFalse(ServiceHostTopologyCache.contains(topology, "Catalina", "other"));
+        assertFalse(ServiceHostTopologyCache.contains(topology, "Other", "localhost"));
+    }
+
+    @Test
+    public void instancesAreCachedSeparately() throws Exception {
+        Properties other = new Properties();
+        other.setProperty("jmx.url", "service-host-topology-cache-tests-other");
+
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+        this.cache.get(other, this.connection, this.deployer, this.loader);
+
+        assertEquals(2, this.loader.loads);
+    }
+
+    @Test
+    public void replacedConnectionLoadsTopologyAgain() throws Exception {
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+        this.cache.get(this.config, this.mBeanServer, this.deployer, this.loader);
+        this.cache.get(this.config, this.mBeanServer, this.deployer, this.loader);
+
+        assertEquals(2, this.loader.loads);
+    }
+
+    @Test
+    public void listenerIsAddedOncePerConnection() throws Exception {
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+        this.cache.invalidate(this.config);
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+
+        assertEquals(2, this.loader.loads);
+        assertEquals(1, this.listenersAdded);
+    }
+
+    @Test
+    public void deployerRegistrationDiscardsTopology() throws Exception {
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+
+        this.mBeanServer.unregisterMBean(this.deployer);
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+        this.mBeanServer.registerMBean(new MBeanOperationCacheTests.Deployer(), this.deployer);
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+
+        assertEquals(3, this.loader.loads);
+    }
+
+    @Test
+    public void invalidateDiscardsTopology() throws Exception {
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+        this.cache.invalidate(this.config);
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+
+        assertEquals(2, this.loader.loads);
+    }
+
+    @Test
+    public void expiredTopologyIsLoadedAgain() throws Exception {
+        ServiceHostTopologyCache expiringCache = new ServiceHostTopologyCache(0);
+        expiringCache.get(this.config, this.connection, this.deployer, this.loader);
+        Thread.sleep(5);
+        expiringCache.get(this.config, this.connection, this.deployer, this.loader);
+
+        assertEquals(2, this.loader.loads);
+    }
+
+    @Test
+    public void topologyIsNotCachedWithoutRegistrationNotifications() throws Exception {
+        this.notificationsSupported = false;
+
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+        this.cache.get(this.config, this.connection, this.deployer, this.loader);
+
+        assertEquals(2, this.loader.loads);
+    }
+
+    private static final class CountingLoader implements ServiceHostTopologyCache.Loader {
+
+        private volatile int loads;
+
+        public Map<String, List<String>> load() throws PluginException {
+            this.loads++;
+            Map<String, List<String>> topology = new LinkedHashMap<String, List<String>>();
+            topology.put("Catalina", Arrays.asList("localhost", "www.example.com"));
+            return topology;
+        }
+    }
+}
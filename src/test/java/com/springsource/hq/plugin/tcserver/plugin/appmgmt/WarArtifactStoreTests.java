@@ -0,0 +1,250 @@
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hyperic.hq.product.PluginException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WarArtifactStoreTests {
+
+    private final CountingChanger changer = new CountingChanger();
+
+    private File directory;
+
+    private File war;
+
+    private WarArtifactStore store;
+
+    @Before
+    public void createStore() throws IOException {
+        this.directory = File.createTempFile("store", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.war = new File(this.directory, "petclinic.war");
+        write(this.war, "petclinic 1.0");
+        this.store = new WarArtifactStore(new File(this.directory, "store"));
+    }
+
+    @After
+    public void deleteStore() {
+        delete(this.directory);
+    }
+
+    @Test
+    public void warIsStoredOnceForAllInstances() throws Exception {
+        File first = this.store.getArtifact(this.war, null, "tomcat", "tomcat", this.changer, this.changer);
+        File second = this.store.getArtifact(this.war, sha256("petclinic 1.0"), "tomcat", "tomcat", this.changer, this.changer);
+
+        assertEquals(first, second);
+        assertEquals(sha256("petclinic 1.0") + ".war", first.getName());
+        assertEquals(1, this.changer.permissionChanges.get());
+        assertEquals(1, this.changer.ownershipChanges.get());
+    }
+
+    @Test
+    public void warIsStoredOncePerOwner() throws Exception {
+        File tomcat = this.store.getArtifact(this.war, null, "tomcat", "tomcat", this.changer, this.changer);
+        File other = this.store.getArtifact(this.war, null, "other", "other", this.changer, this.changer);
+
+        assertNotEquals(tomcat, other);
+        assertEquals(2, this.changer.ownershipChanges.get());
+    }
+
+    @Test
+    public void storedWarIsUnaffectedByChangesToTheOriginal() throws Exception {
+        File artifact = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        write(this.war, "petclinic 2.0");
+
+        assertEquals("petclinic 1.0", new String(Files.readAllBytes(artifact.toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void warThatDoesNotMatchItsDigestIsNotStored() throws Exception {
+        try {
+            this.store.getArtifact(this.war, sha256("petclinic 2.0"), null, null, this.changer, this.changer);
+            fail("PluginException not thrown");
+        } catch (PluginException e) {
+            assertTrue(e.getMessage().contains("does not match its SHA-256 digest"));
+        }
+        assertFalse(new File(this.directory, "store/artifacts/_/" + sha256("petclinic 2.0") + ".war").exists());
+    }
+
+    @Test
+    public void stagedWarIsALinkToTheStoredWar() throws Exception {
+        File artifact = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        assertFalse(this.store.isStaged(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+
+        File staged = this.store.stage(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic").getFile();
+
+        assertTrue(Files.isSameFile(artifact.toPath(), staged.toPath()));
+        assertTrue(this.store.isStaged(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+        assertFalse(this.store.isStaged(artifact, "/opt/instance-2", "Catalina|localhost|/petclinic"));
+        assertFalse(this.store.isStaged(artifact, "/opt/instance-1", "Catalina|localhost|/other"));
+    }
+
+    @Test
+    public void stagingANewWarReplacesThePreviousOne() throws Exception {
+        File first = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        this.store.stage(first, "/opt/instance-1", "Catalina|localhost|/petclinic");
+        write(this.war, "petclinic 2.0");
+        File second = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+
+        this.store.stage(second, "/opt/instance-1", "Catalina|localhost|/petclinic");
+
+        assertFalse(this.store.isStaged(first, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+        assertTrue(this.store.isStaged(second, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+    }
+
+    @Test
+    public void rollbackRestoresTheReplacedWar() throws Exception {
+        File first = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        this.store.stage(first, "/opt/instance-1", "Catalina|localhost|/petclinic").commit();
+        write(this.war, "petclinic 2.0");
+        File second = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+
+        this.store.stage(second, "/opt/instance-1", "Catalina|localhost|/petclinic").rollback();
+
+        assertTrue(this.store.isStaged(first, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+        assertFalse(this.store.isStaged(second, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+    }
+
+    @Test
+    public void rollbackForgetsAWarThatReplacedNone() throws Exception {
+        File artifact = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+
+        this.store.stage(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic").rollback();
+
+        assertFalse(this.store.isStaged(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+    }
+
+    @Test
+    public void revisionsAreStagedSeparately() throws Exception {
+        File first = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        this.store.stage(first, "/opt/instance-1", "Catalina|localhost|/petclinic##4").commit();
+        write(this.war, "petclinic 2.0");
+        File second = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+
+        this.store.stage(second, "/opt/instance-1", "Catalina|localhost|/petclinic##5").commit();
+
+        assertTrue(this.store.isStaged(first, "/opt/instance-1", "Catalina|localhost|/petclinic##4"));
+        assertFalse(this.store.isStaged(first, "/opt/instance-1", "Catalina|localhost|/petclinic##5"));
+    }
+
+    @Test
+    public void unstageForgetsTheStagedWar() throws Exception {
+        File artifact = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        this.store.stage(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic");
+
+        this.store.unstage("/opt/instance-1", "Catalina|localhost|/petclinic");
+
+        assertFalse(this.store.isStaged(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+        assertTrue(artifact.isFile());
+    }
+
+    @Test
+    public void storedWarThatDoesNotMatchItsDigestIsReplaced() throws Exception {
+        File artifact = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        write(artifact, "corrupted");
+
+        File replaced = this.store.getArtifact(this.war, sha256("petclinic 1.0"), null, null, this.changer, this.changer);
+
+        assertEquals(artifact, replaced);
+        assertEquals("petclinic 1.0", new String(Files.readAllBytes(replaced.toPath()), "UTF-8"));
+        assertEquals(2, this.changer.permissionChanges.get());
+    }
+
+    @Test
+    public void storedWarIsRemovedOnceNoDeploymentIsStagedWithIt() throws Exception {
+        WarArtifactStore store = new WarArtifactStore(new File(this.directory, "store"), 0);
+        File artifact = store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        store.stage(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic");
+        store.stage(artifact, "/opt/instance-2", "Catalina|localhost|/petclinic");
+
+        store.remove("/opt/instance-1", "Catalina|localhost|/petclinic");
+
+        assertFalse(store.isStaged(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic"));
+        assertTrue(artifact.isFile());
+
+        store.remove("/opt/instance-2", "Catalina|localhost|/petclinic");
+
+        assertFalse(artifact.exists());
+    }
+
+    @Test
+    public void storedWarThatHasJustBeenReturnedIsNotRemoved() throws Exception {
+        File artifact = this.store.getArtifact(this.war, null, null, null, this.changer, this.changer);
+        this.store.stage(artifact, "/opt/instance-1", "Catalina|localhost|/petclinic");
+
+        this.store.remove("/opt/instance-1", "Catalina|localhost|/petclinic");
+
+        assertTrue(artifact.isFile());
+    }
+
+    @Test
+    public void storeIsKeptInTheAgentDataDirectory() {
+        String dataDirectory = System.getProperty("agent.dataDir");
+        System.setProperty("agent.dataDir", this.directory.getPath());
+        try {
+            assertEquals(this.directory, WarArtifactStore.getAgentDataDirectory());
+        } finally {
+            if (dataDirectory == null) {
+                System.clearProperty("agent.dataDir");
+            } else {
+                System.setProperty("agent.dataDir", dataDirectory);
+            }
+        }
+    }
+
+    private static String sha256(String content) throws Exception {
+        return WarUploadStaging.toHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes("UTF-8")));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        // Ensure that the modification time differs from that of the previous content
+        file.setLastModified(file.lastModified() + 2000);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class CountingChanger implements FilePermissionsChanger, FileOwnershipChanger {
+
+        private final AtomicInteger permissionChanges = new AtomicInteger();
+
+        private final AtomicInteger ownershipChanges = new AtomicInteger();
+
+        public void changeFilePermissions(File file) {
+            this.permissionChanges.incrementAndGet();
+        }
+
+        public void changeFileOwnership(File file, String owningUser, String owningGroup) {
+            this.ownershipChanges.incrementAndGet();
+        }
+    }
+}
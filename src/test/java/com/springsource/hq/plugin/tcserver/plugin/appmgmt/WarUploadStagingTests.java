@@ -0,0 +1,216 @@
+package com.springsource.hq.plugin.tcserver.plugin.appmgmt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.hyperic.hq.product.PluginException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WarUploadStagingTests {
+
+    private static final String INSTANCE = "/opt/instance-1";
+
+    private final byte[] war = new byte[100000];
+
+    private File directory;
+
+    private WarUploadStaging staging;
+
+    @Before
+    public void createStaging() throws IOException {
+        for (int i = 0; i < this.war.length; i++) {
+            this.war[i] = (byte) (i * 31);
+        }
+        this.directory = File.createTempFile("staging", "");
+        this.directory.delete();
+        this.staging = new WarUploadStaging(this.directory);
+    }
+
+    @After
+    public void deleteStaging() {
+        delete(this.directory);
+    }
+
+    @Test
+    public void chunksAreAssembledAndStaged() throws Exception {
+        assertEquals(0, this.staging.getOffset(INSTANCE, "app"));
+        assertEquals(60000, write(0, 60000));
+        assertEquals(100000, write(60000, 100000));
+
+        File staged = this.staging.complete(INSTANCE, "app", sha256(this.war));
+
+        assertEquals(staged, this.staging.getStagedFile(INSTANCE, "app"));
+        assertArrayEquals(this.war, read(staged));
+        assertEquals(100000, this.staging.getOffset(INSTANCE, "app"));
+    }
+
+    @Test
+    public void uploadIsResumedFromItsOffset() throws Exception {
+        write(0, 30000);
+
+        WarUploadStaging restarted = new WarUploadStaging(this.directory);
+        long offset = restarted.getOffset(INSTANCE, "app");
+        assertEquals(30000, offset);
+        restarted.writeChunk(INSTANCE, "app", offset, chunk(offset, 100000), sha256(chunk(offset, 100000)));
+
+        assertArrayEquals(this.war, read(restarted.complete(INSTANCE, "app", sha256(this.war))));
+    }
+
+    @Test
+    public void chunkCanBeWrittenAgain() throws Exception {
+        write(0, 50000);
+        write(40000, 50000);
+        assertEquals(100000, write(50000, 100000));
+
+        assertArrayEquals(this.war, read(this.staging.complete(INSTANCE, "app", sha256(this.war))));
+    }
+
+    @Test
+    public void chunkThatDoesNotMatchItsDigestIsRejected() throws Exception {
+        try {
+            this.staging.writeChunk(INSTANCE, "app", 0, chunk(0, 1000), sha256(chunk(1, 1001)));
+            fail("PluginException not thrown");
+        } catch (PluginException e) {
+            assertTrue(e.getMessage().contains("does not match its SHA-256 digest"));
+        }
+        assertEquals(0, this.staging.getOffset(INSTANCE, "app"));
+    }
+
+    @Test(expected = PluginException.class)
+    public void chunkThatLeavesAGapIsRejected() throws Exception {
+        write(0, 1000);
+        write(2000, 3000);
+    }
+
+    @Test
+    public void incompleteUploadIsNotStaged() throws Exception {
+        write(0, 1000);
+        try {
+            this.staging.getStagedFile(INSTANCE, "app");
+            fail("PluginException not thrown");
+        } catch (PluginException e) {
+            assertEquals("Upload app is not complete", e.getMessage());
+        }
+    }
+
+    @Test
+    public void uploadThatDoesNotMatchItsDigestIsDiscarded() throws Exception {
+        write(0, 1000);
+        try {
+            this.staging.complete(INSTANCE, "app", sha256(this.war));
+            fail("PluginException not thrown");
+        } catch (PluginException e) {
+            assertTrue(e.getMessage().contains("must be started again"));
+        }
+        assertEquals(0, this.staging.getOffset(INSTANCE, "app"));
+    }
+
+    @Test
+    public void completedUploadCannotBeWritten() throws Exception {
+        write(0, 100000);
+        this.staging.complete(INSTANCE, "app", sha256(this.war));
+        try {
+            write(0, 1000);
+            fail("PluginException not thrown");
+        } catch (PluginException e) {
+            assertEquals("Upload app is already complete", e.getMessage());
+        }
+    }
+
+    @Test
+    public void discardRemovesTheUpload() throws Exception {
+        write(0, 100000);
+        File staged = this.staging.complete(INSTANCE, "app", sha256(this.war));
+
+        this.staging.discard(INSTANCE, "app");
+
+        assertFalse(staged.exists());
+        assertEquals(0, this.staging.getOffset(INSTANCE, "app"));
+    }
+
+    @Test
+    public void uploadsAreScopedToTheirInstance() throws Exception {
+        write(0, 100000);
+        this.staging.complete(INSTANCE, "app", sha256(this.war));
+
+        assertEquals(0, this.staging.getOffset("/opt/instance-2", "app"));
+        this.staging.discard("/opt/instance-2", "app");
+        assertEquals(100000, this.staging.getOffset(INSTANCE, "app"));
+    }
+
+    @Test
+    public void abandonedUploadsAreRemoved() throws Exception {
+        WarUploadStaging staging = new WarUploadStaging(this.directory, 60000);
+        byte[] chunk = chunk(0, 1000);
+        staging.writeChunk(INSTANCE, "abandoned", 0, chunk, sha256(chunk));
+        staging.writeChunk(INSTANCE, "active", 0, chunk, sha256(chunk));
+        staging.writeChunk("/opt/instance-2", "abandoned", 0, chunk, sha256(chunk));
+        for (File instanceDirectory : this.directory.listFiles()) {
+            File abandoned = new File(instanceDirectory, "abandoned.part");
+            abandoned.setLastModified(abandoned.lastModified() - 120000);
+        }
+
+        staging.removeAbandonedUploads();
+
+        assertEquals(0, staging.getOffset(INSTANCE, "abandoned"));
+        assertEquals(1000, staging.getOffset(INSTANCE, "active"));
+        assertEquals(0, staging.getOffset("/opt/instance-2", "abandoned"));
+    }
+
+    @Test(expected = PluginException.class)
+    public void uploadIdCannotLeaveTheStagingDirectory() throws Exception {
+        this.staging.getOffset(INSTANCE, "../app");
+    }
+
+    private long write(int from, int to) throws PluginException {
+        byte[] chunk = chunk(from, to);
+        return this.staging.writeChunk(INSTANCE, "app", from, chunk, sha256(chunk));
+    }
+
+    private byte[] chunk(long from, long to) {
+        return Arrays.copyOfRange(this.war, (int) from, (int) to);
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return WarUploadStaging.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,142 @@
+package com.springsource.hq.plugin.tcserver.plugin.configtrack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.springsource.hq.plugin.tcserver.plugin.configtrack.ConfigDirectoryWatcher.Change;
+import com.springsource.hq.plugin.tcserver.plugin.configtrack.ConfigDirectoryWatcher.Registration;
+
+public class ConfigDirectoryWatcherTests {
+
+    private final List<MonitoredFolder> folders = Arrays.asList(new MonitoredFolder("conf", true, Pattern.compile(".*\\.xml")),
+        new MonitoredFolder("lib", false, Pattern.compile(".*\\.jar")));
+
+    private final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+
+    private final ConfigDirectoryWatcher.Listener listener = new ConfigDirectoryWatcher.Listener() {
+
+        public void changed(File file, Change change) {
+            changes.add(file.getParentFile().getName() + "/" + file.getName() + " " + change);
+        }
+    };
+
+    private File root;
+
+    private Registration registration;
+
+    @Before
+    public void createInstance() throws IOException {
+        this.root = File.createTempFile("instance", "");
+        this.root.delete();
+        new File(this.root, "conf").mkdirs();
+        new File(this.root, "lib").mkdirs();
+        write(new File(this.root, "conf/server.xml"));
+    }
+
+    @After
+    public void deleteInstance() {
+        if (this.registration != null) {
+            this.registration.cancel();
+        }
+        delete(this.root);
+    }
+
+    @Test
+    public void changesAreReportedAsTheyHappen() throws Exception {
+        this.registration = new ConfigDirectoryWatcher(true, 60000).watch(this.root, this.folders, this.listener);
+        assertFalse(this.registration.isPolled());
+
+        write(new File(this.root, "conf/server.xml"));
+        assertEquals("conf/server.xml MODIFIED", next());
+
+        write(new File(this.root, "lib/tomcat-util.jar"));
+        assertEquals("lib/tomcat-util.jar CREATED", next());
+    }
+
+    @Test
+    public void filesThatDoNotMatchTheFilterAreIgnored() throws Exception {
+        this.registration = new ConfigDirectoryWatcher(true, 60000).watch(this.root, this.folders, this.listener);
+
+        write(new File(this.root, "conf/notes.txt"));
+        write(new File(this.root, "lib/readme.xml"));
+        new File(this.root, "conf/server.xml").delete();
+
+        assertEquals("conf/server.xml DELETED", next());
+        assertNull(this.changes.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void createdDirectoriesOfRecursiveFoldersAreWatched() throws Exception {
+        this.registration = new ConfigDirectoryWatcher(true, 60000).watch(this.root, this.folders, this.listener);
+
+        File engine = new File(this.root, "conf/Catalina");
+        engine.mkdirs();
+        write(new File(engine, "context.xml"));
+        assertEquals("Catalina/context.xml CREATED", next());
+
+        Thread.sleep(1000);
+        write(new File(engine, "context.xml"));
+        assertEquals("Catalina/context.xml MODIFIED", next());
+    }
+
+    @Test
+    public void cancelledRegistrationIsNotNotified() throws Exception {
+        this.registration = new ConfigDirectoryWatcher(true, 60000).watch(this.root, this.folders, this.listener);
+        this.registration.cancel();
+
+        write(new File(this.root, "conf/server.xml"));
+        assertNull(this.changes.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void foldersArePolledWithoutAWatchService() throws Exception {
+        this.registration = new ConfigDirectoryWatcher(false, 100).watch(this.root, this.folders, this.listener);
+        assertTrue(this.registration.isPolled());
+
+        Thread.sleep(1000);
+        write(new File(this.root, "conf/server.xml"));
+        assertEquals("conf/server.xml MODIFIED", next());
+
+        new File(this.root, "conf/server.xml").delete();
+        assertEquals("conf/server.xml DELETED", next());
+    }
+
+    private String next() throws InterruptedException {
+        return this.changes.poll(10, TimeUnit.SECONDS);
+    }
+
+    private static void write(File file) throws IOException {
+        FileWriter writer = new FileWriter(file, true);
+        try {
+            writer.write("<!-- " + System.nanoTime() + " -->\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,50 @@
+package com.springsource.hq.plugin.tcserver.plugin.configtrack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MonitoredFolderTests {
+
+    private static final String DESCRIPTOR = "<?xml version=\"1.0\"?>\n"
+        + "<!DOCTYPE plugin [<!ENTITY process-metrics SYSTEM \"/pdk/plugins/process-metrics.xml\">]>\n" + "<plugin>\n"
+        + "  <server name=\"Pivotal tc Runtime\">\n" + "    <plugin type=\"config_track\" class=\"example.ConfigTrackPlugin\">\n"
+        + "      <monitored>\n" + "        <folder path=\"bin\" recursive=\"false\" filter=\".*\\.sh\" />\n"
+        + "        <folder path=\"conf\" recursive=\"true\"\n            filter=\".*\\.properties|.*\\.xml\" />\n"
+        + "      </monitored>\n" + "    </plugin>\n"
+        + "    <plugin type=\"config_track\" class=\"example.OtherPlugin\">\n"
+        + "      <monitored><folder path=\"lib\" recursive=\"false\" filter=\".*\\.jar\" /></monitored>\n" + "    </plugin>\n"
+        + "    &process-metrics;\n" + "  </server>\n" + "</plugin>\n";
+
+    @Test
+    public void foldersOfThePluginClassAreParsed() throws Exception {
+        List<MonitoredFolder> folders = MonitoredFolder.parse(new ByteArrayInputStream(DESCRIPTOR.getBytes("UTF-8")),
+            "example.ConfigTrackPlugin");
+
+        assertEquals(2, folders.size());
+        assertEquals("bin", folders.get(0).getPath());
+        assertFalse(folders.get(0).isRecursive());
+        assertTrue(folders.get(0).matches("catalina.sh"));
+        assertFalse(folders.get(0).matches("catalina.bat"));
+        assertEquals("conf", folders.get(1).getPath());
+        assertTrue(folders.get(1).isRecursive());
+        assertTrue(folders.get(1).matches("server.xml"));
+        assertEquals(new File("/opt/instance", "conf"), folders.get(1).getDirectory(new File("/opt/instance")));
+    }
+
+    @Test
+    public void otherPluginsAreIgnored() throws Exception {
+        assertTrue(MonitoredFolder.parse(new ByteArrayInputStream(DESCRIPTOR.getBytes("UTF-8")), "example.Unknown").isEmpty());
+    }
+
+    @Test
+    public void folderWithoutFilterMatchesEveryFile() {
+        assertTrue(new MonitoredFolder("conf", false, null).matches("anything"));
+    }
+}
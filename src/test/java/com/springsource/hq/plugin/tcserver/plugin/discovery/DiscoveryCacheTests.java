@@ -0,0 +1,114 @@
+package com.springsource.hq.plugin.tcserver.plugin.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.hyperic.hq.product.PluginException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiscoveryCacheTests {
+
+    private final DiscoveryCache cache = new DiscoveryCache();
+
+    private final CountingLoader loader = new CountingLoader();
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        this.file = File.createTempFile("server", ".xml");
+        write("<Server/>");
+    }
+
+    @After
+    public void deleteFile() {
+        this.file.delete();
+    }
+
+    @Test
+    public void unchangedFileIsNotReloaded() throws PluginException {
+        assertEquals("value-1", this.cache.get("instance|fact", new File[] { this.file }, this.loader));
+        assertEquals("value-1", this.cache.get("instance|fact", new File[] { this.file }, this.loader));
+
+        assertEquals(1, this.loader.loads);
+    }
+
+    @Test
+    public void modifiedFileIsReloaded() throws Exception {
+        this.cache.get("instance|fact", new File[] { this.file }, this.loader);
+        write("<Server port=\"8005\"/>");
+
+        assertEquals("value-2", this.cache.get("instance|fact", new File[] { this.file }, this.loader));
+    }
+
+    @Test
+    public void deletedFileIsReloaded() throws PluginException {
+        this.cache.get("instance|fact", new File[] { this.file }, this.loader);
+        this.file.delete();
+
+        assertEquals("value-2", this.cache.get("instance|fact", new File[] { this.file }, this.loader));
+    }
+
+    @Test
+    public void keysAreCachedSeparately() throws PluginException {
+        this.cache.get("instance-1|fact", new File[] { this.file }, this.loader);
+
+        assertEquals("value-2", this.cache.get("instance-2|fact", new File[] { this.file }, this.loader));
+    }
+
+    @Test
+    public void failureIsNotCached() throws PluginException {
+        this.loader.failure = new PluginException("Unable to find catalina.properties");
+        try {
+            this.cache.get("instance|fact", new File[] { this.file }, this.loader);
+            fail();
+        } catch (PluginException e) {
+            // expected
+        }
+        this.loader.failure = null;
+
+        assertEquals("value-2", this.cache.get("instance|fact", new File[] { this.file }, this.loader));
+    }
+
+    @Test
+    public void nullIsCached() throws PluginException {
+        this.loader.returnNull = true;
+
+        this.cache.get("instance|fact", new File[] { this.file }, this.loader);
+        this.cache.get("instance|fact", new File[] { this.file }, this.loader);
+
+        assertEquals(1, this.loader.loads);
+    }
+
+    private void write(String content) throws IOException {
+        FileWriter writer = new FileWriter(this.file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static final class CountingLoader implements DiscoveryCache.Loader<String> {
+
+        private int loads;
+
+        private PluginException failure;
+
+        private boolean returnNull;
+
+        public String load() throws PluginException {
+            this.loads++;
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            return this.returnNull ? null : "value-" + this.loads;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.springsource.hq.plugin.tcserver.plugin.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.springsource.hq.plugin.tcserver.plugin.discovery.DiscoveryTimings.Phase;
+
+public class DiscoveryTimingsTests {
+
+    private final DiscoveryTimings timings = new DiscoveryTimings();
+
+    @Test
+    public void timeIsSummedPerPhase() {
+        long now = System.nanoTime();
+        this.timings.record(Phase.FILTER, now - TimeUnit.MILLISECONDS.toNanos(100));
+        this.timings.record(Phase.FILTER, now - TimeUnit.MILLISECONDS.toNanos(200));
+
+        assertTrue(this.timings.getMillis(Phase.FILTER) >= 300);
+        assertEquals(0, this.timings.getMillis(Phase.SERVER_CONFIG));
+    }
+
+    @Test
+    public void recordReturnsStartOfNextPhase() {
+        long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(50);
+        long next = this.timings.record(Phase.JMX_CONFIG, start);
+
+        assertTrue(next - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(TimeUnit.NANOSECONDS.toMillis(next - start), this.timings.getMillis(Phase.JMX_CONFIG));
+    }
+
+    @Test
+    public void everyPhaseIsDescribed() {
+        String description = this.timings.toString();
+
+        assertTrue(description.startsWith("process list 0ms, filter 0ms"));
+        assertTrue(description.endsWith("control program 0ms"));
+    }
+}
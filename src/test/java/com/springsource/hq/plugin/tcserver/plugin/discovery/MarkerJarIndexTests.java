@@ -0,0 +1,97 @@
+package com.springsource.hq.plugin.tcserver.plugin.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MarkerJarIndexTests {
+
+    private final MarkerJarIndex index = new MarkerJarIndex();
+
+    private File instance;
+
+    @Before
+    public void createInstance() throws IOException {
+        this.instance = File.createTempFile("instance", "");
+        this.instance.delete();
+        this.instance.mkdirs();
+    }
+
+    @After
+    public void deleteInstance() {
+        delete(this.instance);
+    }
+
+    @Test
+    public void markerJarsAreIndexed() throws Exception {
+        create("lib/tomcat-util.jar");
+        create("lib/tomcat-websocket.jar");
+        create("lib/catalina.jar");
+        create("webapps/ROOT/WEB-INF/lib/hq-common-4.6.jar");
+
+        assertEquals(new HashSet<String>(Arrays.asList("lib/tomcat-util.jar", "lib/tomcat-websocket.jar",
+            "webapps/ROOT/WEB-INF/lib/hq-common-4.6.jar")), this.index.getMarkers(this.instance.getPath()));
+        assertTrue(this.index.contains(this.instance.getPath(), "lib/tomcat-util.jar"));
+        assertFalse(this.index.contains(this.instance.getPath(), "lib/jaspic-api.jar"));
+        assertTrue(this.index.containsMatching(this.instance.getPath(), Pattern.compile("hq-common.*\\.jar")));
+    }
+
+    @Test
+    public void largeDirectoriesArePruned() throws Exception {
+        create("logs/archive/hq-common-4.6.jar");
+        create("work/Catalina/localhost/hq-common-4.6.jar");
+        create("temp/hq-common-4.6.jar");
+        create("webapps/ROOT/images/hq-common-4.6.jar");
+
+        assertTrue(this.index.getMarkers(this.instance.getPath()).isEmpty());
+    }
+
+    @Test
+    public void probeIsDepthBounded() throws Exception {
+        create("a/b/c/tcServer3.jar");
+        create("a/b/c/d/jaspic-api.jar");
+
+        assertEquals(new HashSet<String>(Arrays.asList("a/b/c/tcServer3.jar")), this.index.getMarkers(this.instance.getPath()));
+    }
+
+    @Test
+    public void addedJarIsIndexed() throws Exception {
+        assertFalse(this.index.contains(this.instance.getPath(), "lib/jaspic-api.jar"));
+
+        create("lib/jaspic-api.jar");
+
+        assertTrue(this.index.contains(this.instance.getPath(), "lib/jaspic-api.jar"));
+    }
+
+    @Test
+    public void missingDirectoryHasNoMarkers() throws Exception {
+        assertTrue(this.index.getMarkers(new File(this.instance, "missing").getPath()).isEmpty());
+        assertTrue(this.index.getMarkers(null).isEmpty());
+    }
+
+    private void create(String path) throws IOException {
+        File file = new File(this.instance, path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
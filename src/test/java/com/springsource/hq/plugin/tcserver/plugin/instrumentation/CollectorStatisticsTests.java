@@ -0,0 +1,90 @@
+package com.springsource.hq.plugin.tcserver.plugin.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CollectorStatisticsTests {
+
+    private final CollectorStatistics statistics = new CollectorStatistics();
+
+    @Test
+    public void firstReadEstablishesBaseline() {
+        OperationStatistics operation = this.statistics.getOperation(CollectorStatistics.JMX);
+        operation.record(millis(3), false);
+
+        assertNull(operation.readInterval("consumer"));
+    }
+
+    @Test
+    public void intervalStatisticsCoverInvocationsSinceLastRead() {
+        OperationStatistics operation = this.statistics.getOperation(CollectorStatistics.JMX);
+        operation.record(millis(100), false);
+        operation.readInterval("consumer");
+
+        for (int i = 0; i < 19; i++) {
+            operation.record(millis(3), false);
+        }
+        operation.record(millis(700), true);
+
+        OperationStatistics.IntervalStatistics interval = operation.readInterval("consumer");
+        assertEquals(20, interval.getCount());
+        assertEquals(1, interval.getFailures());
+        assertEquals(757d, interval.getTotalTime(), 0.001d);
+        assertEquals(37.85d, interval.getMeanTime(), 0.001d);
+        assertEquals(5d, interval.getPercentile95Time(), 0d);
+    }
+
+    @Test
+    public void consumersReadIndependently() {
+        OperationStatistics operation = this.statistics.getOperation(CollectorStatistics.COLLECT);
+        operation.readInterval("first");
+        operation.readInterval("second");
+
+        operation.record(millis(1), false);
+        assertEquals(1, operation.readInterval("first").getCount());
+        operation.record(millis(1), false);
+
+        assertEquals(1, operation.readInterval("first").getCount());
+        assertEquals(2, operation.readInterval("second").getCount());
+    }
+
+    @Test
+    public void mostExpensiveObjectNamesFirst() {
+        this.statistics.recordObjectName("Catalina:type=Manager", millis(5), false);
+        this.statistics.recordObjectName("Catalina:type=ThreadPool", millis(50), false);
+        this.statistics.recordObjectName("Catalina:type=Manager", millis(5), false);
+
+        List<Map.Entry<String, OperationStatistics.Totals>> mostExpensive = this.statistics.getMostExpensiveObjectNames(1);
+        assertEquals(1, mostExpensive.size());
+        assertEquals("Catalina:type=ThreadPool", mostExpensive.get(0).getKey());
+    }
+
+    @Test
+    public void numberOfIndividuallyTrackedMetricsIsBounded() {
+        for (int i = 0; i < 300; i++) {
+            this.statistics.recordMetric("metric" + i, millis(1), false);
+        }
+
+        List<Map.Entry<String, OperationStatistics.Totals>> metrics = this.statistics.getMostExpensiveMetrics(Integer.MAX_VALUE);
+        assertEquals(257, metrics.size());
+        assertEquals(CollectorStatistics.OTHER, metrics.get(0).getKey());
+        assertEquals(44, metrics.get(0).getValue().getCount());
+    }
+
+    @Test
+    public void statisticsAreHeldPerInstance() {
+        assertSame(CollectorStatistics.forInstance("url-1"), CollectorStatistics.forInstance("url-1"));
+        assertSame(CollectorStatistics.forInstance(null), CollectorStatistics.forInstance(null));
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
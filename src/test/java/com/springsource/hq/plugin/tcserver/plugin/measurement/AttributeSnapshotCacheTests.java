@@ -0,0 +1,214 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AttributeSnapshotCacheTests {
+
+    private final AttributeSnapshotCache cache = new AttributeSnapshotCache();
+
+    private final Pool pool = new Pool();
+
+    private MBeanServer mBeanServer;
+
+    private ObjectName objectName;
+
+    @Before
+    public void registerPool() throws Exception {
+        this.mBeanServer = MBeanServerFactory.newMBeanServer();
+        this.objectName = new ObjectName("Catalina:type=ThreadPool,name=\"http-bio-8080\"");
+        this.mBeanServer.registerMBean(this.pool, this.objectName);
+    }
+
+    @Test
+    public void attributesOfAnMBeanAreReadTogether() throws Exception {
+        AttributeSnapshot first = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName,
+            Arrays.asList("currentThreadsBusy", "maxThreads"), 10000);
+        AttributeSnapshot second = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 10000);
+
+        assertSame(first, second);
+        assertEquals(1, this.pool.maxThreadsReads.get());
+        assertEquals(200, second.getNumber("maxThreads").intValue());
+        assertEquals(5, second.getNumber("currentThreadsBusy").intValue());
+    }
+
+    @Test
+    public void previouslyRequestedAttributesAreIncludedInNextRead() throws Exception {
+        this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 10000);
+        AttributeSnapshot snapshot = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("currentThreadCount"),
+            10000);
+
+        assertTrue(snapshot.containsAll(Arrays.asList("maxThreads", "currentThreadCount")));
+        assertEquals(2, this.pool.maxThreadsReads.get());
+    }
+
+    @Test
+    public void staleSnapshotIsReRead() throws Exception {
+        AttributeSnapshot first = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 0);
+        AttributeSnapshot second = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 0);
+
+        assertNotSame(first, second);
+        assertEquals(2, this.pool.maxThreadsReads.get());
+    }
+
+    @Test
+    public void instancesAreCachedSeparately() throws Exception {
+        AttributeSnapshot first = this.cache.getSnapshot(this.mBeanServer, "url-1", this.objectName, Arrays.asList("maxThreads"), 10000);
+        AttributeSnapshot second = this.cache.getSnapshot(this.mBeanServer, "url-2", this.objectName, Arrays.asList("maxThreads"), 10000);
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void invalidateDiscardsSnapshots() throws Exception {
+        AttributeSnapshot first = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 10000);
+        this.cache.invalidate("url");
+        AttributeSnapshot second = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 10000);
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void missingAttributeIsAbsentFromSnapshot() throws Exception {
+        AttributeSnapshot snapshot = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName,
+            Arrays.asList("maxThreads", "noSuchAttribute"), 10000);
+
+        assertTrue(snapshot.contains("maxThreads"));
+        assertFalse(snapshot.contains("noSuchAttribute"));
+        assertTrue(snapshot.isMissing("noSuchAttribute"));
+    }
+
+    @Test
+    public void missingAttributeIsNotReadAgain() throws Exception {
+        AttributeSnapshot first = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName,
+            Arrays.asList("maxThreads", "noSuchAttribute"), 10000);
+        AttributeSnapshot second = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("noSuchAttribute"),
+            10000);
+
+        assertSame(first, second);
+        assertEquals(1, this.pool.maxThreadsReads.get());
+    }
+
+    @Test
+    public void snapshotIsOnlyUsedWithTheConnectionThatReadIt() throws Exception {
+        AttributeSnapshot first = this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 10000);
+        MBeanServer reconnected = MBeanServerFactory.newMBeanServer();
+        reconnected.registerMBean(this.pool, this.objectName);
+        AttributeSnapshot second = this.cache.getSnapshot(reconnected, "url", this.objectName, Arrays.asList("maxThreads"), 10000);
+
+        assertNotSame(first, second);
+        assertEquals(2, this.pool.maxThreadsReads.get());
+    }
+
+    @Test
+    public void prefetchReadsStaleSnapshotsAndServesThemOnce() throws Exception {
+        this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 0);
+
+        assertEquals(1, this.cache.prefetch(this.mBeanServer, "url", 0));
+        assertEquals(0, this.cache.prefetch(this.mBeanServer, "url", 0));
+        assertEquals(2, this.pool.maxThreadsReads.get());
+
+        this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 0);
+        assertEquals(2, this.pool.maxThreadsReads.get());
+        this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 0);
+        assertEquals(3, this.pool.maxThreadsReads.get());
+    }
+
+    @Test
+    public void prefetchSkipsFreshSnapshotsAndOtherInstances() throws Exception {
+        this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 10000);
+        this.cache.getSnapshot(this.mBeanServer, "url-2", this.objectName, Arrays.asList("maxThreads"), 0);
+
+        assertEquals(0, this.cache.prefetch(this.mBeanServer, "url", 10000));
+        assertEquals(2, this.pool.maxThreadsReads.get());
+    }
+
+    @Test
+    public void prefetchSkipsUnregisteredMBeans() throws Exception {
+        this.cache.getSnapshot(this.mBeanServer, "url", this.objectName, Arrays.asList("maxThreads"), 0);
+        this.mBeanServer.unregisterMBean(this.objectName);
+
+        assertEquals(0, this.cache.prefetch(this.mBeanServer, "url", 0));
+    }
+
+    @Test(expected = InstanceNotFoundException.class)
+    public void unregisteredMBean() throws Exception {
+        this.cache.getSnapshot(this.mBeanServer, "url", new ObjectName("Catalina:type=ThreadPool,name=missing"),
+            Arrays.asList("maxThreads"), 10000);
+    }
+
+    /**
+     * A thread pool MBean with Tomcat's lower case attribute names that counts the reads of <code>maxThreads</code>
+     */
+    public static final class Pool implements DynamicMBean {
+
+        private final AtomicInteger maxThreadsReads = new AtomicInteger();
+
+        private final Map<String, Integer> values = new HashMap<String, Integer>();
+
+        public Pool() {
+            this.values.put("currentThreadsBusy", 5);
+            this.values.put("currentThreadCount", 10);
+            this.values.put("maxThreads", 200);
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (!this.values.containsKey(attribute)) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            if ("maxThreads".equals(attribute)) {
+                this.maxThreadsReads.incrementAndGet();
+            }
+            return this.values.get(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList attributeList = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    attributeList.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Omitted from the list, as Tomcat's MBeans do
+                }
+            }
+            return attributeList;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(Pool.class.getName(), "Thread pool", null, null, null, null);
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setAttribute(Attribute attribute) {
+            this.values.put(attribute.getName(), (Integer) attribute.getValue());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
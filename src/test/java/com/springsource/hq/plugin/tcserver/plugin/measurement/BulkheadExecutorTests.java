@@ -0,0 +1,107 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.springsource.hq.plugin.tcserver.plugin.DaemonThreadFactory;
+
+public class BulkheadExecutorTests {
+
+    private final BulkheadExecutor executor = new BulkheadExecutor(2, 1, new DaemonThreadFactory("bulkhead test"));
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void shutdown() {
+        this.release.countDown();
+        this.executor.shutdown();
+    }
+
+    @Test
+    public void oneTaskPerInstance() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        assertTrue(this.executor.submit("url-1", new BlockingTask(started)));
+        assertFalse(this.executor.submit("url-1", new BlockingTask(new CountDownLatch(1))));
+        assertTrue(this.executor.isInFlight("url-1"));
+
+        started.await(5, TimeUnit.SECONDS);
+        this.release.countDown();
+        assertTrue(this.executor.await("url-1", 5000));
+        assertFalse(this.executor.isInFlight("url-1"));
+        assertTrue(this.executor.submit("url-1", new BlockingTask(new CountDownLatch(1))));
+    }
+
+    @Test
+    public void instancesRunConcurrently() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        this.executor.submit("url-1", new BlockingTask(started));
+        this.executor.submit("url-2", new BlockingTask(started));
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(2, this.executor.getActiveCount());
+    }
+
+    @Test
+    public void queueIsBounded() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        this.executor.submit("url-1", new BlockingTask(started));
+        this.executor.submit("url-2", new BlockingTask(started));
+        started.await(5, TimeUnit.SECONDS);
+
+        assertTrue(this.executor.submit("url-3", new BlockingTask(new CountDownLatch(1))));
+        assertEquals(1, this.executor.getQueueDepth());
+        assertFalse(this.executor.submit("url-4", new BlockingTask(new CountDownLatch(1))));
+        assertFalse(this.executor.isInFlight("url-4"));
+    }
+
+    @Test
+    public void awaitTimesOut() throws Exception {
+        this.executor.submit("url-1", new BlockingTask(new CountDownLatch(1)));
+
+        assertFalse(this.executor.await("url-1", 10));
+        assertTrue(this.executor.await("url-2", 10));
+    }
+
+    @Test
+    public void completedTasksAreCounted() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        this.executor.submit("url-1", new Runnable() {
+
+            public void run() {
+                runs.incrementAndGet();
+                throw new IllegalStateException();
+            }
+        });
+
+        assertTrue(this.executor.await("url-1", 5000));
+        assertEquals(1, runs.get());
+        assertEquals(1, this.executor.getStatistics().getTotals().getCount());
+        assertEquals(1, this.executor.getStatistics().getTotals().getFailures());
+    }
+
+    private final class BlockingTask implements Runnable {
+
+        private final CountDownLatch started;
+
+        private BlockingTask(CountDownLatch started) {
+            this.started = started;
+        }
+
+        public void run() {
+            this.started.countDown();
+            try {
+                BulkheadExecutorTests.this.release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTests {
+
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        assertFalse(this.circuitBreaker.recordFailure(3));
+        assertFalse(this.circuitBreaker.recordFailure(3));
+        assertTrue(this.circuitBreaker.recordFailure(3));
+
+        assertTrue(this.circuitBreaker.isOpen());
+        assertFalse(this.circuitBreaker.allowRequest(0));
+        assertFalse(this.circuitBreaker.recordFailure(3));
+    }
+
+    @Test
+    public void successResetsFailures() {
+        this.circuitBreaker.recordFailure(3);
+        this.circuitBreaker.recordFailure(3);
+        this.circuitBreaker.recordSuccess();
+
+        assertFalse(this.circuitBreaker.recordFailure(3));
+        assertTrue(this.circuitBreaker.allowRequest(0));
+    }
+
+    @Test
+    public void onlyOneProbeAtATime() {
+        assertFalse(this.circuitBreaker.startProbe());
+        this.circuitBreaker.recordFailure(1);
+
+        assertTrue(this.circuitBreaker.startProbe());
+        assertFalse(this.circuitBreaker.startProbe());
+    }
+
+    @Test
+    public void successfulProbeCloses() {
+        this.circuitBreaker.recordFailure(1);
+        this.circuitBreaker.startProbe();
+        this.circuitBreaker.probeSucceeded();
+
+        assertFalse(this.circuitBreaker.isOpen());
+        assertTrue(this.circuitBreaker.allowRequest(0));
+        assertFalse(this.circuitBreaker.recordFailure(2));
+    }
+
+    @Test
+    public void probingStopsWhenNoCollectionIsAttempted() {
+        this.circuitBreaker.allowRequest(1000);
+        this.circuitBreaker.recordFailure(1);
+        this.circuitBreaker.startProbe();
+
+        assertTrue(this.circuitBreaker.probeFailed(2000, 5000));
+        assertFalse(this.circuitBreaker.probeFailed(7000, 5000));
+        assertTrue(this.circuitBreaker.isOpen());
+
+        assertFalse(this.circuitBreaker.allowRequest(8000));
+        assertTrue(this.circuitBreaker.startProbe());
+    }
+}
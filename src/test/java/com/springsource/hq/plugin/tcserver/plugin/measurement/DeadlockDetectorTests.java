@@ -0,0 +1,138 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ReflectionException;
+
+import org.junit.Test;
+
+public class DeadlockDetectorTests {
+
+    private final DeadlockDetector detector = new DeadlockDetector();
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    @Test
+    public void noDeadlock() throws Exception {
+        DeadlockReport report = this.detector.detect(ManagementFactory.getThreadMXBean(), this.mBeanServer, "url");
+
+        assertEquals(0, report.getDeadlockedThreadCount());
+        assertFalse(report.isNewDeadlock());
+    }
+
+    @Test
+    public void deadlockIsReportedWithDetailsOnce() throws Exception {
+        final ReentrantLock first = new ReentrantLock();
+        final ReentrantLock second = new ReentrantLock();
+        final CountDownLatch locked = new CountDownLatch(2);
+        Thread one = new DeadlockingThread("deadlock-one", first, second, locked);
+        Thread two = new DeadlockingThread("deadlock-two", second, first, locked);
+        one.start();
+        two.start();
+
+        try {
+            DeadlockReport report = awaitDeadlock();
+
+            assertTrue(report.isNewDeadlock());
+            assertEquals(2, report.getThreadInfos().size());
+            assertTrue(report.format(), report.format().contains("\"deadlock-one\""));
+            assertTrue(report.format(), report.format().contains("owned by \"deadlock-two\""));
+            assertTrue(report.format(), report.format().contains("Locked synchronizers"));
+
+            DeadlockReport repeated = this.detector.detect(ManagementFactory.getThreadMXBean(), this.mBeanServer, "url");
+            assertEquals(2, repeated.getDeadlockedThreadCount());
+            assertFalse(repeated.isNewDeadlock());
+            assertTrue(repeated.getThreadInfos().isEmpty());
+        } finally {
+            one.interrupt();
+            two.interrupt();
+            one.join();
+            two.join();
+        }
+    }
+
+    @Test
+    public void unsupportedOperationIsProbedOnce() throws Exception {
+        CountingThreadMXBean counting = new CountingThreadMXBean();
+        ThreadMXBean threadBean = (ThreadMXBean) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ThreadMXBean.class },
+            counting);
+
+        this.detector.detect(threadBean, this.mBeanServer, "url");
+        this.detector.detect(threadBean, this.mBeanServer, "url");
+
+        assertEquals(1, counting.findDeadlockedThreadsCalls);
+        assertEquals(2, counting.findMonitorDeadlockedThreadsCalls);
+    }
+
+    private DeadlockReport awaitDeadlock() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            DeadlockReport report = this.detector.detect(ManagementFactory.getThreadMXBean(), this.mBeanServer, "url");
+            if (report.getDeadlockedThreadCount() == 2) {
+                return report;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Deadlock was not detected");
+    }
+
+    private static final class DeadlockingThread extends Thread {
+
+        private final ReentrantLock held;
+
+        private final ReentrantLock wanted;
+
+        private final CountDownLatch locked;
+
+        private DeadlockingThread(String name, ReentrantLock held, ReentrantLock wanted, CountDownLatch locked) {
+            super(name);
+            setDaemon(true);
+            this.held = held;
+            this.wanted = wanted;
+            this.locked = locked;
+        }
+
+        @Override
+        public void run() {
+            this.held.lock();
+            try {
+                this.locked.countDown();
+                this.locked.await();
+                this.wanted.lockInterruptibly();
+            } catch (InterruptedException e) {
+                // Test complete
+            } finally {
+                this.held.unlock();
+            }
+        }
+    }
+
+    private static final class CountingThreadMXBean implements InvocationHandler {
+
+        private int findDeadlockedThreadsCalls;
+
+        private int findMonitorDeadlockedThreadsCalls;
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("findDeadlockedThreads".equals(method.getName())) {
+                this.findDeadlockedThreadsCalls++;
+                throw new UndeclaredThrowableException(new ReflectionException(new NoSuchMethodException(method.getName())));
+            } else if ("findMonitorDeadlockedThreads".equals(method.getName())) {
+                this.findMonitorDeadlockedThreadsCalls++;
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.hyperic.hq.product.MetricValue;
+import org.junit.Test;
+
+public class DerivedMetricsTests {
+
+    private final StubContext context = new StubContext();
+
+    private final DerivedMetrics derivedMetrics = DerivedMetrics.fromProperties(createProperties());
+
+    private static Properties createProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("derived.percentActiveThreads", "ratio(currentThreadsBusy, maxThreads, 100)");
+        properties.setProperty("derived.HeapMemoryUsage.free", "difference(HeapMemoryUsage.max, HeapMemoryUsage.used)");
+        properties.setProperty("derived.heapFree", "free(HeapMemoryUsage)");
+        properties.setProperty("derived.percentUsed", "percentused(Usage)");
+        properties.setProperty("derived.totalCollectionTime", "sum(CollectionTime)");
+        properties.setProperty("derived.errors", "delta(errorCount)");
+        properties.setProperty("derived.requestsPerSecond", "rate(requestCount)");
+        properties.setProperty("derived.averageRequestTime", "deltaratio(processingTime, requestCount)");
+        properties.setProperty("derived.invalid", "median(requestCount)");
+        properties.setProperty("PLUGIN_VERSION", "1.0");
+        return properties;
+    }
+
+    @Test
+    public void ratio() throws Exception {
+        this.context.set("currentThreadsBusy", 50);
+        this.context.set("maxThreads", 200);
+
+        assertEquals(25d, this.derivedMetrics.get("percentActiveThreads").getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void ratioWithZeroDenominator() throws Exception {
+        this.context.set("currentThreadsBusy", 0);
+        this.context.set("maxThreads", 0);
+
+        assertSame(MetricValue.NONE, this.derivedMetrics.get("percentActiveThreads").getValue(this.context));
+    }
+
+    @Test
+    public void difference() throws Exception {
+        this.context.set("HeapMemoryUsage.max", 1000);
+        this.context.set("HeapMemoryUsage.used", 300);
+
+        assertEquals(700d, this.derivedMetrics.get("HeapMemoryUsage.free").getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void sum() throws Exception {
+        this.context.set("CollectionTime", 1234);
+
+        assertEquals(1234d, this.derivedMetrics.get("totalCollectionTime").getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void delta() throws Exception {
+        DerivedMetric errors = this.derivedMetrics.get("errors");
+
+        this.context.set("errorCount", 10);
+        assertSame(MetricValue.NONE, errors.getValue(this.context));
+
+        this.context.advance(60000);
+        this.context.set("errorCount", 25);
+        assertEquals(15d, errors.getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void rate() throws Exception {
+        DerivedMetric requestsPerSecond = this.derivedMetrics.get("requestsPerSecond");
+
+        this.context.set("requestCount", 1000);
+        assertSame(MetricValue.NONE, requestsPerSecond.getValue(this.context));
+
+        this.context.advance(10000);
+        this.context.set("requestCount", 1500);
+        assertEquals(50d, requestsPerSecond.getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void counterResetIsNotReported() throws Exception {
+        DerivedMetric requestsPerSecond = this.derivedMetrics.get("requestsPerSecond");
+
+        this.context.set("requestCount", 1000);
+        requestsPerSecond.getValue(this.context);
+
+        this.context.advance(10000);
+        this.context.set("requestCount", 100);
+        assertSame(MetricValue.NONE, requestsPerSecond.getValue(this.context));
+
+        this.context.advance(10000);
+        this.context.set("requestCount", 200);
+        assertEquals(10d, requestsPerSecond.getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void unchangedSampleIsNotReported() throws Exception {
+        DerivedMetric requestsPerSecond = this.derivedMetrics.get("requestsPerSecond");
+
+        this.context.set("requestCount", 1000);
+        requestsPerSecond.getValue(this.context);
+
+        assertSame(MetricValue.NONE, requestsPerSecond.getValue(this.context));
+    }
+
+    @Test
+    public void deltaRatio() throws Exception {
+        DerivedMetric averageRequestTime = this.derivedMetrics.get("averageRequestTime");
+
+        this.context.set("processingTime", 5000);
+        this.context.set("requestCount", 100);
+        assertSame(MetricValue.NONE, averageRequestTime.getValue(this.context));
+
+        this.context.advance(60000);
+        this.context.set("processingTime", 8000);
+        this.context.set("requestCount", 150);
+        assertEquals(60d, averageRequestTime.getValue(this.context).getValue(), 0d);
+
+        this.context.advance(60000);
+        assertSame(MetricValue.NONE, averageRequestTime.getValue(this.context));
+    }
+
+    @Test
+    public void deltaRatioCounterResetIsNotReported() throws Exception {
+        DerivedMetric averageRequestTime = this.derivedMetrics.get("averageRequestTime");
+
+        this.context.set("processingTime", 5000);
+        this.context.set("requestCount", 100);
+        averageRequestTime.getValue(this.context);
+
+        this.context.advance(60000);
+        this.context.set("processingTime", 400);
+        this.context.set("requestCount", 10);
+        assertSame(MetricValue.NONE, averageRequestTime.getValue(this.context));
+
+        this.context.advance(60000);
+        this.context.set("processingTime", 1400);
+        this.context.set("requestCount", 30);
+        assertEquals(50d, averageRequestTime.getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void freeMemoryIsMeasuredAgainstMax() throws Exception {
+        this.context.set("HeapMemoryUsage.used", 300);
+        this.context.set("HeapMemoryUsage.committed", 500);
+        this.context.set("HeapMemoryUsage.max", 1000);
+
+        assertEquals(700d, this.derivedMetrics.get("heapFree").getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void freeMemoryIsMeasuredAgainstCommittedWhenMaxIsUndefined() throws Exception {
+        this.context.set("HeapMemoryUsage.used", 300);
+        this.context.set("HeapMemoryUsage.committed", 500);
+        this.context.set("HeapMemoryUsage.max", -1);
+
+        assertEquals(200d, this.derivedMetrics.get("heapFree").getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void percentUsed() throws Exception {
+        this.context.set("Usage.used", 30);
+        this.context.set("Usage.committed", 60);
+        this.context.set("Usage.max", -1);
+
+        assertEquals(50d, this.derivedMetrics.get("percentUsed").getValue(this.context).getValue(), 0d);
+    }
+
+    @Test
+    public void invalidAndUnrelatedPropertiesAreIgnored() {
+        assertNull(this.derivedMetrics.get("invalid"));
+        assertNull(this.derivedMetrics.get("PLUGIN_VERSION"));
+        assertNotNull(this.derivedMetrics.get("percentActiveThreads"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedExpression() {
+        this.derivedMetrics.parse("ratio(currentThreadsBusy,");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongNumberOfArguments() {
+        this.derivedMetrics.parse("difference(maxThreads)");
+    }
+
+    private static final class StubContext implements DerivedMetricContext {
+
+        private final Map<String, Double> values = new HashMap<String, Double>();
+
+        private long timestamp = 1000000;
+
+        void set(String attributePath, double value) {
+            this.values.put(attributePath, value);
+        }
+
+        void advance(long millis) {
+            this.timestamp += millis;
+        }
+
+        public String getKey() {
+            return "url|Catalina:type=Test|metric";
+        }
+
+        public AttributeSample sample(String... attributePaths) {
+            double[] sample = new double[attributePaths.length];
+            for (int i = 0; i < attributePaths.length; i++) {
+                sample[i] = this.values.get(attributePaths[i]);
+            }
+            return new AttributeSample(sample, this.timestamp);
+        }
+    }
+}
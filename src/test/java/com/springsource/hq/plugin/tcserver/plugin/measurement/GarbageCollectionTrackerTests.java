@@ -0,0 +1,95 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class GarbageCollectionTrackerTests {
+
+    private final ObjectName young = ObjectName.getInstance("java.lang:type=GarbageCollector,name=Young");
+
+    private final ObjectName old = ObjectName.getInstance("java.lang:type=GarbageCollector,name=Old");
+
+    private final GarbageCollectionTracker tracker = new GarbageCollectionTracker(1);
+
+    public GarbageCollectionTrackerTests() throws Exception {
+    }
+
+    @Test
+    public void noIntervalUntilTwoSamples() {
+        assertNull(this.tracker.getInterval());
+        this.tracker.record(sample(60000, 100, 10, 50, 1));
+        assertNull(this.tracker.getInterval());
+    }
+
+    @Test
+    public void intervalBetweenLastTwoSamples() {
+        this.tracker.record(sample(60000, 100, 10, 50, 1));
+        this.tracker.record(sample(120000, 400, 20, 1000, 2));
+        this.tracker.record(sample(180000, 700, 30, 1000, 2));
+
+        GarbageCollectionInterval interval = this.tracker.getInterval();
+        assertEquals(60000, interval.getDuration());
+        assertEquals(0.5d, interval.getPercentTimeSpent(null), 0d);
+        assertEquals(10d, interval.getCollectionsPerMinute(this.young), 0d);
+        assertEquals(30d, interval.getMeanPauseTime(this.young), 0d);
+        assertEquals(0d, interval.getMeanPauseTime(this.old), 0d);
+    }
+
+    @Test
+    public void wideWindow() {
+        GarbageCollectionTracker wideTracker = new GarbageCollectionTracker(2);
+        wideTracker.record(sample(60000, 100, 10, 50, 1));
+        wideTracker.record(sample(120000, 400, 20, 1000, 2));
+        wideTracker.record(sample(180000, 700, 30, 1000, 2));
+
+        GarbageCollectionInterval interval = wideTracker.getInterval();
+        assertEquals(120000, interval.getDuration());
+        assertEquals(600, interval.getCollectionTime(this.young));
+        assertEquals(950, interval.getCollectionTime(this.old));
+        assertEquals(21, interval.getCollectionCount(null));
+    }
+
+    @Test
+    public void sampleWithUnchangedUptimeIsIgnored() {
+        this.tracker.record(sample(60000, 100, 10, 50, 1));
+        this.tracker.record(sample(120000, 400, 20, 1000, 2));
+        this.tracker.record(sample(120000, 500, 25, 1000, 2));
+
+        assertEquals(300, this.tracker.getInterval().getCollectionTime(this.young));
+    }
+
+    @Test
+    public void restartDiscardsSamples() {
+        this.tracker.record(sample(60000, 100, 10, 50, 1));
+        this.tracker.record(sample(120000, 400, 20, 1000, 2));
+        this.tracker.record(sample(1000, 10, 1, 0, 0));
+
+        assertNull(this.tracker.getInterval());
+    }
+
+    @Test
+    public void collectorNamesAreCachedPerConnection() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> collectorNames = this.tracker.getCollectorNames(mBeanServer);
+
+        assertEquals(ManagementFactory.getGarbageCollectorMXBeans().size(), collectorNames.size());
+        assertSame(collectorNames, this.tracker.getCollectorNames(mBeanServer));
+
+        this.tracker.invalidateCollectorNames();
+        assertEquals(collectorNames, this.tracker.getCollectorNames(mBeanServer));
+    }
+
+    private GarbageCollectionSample sample(long uptime, long youngTime, long youngCount, long oldTime, long oldCount) {
+        return new GarbageCollectionSample(uptime).withCollector(this.young, youngTime, youngCount).withCollector(this.old, oldTime,
+            oldCount);
+    }
+}
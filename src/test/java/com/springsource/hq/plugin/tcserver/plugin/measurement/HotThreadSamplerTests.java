@@ -0,0 +1,51 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+
+import org.junit.Test;
+
+public class HotThreadSamplerTests {
+
+    private static final Pattern REQUEST_THREADS = Pattern.compile("http-.+");
+
+    private final HotThreadSampler sampler = new HotThreadSampler();
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void sampleIncludesLiveThreads() throws Exception {
+        ThreadCpuSample sample = this.sampler.sample(this.mBeanServer, this.threadBean, 0);
+
+        assertEquals(Thread.currentThread().getName(), sample.getThreadName(Thread.currentThread().getId()));
+    }
+
+    @Test
+    public void freshSampleIsReused() throws Exception {
+        ThreadCpuSample first = this.sampler.sample(this.mBeanServer, this.threadBean, 10000);
+
+        assertSame(first, this.sampler.sample(this.mBeanServer, this.threadBean, 10000));
+    }
+
+    @Test
+    public void consumersHaveTheirOwnBaselines() throws Exception {
+        ThreadCpuSample first = this.sampler.sample(this.mBeanServer, this.threadBean, 0);
+        assertNull(this.sampler.readInterval("a", first, REQUEST_THREADS, 5));
+
+        Thread.sleep(5);
+        ThreadCpuSample second = this.sampler.sample(this.mBeanServer, this.threadBean, 0);
+        assertNotNull(this.sampler.readInterval("a", second, REQUEST_THREADS, 5));
+        assertNull(this.sampler.readInterval("a", second, REQUEST_THREADS, 5));
+        assertNull(this.sampler.readInterval("b", second, REQUEST_THREADS, 5));
+    }
+}
@@ -0,0 +1,127 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.junit.Test;
+
+public class MemoryPoolTrackerTests {
+
+    private static final String EDEN = "PS Eden Space";
+
+    private static final String OLD = "PS Old Gen";
+
+    private final MemoryPoolTracker tracker = new MemoryPoolTracker();
+
+    @Test
+    public void allocationBetweenCollectionsIsEdenGrowth() {
+        this.tracker.getAllocationRate("allocationRate", sample(0, 1000, 5, null));
+
+        assertEquals(400d, this.tracker.getAllocationRate("allocationRate", sample(10000, 5000, 5, null)), 0d);
+    }
+
+    @Test
+    public void allocationAcrossCollectionsIsEstimatedFromLastCollection() throws Exception {
+        this.tracker.getAllocationRate("allocationRate", sample(0, 1000, 5, null));
+
+        // Two collections, the last emptying 8000 bytes of eden, then 2000 bytes allocated since
+        YoungGenerationSample sample = sample(10000, 2000, 7, gcInfo(8000, 0, 30000, 31000));
+        assertEquals((7000 + 8000 + 2000) / 10d, this.tracker.getAllocationRate("allocationRate", sample), 0d);
+    }
+
+    @Test
+    public void promotionIsOldGenerationGrowthDuringCollections() throws Exception {
+        this.tracker.getPromotionRate("promotionRate", sample(0, 1000, 5, null));
+
+        YoungGenerationSample sample = sample(10000, 2000, 7, gcInfo(8000, 0, 30000, 31000));
+        assertEquals(2 * 1000 / 10d, this.tracker.getPromotionRate("promotionRate", sample), 0d);
+    }
+
+    @Test
+    public void collectionsWithoutGcInfoAreNotEstimated() {
+        this.tracker.getAllocationRate("allocationRate", sample(0, 1000, 5, null));
+
+        assertEquals(-1d, this.tracker.getAllocationRate("allocationRate", sample(10000, 2000, 6, null)), 0d);
+    }
+
+    @Test
+    public void restartIsNotReported() {
+        this.tracker.getAllocationRate("allocationRate", sample(0, 1000, 5, null));
+
+        assertEquals(-1d, this.tracker.getAllocationRate("allocationRate", sample(10000, 2000, 0, null)), 0d);
+        assertEquals(100d, this.tracker.getAllocationRate("allocationRate", sample(20000, 3000, 0, null)), 0d);
+    }
+
+    @Test
+    public void firstSampleIsBaseline() {
+        assertEquals(-1d, this.tracker.getAllocationRate("allocationRate", sample(0, 1000, 5, null)), 0d);
+    }
+
+    @Test
+    public void poolClassification() {
+        assertTrue(MemoryPoolTracker.isEden("G1 Eden Space"));
+        assertTrue(MemoryPoolTracker.isOld("Tenured Gen"));
+        assertFalse(MemoryPoolTracker.isOld("Metaspace"));
+    }
+
+    @Test
+    public void youngCollectorDoesNotManageOldGeneration() throws Exception {
+        Map<ObjectName, String[]> managedPools = new LinkedHashMap<ObjectName, String[]>();
+        managedPools.put(new ObjectName("java.lang:type=GarbageCollector,name=PS MarkSweep"), new String[] { EDEN, "PS Survivor Space", OLD });
+        managedPools.put(new ObjectName("java.lang:type=GarbageCollector,name=PS Scavenge"), new String[] { EDEN, "PS Survivor Space" });
+
+        assertEquals("PS Scavenge", MemoryPoolTracker.getYoungCollector(managedPools, OLD).getKeyProperty("name"));
+    }
+
+    @Test
+    public void youngCollectorIsIdentifiedByNameWhenAllManageOldGeneration() throws Exception {
+        Map<ObjectName, String[]> managedPools = new LinkedHashMap<ObjectName, String[]>();
+        String[] pools = new String[] { "G1 Eden Space", "G1 Survivor Space", "G1 Old Gen" };
+        managedPools.put(new ObjectName("java.lang:type=GarbageCollector,name=G1 Old Generation"), pools);
+        managedPools.put(new ObjectName("java.lang:type=GarbageCollector,name=G1 Young Generation"), pools);
+
+        assertEquals("G1 Young Generation", MemoryPoolTracker.getYoungCollector(managedPools, "G1 Old Gen").getKeyProperty("name"));
+    }
+
+    private static YoungGenerationSample sample(long timestamp, long edenUsed, long collectionCount, CompositeData gcInfo) {
+        return new YoungGenerationSample(timestamp, edenUsed, collectionCount, gcInfo, EDEN, OLD);
+    }
+
+    private static CompositeData gcInfo(long edenBefore, long edenAfter, long oldBefore, long oldAfter) throws Exception {
+        CompositeType usageType = new CompositeType("MemoryUsage", "MemoryUsage", new String[] { "used" }, new String[] { "used" },
+            new OpenType<?>[] { SimpleType.LONG });
+        CompositeType rowType = new CompositeType("Row", "Row", new String[] { "key", "value" }, new String[] { "key", "value" },
+            new OpenType<?>[] { SimpleType.STRING, usageType });
+        TabularType usagesType = new TabularType("Usages", "Usages", rowType, new String[] { "key" });
+
+        TabularDataSupport before = new TabularDataSupport(usagesType);
+        before.put(row(rowType, usageType, EDEN, edenBefore));
+        before.put(row(rowType, usageType, OLD, oldBefore));
+        TabularDataSupport after = new TabularDataSupport(usagesType);
+        after.put(row(rowType, usageType, EDEN, edenAfter));
+        after.put(row(rowType, usageType, OLD, oldAfter));
+
+        CompositeType gcInfoType = new CompositeType("GcInfo", "GcInfo", new String[] { "memoryUsageBeforeGc", "memoryUsageAfterGc" },
+            new String[] { "before", "after" }, new OpenType<?>[] { usagesType, usagesType });
+        return new CompositeDataSupport(gcInfoType, new String[] { "memoryUsageBeforeGc", "memoryUsageAfterGc" }, new Object[] { before,
+            after });
+    }
+
+    private static CompositeData row(CompositeType rowType, CompositeType usageType, String pool, long used) throws Exception {
+        CompositeData usage = new CompositeDataSupport(usageType, new String[] { "used" }, new Object[] { used });
+        return new CompositeDataSupport(rowType, new String[] { "key", "value" }, new Object[] { pool, usage });
+    }
+}
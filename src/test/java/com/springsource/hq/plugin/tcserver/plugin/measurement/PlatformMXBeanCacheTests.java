@@ -0,0 +1,66 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+
+import org.junit.Test;
+
+public class PlatformMXBeanCacheTests {
+
+    private final PlatformMXBeanCache cache = new PlatformMXBeanCache();
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    @Test
+    public void proxyIsReusedForSameConnection() throws Exception {
+        RuntimeMXBean runtime = this.cache.getRuntimeMXBean(this.mBeanServer, "url");
+
+        assertSame(runtime, this.cache.getRuntimeMXBean(this.mBeanServer, "url"));
+        assertTrue(runtime.getUptime() > 0);
+    }
+
+    @Test
+    public void proxiesAreDiscardedWhenConnectionChanges() throws Exception {
+        RuntimeMXBean runtime = this.cache.getRuntimeMXBean(this.mBeanServer, "url");
+
+        assertNotSame(runtime, this.cache.getRuntimeMXBean(newConnection(), "url"));
+    }
+
+    @Test
+    public void proxiesAreCachedPerInstance() throws Exception {
+        assertNotSame(this.cache.getThreadMXBean(this.mBeanServer, "url-1"), this.cache.getThreadMXBean(this.mBeanServer, "url-2"));
+    }
+
+    @Test
+    public void invalidateDiscardsProxies() throws Exception {
+        RuntimeMXBean runtime = this.cache.getRuntimeMXBean(this.mBeanServer, "url");
+        this.cache.invalidate("url");
+
+        assertNotSame(runtime, this.cache.getRuntimeMXBean(this.mBeanServer, "url"));
+    }
+
+    private MBeanServerConnection newConnection() {
+        return (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { MBeanServerConnection.class },
+            new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    try {
+                        return method.invoke(PlatformMXBeanCacheTests.this.mBeanServer, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+    }
+}
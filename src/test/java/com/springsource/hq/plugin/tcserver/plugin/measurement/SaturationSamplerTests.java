@@ -0,0 +1,105 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SaturationSamplerTests {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private MBeanServer mBeanServer;
+
+    private ObjectName objectName;
+
+    private SaturationSampler sampler;
+
+    @Before
+    public void createSampler() throws Exception {
+        this.mBeanServer = MBeanServerFactory.newMBeanServer();
+        this.objectName = new ObjectName("Catalina:type=ThreadPool,name=\"http-bio-8080\"");
+        this.mBeanServer.registerMBean(new AttributeSnapshotCacheTests.Pool(), this.objectName);
+        this.sampler = new SaturationSampler("url", new MBeanServerConnectionProvider() {
+
+            public MBeanServerConnection getConnection() throws IOException {
+                return mBeanServer;
+            }
+        }, this.executor, 60000, 2, 4);
+    }
+
+    @After
+    public void stopSampler() {
+        this.sampler.stop();
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void statisticsOfSamplesTakenSinceLastRead() throws Exception {
+        assertNull(this.sampler.read(this.objectName, "currentThreadsBusy", "max"));
+
+        sample(2, 8, 5);
+
+        SampleStatistics statistics = this.sampler.read(this.objectName, "currentThreadsBusy", "max");
+        assertEquals(3, statistics.getSampleCount());
+        assertEquals(8, statistics.getMax(), 0);
+        assertEquals(5, statistics.getMean(), 0);
+        assertEquals(8, statistics.getPercentile95(), 0);
+
+        assertNull(this.sampler.read(this.objectName, "currentThreadsBusy", "max"));
+    }
+
+    @Test
+    public void consumersReadIndependently() throws Exception {
+        this.sampler.read(this.objectName, "currentThreadsBusy", "max");
+        this.sampler.read(this.objectName, "currentThreadsBusy", "mean");
+
+        sample(4);
+        this.sampler.read(this.objectName, "currentThreadsBusy", "max");
+        sample(6);
+
+        assertEquals(1, this.sampler.read(this.objectName, "currentThreadsBusy", "max").getSampleCount());
+        assertEquals(5, this.sampler.read(this.objectName, "currentThreadsBusy", "mean").getMean(), 0);
+    }
+
+    @Test
+    public void onlyTheMostRecentSamplesAreRetained() throws Exception {
+        this.sampler.read(this.objectName, "currentThreadsBusy", "max");
+
+        sample(100, 1, 2, 3, 4);
+
+        SampleStatistics statistics = this.sampler.read(this.objectName, "currentThreadsBusy", "max");
+        assertEquals(4, statistics.getSampleCount());
+        assertEquals(4, statistics.getMax(), 0);
+    }
+
+    @Test
+    public void numberOfSampledAttributesIsLimited() throws Exception {
+        this.sampler.read(this.objectName, "currentThreadsBusy", "max");
+        this.sampler.read(this.objectName, "currentThreadCount", "max");
+
+        sample(1);
+
+        assertNull(this.sampler.read(this.objectName, "maxThreads", "max"));
+        assertEquals(1, this.sampler.read(this.objectName, "currentThreadCount", "max").getSampleCount());
+    }
+
+    private void sample(int... busyThreads) throws Exception {
+        for (int busy : busyThreads) {
+            this.mBeanServer.setAttribute(this.objectName, new Attribute("currentThreadsBusy", busy));
+            this.sampler.sample();
+        }
+    }
+}
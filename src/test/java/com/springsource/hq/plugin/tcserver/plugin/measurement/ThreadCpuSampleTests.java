@@ -0,0 +1,84 @@
+package com.springsource.hq.plugin.tcserver.plugin.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class ThreadCpuSampleTests {
+
+    private static final Pattern REQUEST_THREADS = Pattern.compile("http-nio-8080-exec-\\d+");
+
+    private static final long MILLISECOND = 1000000L;
+
+    @Test
+    public void cpuTimeIsDividedBetweenRequestJvmAndOtherThreads() {
+        ThreadCpuSample first = sample(0, new long[] { 1, 2, 3 }, new long[] { 0, 0, 0 }, 0);
+        ThreadCpuSample second = sample(1000, new long[] { 1, 2, 3 }, new long[] { 100, 200, 50 }, 500);
+
+        ThreadCpuInterval interval = second.since(first, REQUEST_THREADS, 5);
+
+        assertEquals(1000, interval.getDuration());
+        // 2 processors, so 2000ms of capacity
+        assertEquals(15d, interval.getRequestThreadUsage(), 0.0001);
+        assertEquals(2.5d, interval.getOtherThreadUsage(), 0.0001);
+        assertEquals(7.5d, interval.getJvmThreadUsage(), 0.0001);
+    }
+
+    @Test
+    public void hotThreadsAreOrderedAndLimited() {
+        ThreadCpuSample first = sample(0, new long[] { 1, 2, 3 }, new long[] { 10, 10, 10 }, 0);
+        ThreadCpuSample second = sample(1000, new long[] { 1, 2, 3, 4 }, new long[] { 30, 210, 10, 40 }, 300);
+
+        List<ThreadCpuInterval.HotThread> hotThreads = second.since(first, REQUEST_THREADS, 2).getHotThreads();
+
+        assertEquals(2, hotThreads.size());
+        assertEquals(2, hotThreads.get(0).getThreadId());
+        assertEquals("http-nio-8080-exec-2", hotThreads.get(0).getThreadName());
+        assertEquals(200 * MILLISECOND, hotThreads.get(0).getCpuTime());
+        assertEquals(10d, hotThreads.get(0).getUsage(), 0.0001);
+        // Started during the interval, so all of its CPU time was used in it
+        assertEquals(4, hotThreads.get(1).getThreadId());
+    }
+
+    @Test
+    public void threadsWithoutCpuTimeAreIgnored() {
+        ThreadCpuSample first = sample(0, new long[] { 1, 2 }, new long[] { 0, -1 }, -1);
+        ThreadCpuSample second = sample(1000, new long[] { 1, 2 }, new long[] { 100, -1 }, -1);
+
+        ThreadCpuInterval interval = second.since(first, REQUEST_THREADS, 5);
+
+        assertEquals(5d, interval.getRequestThreadUsage(), 0.0001);
+        assertEquals(-1d, interval.getJvmThreadUsage(), 0);
+        assertEquals(1, interval.getHotThreads().size());
+    }
+
+    @Test
+    public void restartInvalidatesInterval() {
+        ThreadCpuSample first = sample(0, new long[] { 1 }, new long[] { 100 }, 1000);
+        ThreadCpuSample second = sample(1000, new long[] { 1 }, new long[] { 10 }, 20);
+
+        assertNull(second.since(first, REQUEST_THREADS, 5));
+    }
+
+    @Test
+    public void intervalRequiresAnEarlierSample() {
+        ThreadCpuSample sample = sample(1000, new long[] { 1 }, new long[] { 100 }, 1000);
+
+        assertNull(sample.since(null, REQUEST_THREADS, 5));
+        assertNull(sample.since(sample, REQUEST_THREADS, 5));
+    }
+
+    private static ThreadCpuSample sample(long timestamp, long[] threadIds, long[] cpuMillis, long processCpuMillis) {
+        String[] threadNames = new String[threadIds.length];
+        long[] cpuTimes = new long[threadIds.length];
+        for (int i = 0; i < threadIds.length; i++) {
+            threadNames[i] = threadIds[i] == 3 ? "ContainerBackgroundProcessor" : "http-nio-8080-exec-" + threadIds[i];
+            cpuTimes[i] = cpuMillis[i] < 0 ? -1 : cpuMillis[i] * MILLISECOND;
+        }
+        return new ThreadCpuSample(timestamp, threadIds, threadNames, cpuTimes, processCpuMillis < 0 ? -1 : processCpuMillis * MILLISECOND, 2);
+    }
+}
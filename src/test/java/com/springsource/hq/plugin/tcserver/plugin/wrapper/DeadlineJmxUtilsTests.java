@@ -0,0 +1,291 @@
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.util.config.ConfigResponse;
+import org.junit.After;
+import org.junit.Test;
+
+public class DeadlineJmxUtilsTests {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final StubJmxUtils delegate = new StubJmxUtils();
+
+    private final JmxConnectionManager connectionManager = new JmxConnectionManager(new JmxConnectorFactory() {
+
+        public JMXConnector connect(Properties configProperties) throws IOException {
+            throw new IOException("Not used");
+        }
+    }, 60000);
+
+    private final DeadlineJmxUtils jmxUtils = new DeadlineJmxUtils(this.delegate, this.connectionManager);
+
+    private final DeadlineJmxUtils applicationManagementJmxUtils = DeadlineJmxUtils.forApplicationManagement(this.delegate,
+        this.connectionManager);
+
+    @After
+    public void releaseHungOperations() {
+        this.release.countDown();
+    }
+
+    @Test
+    public void completedOperationReturnsResult() throws Exception {
+        assertEquals("listApplications", this.jmxUtils.invoke(config("completed", "1000"), "tcServer:type=Deployer", "listApplications",
+            new Object[0], new String[0]));
+    }
+
+    @Test
+    public void hungInvocationFailsAsUnreachable() throws Exception {
+        this.delegate.hang = true;
+        long start = System.nanoTime();
+        try {
+            this.jmxUtils.invoke(config("hung-invoke", "100"), "tcServer:type=Deployer", "getServices", new Object[0], new String[0]);
+            fail("Invocation should have timed out");
+        } catch (MetricUnreachableException e) {
+            assertTrue(e.getMessage().contains("did not complete within 100ms"));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+    }
+
+    @Test
+    public void hungAttributeReadOnConnectionTimesOut() throws Exception {
+        MBeanServerConnection connection = this.jmxUtils.getMBeanServer(config("hung-read", "100"));
+        this.delegate.hang = true;
+        try {
+            connection.getAttribute(new ObjectName("JMImplementation:type=MBeanServerDelegate"), "MBeanServerId");
+            fail("Read should have timed out");
+        } catch (InterruptedIOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void connectionIsWrappedOnce() throws Exception {
+        Properties config = config("wrapped", "1000");
+        MBeanServerConnection connection = this.jmxUtils.getMBeanServer(config);
+
+        assertTrue(connection == this.jmxUtils.getMBeanServer(config));
+        assertEquals(this.delegate.mBeanServer.getMBeanCount(), connection.getMBeanCount());
+    }
+
+    @Test
+    public void hungInstanceFailsFastOnceItsLimitIsReached() throws Exception {
+        this.delegate.hang = true;
+        Properties config = config("limited", "50");
+        for (int i = 0; i < DeadlineJmxUtils.MAX_IN_FLIGHT_PER_INSTANCE; i++) {
+            try {
+                this.jmxUtils.getValue(config, "Catalina:type=Server", "serverInfo");
+                fail("Read should have timed out");
+            } catch (InterruptedIOException e) {
+                // Expected
+            }
+        }
+
+        try {
+            this.jmxUtils.getValue(config, "Catalina:type=Server", "serverInfo");
+            fail("Read should have been refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("have not completed"));
+        }
+    }
+
+    @Test
+    public void hungInstancesDoNotDelayOtherInstances() throws Exception {
+        for (int instance = 0; instance < 10; instance++) {
+            Properties config = config("hung-" + instance, "20");
+            for (int i = 0; i < DeadlineJmxUtils.MAX_IN_FLIGHT_PER_INSTANCE; i++) {
+                try {
+                    this.jmxUtils.getValue(config, "Catalina:type=Server", "serverInfo");
+                    fail("Read should have timed out");
+                } catch (InterruptedIOException e) {
+                    // Expected
+                }
+            }
+        }
+
+        assertEquals("serverInfo", this.jmxUtils.getValue(config("healthy", "1000"), "Catalina:type=Server", "serverInfo"));
+    }
+
+    @Test
+    public void applicationManagementWaitsForItsLimitRatherThanFailing() throws Exception {
+        this.delegate.hang = true;
+        for (int i = 0; i < DeadlineJmxUtils.MAX_APPLICATION_MANAGEMENT_IN_FLIGHT_PER_INSTANCE; i++) {
+            try {
+                this.applicationManagementJmxUtils.invoke(config("waiting", "50"), "tcServer:type=Deployer", "getServices", new Object[0],
+                    new String[0]);
+                fail("Invocation should have timed out");
+            } catch (MetricUnreachableException e) {
+                // Expected
+            }
+        }
+
+        new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Release now
+                }
+                delegate.hang = false;
+                release.countDown();
+            }
+        }.start();
+
+        assertEquals("getServices", this.applicationManagementJmxUtils.invoke(config("waiting", "5000"), "tcServer:type=Deployer",
+            "getServices", new Object[0], new String[0]));
+    }
+
+    @Test
+    public void applicationManagementWaitsNoLongerThanItsDeadline() throws Exception {
+        this.delegate.hang = true;
+        for (int i = 0; i < DeadlineJmxUtils.MAX_APPLICATION_MANAGEMENT_IN_FLIGHT_PER_INSTANCE; i++) {
+            try {
+                this.applicationManagementJmxUtils.invoke(config("deadline", "50"), "tcServer:type=Deployer", "getServices", new Object[0],
+                    new String[0]);
+                fail("Invocation should have timed out");
+            } catch (MetricUnreachableException e) {
+                // Expected
+            }
+        }
+
+        try {
+            this.applicationManagementJmxUtils.invoke(config("deadline", "50"), "tcServer:type=Deployer", "getServices", new Object[0],
+                new String[0]);
+            fail("Invocation should have timed out");
+        } catch (MetricUnreachableException e) {
+            assertTrue(e.getMessage().contains("did not complete within 50ms"));
+        }
+    }
+
+    @Test
+    public void applicationManagementIsNotLimitedByHungCollection() throws Exception {
+        Properties config = config("hung-shared", "50");
+        for (int i = 0; i < DeadlineJmxUtils.MAX_IN_FLIGHT_PER_INSTANCE; i++) {
+            try {
+                this.jmxUtils.getValue(config, "Catalina:type=Server", "serverInfo");
+                fail("Read should have timed out");
+            } catch (InterruptedIOException e) {
+                // Expected
+            }
+        }
+
+        assertEquals("getServices", this.applicationManagementJmxUtils.invoke(config, "tcServer:type=Deployer", "getServices",
+            new Object[0], new String[0]));
+    }
+
+    @Test
+    public void hungStandardCollectionTimesOut() throws Exception {
+        try {
+            DeadlineJmxUtils.executeCollection(config("hung-standard", "100"), "getValue Availability", new Callable<Object>() {
+
+                public Object call() throws Exception {
+                    release.await();
+                    return null;
+                }
+            });
+            fail("Collection should have timed out");
+        } catch (InterruptedIOException e) {
+            assertTrue(e.getMessage().contains("did not complete within 100ms"));
+        }
+    }
+
+    @Test
+    public void operationsHaveTheirOwnDeadlines() {
+        assertEquals(DeadlineJmxUtils.PROP_DEPLOY_TIMEOUT, DeadlineJmxUtils.getTimeoutProperty("deployApplication"));
+        assertEquals(DeadlineJmxUtils.PROP_DEPLOY_TIMEOUT, DeadlineJmxUtils.getTimeoutProperty("undeployApplication"));
+        assertEquals(DeadlineJmxUtils.PROP_LIST_APPLICATIONS_TIMEOUT, DeadlineJmxUtils.getTimeoutProperty("listApplications"));
+        assertEquals(DeadlineJmxUtils.PROP_METRIC_TIMEOUT, DeadlineJmxUtils.getTimeoutProperty("getServices"));
+    }
+
+    private static Properties config(String instance, String timeout) {
+        Properties config = new Properties();
+        config.setProperty("jmx.url", "service:jmx:rmi:///jndi/rmi://" + instance + ":6969/jmxrmi");
+        config.setProperty(DeadlineJmxUtils.PROP_METRIC_TIMEOUT, timeout);
+        return config;
+    }
+
+    private final class StubJmxUtils implements JmxUtils {
+
+        private final MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+
+        private final MBeanServerConnection connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { MBeanServerConnection.class }, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    hangIfRequired();
+                    return method.invoke(mBeanServer, args);
+                }
+            });
+
+        private volatile boolean hang;
+
+        public MBeanServerConnection getMBeanServer(Properties configProperties) throws MalformedURLException, IOException {
+            return this.connection;
+        }
+
+        public Object getValue(Properties configProperties, String appObjectName, String string) throws IOException {
+            if (configProperties.getProperty("jmx.url").contains("//hung-")) {
+                hang(true);
+            }
+            hangIfRequired();
+            return string;
+        }
+
+        public Object invoke(Properties configProperties, String objectName, String string, Object[] objects, String[] strings) {
+            hangIfRequired();
+            return string;
+        }
+
+        public String getJmxUrlProperty() {
+            return "jmx.url";
+        }
+
+        public boolean checkConnection(ConfigResponse config) {
+            return true;
+        }
+
+        /**
+         * Hangs, as a stuck RMI call does, without responding to interruption
+         */
+        private void hangIfRequired() {
+            hang(this.hang);
+        }
+
+        private void hang(boolean hang) {
+            boolean interrupted = false;
+            while (hang && release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.InterruptedIOException;
+import java.util.Properties;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.hyperic.hq.product.MetricUnreachableException;
+import org.hyperic.util.config.ConfigResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.CollectorStatistics;
+import com.springsource.hq.plugin.tcserver.plugin.instrumentation.OperationStatistics;
+
+public class InstrumentedJmxUtilsTests {
+
+    private final MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+
+    private final InstrumentedJmxUtils jmxUtils = new InstrumentedJmxUtils(new StubJmxUtils(), CollectorStatistics.JMX);
+
+    private final Properties config = new Properties();
+
+    private OperationStatistics jmx;
+
+    private OperationStatistics timeouts;
+
+    @Before
+    public void configure() {
+        this.config.setProperty("jmx.url", "instrumented-jmx-utils-tests");
+        this.jmx = CollectorStatistics.forInstance("instrumented-jmx-utils-tests").getOperation(CollectorStatistics.JMX);
+        this.jmx.readInterval("test");
+        this.timeouts = CollectorStatistics.forInstance("instrumented-jmx-utils-tests").getOperation(CollectorStatistics.JMX_TIMEOUT);
+        this.timeouts.readInterval("test");
+    }
+
+    @Test
+    public void sameConnectionIsInstrumentedOnce() throws Exception {
+        MBeanServerConnection connection = this.jmxUtils.getMBeanServer(this.config);
+
+        assertNotSame(this.mBeanServer, connection);
+        assertSame(connection, this.jmxUtils.getMBeanServer(this.config));
+    }
+
+    @Test
+    public void roundTripsAreRecorded() throws Exception {
+        MBeanServerConnection connection = this.jmxUtils.getMBeanServer(this.config);
+        connection.getAttribute(new ObjectName("JMImplementation:type=MBeanServerDelegate"), "MBeanServerId");
+        try {
+            connection.getAttribute(new ObjectName("Catalina:type=Missing"), "maxThreads");
+            fail();
+        } catch (InstanceNotFoundException e) {
+            // Expected, and thrown unwrapped
+        }
+
+        OperationStatistics.IntervalStatistics interval = this.jmx.readInterval("test");
+        assertEquals(2, interval.getCount());
+        assertEquals(1, interval.getFailures());
+    }
+
+    @Test
+    public void timeoutsAreRecordedOnEveryPath() throws Exception {
+        try {
+            this.jmxUtils.getValue(this.config, "Catalina:type=Server", "serverInfo");
+            fail();
+        } catch (InterruptedIOException e) {
+            // Expected
+        }
+        try {
+            this.jmxUtils.invoke(this.config, "Catalina:type=Deployer,host=localhost", "deploy", new Object[0], new String[0]);
+            fail();
+        } catch (MetricUnreachableException e) {
+            // Expected
+        }
+
+        assertEquals(2, this.timeouts.readInterval("test").getCount());
+        OperationStatistics.IntervalStatistics interval = this.jmx.readInterval("test");
+        assertEquals(2, interval.getCount());
+        assertEquals(2, interval.getFailures());
+    }
+
+    private final class StubJmxUtils implements JmxUtils {
+
+        public MBeanServerConnection getMBeanServer(Properties configProperties) {
+            return mBeanServer;
+        }
+
+        public Object getValue(Properties configProperties, String appObjectName, String string) throws InterruptedIOException {
+            throw new InterruptedIOException("getAttribute did not complete within 1ms");
+        }
+
+        public Object invoke(Properties configProperties, String objectName, String string, Object[] objects, String[] strings)
+            throws MetricUnreachableException {
+            InterruptedIOException timeout = new InterruptedIOException("invoke did not complete within 1ms");
+            throw new MetricUnreachableException(timeout.getMessage(), timeout);
+        }
+
+        public String getJmxUrlProperty() {
+            return "jmx.url";
+        }
+
+        public boolean checkConnection(ConfigResponse config) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.security.auth.Subject;
+
+import org.junit.Test;
+
+public class JmxConnectionManagerTests {
+
+    private final StubConnectorFactory connectorFactory = new StubConnectorFactory();
+
+    private final JmxConnectionManager connectionManager = new JmxConnectionManager(this.connectorFactory, 60000);
+
+    private final Properties config = config("service:jmx:rmi:///jndi/rmi://localhost:6969/jmxrmi", "admin", "springsource");
+
+    @Test
+    public void connectionIsShared() throws Exception {
+        MBeanServerConnection first = this.connectionManager.getConnection(this.config);
+
+        assertSame(first, this.connectionManager.getConnection(config("service:jmx:rmi:///jndi/rmi://localhost:6969/jmxrmi", "admin",
+            "springsource")));
+        assertEquals(1, this.connectorFactory.connectors.size());
+        assertTrue(this.connectionManager.isConnected(this.config));
+    }
+
+    @Test
+    public void instancesHaveTheirOwnConnections() throws Exception {
+        MBeanServerConnection first = this.connectionManager.getConnection(this.config);
+
+        assertNotSame(first, this.connectionManager.getConnection(config("service:jmx:rmi:///jndi/rmi://localhost:6970/jmxrmi", "admin",
+            "springsource")));
+    }
+
+    @Test
+    public void failedConnectorIsReplaced() throws Exception {
+        MBeanServerConnection first = this.connectionManager.getConnection(this.config);
+        StubConnector connector = this.connectorFactory.connectors.get(0);
+
+        connector.notify(JMXConnectionNotification.FAILED);
+        assertFalse(this.connectionManager.isConnected(this.config));
+
+        assertNotSame(first, this.connectionManager.getConnection(this.config));
+        assertTrue(connector.closed);
+        assertEquals(2, this.connectorFactory.connectors.size());
+    }
+
+    @Test
+    public void previousStaleConnectorIsClosedWhenAnotherFails() throws Exception {
+        this.connectionManager.getConnection(this.config);
+        StubConnector first = this.connectorFactory.connectors.get(0);
+        first.notify(JMXConnectionNotification.FAILED);
+
+        // Reconnects without closing the stale connector, as if the close was lost to a race
+        first.closed = false;
+        this.connectorFactory.connectors.clear();
+        this.connectionManager.getConnection(this.config);
+        StubConnector second = this.connectorFactory.connectors.get(0);
+        assertTrue(first.closed);
+
+        second.notify(JMXConnectionNotification.CLOSED);
+        this.connectionManager.getConnection(this.config);
+        assertTrue(second.closed);
+    }
+
+    @Test
+    public void slowConnectDoesNotDelayOtherInstances() throws Exception {
+        final Properties slowConfig = config("service:jmx:rmi:///jndi/rmi://slow:6969/jmxrmi", "admin", "springsource");
+        this.connectorFactory.blocking = true;
+        Thread slow = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    connectionManager.getConnection(slowConfig);
+                } catch (IOException e) {
+                    // Not expected
+                }
+            }
+        };
+        slow.start();
+        try {
+            assertTrue(this.connectorFactory.connecting.await(10, TimeUnit.SECONDS));
+            this.connectorFactory.blocking = false;
+
+            assertFalse(this.connectionManager.isConnected(slowConfig));
+            this.connectionManager.invalidate(slowConfig);
+            assertTrue(this.connectionManager.getConnection(this.config) != null);
+        } finally {
+            this.connectorFactory.release.countDown();
+            slow.join(10000);
+        }
+        assertTrue(this.connectionManager.isConnected(slowConfig));
+    }
+
+    @Test
+    public void reportedFailureDiscardsConnection() throws Exception {
+        MBeanServerConnection first = this.connectionManager.getConnection(this.config);
+
+        this.connectionManager.connectionFailed(this.config, first);
+
+        assertTrue(this.connectorFactory.connectors.get(0).closed);
+        assertNotSame(first, this.connectionManager.getConnection(this.config));
+    }
+
+    @Test
+    public void timedOutConnectionIsDiscardedAndItsConnectorClosed() throws Exception {
+        MBeanServerConnection first = this.connectionManager.getConnection(this.config);
+        StubConnector connector = this.connectorFactory.connectors.get(0);
+
+        this.connectionManager.connectionTimedOut(this.config, first);
+
+        assertFalse(this.connectionManager.isConnected(this.config));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!connector.closed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(connector.closed);
+    }
+
+    @Test
+    public void changedCredentialsReconnect() throws Exception {
+        MBeanServerConnection first = this.connectionManager.getConnection(this.config);
+
+        assertNotSame(first, this.connectionManager.getConnection(config("service:jmx:rmi:///jndi/rmi://localhost:6969/jmxrmi", "admin",
+            "changed")));
+    }
+
+    @Test
+    public void connectionInUseIsNotHealthChecked() throws Exception {
+        JmxConnectionManager connectionManager = new JmxConnectionManager(this.connectorFactory, 500);
+        MBeanServerConnection first = connectionManager.getConnection(this.config);
+        this.connectorFactory.connectors.get(0).unhealthy = true;
+
+        Thread.sleep(300);
+        connectionManager.connectionSucceeded(this.config, first);
+        Thread.sleep(300);
+        assertSame(first, connectionManager.getConnection(this.config));
+
+        Thread.sleep(600);
+        assertNotSame(first, connectionManager.getConnection(this.config));
+        assertEquals(2, this.connectorFactory.connectors.size());
+    }
+
+    @Test
+    public void failedAttemptBacksOff() throws Exception {
+        this.connectorFactory.failing = true;
+        try {
+            this.connectionManager.getConnection(this.config);
+            fail("Connection should have failed");
+        } catch (IOException e) {
+            assertEquals("Connection refused", e.getMessage());
+        }
+
+        this.connectorFactory.failing = false;
+        try {
+            this.connectionManager.getConnection(this.config);
+            fail("Connection should have been refused during the backoff period");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Not reconnecting"));
+        }
+        assertEquals(0, this.connectorFactory.connectors.size());
+    }
+
+    private static Properties config(String url, String username, String password) {
+        Properties config = new Properties();
+        config.setProperty("jmx.url", url);
+        config.setProperty("jmx.username", username);
+        config.setProperty("jmx.password", password);
+        return config;
+    }
+
+    private static final class StubConnectorFactory implements JmxConnectorFactory {
+
+        private final List<StubConnector> connectors = new CopyOnWriteArrayList<StubConnector>();
+
+        private final CountDownLatch connecting = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile boolean failing;
+
+        private volatile boolean blocking;
+
+        public JMXConnector connect(Properties configProperties) throws IOException {
+            if (this.failing) {
+                throw new IOException("Connection refused");
+            }
+            if (this.blocking) {
+                this.connecting.countDown();
+                try {
+                    this.release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            StubConnector connector = new StubConnector();
+            this.connectors.add(connector);
+            return connector;
+        }
+    }
+
+    private static final class StubConnector implements JMXConnector {
+
+        private final MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+
+        private final MBeanServerConnection connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { MBeanServerConnection.class }, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (unhealthy && "getMBeanCount".equals(method.getName())) {
+                        throw new IOException("Connection reset");
+                    }
+                    return method.invoke(mBeanServer, args);
+                }
+            });
+
+        private volatile boolean unhealthy;
+
+        private NotificationListener listener;
+
+        private Object handback;
+
+        private volatile boolean closed;
+
+        void notify(String type) {
+            this.listener.handleNotification(new JMXConnectionNotification(type, this, "1", 1, null, null), this.handback);
+        }
+
+        public void connect() {
+        }
+
+        public void connect(Map<String, ?> env) {
+        }
+
+        public MBeanServerConnection getMBeanServerConnection() {
+            return this.connection;
+        }
+
+        public MBeanServerConnection getMBeanServerConnection(Subject delegationSubject) {
+            return this.connection;
+        }
+
+        public void close() {
+            this.closed = true;
+        }
+
+        public void addConnectionNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback) {
+            this.listener = listener;
+            this.handback = handback;
+        }
+
+        public void removeConnectionNotificationListener(NotificationListener listener) {
+            this.listener = null;
+        }
+
+        public void removeConnectionNotificationListener(NotificationListener l, NotificationFilter f, Object handback) {
+            this.listener = null;
+        }
+
+        public String getConnectionId() {
+            return "1";
+        }
+    }
+}
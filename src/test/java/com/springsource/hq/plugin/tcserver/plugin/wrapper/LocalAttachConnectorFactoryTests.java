@@ -0,0 +1,178 @@
+package com.springsource.hq.plugin.tcserver.plugin.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalAttachConnectorFactoryTests {
+
+    private final StubAttacher attacher = new StubAttacher();
+
+    private final StubRemoteFactory remoteFactory = new StubRemoteFactory();
+
+    private final LocalAttachConnectorFactory connectorFactory = new LocalAttachConnectorFactory(this.remoteFactory, this.attacher);
+
+    private final Properties config = new Properties();
+
+    private JMXConnectorServer connectorServer;
+
+    private String localAddress;
+
+    @Before
+    public void startLocalConnector() throws IOException {
+        this.connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"), null,
+            ManagementFactory.getPlatformMBeanServer());
+        this.connectorServer.start();
+        this.localAddress = this.connectorServer.getAddress().toString();
+
+        this.config.setProperty("jmx.url", "service:jmx:rmi:///jndi/rmi://localhost:6969/jmxrmi");
+        this.config.setProperty("catalina.base", "/opt/tcserver/instance-1");
+        this.config.setProperty("process.pid", "1234");
+        this.config.setProperty("jmx.attach", "true");
+    }
+
+    @After
+    public void stopLocalConnector() throws IOException {
+        this.connectorServer.stop();
+    }
+
+    @Test
+    public void connectsLocallyToDiscoveredProcess() throws IOException {
+        this.attacher.addresses.put("1234", this.localAddress);
+
+        JMXConnector connector = this.connectorFactory.connect(this.config);
+
+        assertNotNull(connector.getMBeanServerConnection().getMBeanCount());
+        assertEquals(0, this.remoteFactory.connections);
+        connector.close();
+    }
+
+    @Test
+    public void localConnectorAddressIsCached() throws IOException {
+        this.attacher.addresses.put("1234", this.localAddress);
+
+        this.connectorFactory.connect(this.config).close();
+        this.connectorFactory.connect(this.config).close();
+
+        assertEquals(1, this.attacher.attaches);
+    }
+
+    @Test
+    public void processWithoutLocalConnectorConnectsRemotely() throws IOException {
+        assertNull(this.connectorFactory.connect(this.config));
+        assertNull(this.connectorFactory.connect(this.config));
+
+        assertEquals(2, this.remoteFactory.connections);
+        assertEquals(1, this.attacher.attaches);
+    }
+
+    @Test
+    public void attachNotPermittedFallsBackToRemote() throws IOException {
+        this.attacher.refused = true;
+
+        assertNull(this.connectorFactory.connect(this.config));
+        assertNull(this.connectorFactory.connect(this.config));
+
+        assertEquals(2, this.remoteFactory.connections);
+        assertEquals(1, this.attacher.attaches);
+    }
+
+    @Test
+    public void unreachableLocalConnectorIsFoundAgain() throws IOException {
+        this.attacher.addresses.put("1234", this.localAddress);
+        this.connectorFactory.connect(this.config).close();
+
+        this.connectorServer.stop();
+        this.connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"), null,
+            ManagementFactory.getPlatformMBeanServer());
+        this.connectorServer.start();
+        this.attacher.addresses.put("1234", this.connectorServer.getAddress().toString());
+
+        this.connectorFactory.connect(this.config).close();
+
+        assertEquals(2, this.attacher.attaches);
+        assertEquals(0, this.remoteFactory.connections);
+    }
+
+    @Test
+    public void disabledAttachConnectsRemotely() throws IOException {
+        this.attacher.addresses.put("1234", this.localAddress);
+        this.config.setProperty("jmx.attach", "false");
+
+        assertNull(this.connectorFactory.connect(this.config));
+
+        assertEquals(0, this.attacher.attaches);
+        assertEquals(1, this.remoteFactory.connections);
+    }
+
+    @Test
+    public void attachIsDisabledByDefault() throws IOException {
+        this.attacher.addresses.put("1234", this.localAddress);
+        this.config.remove("jmx.attach");
+
+        assertNull(this.connectorFactory.connect(this.config));
+
+        assertEquals(0, this.attacher.attaches);
+    }
+
+    @Test
+    public void instanceWithoutProcessIdConnectsRemotely() throws IOException {
+        this.attacher.addresses.put("1234", this.localAddress);
+        this.config.remove("process.pid");
+
+        assertNull(this.connectorFactory.connect(this.config));
+
+        assertEquals(0, this.attacher.attaches);
+    }
+
+    @Test
+    public void instanceWithoutCatalinaBaseConnectsRemotely() throws IOException {
+        this.config.remove("catalina.base");
+
+        assertNull(this.connectorFactory.connect(this.config));
+
+        assertEquals(0, this.attacher.attaches);
+    }
+
+    private static final class StubAttacher implements VirtualMachineAttacher {
+
+        private final Map<String, String> addresses = new HashMap<String, String>();
+
+        private boolean refused;
+
+        private int attaches;
+
+        public String getLocalConnectorAddress(String id, String catalinaBase) throws IOException {
+            this.attaches++;
+            if (this.refused) {
+                throw new IOException("Operation not permitted");
+            }
+            return this.addresses.get(id);
+        }
+    }
+
+    private static final class StubRemoteFactory implements JmxConnectorFactory {
+
+        private int connections;
+
+        public JMXConnector connect(Properties configProperties) {
+            this.connections++;
+            return null;
+        }
+    }
+}